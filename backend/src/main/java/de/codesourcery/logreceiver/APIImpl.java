@@ -1,12 +1,13 @@
 package de.codesourcery.logreceiver;
 
 import de.codesourcery.logreceiver.entity.Host;
-import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.entity.MessagePage;
 import de.codesourcery.logreceiver.filtering.FilterCallbackManager;
 import de.codesourcery.logreceiver.filtering.IFilterCallback;
 import de.codesourcery.logreceiver.logstorage.MessageDAO;
 import de.codesourcery.logreceiver.storage.IHostManager;
 
+import java.time.ZonedDateTime;
 import java.util.List;
 
 public class APIImpl implements IAPI
@@ -23,19 +24,26 @@ public class APIImpl implements IAPI
     }
 
     @Override
-    public List<SyslogMessage> subscribe(Host host, IFilterCallback callback, int maxCount)
+    public MessagePage subscribe(Host host, IFilterCallback callback, int maxCount)
     {
         callbackHelper.register(host.ip, callback );
         return dao.getLatestMessages( host, callback, maxCount);
     }
 
     @Override
-    public List<SyslogMessage> getMessages(Host host, IFilterCallback callback, PagingDirection direction,
+    public MessagePage getMessages(Host host, IFilterCallback callback, PagingDirection direction,
                                            long refLogEntryId, int maxCount)
     {
         return dao.getMessages( host,callback,direction,refLogEntryId,maxCount );
     }
 
+    @Override
+    public MessagePage getMessages(Host host, IFilterCallback callback, PagingDirection direction,
+                                   ZonedDateTime refTimestamp, Long refLogEntryId, int maxCount)
+    {
+        return dao.getMessages( host,callback,direction,refTimestamp,refLogEntryId,maxCount );
+    }
+
     @Override
     public void unsubscribe(Host host, IFilterCallback callback)
     {
@@ -53,4 +61,10 @@ public class APIImpl implements IAPI
     {
         return hostManager.getHost( hostId );
     }
+
+    @Override
+    public Host setSearchIndex(long hostId, Host.SearchIndex searchIndex)
+    {
+        return hostManager.setSearchIndex( hostId, searchIndex );
+    }
 }
\ No newline at end of file
@@ -1,7 +1,7 @@
 package de.codesourcery.logreceiver;
 
 import de.codesourcery.logreceiver.entity.Host;
-import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.entity.MessagePage;
 import de.codesourcery.logreceiver.filtering.IFilterCallback;
 
 import java.time.ZonedDateTime;
@@ -14,13 +14,37 @@ public interface IAPI
         BACKWARD_IN_TIME
     }
 
-    List<SyslogMessage> subscribe(Host host, IFilterCallback callback, int maxCount);
-
-    List<SyslogMessage> getMessages(Host host, IFilterCallback callback, PagingDirection direction, long refLogEntryId, int maxCount);
+    MessagePage subscribe(Host host, IFilterCallback callback, int maxCount);
+
+    MessagePage getMessages(Host host, IFilterCallback callback, PagingDirection direction, long refLogEntryId, int maxCount);
+
+    /**
+     * Returns messages older (backward) or newer (forward) than a point in time,
+     * only reading the partitions that may contain them.
+     *
+     * @param host
+     * @param callback
+     * @param direction
+     * @param refTimestamp
+     * @param refLogEntryId message within the partition of <code>refTimestamp</code> to continue paging at,
+     *                      NULL to jump to <code>refTimestamp</code>
+     * @param maxCount
+     * @return
+     */
+    MessagePage getMessages(Host host, IFilterCallback callback, PagingDirection direction, ZonedDateTime refTimestamp, Long refLogEntryId, int maxCount);
 
     void unsubscribe(Host host,IFilterCallback callback);
 
     List<Host> getAllHosts();
 
     Host getHost(long hostId);
+
+    /**
+     * Changes the message search indexes of a host, see {@link Host.SearchIndex}.
+     *
+     * @param hostId
+     * @param searchIndex
+     * @return the updated host
+     */
+    Host setSearchIndex(long hostId, Host.SearchIndex searchIndex);
 }
\ No newline at end of file
@@ -3,10 +3,9 @@ package de.codesourcery.logreceiver;
 import de.codesourcery.logreceiver.entity.Configuration;
 import de.codesourcery.logreceiver.filtering.FilterCallbackManager;
 import de.codesourcery.logreceiver.logstorage.DelegatingLogStorage;
-import de.codesourcery.logreceiver.logstorage.ISQLLogStorage;
 import de.codesourcery.logreceiver.logstorage.MessageDAO;
 import de.codesourcery.logreceiver.logstorage.PostgreSQLHostIdManager;
-import de.codesourcery.logreceiver.logstorage.SQLLogWriter;
+import de.codesourcery.logreceiver.logstorage.LogWriterFactory;
 import de.codesourcery.logreceiver.parsing.LogParserFactory;
 import de.codesourcery.logreceiver.receiving.UDPServer;
 import de.codesourcery.logreceiver.storage.IHostManager;
@@ -22,8 +21,8 @@ public class Main
 
     public static DataSource ds;
     public static IHostManager hostIdManager;
-    public static ISQLLogStorage storage;
-    public static SQLLogWriter writer;
+    public static DelegatingLogStorage storage;
+    public static LogWriterFactory writerFactory;
     public static UDPServer server;
     public static MessageDAO messageDAO;
 
@@ -36,16 +35,16 @@ public class Main
     {
         final EventBus eventBus = new EventBus();
         ds = new DataSourceFactory( config ).getObject();
-        messageDAO = new MessageDAO( new JdbcTemplate(ds) );
+        messageDAO = new MessageDAO( new JdbcTemplate(ds), config );
         hostIdManager = new PostgreSQLHostIdManager( ds, config, eventBus );
 
-        final FilterCallbackManager callbackHelper = new FilterCallbackManager( hostIdManager, messageDAO );
+        final FilterCallbackManager callbackHelper = new FilterCallbackManager( hostIdManager, messageDAO, config );
         callbackHelper.afterPropertiesSet();
 
         storage = new DelegatingLogStorage( ds , hostIdManager, config, callbackHelper );
-        writer = new SQLLogWriter( storage,hostIdManager );
+        writerFactory = new LogWriterFactory( storage, storage, hostIdManager, config );
 
-        server = new UDPServer( config, new LogParserFactory( writer, hostIdManager ) );
+        server = new UDPServer( config, new LogParserFactory( writerFactory, hostIdManager, config ) );
         server.process();
     }
 }
\ No newline at end of file
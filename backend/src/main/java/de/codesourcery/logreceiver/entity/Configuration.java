@@ -1,6 +1,11 @@
 package de.codesourcery.logreceiver.entity;
 
 import de.codesourcery.logreceiver.formatting.PatternLogFormatter;
+import de.codesourcery.logreceiver.logstorage.CopyFormat;
+import de.codesourcery.logreceiver.logstorage.PartitionDDL;
+import de.codesourcery.logreceiver.logstorage.RetentionFilter;
+import de.codesourcery.logreceiver.parsing.LogParserFactory;
+import de.codesourcery.logreceiver.receiving.PacketRingBuffer;
 
 import java.time.Duration;
 
@@ -12,25 +17,58 @@ public class Configuration
     public String dbPassword="logreceive";
     public String dbHost="localhost";
     public int dbPort = 5432;
-    public int dbConnectionPoolSize = 10;
+    public int dbConnectionPoolSize = 10; // = dbReservedConnections + flush workers + filter threads, see ConnectionBudget
+    public int dbReservedConnections = 2; // not used by flush workers/filter threads: staging mover, journal replay, late data writer, partition pre-creation and UI queries
 
     // network
     public boolean startUDPServer = true;
     public int udpPort = 1234;
     public int maxReceiveBufferSize = 2048; // also limits max. length of log message that can be received
+    public int udpReceiverThreads = 1; // values > 1 bind one channel per thread to udpPort using SO_REUSEPORT
+
+    // receive pipeline
+    public int parserThreads = 0; // values > 0 hand packets to this many parser threads through a ring buffer instead of parsing on the receiver thread
+    public int packetRingBufferSize = 8192; // number of packet slots, gets rounded up to the next power of two
+    public PacketRingBuffer.OverflowPolicy packetRingBufferOverflowPolicy = PacketRingBuffer.OverflowPolicy.DROP_NEWEST;
+    public LogParserFactory.ParserType parserType = LogParserFactory.ParserType.RFC5424_BYTES;
+    public int headerInternTableSize = 1024; // per parser, number of cached host name/app name/proc id/msg id strings
 
     // flushing
-    public int maxCharsInBuffer=100*1024;
+    public CopyFormat copyFormat = CopyFormat.TEXT;
+    public int maxCharsInBuffer=100*1024; // max. number of bytes buffered per partition before flushing
     public Duration flushInterval = Duration.ofSeconds(1); // max. time until messages get flushed to the database
+    public int flushWorkerThreads = 0; // threads shared by all partitions for COPYing, 0 = connections not reserved or used by filter threads (min. 1)
+    public boolean useStagingTable = false; // COPY rows of all hosts into one UNLOGGED table and move them to the per-host tables periodically
+    public Duration stagingMoveInterval = Duration.ofSeconds(1); // how often rows get moved from the staging table
+    public String journalDirectory = null; // write rows to a memory-mapped journal before COPYing them, null disables the journal
+    public int journalSegmentSize = 64*1024*1024; // bytes per journal segment file
+    public int journalMaxSegments = 64; // journal disk space is limited to journalSegmentSize*journalMaxSegments
+    public int copyBuffersPerPartition = 4; // active buffer + batches waiting for COPY (min. 2), storing blocks when all are in use
+    public Duration lateMessageSkew = Duration.ofMinutes( 5 ); // messages for partitions other than the current/next one (or the previous one within this time after a partition boundary) get stored by a shared background writer, null disables
 
     // database layout
     public int hoursPerPartition = 4;
     public Duration defaultDataRetentionTime = Duration.ofDays( 7 );
+    public Host.SearchIndex defaultSearchIndex = Host.SearchIndex.NONE; // message search index for new hosts, TRIGRAM requires the pg_trgm extension
+    public RetentionFilter.Policy expiredMessagePolicy = RetentionFilter.Policy.DROP; // what to do with messages older than their host's data retention time
+    public Duration partitionPrecreateLead = Duration.ofMinutes( 10 ); // create the next partition of active hosts this long before it starts, null disables
+    public int partitionDDLBatchSize = 50; // number of partitions created per transaction when pre-creating partitions
+    public PartitionDDL.IndexType logTsIndex = PartitionDDL.IndexType.BRIN; // index on log_ts of partitions that are receiving data
+    public PartitionDDL.IndexType entryIdIndex = PartitionDDL.IndexType.BTREE; // index on entry_id of partitions that are receiving data
+    public PartitionDDL.IndexType sealedLogTsIndex = null; // replaces logTsIndex once a partition's interval has ended, null keeps logTsIndex
+    public PartitionDDL.IndexType sealedEntryIdIndex = null; // replaces entryIdIndex once a partition's interval has ended, null keeps entryIdIndex
 
     public Duration staleBackendUnloadCheckInterval = Duration.ofMinutes( 30 );
 
     // UI
     public String defaultLogDisplayPattern = PatternLogFormatter.DEFAULT_PATTERN;
+    public int maxScannedRowsPerPage = 50_000; // max. rows read from the database per page when the filter needs to be applied on the client side
+    public Duration liveMessageMaxAge = null; // new messages with older timestamps are not pushed to subscribed clients (so older partitions need not be scanned) and get lost for good, null = no limit
+    public boolean pushLiveMessages = false; // hand new messages to subscribed clients once their COPY committed instead of reading them back from the database (entry_ids get reserved before the COPY)
+    public int filterThreads = 0; // threads processing the filters of different hosts concurrently, 0 = a quarter of the connections not reserved (min. 1)
+    public Duration filterLagLogInterval = Duration.ofMinutes( 1 ); // how often the filter lag of all hosts gets logged, null disables
+    public Duration filterWatermarkWriteInterval = Duration.ofSeconds( 10 ); // how often the watermarks of filters with a watermark key get written to the database
+    public Duration filterCatchUpMaxAge = Duration.ofDays( 1 ); // how far back messages missed while stopped get replayed to filters with a persisted watermark, null = no limit
 
     // user management
     public boolean strictPasswordPolicy=false;
@@ -25,6 +25,34 @@ public class Host implements Serializable
     public String hostName;
     @JsonIgnore
     public Duration dataRetentionTime;
+    @JsonIgnore
+    public SearchIndex searchIndex = SearchIndex.NONE;
+
+    /**
+     * Indexes on the message text, speeding up searches at the cost of slower inserts.
+     */
+    public enum SearchIndex
+    {
+        NONE(false,false),
+        /**
+         * pg_trgm GIN index, used by substring (ILIKE) and regex searches.
+         */
+        TRIGRAM(true,false),
+        /**
+         * GIN index on the message's tsvector, used by word searches.
+         */
+        FULLTEXT(false,true),
+        BOTH(true,true);
+
+        public final boolean trigram;
+        public final boolean fullText;
+
+        SearchIndex(boolean trigram, boolean fullText)
+        {
+            this.trigram = trigram;
+            this.fullText = fullText;
+        }
+    }
 
     public Host() {
     }
@@ -35,6 +63,7 @@ public class Host implements Serializable
         this.ip = other.ip;
         this.hostName = other.hostName;
         this.dataRetentionTime = other.dataRetentionTime;
+        this.searchIndex = other.searchIndex;
     }
 
     @Override
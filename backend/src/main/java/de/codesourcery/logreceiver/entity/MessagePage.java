@@ -0,0 +1,42 @@
+package de.codesourcery.logreceiver.entity;
+
+import java.util.List;
+
+/**
+ * A page of log messages.
+ *
+ * A page is incomplete if the database query gave up after scanning too many rows
+ * that did not match the filter, in this case it can be continued at {@link #resumeEntryId}
+ * (within the partition containing {@link #resumeEpochSeconds} when paging by time).
+ */
+public final class MessagePage
+{
+    public final List<SyslogMessage> messages;
+    public final boolean complete;
+    public final Long resumeEntryId; // DB primary key of last row that has been scanned, NULL if complete
+    public final Long resumeEpochSeconds; // start of the partition resumeEntryId belongs to, NULL if not paging by time
+
+    public MessagePage(List<SyslogMessage> messages)
+    {
+        this( messages, true, null );
+    }
+
+    public MessagePage(List<SyslogMessage> messages, boolean complete, Long resumeEntryId)
+    {
+        this( messages, complete, resumeEntryId, null );
+    }
+
+    public MessagePage(List<SyslogMessage> messages, boolean complete, Long resumeEntryId, Long resumeEpochSeconds)
+    {
+        this.messages = messages;
+        this.complete = complete;
+        this.resumeEntryId = resumeEntryId;
+        this.resumeEpochSeconds = resumeEpochSeconds;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MessagePage[ "+messages.size()+" messages, complete: "+complete+", resume at: "+resumeEntryId+" ]";
+    }
+}
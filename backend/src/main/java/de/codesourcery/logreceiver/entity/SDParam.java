@@ -30,7 +30,17 @@ public final class SDParam
             return id;
         }
         StringBuilder result = new StringBuilder();
-        result.append( id ).append( '{' );
+        appendTo( result );
+        return result.toString();
+    }
+
+    public void appendTo(StringBuilder result)
+    {
+        result.append( id );
+        if ( paramPtr == 0 ) {
+            return;
+        }
+        result.append( '{' );
         for ( int i = 0 ; i < paramPtr ; i++)
         {
             result.append(paramNames[i]).append('=').append(paramValues[i]);
@@ -40,7 +50,6 @@ public final class SDParam
             }
         }
         result.append('}');
-        return result.toString();
     }
 
     public void addParam(String key,String value)
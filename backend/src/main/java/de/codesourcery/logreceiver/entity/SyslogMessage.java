@@ -1,21 +1,28 @@
 package de.codesourcery.logreceiver.entity;
 
+import de.codesourcery.logreceiver.formatting.FormatMemo;
+import de.codesourcery.logreceiver.util.DateUtils;
 import org.apache.logging.log4j.core.net.Facility;
 
 import java.io.Serializable;
-import java.time.ZoneOffset;
+import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.List;
 
 public class SyslogMessage implements Serializable
 {
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
     // other
     public long id;
     public Host host;
 
     // protocol fields
-    public ZonedDateTime timestamp;
+    public long epochSeconds = NO_TIMESTAMP; // see hasTimestamp()
+    public int nanos;
+    public int offsetSeconds; // zone offset of the original timestamp
+    private transient ZonedDateTime timestamp; // created lazily
     public short priority;
     public String appName;
     public String procId;
@@ -26,6 +33,9 @@ public class SyslogMessage implements Serializable
 
     public byte paramCount;
 
+    // only set while the message is handed to filter callbacks, see FormatMemo#attach()
+    public transient FormatMemo formatMemo;
+
     public SyslogMessage() {
     }
 
@@ -33,6 +43,9 @@ public class SyslogMessage implements Serializable
     {
         this.id = other.id;
         this.host = other.host;
+        this.epochSeconds = other.epochSeconds;
+        this.nanos = other.nanos;
+        this.offsetSeconds = other.offsetSeconds;
         this.timestamp = other.timestamp;
         this.priority = other.priority;
         this.appName = other.appName;
@@ -79,6 +92,9 @@ public class SyslogMessage implements Serializable
     {
         host = null;
         priority=0;
+        epochSeconds = NO_TIMESTAMP;
+        nanos = 0;
+        offsetSeconds = 0;
         timestamp = null;
         hostName = null;
         appName = null;
@@ -86,6 +102,44 @@ public class SyslogMessage implements Serializable
         msgId = null;
         paramCount = 0;
         message = null;
+        formatMemo = null;
+    }
+
+    public boolean hasTimestamp() {
+        return epochSeconds != NO_TIMESTAMP;
+    }
+
+    public void setTimestamp(long epochSeconds, int nanos, int offsetSeconds)
+    {
+        this.epochSeconds = epochSeconds;
+        this.nanos = nanos;
+        this.offsetSeconds = offsetSeconds;
+        this.timestamp = null;
+    }
+
+    public void setTimestamp(ZonedDateTime timestamp)
+    {
+        if ( timestamp == null ) {
+            setTimestamp( NO_TIMESTAMP, 0, 0 );
+        } else {
+            setTimestamp( timestamp.toEpochSecond(), timestamp.getNano(), timestamp.getOffset().getTotalSeconds() );
+        }
+    }
+
+    /**
+     * Returns this message's timestamp in the zone offset it was received with.
+     *
+     * Only meant for the UI/formatting, everything else should use
+     * {@link #epochSeconds}, {@link #nanos} and {@link #offsetSeconds}.
+     *
+     * @return timestamp or <code>null</code> if this message has no timestamp
+     */
+    public ZonedDateTime getTimestamp()
+    {
+        if ( timestamp == null && hasTimestamp() ) {
+            timestamp = ZonedDateTime.ofInstant( Instant.ofEpochSecond( epochSeconds, nanos ), DateUtils.zoneId( offsetSeconds ) );
+        }
+        return timestamp;
     }
 
     public interface TZVisitor<T> {
@@ -94,8 +148,7 @@ public class SyslogMessage implements Serializable
 
     public <T> T visitTZOffset(TZVisitor<T> visitor)
     {
-        final ZoneOffset offset = ZoneOffset.from( timestamp );
-        int seconds = offset.getTotalSeconds();
+        int seconds = offsetSeconds;
         final int tzHours;
         final int tzMinutes;
         boolean posTZ = true;
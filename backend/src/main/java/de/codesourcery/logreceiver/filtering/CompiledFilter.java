@@ -0,0 +1,34 @@
+package de.codesourcery.logreceiver.filtering;
+
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * A {@link FilterExpression} split into a part the database can evaluate and a part
+ * that needs to be evaluated in Java.
+ *
+ * A message matches the filter if it satisfies {@link #sqlCondition} AND {@link #residual}.
+ */
+public final class CompiledFilter
+{
+    public final String sqlCondition; // NULL if no part of the expression can be evaluated by the database
+    public final List<Object> sqlParameters; // values for the '?' placeholders in sqlCondition
+    public final Predicate<SyslogMessage> residual; // NULL if sqlCondition is exact
+    public final Predicate<SyslogMessage> predicate; // complete filter, for messages that did not come from the database
+
+    public CompiledFilter(String sqlCondition, List<Object> sqlParameters, Predicate<SyslogMessage> residual, Predicate<SyslogMessage> predicate)
+    {
+        this.sqlCondition = sqlCondition;
+        this.sqlParameters = sqlParameters;
+        this.residual = residual;
+        this.predicate = predicate;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CompiledFilter[ sql: "+sqlCondition+", parameters: "+sqlParameters+", residual: "+(residual != null)+" ]";
+    }
+}
@@ -1,10 +1,13 @@
 package de.codesourcery.logreceiver.filtering;
 
+import de.codesourcery.logreceiver.entity.Configuration;
 import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.formatting.FormatMemo;
 import de.codesourcery.logreceiver.logstorage.MessageDAO;
 import de.codesourcery.logreceiver.storage.IHostManager;
+import de.codesourcery.logreceiver.util.ConnectionBudget;
 import de.codesourcery.logreceiver.util.EternalThread;
-import de.codesourcery.logreceiver.util.OptionalBarrier;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -12,38 +15,134 @@ import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.net.InetAddress;
 import java.time.Duration;
+import java.time.ZonedDateTime;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Hands new messages to the {@link IFilterCallback}s registered for their host.
+ *
+ * Hosts are processed concurrently by a fixed number of worker threads, with at most
+ * one pass per host in flight so callbacks still see each host's messages in order.
+ */
 public class FilterCallbackManager
 {
     private static final Logger LOG = LogManager.getLogger( FilterCallbackManager.class );
 
     private final Map<InetAddress, ConcurrentLinkedQueue<IFilterCallback>> filterCallbacks = new ConcurrentHashMap<>();
 
-    // @GuardedBy( dirtyIPs )
-    private final Set<InetAddress> dirtyIPs = new HashSet<>();
-
     private static final Duration SLEEP_TIME = Duration.ofSeconds( 60 );
 
+    // when the filter threads fall behind by more than this many published messages,
+    // further messages are read back from the database instead
+    private static final int MAX_PUBLISHED_MESSAGES = 10_000;
+
+    /**
+     * How far the callbacks of a host lag behind the messages stored for it.
+     */
+    public static final class Lag
+    {
+        public final InetAddress hostIP;
+        public final Long watermark; // latest entry ID handed to callbacks, NULL if unknown
+        public final Long latestEntryId; // latest entry ID stored for the host, NULL if there are no messages
+        public final boolean pending; // a pass is running or waiting for a worker
+        public final long passCount; // number of passes completed so far
+        public final long lastPassNanos; // duration of the last pass
+
+        private Lag(InetAddress hostIP, Long watermark, Long latestEntryId, boolean pending, long passCount, long lastPassNanos)
+        {
+            this.hostIP = hostIP;
+            this.watermark = watermark;
+            this.latestEntryId = latestEntryId;
+            this.pending = pending;
+            this.passCount = passCount;
+            this.lastPassNanos = lastPassNanos;
+        }
+
+        /**
+         * Returns the number of entry IDs the callbacks are behind.
+         *
+         * @return
+         */
+        public long getEntries()
+        {
+            if ( latestEntryId == null || watermark == null ) {
+                return 0;
+            }
+            return Math.max( 0, latestEntryId - watermark );
+        }
+
+        @Override
+        public String toString()
+        {
+            return hostIP.getHostAddress()+": watermark="+watermark+", latest="+latestEntryId+", lag="+getEntries()+
+                   ", pending="+pending+", passes="+passCount+", last pass="+TimeUnit.NANOSECONDS.toMillis( lastPassNanos )+" ms";
+        }
+    }
+
+    private static final class HostState
+    {
+        public final InetAddress ip;
+
+        // newer messages need to be read from the database
+        public boolean dirty;
+        // messages handed over by the write path, see #publish()
+        public List<SyslogMessage> published = new ArrayList<>();
+        // a worker is currently processing this host
+        public boolean running;
+
+        // incremented each time the host is marked dirty
+        public long dirtyGeneration;
+        // dirtyGeneration covered by the last completed pass
+        public long completedGeneration;
+
+        // contains the latest entry ID that we processed so far
+        public Long watermark;
+
+        public long passCount;
+        public long lastPassNanos;
+
+        // callbacks whose missed messages could not be replayed, their persisted watermarks
+        // must not advance so the replay gets repeated on the next registration
+        public final Set<IFilterCallback> notCaughtUp = new HashSet<>();
+
+        private HostState(InetAddress ip) {
+            this.ip = ip;
+        }
+
+        public boolean isReady() {
+            return ! running && ( dirty || ! published.isEmpty() );
+        }
+    }
+
+    // @GuardedBy( hosts )
+    private final Map<InetAddress, HostState> hosts = new HashMap<>();
+    // @GuardedBy( hosts )
+    private int publishedMessageCount;
+
+    // watermarks of callbacks with a watermark key that still need to be persisted,
+    // key is host ID, value is watermark by callback key
+    // @GuardedBy( hosts )
+    private Map<Long, Map<String, Long>> unsavedWatermarks = new HashMap<>();
+
     private volatile boolean cancel;
 
     private final IHostManager hostManager;
     private final MessageDAO dao;
-
-    // contains the latest entry ID that we processed so far
-    // @GuardedBy( watermarks )
-    private final Map<InetAddress, Long> watermarks = new HashMap<>();
-
-    private final OptionalBarrier FILTERING_ITERATION_DONE = new OptionalBarrier();
+    private final Configuration config;
+    private final ExecutorService workers;
 
     private final EternalThread thread = new EternalThread( "filter-processor", () -> new EternalThread.Interruptable()
     {
@@ -51,74 +150,241 @@ public class FilterCallbackManager
         public void cancel()
         {
             cancel = true;
+            synchronized (hosts)
+            {
+                hosts.notifyAll();
+            }
         }
 
         @Override
         public void run(EternalThread.Context context) throws Exception
         {
+            long nextWatermarkWrite = 0;
+            long nextLagLog = config.filterLagLogInterval == null ? Long.MAX_VALUE :
+                    System.currentTimeMillis() + config.filterLagLogInterval.toMillis();
             while ( !context.isCancelled() )
             {
-                final Set<InetAddress> dirty;
-                synchronized (dirtyIPs)
+                Map<Long, Map<String, Long>> watermarks = null;
+                synchronized (hosts)
                 {
-                    if ( dirtyIPs.isEmpty() )
+                    if ( System.currentTimeMillis() >= nextLagLog )
                     {
-                        dirty = Collections.emptySet();
+                        // looks up the latest entry IDs in the database, so don't block dispatching
+                        workers.execute( FilterCallbackManager.this::logLag );
+                        nextLagLog = System.currentTimeMillis() + config.filterLagLogInterval.toMillis();
                     }
-                    else
+                    boolean submitted = false;
+                    for (HostState state : hosts.values())
                     {
-                        dirty = new HashSet<>( dirtyIPs );
-                        dirtyIPs.clear();
+                        if ( state.isReady() )
+                        {
+                            submit( state );
+                            submitted = true;
+                        }
                     }
-                }
-                if ( LOG.isDebugEnabled() && !dirty.isEmpty() )
-                {
-                    LOG.info( "Invoking filters for " + dirty.size() + " IPs" );
-                }
-                for (InetAddress dirtyIP : dirty)
-                {
-                    final ConcurrentLinkedQueue<IFilterCallback> list = filterCallbacks.get( dirtyIP );
-                    if ( list != null )
+                    final long now = System.currentTimeMillis();
+                    if ( ! unsavedWatermarks.isEmpty() && now >= nextWatermarkWrite )
                     {
-                        filter( dirtyIP, list );
+                        watermarks = unsavedWatermarks;
+                        unsavedWatermarks = new HashMap<>();
+                        nextWatermarkWrite = now + config.filterWatermarkWriteInterval.toMillis();
                     }
+                    else if ( ! submitted && ! cancel )
+                    {
+                        long sleepMillis = Math.max( 1, Math.min( SLEEP_TIME.toMillis(), nextLagLog - now ) );
+                        if ( ! unsavedWatermarks.isEmpty() ) {
+                            sleepMillis = Math.max( 1, Math.min( sleepMillis, nextWatermarkWrite - now ) );
+                        }
+                        hosts.wait( sleepMillis );
+                    }
+                }
+                if ( watermarks != null ) {
+                    storeWatermarks( watermarks );
                 }
-                // wake-up any thread waiting inside #subscribe() method.
-                FILTERING_ITERATION_DONE.wakeAll();
+            }
+        }
+    } );
+
+    public FilterCallbackManager(IHostManager hostManager, MessageDAO dao, Configuration config)
+    {
+        this.hostManager = hostManager;
+        this.dao = dao;
+        this.config = config;
+
+        // each pass holds a database connection
+        final int threadCount = ConnectionBudget.filterThreads( config );
+        final AtomicInteger threadId = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool( threadCount, r ->
+        {
+            final Thread t = new Thread( r, "filter-worker-" + threadId.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+        } );
+        LOG.info( "FilterCallbackManager(): Using " + threadCount + " filter threads" );
+    }
+
+    // @GuardedBy( hosts )
+    private HostState getState(InetAddress ip)
+    {
+        return hosts.computeIfAbsent( ip, HostState::new );
+    }
 
-                boolean doSleep;
-                synchronized (dirtyIPs)
+    // @GuardedBy( hosts )
+    private void submit(HostState state)
+    {
+        final boolean dirty = state.dirty;
+        final long generation = state.dirtyGeneration;
+        final List<SyslogMessage> published = state.published;
+        state.dirty = false;
+        state.published = new ArrayList<>();
+        publishedMessageCount -= published.size();
+        state.running = true;
+        workers.execute( () -> process( state, dirty, generation, published ) );
+    }
+
+    private void process(HostState state, boolean dirty, long generation, List<SyslogMessage> published)
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            if ( dirty )
+            {
+                final ConcurrentLinkedQueue<IFilterCallback> list = filterCallbacks.get( state.ip );
+                if ( list != null )
                 {
-                    doSleep = dirtyIPs.isEmpty();
+                    filter( state, list );
                 }
-                if ( doSleep )
+            }
+            // after reading from the database so messages already visited there get skipped
+            if ( ! published.isEmpty() )
+            {
+                deliver( state, published );
+            }
+            rememberWatermarks( state, filterCallbacks.get( state.ip ) );
+        }
+        catch (Exception e)
+        {
+            LOG.error( "process(): Filtering messages of " + state.ip + " failed", e );
+        }
+        finally
+        {
+            synchronized (hosts)
+            {
+                state.running = false;
+                state.passCount++;
+                state.lastPassNanos = System.nanoTime() - start;
+                if ( dirty )
                 {
-                    context.sleep( SLEEP_TIME );
+                    state.completedGeneration = generation;
                 }
+                // wake-up the dispatcher and any thread waiting inside #register()
+                hosts.notifyAll();
             }
         }
-    } );
+    }
 
-    private void filter(InetAddress address, Queue<IFilterCallback> callback)
+    /**
+     * Remembers the current watermark of a host for all callbacks with a watermark key,
+     * to be written to the database by the filter-processor thread.
+     *
+     * @param state
+     * @param callbacks
+     */
+    private void rememberWatermarks(HostState state, Iterable<IFilterCallback> callbacks)
     {
-        final Host host = hostManager.getHost( address );
-        if ( host == null )
-        {
+        final Host host = hostManager.getHost( state.ip );
+        if ( host == null || callbacks == null ) {
             return;
         }
+        synchronized (hosts)
+        {
+            if ( state.watermark == null ) {
+                return;
+            }
+            for (IFilterCallback callback : callbacks)
+            {
+                final String key = callback.getWatermarkKey();
+                if ( key != null && ! state.notCaughtUp.contains( callback ) ) {
+                    unsavedWatermarks.computeIfAbsent( host.id, id -> new HashMap<>() ).put( key, state.watermark );
+                }
+            }
+        }
+    }
 
-        final Long oldId;
-        synchronized (watermarks)
+    private void storeWatermarks(Map<Long, Map<String, Long>> watermarks)
+    {
+        try
         {
-            oldId = watermarks.get( address );
+            dao.storeFilterWatermarks( watermarks );
         }
+        catch (Exception e)
+        {
+            LOG.error( "storeWatermarks(): Failed to persist watermarks of " + watermarks.size() + " hosts", e );
+        }
+    }
+
+    /**
+     * Hands messages that arrived while the application was stopped to a callback
+     * with a persisted watermark.
+     *
+     * Must only be called while holding the host's pass (see {@link HostState#running}), so
+     * no messages get visited twice or skipped when the callback gets added afterwards.
+     *
+     * @param state
+     * @param callback
+     * @return <code>true</code> if all missed messages have been replayed, <code>false</code> if replaying got cancelled
+     */
+    private boolean catchUp(HostState state, IFilterCallback callback)
+    {
+        final Host host = hostManager.getHost( state.ip );
+        final Long current = getWatermark( state );
+        if ( host == null || current == null ) {
+            return true;
+        }
+        final Long persisted = dao.getFilterWatermark( host, callback.getWatermarkKey() );
+        if ( persisted != null && persisted < current )
+        {
+            final ZonedDateTime notBefore = config.filterCatchUpMaxAge == null ? null : ZonedDateTime.now().minus( config.filterCatchUpMaxAge );
+            LOG.info( "catchUp(): [ " + host + " ] Replaying messages " + persisted + " < entry_id <= " + current +
+                      " to " + callback + ( notBefore == null ? "" : " , not before " + notBefore ) );
+            dao.visitNewerMessages( host, List.of( callback ), persisted, current, notBefore, () -> cancel );
+            return ! cancel;
+        }
+        return true;
+    }
+
+    private Long getWatermark(HostState state)
+    {
+        synchronized (hosts)
+        {
+            return state.watermark;
+        }
+    }
+
+    private void updateWatermark(HostState state, long newValue)
+    {
+        synchronized (hosts)
+        {
+            state.watermark = state.watermark == null ? newValue : Math.max( state.watermark, newValue );
+        }
+    }
+
+    private void filter(HostState state, Queue<IFilterCallback> callback)
+    {
+        final Host host = hostManager.getHost( state.ip );
+        if ( host == null )
+        {
+            return;
+        }
+
+        final Long oldId = getWatermark( state );
         if ( LOG.isDebugEnabled() )
         {
-            LOG.info( "filter(): [ " + host + " ] Invoking " + filterCallbacks.size() + " filters for " + host.ip +
+            LOG.debug( "filter(): [ " + host + " ] Invoking " + callback.size() + " filters for " + host.ip +
                       " , watermark=" + oldId );
         }
         final Long newId;
-        if ( oldId != null )
+        if ( oldId != null && ! callback.isEmpty() )
         {
             newId = dao.visitNewerMessages( host, new ArrayList<>( callback ), oldId, () -> cancel );
         }
@@ -128,35 +394,93 @@ public class FilterCallbackManager
         }
         if ( newId != null )
         {
-            updateWatermark( host, oldId, newId );
+            updateWatermark( state, newId );
         }
     }
 
-    private void updateWatermark(Host host, Long oldValue, Long newValue)
+    /**
+     * Hands published messages to the callbacks of a host, skipping messages
+     * that already have been visited.
+     *
+     * @param state
+     * @param messages
+     */
+    private void deliver(HostState state, List<SyslogMessage> messages)
     {
-        synchronized (watermarks)
+        final Long watermark = getWatermark( state );
+        messages.sort( Comparator.comparingLong( msg -> msg.id ) );
+        if ( watermark != null ) {
+            messages.removeIf( msg -> msg.id <= watermark );
+        }
+        if ( messages.isEmpty() ) {
+            return;
+        }
+        final ConcurrentLinkedQueue<IFilterCallback> list = filterCallbacks.get( state.ip );
+        if ( list != null )
         {
-            Long currentId = watermarks.get( host.ip );
-            if ( Objects.equals( currentId, oldValue ) )
-            {
-                watermarks.put( host.ip, newValue );
+            FormatMemo.attach( messages );
+            try {
+                list.forEach( callback -> callback.visit( messages ) );
+            } finally {
+                FormatMemo.detach( messages );
             }
         }
+        updateWatermark( state, messages.get( messages.size() - 1 ).id );
     }
 
-    public FilterCallbackManager(IHostManager hostManager, MessageDAO dao)
+    /**
+     * Returns whether any callbacks are registered for a host.
+     *
+     * @param hostIP
+     * @return
+     */
+    public boolean hasCallbacks(InetAddress hostIP)
     {
-        this.hostManager = hostManager;
-        this.dao = dao;
+        final ConcurrentLinkedQueue<IFilterCallback> list = filterCallbacks.get( hostIP );
+        return list != null && ! list.isEmpty();
+    }
+
+    /**
+     * Hands messages that have just been committed (with their <code>entry_id</code> set) to the callbacks
+     * of their host without reading them back from the database.
+     *
+     * @param host
+     * @param messages
+     * @see de.codesourcery.logreceiver.entity.Configuration#pushLiveMessages
+     */
+    public void publish(Host host, List<SyslogMessage> messages)
+    {
+        synchronized (hosts)
+        {
+            final HostState state = getState( host.ip );
+            if ( publishedMessageCount + messages.size() > MAX_PUBLISHED_MESSAGES )
+            {
+                LOG.warn( "publish(): Filtering is falling behind, "+host+" needs to catch up from the database" );
+                markDirty( state );
+            }
+            else
+            {
+                state.published.addAll( messages );
+                publishedMessageCount += messages.size();
+            }
+            hosts.notifyAll();
+        }
     }
 
     public void markDirty(InetAddress hostIP)
     {
-        synchronized (dirtyIPs)
+        synchronized (hosts)
         {
-            dirtyIPs.add( hostIP );
+            markDirty( getState( hostIP ) );
+            hosts.notifyAll();
         }
-        thread.wakeUp();
+    }
+
+    // @GuardedBy( hosts )
+    private long markDirty(HostState state)
+    {
+        state.dirty = true;
+        return ++state.dirtyGeneration;
     }
 
     public void register(InetAddress hostIP, IFilterCallback callback)
@@ -171,19 +495,67 @@ public class FilterCallbackManager
         filterCallbacks.computeIfAbsent( hostIP, key -> new ConcurrentLinkedQueue<>() );
         LOG.info("register(): Registered callback "+callback);
 
-        // make sure all watermarks are up-to-date before
+        // make sure the host's watermark is up-to-date before
         // registering the new filter (so it doesn't receive the whole database
         // if it happens to be the first filter to be added)
-        thread.wakeUp();
+        final HostState state;
+        final boolean catchUp = callback.getWatermarkKey() != null;
+        synchronized (hosts)
+        {
+            state = getState( hostIP );
+            final long generation = markDirty( state );
+            hosts.notifyAll();
+            try
+            {
+                while ( state.completedGeneration < generation && ! cancel )
+                {
+                    hosts.wait();
+                }
+                // callbacks with a persisted watermark need to be caught up
+                // without any other pass running for the host
+                while ( catchUp && state.running && ! cancel )
+                {
+                    hosts.wait();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // can't help it
+            }
+            if ( ! catchUp )
+            {
+                list.add( callback );
+                return;
+            }
+            state.running = true;
+        }
+        boolean caughtUp = false;
         try
         {
-            FILTERING_ITERATION_DONE.await();
+            caughtUp = catchUp( state, callback );
+        }
+        catch (Exception e)
+        {
+            LOG.error( "register(): Failed to replay missed messages to " + callback + ", keeping its persisted watermark", e );
         }
-        catch (InterruptedException e)
+        finally
         {
-            // can't help it
+            synchronized (hosts)
+            {
+                if ( caughtUp ) {
+                    state.notCaughtUp.remove( callback );
+                } else {
+                    state.notCaughtUp.add( callback );
+                }
+            }
+            list.add( callback );
+            rememberWatermarks( state, List.of( callback ) );
+            synchronized (hosts)
+            {
+                state.running = false;
+                hosts.notifyAll();
+            }
         }
-        list.add( callback );
     }
 
     public void unregister(InetAddress hostIP, IFilterCallback callback)
@@ -194,21 +566,82 @@ public class FilterCallbackManager
         final ConcurrentLinkedQueue<IFilterCallback> list = filterCallbacks.get( hostIP );
         if ( list != null ) {
             final boolean success = list.removeIf( callback::equals );
+            synchronized (hosts) {
+                getState( hostIP ).notCaughtUp.remove( callback );
+            }
             LOG.info("unregister(): removed callback "+callback+" [success: "+success+"]");
         }
     }
 
+    /**
+     * Returns the filtering lag of all hosts that currently have callbacks registered.
+     *
+     * Looks up the latest entry ID of each of these hosts in the database.
+     *
+     * @return
+     */
+    public List<Lag> getLag()
+    {
+        final List<Lag> result = new ArrayList<>();
+        for (Map.Entry<InetAddress, ConcurrentLinkedQueue<IFilterCallback>> entry : filterCallbacks.entrySet())
+        {
+            final Host host = hostManager.getHost( entry.getKey() );
+            if ( host == null || entry.getValue().isEmpty() )
+            {
+                continue;
+            }
+            final Long latestEntryId = dao.getLatestMessageId( host );
+            synchronized (hosts)
+            {
+                final HostState state = getState( host.ip );
+                result.add( new Lag( host.ip, state.watermark, latestEntryId, state.running || state.isReady(),
+                                     state.passCount, state.lastPassNanos ) );
+            }
+        }
+        return result;
+    }
+
+    private void logLag()
+    {
+        try
+        {
+            final List<Lag> lag = getLag();
+            final Lag max = lag.stream().max( Comparator.comparingLong( Lag::getEntries ) ).orElse( null );
+            final long pending = lag.stream().filter( l -> l.pending ).count();
+            LOG.info( "logLag(): " + lag.size() + " hosts, " + pending + " pending" + ( max == null ? "" : ", max. lag " + max ) );
+            if ( LOG.isDebugEnabled() ) {
+                lag.forEach( l -> LOG.debug( "logLag(): " + l ) );
+            }
+        }
+        catch (Exception e)
+        {
+            LOG.error( "logLag(): Failed to determine filter lag", e );
+        }
+    }
+
     @PreDestroy
     public void destroy() throws InterruptedException
     {
-        FILTERING_ITERATION_DONE.destroy();
         cancel = true;
         thread.stopThread();
+        workers.shutdown();
+        if ( ! workers.awaitTermination( 30, TimeUnit.SECONDS ) )
+        {
+            LOG.warn( "destroy(): Filter threads did not terminate in time" );
+        }
+        final Map<Long, Map<String, Long>> watermarks;
+        synchronized (hosts)
+        {
+            watermarks = unsavedWatermarks;
+            unsavedWatermarks = new HashMap<>();
+        }
+        storeWatermarks( watermarks );
     }
 
     @PostConstruct
     public void afterPropertiesSet()
     {
+        dao.createWatermarkTable();
         thread.startThread();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,618 @@
+package de.codesourcery.logreceiver.filtering;
+
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.logstorage.PartitionDDL;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Filter expressions like <code>( pri = 1 | pri = 2 ) &amp;&amp; msg ~ 'dummy'</code>.
+ *
+ * <pre>
+ * expr       := and ( ( '|' | '||' ) and )*
+ * and        := unary ( ( '&amp;' | '&amp;&amp;' ) unary )*
+ * unary      := '!' unary | '(' expr ')' | comparison | string
+ * comparison := field ( '=' | '!=' | '~' | '!~' | '@' | '&lt;' | '&lt;=' | '&gt;' | '&gt;=' ) value
+ *             | field 'in' '(' value ( ',' value )* ')'
+ * </pre>
+ *
+ * '~' does a case-insensitive regular expression search, '@' matches messages containing all words
+ * of a string (full-text search, <code>msg</code> only), a string without a field gets matched
+ * against the formatted message text. Comparisons on fields can be evaluated by the database
+ * (see {@link #compile(Function)}), matching the formatted text cannot.
+ */
+public final class FilterExpression
+{
+    // characters that make a string a regular expression instead of a literal
+    private static final Pattern REGEX_CHARS = Pattern.compile( "[\\\\.\\[\\]{}()<>*+?^$|]" );
+
+    // approximates how PostgreSQL's 'simple' text search configuration splits words
+    private static final Pattern WORD_SEPARATOR = Pattern.compile( "[^\\p{L}\\p{N}]+" );
+
+    public enum Field
+    {
+        PRIORITY("priority", true, "pri", "priority"),
+        SEVERITY("(priority & 7)", true, "sev", "severity"),
+        FACILITY("(priority >> 3)", true, "fac", "facility"),
+        APP_NAME("app_name", false, "app", "app_name"),
+        PROC_ID("proc_id", false, "proc", "proc_id"),
+        MSG_ID("msg_id", false, "msgid", "msg_id"),
+        MESSAGE("msg", false, "msg", "message");
+
+        public final String sqlExpression;
+        public final boolean numeric;
+        private final String[] names;
+
+        Field(String sqlExpression, boolean numeric, String... names)
+        {
+            this.sqlExpression = sqlExpression;
+            this.numeric = numeric;
+            this.names = names;
+        }
+
+        public Object getValue(SyslogMessage message)
+        {
+            switch( this )
+            {
+                case PRIORITY: return (int) message.priority;
+                case SEVERITY: return message.getSeverity();
+                case FACILITY: return message.getFacility();
+                case APP_NAME: return message.appName;
+                case PROC_ID:  return message.procId;
+                case MSG_ID:   return message.msgId;
+                case MESSAGE:  return message.message;
+                default:
+                    throw new RuntimeException("Unhandled switch/case: "+this);
+            }
+        }
+
+        public static Field fromName(String name)
+        {
+            for ( Field f : values() )
+            {
+                for ( String n : f.names ) {
+                    if ( n.equalsIgnoreCase( name ) ) {
+                        return f;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private enum Operator
+    {
+        EQ("="), REGEX("~"), WORDS("@@"), LT("<"), LTE("<="), GT(">"), GTE(">="), IN("IN");
+
+        public final String sql;
+
+        Operator(String sql) {
+            this.sql = sql;
+        }
+    }
+
+    /**
+     * Result of splitting an expression into a database and a Java part,
+     * <code>node == sql AND residual</code> holds for every node.
+     */
+    private static final class Split
+    {
+        public final String sql;
+        public final List<Object> params;
+        public final Predicate<SyslogMessage> residual;
+
+        private Split(String sql, List<Object> params, Predicate<SyslogMessage> residual)
+        {
+            this.sql = sql;
+            this.params = params;
+            this.residual = residual;
+        }
+
+        public boolean isExact() {
+            return residual == null;
+        }
+    }
+
+    private static abstract class Node
+    {
+        public abstract Predicate<SyslogMessage> toPredicate(Function<SyslogMessage,String> formatter);
+
+        public abstract Split split(Function<SyslogMessage,String> formatter);
+    }
+
+    private static final class Comparison extends Node
+    {
+        private final Field field;
+        private final Operator operator;
+        private final List<Object> values;
+
+        private Comparison(Field field, Operator operator, List<Object> values)
+        {
+            this.field = field;
+            this.operator = operator;
+            this.values = values;
+        }
+
+        @Override
+        public Predicate<SyslogMessage> toPredicate(Function<SyslogMessage, String> formatter)
+        {
+            final Object expected = values.get( 0 );
+            switch( operator )
+            {
+                case EQ:
+                    return msg -> expected.equals( field.getValue( msg ) );
+                case IN:
+                    return msg -> values.contains( field.getValue( msg ) );
+                case LT:
+                    return msg -> (Integer) field.getValue( msg ) < (Integer) expected;
+                case LTE:
+                    return msg -> (Integer) field.getValue( msg ) <= (Integer) expected;
+                case GT:
+                    return msg -> (Integer) field.getValue( msg ) > (Integer) expected;
+                case GTE:
+                    return msg -> (Integer) field.getValue( msg ) >= (Integer) expected;
+                case REGEX:
+                    final Pattern pattern = Pattern.compile( (String) expected, Pattern.CASE_INSENSITIVE );
+                    return msg -> {
+                        final Object value = field.getValue( msg );
+                        return value != null && pattern.matcher( (String) value ).find();
+                    };
+                case WORDS:
+                    final Set<String> words = words( (String) expected );
+                    return msg -> {
+                        final Object value = field.getValue( msg );
+                        return value != null && words( (String) value ).containsAll( words );
+                    };
+                default:
+                    throw new RuntimeException("Unhandled switch/case: "+operator);
+            }
+        }
+
+        @Override
+        public Split split(Function<SyslogMessage, String> formatter)
+        {
+            final List<Object> params = new ArrayList<>();
+            final String sql;
+            switch( operator )
+            {
+                case IN:
+                    params.addAll( values );
+                    sql = field.sqlExpression+" IN ("+values.stream().map( x -> "?" ).collect( Collectors.joining( "," ) )+")";
+                    break;
+                case REGEX:
+                    final String regex = (String) values.get( 0 );
+                    if ( REGEX_CHARS.matcher( regex ).find() ) {
+                        params.add( regex );
+                        sql = field.sqlExpression+" ~* ?";
+                    } else {
+                        params.add( "%"+escapeLike( regex )+"%" );
+                        sql = field.sqlExpression+" ILIKE ?";
+                    }
+                    break;
+                case WORDS:
+                    params.add( values.get( 0 ) );
+                    sql = PartitionDDL.MSG_TSVECTOR+" @@ plainto_tsquery('simple', ?)";
+                    break;
+                default:
+                    params.add( values.get( 0 ) );
+                    sql = field.sqlExpression+" "+operator.sql+" ?";
+            }
+            return new Split( sql, params, null );
+        }
+    }
+
+    private static final class TextMatch extends Node
+    {
+        private final String regex;
+
+        private TextMatch(String regex) {
+            this.regex = regex;
+        }
+
+        @Override
+        public Predicate<SyslogMessage> toPredicate(Function<SyslogMessage, String> formatter)
+        {
+            final Pattern pattern = Pattern.compile( regex, Pattern.CASE_INSENSITIVE );
+            return msg -> pattern.matcher( formatter.apply( msg ) ).find();
+        }
+
+        @Override
+        public Split split(Function<SyslogMessage, String> formatter)
+        {
+            return new Split( null, List.of(), toPredicate( formatter ) );
+        }
+    }
+
+    private static final class Not extends Node
+    {
+        private final Node child;
+
+        private Not(Node child) {
+            this.child = child;
+        }
+
+        @Override
+        public Predicate<SyslogMessage> toPredicate(Function<SyslogMessage, String> formatter) {
+            return child.toPredicate( formatter ).negate();
+        }
+
+        @Override
+        public Split split(Function<SyslogMessage, String> formatter)
+        {
+            final Split split = child.split( formatter );
+            if ( split.isExact() ) {
+                // comparisons with NULL columns are false in Java as well
+                return new Split( "NOT coalesce("+split.sql+", false)", split.params, null );
+            }
+            return new Split( null, List.of(), toPredicate( formatter ) );
+        }
+    }
+
+    private static final class Junction extends Node
+    {
+        private final boolean and;
+        private final List<Node> children;
+
+        private Junction(boolean and, List<Node> children)
+        {
+            this.and = and;
+            this.children = children;
+        }
+
+        @Override
+        public Predicate<SyslogMessage> toPredicate(Function<SyslogMessage, String> formatter)
+        {
+            Predicate<SyslogMessage> result = null;
+            for ( Node child : children )
+            {
+                final Predicate<SyslogMessage> p = child.toPredicate( formatter );
+                result = result == null ? p : and ? result.and( p ) : result.or( p );
+            }
+            return result;
+        }
+
+        @Override
+        public Split split(Function<SyslogMessage, String> formatter)
+        {
+            final List<Split> splits = children.stream().map( c -> c.split( formatter ) ).collect( Collectors.toList() );
+            final List<Split> withSQL = splits.stream().filter( s -> s.sql != null ).collect( Collectors.toList() );
+            final String sql;
+            final List<Object> params = new ArrayList<>();
+            if ( and || withSQL.size() == splits.size() )
+            {
+                // AND: each SQL part is a necessary condition, OR: only if every alternative has one
+                sql = withSQL.isEmpty() ? null : withSQL.stream().map( s -> "("+s.sql+")" ).collect( Collectors.joining( and ? " AND " : " OR " ) );
+                withSQL.forEach( s -> params.addAll( s.params ) );
+            } else {
+                sql = null;
+            }
+
+            if ( splits.stream().allMatch( Split::isExact ) ) {
+                return new Split( sql, params, null );
+            }
+            if ( ! and ) {
+                return new Split( sql, params, toPredicate( formatter ) );
+            }
+            Predicate<SyslogMessage> residual = null;
+            for ( Split s : splits )
+            {
+                if ( s.residual != null ) {
+                    residual = residual == null ? s.residual : residual.and( s.residual );
+                }
+            }
+            return new Split( sql, params, residual );
+        }
+    }
+
+    private final String expression;
+    private final Node root;
+
+    private FilterExpression(String expression, Node root)
+    {
+        this.expression = expression;
+        this.root = root;
+    }
+
+    /**
+     * Parses a filter expression.
+     *
+     * @param expression
+     * @return
+     * @throws IllegalArgumentException if the expression is not valid
+     */
+    public static FilterExpression parse(String expression) throws IllegalArgumentException
+    {
+        if ( expression == null || expression.isBlank() ) {
+            throw new IllegalArgumentException( "Expression must not be NULL or blank" );
+        }
+        final Parser parser = new Parser( expression );
+        final Node root = parser.parseExpression();
+        if ( parser.peek() != null ) {
+            throw parser.error( "Unexpected '"+parser.peek().text+"'" );
+        }
+        return new FilterExpression( expression, root );
+    }
+
+    /**
+     * Splits this expression into SQL and Java parts.
+     *
+     * @param formatter turns messages into the text that strings without a field get matched against
+     * @return
+     */
+    public CompiledFilter compile(Function<SyslogMessage,String> formatter)
+    {
+        final Split split = root.split( formatter );
+        return new CompiledFilter( split.sql, split.params, split.residual, root.toPredicate( formatter ) );
+    }
+
+    private static Set<String> words(String s)
+    {
+        final Set<String> result = new HashSet<>();
+        for ( String word : WORD_SEPARATOR.split( s ) ) {
+            if ( ! word.isEmpty() ) {
+                result.add( word.toLowerCase() );
+            }
+        }
+        return result;
+    }
+
+    private static String escapeLike(String s) {
+        return s.replace( "\\", "\\\\" ).replace( "%", "\\%" ).replace( "_", "\\_" );
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    private enum TokenType { IDENTIFIER, STRING, NUMBER, OPERATOR }
+
+    private static final class Token
+    {
+        public final TokenType type;
+        public final String text;
+        public final int offset;
+
+        private Token(TokenType type, String text, int offset)
+        {
+            this.type = type;
+            this.text = text;
+            this.offset = offset;
+        }
+
+        public boolean is(String operator) {
+            return type == TokenType.OPERATOR && text.equals( operator );
+        }
+    }
+
+    private static final class Parser
+    {
+        private final String input;
+        private int offset;
+        private Token current;
+
+        private Parser(String input)
+        {
+            this.input = input;
+            this.current = nextToken();
+        }
+
+        public IllegalArgumentException error(String message)
+        {
+            final int at = current == null ? input.length() : current.offset;
+            return new IllegalArgumentException( message+" at offset "+at );
+        }
+
+        public Token peek() {
+            return current;
+        }
+
+        private Token consume()
+        {
+            final Token result = current;
+            current = nextToken();
+            return result;
+        }
+
+        private boolean consumeOperator(String... operators)
+        {
+            if ( current != null ) {
+                for ( String op : operators ) {
+                    if ( current.is( op ) ) {
+                        consume();
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private void expect(String operator)
+        {
+            if ( ! consumeOperator( operator ) ) {
+                throw error( "Expected '"+operator+"'" );
+            }
+        }
+
+        public Node parseExpression()
+        {
+            final List<Node> children = new ArrayList<>();
+            children.add( parseAnd() );
+            while ( consumeOperator( "||", "|" ) ) {
+                children.add( parseAnd() );
+            }
+            return children.size() == 1 ? children.get( 0 ) : new Junction( false, children );
+        }
+
+        private Node parseAnd()
+        {
+            final List<Node> children = new ArrayList<>();
+            children.add( parseUnary() );
+            while ( consumeOperator( "&&", "&" ) ) {
+                children.add( parseUnary() );
+            }
+            return children.size() == 1 ? children.get( 0 ) : new Junction( true, children );
+        }
+
+        private Node parseUnary()
+        {
+            if ( current == null ) {
+                throw error( "Unexpected end of expression" );
+            }
+            if ( consumeOperator( "!" ) ) {
+                return new Not( parseUnary() );
+            }
+            if ( consumeOperator( "(" ) )
+            {
+                final Node result = parseExpression();
+                expect( ")" );
+                return result;
+            }
+            if ( current.type == TokenType.STRING ) {
+                return new TextMatch( consume().text );
+            }
+            if ( current.type != TokenType.IDENTIFIER ) {
+                throw error( "Expected a field name or string" );
+            }
+            final Field field = Field.fromName( current.text );
+            if ( field == null ) {
+                throw error( "Unknown field '"+current.text+"'" );
+            }
+            consume();
+            return parseComparison( field );
+        }
+
+        private Node parseComparison(Field field)
+        {
+            if ( current != null && current.type == TokenType.IDENTIFIER && "in".equalsIgnoreCase( current.text ) )
+            {
+                consume();
+                expect( "(" );
+                final List<Object> values = new ArrayList<>();
+                do {
+                    values.add( parseValue( field ) );
+                } while ( consumeOperator( "," ) );
+                expect( ")" );
+                return new Comparison( field, Operator.IN, values );
+            }
+            if ( current == null || current.type != TokenType.OPERATOR ) {
+                throw error( "Expected an operator" );
+            }
+            final String op = consume().text;
+            final Operator operator;
+            boolean negate = false;
+            switch( op )
+            {
+                case "!=": operator = Operator.EQ; negate = true; break;
+                case "=":  operator = Operator.EQ; break;
+                case "!~": operator = Operator.REGEX; negate = true; break;
+                case "~":  operator = Operator.REGEX; break;
+                case "@":  operator = Operator.WORDS; break;
+                case "<":  operator = Operator.LT; break;
+                case "<=": operator = Operator.LTE; break;
+                case ">":  operator = Operator.GT; break;
+                case ">=": operator = Operator.GTE; break;
+                default:
+                    throw error( "Unexpected operator '"+op+"'" );
+            }
+            if ( operator == Operator.WORDS && field != Field.MESSAGE ) {
+                throw error( "Operator '"+op+"' can only be used with field "+Field.MESSAGE );
+            }
+            if ( operator == Operator.REGEX && field.numeric ) {
+                throw error( "Operator '"+op+"' cannot be used with numeric field "+field );
+            }
+            if ( operator != Operator.EQ && operator != Operator.REGEX && operator != Operator.WORDS && ! field.numeric ) {
+                throw error( "Operator '"+op+"' can only be used with numeric fields" );
+            }
+            final Object value = parseValue( field );
+            if ( operator == Operator.REGEX ) {
+                Pattern.compile( (String) value ); // fail early
+            }
+            final Node result = new Comparison( field, operator, List.of( value ) );
+            return negate ? new Not( result ) : result;
+        }
+
+        private Object parseValue(Field field)
+        {
+            if ( current == null || current.type == TokenType.OPERATOR ) {
+                throw error( "Expected a value" );
+            }
+            if ( field.numeric )
+            {
+                if ( current.type != TokenType.NUMBER ) {
+                    throw error( "Expected a number" );
+                }
+                return Integer.valueOf( consume().text );
+            }
+            return consume().text;
+        }
+
+        private Token nextToken()
+        {
+            final int len = input.length();
+            while ( offset < len && Character.isWhitespace( input.charAt( offset ) ) ) {
+                offset++;
+            }
+            if ( offset == len ) {
+                return null;
+            }
+            final int start = offset;
+            final char c = input.charAt( offset );
+            if ( c == '\'' || c == '"' )
+            {
+                final StringBuilder buffer = new StringBuilder();
+                offset++;
+                while ( offset < len && input.charAt( offset ) != c )
+                {
+                    char next = input.charAt( offset++ );
+                    if ( next == '\\' && offset < len && input.charAt( offset ) == c ) {
+                        next = input.charAt( offset++ );
+                    }
+                    buffer.append( next );
+                }
+                if ( offset == len ) {
+                    throw new IllegalArgumentException( "Unterminated string at offset "+start );
+                }
+                offset++;
+                return new Token( TokenType.STRING, buffer.toString(), start );
+            }
+            if ( Character.isDigit( c ) || ( c == '-' && offset+1 < len && Character.isDigit( input.charAt( offset+1 ) ) ) )
+            {
+                offset++;
+                while ( offset < len && Character.isDigit( input.charAt( offset ) ) ) {
+                    offset++;
+                }
+                return new Token( TokenType.NUMBER, input.substring( start, offset ), start );
+            }
+            if ( Character.isLetter( c ) || c == '_' )
+            {
+                while ( offset < len && ( Character.isLetterOrDigit( input.charAt( offset ) ) || input.charAt( offset ) == '_' || input.charAt( offset ) == '-' || input.charAt( offset ) == '.' ) ) {
+                    offset++;
+                }
+                return new Token( TokenType.IDENTIFIER, input.substring( start, offset ), start );
+            }
+            final String twoChars = offset+1 < len ? input.substring( offset, offset+2 ) : "";
+            switch( twoChars )
+            {
+                case "||": case "&&": case "!=": case "!~": case "<=": case ">=":
+                    offset += 2;
+                    return new Token( TokenType.OPERATOR, twoChars, start );
+            }
+            switch( c )
+            {
+                case '(': case ')': case ',': case '|': case '&': case '!': case '=': case '~': case '@': case '<': case '>':
+                    offset++;
+                    return new Token( TokenType.OPERATOR, Character.toString( c ), start );
+                default:
+                    throw new IllegalArgumentException( "Unexpected character '"+c+"' at offset "+start );
+            }
+        }
+    }
+}
@@ -20,4 +20,36 @@ public interface IFilterCallback
     {
         throw new UnsupportedOperationException( "Not implemented - getPredicate()" );
     }
+
+    /**
+     * Returns whether {@link #getPredicate()} accepts every message,
+     * so queries can be limited on the database side.
+     *
+     * @return
+     */
+    default boolean matchesAll() {
+        return false;
+    }
+
+    /**
+     * Returns this callback's filter in a form that can (partially) be evaluated by the database.
+     *
+     * @return filter or <code>null</code> if only {@link #getPredicate()} is available
+     */
+    default CompiledFilter getCompiledFilter() {
+        return null;
+    }
+
+    /**
+     * Returns a key identifying this callback across restarts.
+     *
+     * The latest entry ID visited by callbacks with a key gets persisted, when such a callback
+     * is registered again it is first handed the messages it missed in the meantime.
+     *
+     * @return key or <code>null</code> if this callback is only interested in messages received from now on
+     * @see de.codesourcery.logreceiver.entity.Configuration#filterCatchUpMaxAge
+     */
+    default String getWatermarkKey() {
+        return null;
+    }
 }
@@ -0,0 +1,461 @@
+package de.codesourcery.logreceiver.filtering;
+
+import de.codesourcery.logreceiver.util.AhoCorasick;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Matches a text against many regular expressions at once.
+ *
+ * Literals that every match of an expression has to contain are extracted from each expression, a single
+ * {@link AhoCorasick} pass over the text finds which of them occur and only expressions whose literals
+ * were all found get evaluated using {@link java.util.regex.Matcher#matches()}.
+ *
+ * Not thread-safe.
+ *
+ * @param <T> item associated with each expression
+ */
+public final class MultiPatternMatcher<T>
+{
+    private final List<T> items;
+    private final Pattern[] patterns;
+    // reused for every text
+    private final Matcher[] matchers;
+    // number of distinct literals required by each item
+    private final int[] requiredCounts;
+    // items requiring each literal
+    private final int[][] itemsByLiteral;
+    // items without literals that always need to be evaluated
+    private final int[] alwaysEvaluate;
+    // NULL if no item has literals
+    private final AhoCorasick automaton;
+
+    // scratch state of #match(), reset before it returns
+    private final boolean[] literalFound;
+    private final int[] foundLiterals;
+    private int foundCount;
+    private final int[] hits;
+    private final int[] candidates;
+
+    private final IntConsumer onLiteral = this::literalFound;
+
+    public MultiPatternMatcher(List<T> items, Function<T, Pattern> patternFunc)
+    {
+        this.items = new ArrayList<>( items );
+        this.patterns = new Pattern[ items.size() ];
+        this.matchers = new Matcher[ items.size() ];
+        this.requiredCounts = new int[ items.size() ];
+
+        final Map<String, Integer> literalIds = new HashMap<>();
+        final List<List<Integer>> literalItems = new ArrayList<>();
+        final List<Integer> always = new ArrayList<>();
+        for (int i = 0; i < patterns.length; i++)
+        {
+            patterns[ i ] = patternFunc.apply( this.items.get( i ) );
+            matchers[ i ] = patterns[ i ].matcher( "" );
+            final List<String> literals = patterns[ i ].flags() == 0 ? requiredLiterals( patterns[ i ].pattern() ) : Collections.emptyList();
+            if ( literals.isEmpty() )
+            {
+                always.add( i );
+                continue;
+            }
+            requiredCounts[ i ] = literals.size();
+            for (String literal : literals)
+            {
+                final int id = literalIds.computeIfAbsent( literal, key ->
+                {
+                    literalItems.add( new ArrayList<>() );
+                    return literalItems.size() - 1;
+                } );
+                literalItems.get( id ).add( i );
+            }
+        }
+
+        final String[] literals = new String[ literalIds.size() ];
+        literalIds.forEach( (literal, id) -> literals[ id ] = literal );
+        this.automaton = literals.length == 0 ? null : new AhoCorasick( Arrays.asList( literals ) );
+        this.itemsByLiteral = literalItems.stream().map( list -> list.stream().mapToInt( Integer::intValue ).toArray() ).toArray( int[][]::new );
+        this.alwaysEvaluate = always.stream().mapToInt( Integer::intValue ).toArray();
+
+        this.literalFound = new boolean[ literals.length ];
+        this.foundLiterals = new int[ literals.length ];
+        this.hits = new int[ patterns.length ];
+        this.candidates = new int[ patterns.length ];
+    }
+
+    private void literalFound(int literal)
+    {
+        if ( ! literalFound[ literal ] )
+        {
+            literalFound[ literal ] = true;
+            foundLiterals[ foundCount++ ] = literal;
+        }
+    }
+
+    /**
+     * Invokes a consumer for every item whose expression matches the entire text.
+     *
+     * Items are passed to the consumer in the order they were passed to the constructor.
+     * The text may be a buffer that is reused for the next call but must not change while this method runs.
+     *
+     * @param text
+     * @param consumer
+     */
+    public void match(CharSequence text, Consumer<T> consumer)
+    {
+        int candidateCount = 0;
+        if ( automaton != null )
+        {
+            automaton.search( text, onLiteral );
+            for (int i = 0; i < foundCount; i++)
+            {
+                final int literal = foundLiterals[ i ];
+                literalFound[ literal ] = false;
+                for (int item : itemsByLiteral[ literal ])
+                {
+                    if ( ++hits[ item ] == requiredCounts[ item ] ) {
+                        candidates[ candidateCount++ ] = item;
+                    }
+                }
+            }
+            for (int i = 0; i < foundCount; i++)
+            {
+                for (int item : itemsByLiteral[ foundLiterals[ i ] ]) {
+                    hits[ item ] = 0;
+                }
+            }
+            foundCount = 0;
+        }
+        for (int item : alwaysEvaluate) {
+            candidates[ candidateCount++ ] = item;
+        }
+        Arrays.sort( candidates, 0, candidateCount );
+        for (int i = 0; i < candidateCount; i++)
+        {
+            final int item = candidates[ i ];
+            if ( matchers[ item ].reset( text ).matches() ) {
+                consumer.accept( items.get( item ) );
+            }
+        }
+    }
+
+    /**
+     * Returns the number of expressions that are evaluated regardless of the text being matched.
+     *
+     * @return
+     */
+    public int getAlwaysEvaluatedCount() {
+        return alwaysEvaluate.length;
+    }
+
+    /**
+     * Returns literals that any text matching a regular expression (compiled without flags) needs to contain.
+     *
+     * @param regex
+     * @return literals, empty if none could be determined
+     */
+    static List<String> requiredLiterals(String regex)
+    {
+        try
+        {
+            final LiteralExtractor extractor = new LiteralExtractor( regex );
+            final Set<String> result = extractor.parseAlternatives();
+            if ( extractor.pos != regex.length() ) {
+                return Collections.emptyList();
+            }
+            return new ArrayList<>( result );
+        }
+        catch (IllegalArgumentException | IndexOutOfBoundsException e)
+        {
+            // unsupported construct
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Conservative parser for {@link Pattern} syntax, anything it does not understand
+     * either contributes no literals or makes it give up.
+     */
+    private static final class LiteralExtractor
+    {
+        private final String regex;
+        private int pos;
+
+        private LiteralExtractor(String regex) {
+            this.regex = regex;
+        }
+
+        private enum Quantifier
+        {
+            NONE, // exactly once
+            OPTIONAL, // minimum of zero
+            REPEATED // at least once
+        }
+
+        /**
+         * Parses up to the next unmatched ')' or the end of the expression.
+         *
+         * @return literals required by every match of the parsed part
+         */
+        private Set<String> parseAlternatives()
+        {
+            final Set<String> required = new LinkedHashSet<>();
+            final StringBuilder run = new StringBuilder();
+            boolean alternation = false;
+            while ( pos < regex.length() )
+            {
+                final char c = regex.charAt( pos );
+                switch( c )
+                {
+                    case ')':
+                        flush( run, required );
+                        return alternation ? Collections.emptySet() : required;
+                    case '|':
+                        flush( run, required );
+                        alternation = true;
+                        pos++;
+                        break;
+                    case '(':
+                        flush( run, required );
+                        parseGroup( required );
+                        break;
+                    case '[':
+                        flush( run, required );
+                        skipCharacterClass();
+                        parseQuantifier();
+                        break;
+                    case '.':
+                        flush( run, required );
+                        pos++;
+                        parseQuantifier();
+                        break;
+                    case '^':
+                    case '$':
+                        flush( run, required );
+                        pos++;
+                        break;
+                    case '*':
+                    case '+':
+                    case '?':
+                    case '{':
+                        throw new IllegalArgumentException( "Dangling quantifier" );
+                    case '\\':
+                        parseEscape( run, required );
+                        break;
+                    default:
+                        pos++;
+                        literal( c, run, required );
+                }
+            }
+            flush( run, required );
+            return alternation ? Collections.emptySet() : required;
+        }
+
+        private void parseGroup(Set<String> required)
+        {
+            pos++; // '('
+            boolean lookaround = false;
+            if ( regex.charAt( pos ) == '?' )
+            {
+                final char type = regex.charAt( pos + 1 );
+                if ( type == ':' || type == '>' ) {
+                    pos += 2;
+                } else if ( type == '=' || type == '!' ) {
+                    lookaround = true;
+                    pos += 2;
+                } else if ( type == '<' && ( regex.charAt( pos + 2 ) == '=' || regex.charAt( pos + 2 ) == '!' ) ) {
+                    lookaround = true;
+                    pos += 3;
+                } else if ( type == '<' ) {
+                    // named group
+                    pos = regex.indexOf( '>', pos ) + 1;
+                    if ( pos == 0 ) {
+                        throw new IllegalArgumentException( "Unterminated group name" );
+                    }
+                } else {
+                    // inline flags may change how literals match
+                    throw new IllegalArgumentException( "Unsupported group" );
+                }
+            }
+            final Set<String> inner = parseAlternatives();
+            if ( pos >= regex.length() || regex.charAt( pos ) != ')' ) {
+                throw new IllegalArgumentException( "Unterminated group" );
+            }
+            pos++;
+            if ( parseQuantifier() != Quantifier.OPTIONAL && ! lookaround ) {
+                required.addAll( inner );
+            }
+        }
+
+        private void parseEscape(StringBuilder run, Set<String> required)
+        {
+            final char c = regex.charAt( pos + 1 );
+            if ( c == 'Q' )
+            {
+                int end = regex.indexOf( "\\E", pos + 2 );
+                end = end == -1 ? regex.length() : end;
+                final String quoted = regex.substring( pos + 2, end );
+                pos = Math.min( regex.length(), end + 2 );
+                if ( quoted.isEmpty() ) {
+                    return;
+                }
+                // a quantifier after \E applies to the last character only
+                run.append( quoted, 0, quoted.length() - 1 );
+                literal( quoted.charAt( quoted.length() - 1 ), run, required );
+                return;
+            }
+            if ( ! Character.isLetterOrDigit( c ) )
+            {
+                pos += 2;
+                literal( c, run, required );
+                return;
+            }
+            // character classes, anchors, back references, control characters, ...
+            flush( run, required );
+            pos += 2;
+            switch( c )
+            {
+                case 'p':
+                case 'P':
+                case 'x':
+                case 'N':
+                    if ( pos < regex.length() && regex.charAt( pos ) == '{' ) {
+                        pos = regex.indexOf( '}', pos ) + 1;
+                    } else if ( c == 'x' ) {
+                        pos += 2;
+                    } else {
+                        pos += 1;
+                    }
+                    break;
+                case 'k':
+                    pos = regex.indexOf( '>', pos ) + 1;
+                    break;
+                case 'u':
+                    pos += 4;
+                    break;
+                case 'c':
+                    pos += 1;
+                    break;
+                case '0':
+                    while ( pos < regex.length() && regex.charAt( pos ) >= '0' && regex.charAt( pos ) <= '7' ) {
+                        pos++;
+                    }
+                    break;
+                default:
+                    while ( Character.isDigit( c ) && pos < regex.length() && Character.isDigit( regex.charAt( pos ) ) ) {
+                        pos++;
+                    }
+            }
+            if ( pos <= 0 || pos > regex.length() ) {
+                throw new IllegalArgumentException( "Unterminated escape sequence" );
+            }
+            parseQuantifier();
+        }
+
+        private void skipCharacterClass()
+        {
+            pos++; // '['
+            if ( regex.charAt( pos ) == '^' ) {
+                pos++;
+            }
+            if ( regex.charAt( pos ) == ']' ) {
+                throw new IllegalArgumentException( "Unsupported character class" );
+            }
+            int depth = 1;
+            while ( depth > 0 )
+            {
+                final char c = regex.charAt( pos++ );
+                if ( c == '\\' && regex.charAt( pos ) == 'Q' ) {
+                    throw new IllegalArgumentException( "Unsupported character class" );
+                } else if ( c == '\\' ) {
+                    pos++;
+                } else if ( c == '[' ) {
+                    depth++;
+                } else if ( c == ']' ) {
+                    depth--;
+                }
+            }
+        }
+
+        private Quantifier parseQuantifier()
+        {
+            if ( pos >= regex.length() ) {
+                return Quantifier.NONE;
+            }
+            final Quantifier result;
+            switch( regex.charAt( pos ) )
+            {
+                case '?':
+                case '*':
+                    pos++;
+                    result = Quantifier.OPTIONAL;
+                    break;
+                case '+':
+                    pos++;
+                    result = Quantifier.REPEATED;
+                    break;
+                case '{':
+                    final int end = regex.indexOf( '}', pos );
+                    final String min = regex.substring( pos + 1, end ).split( ",", -1 )[0].trim();
+                    pos = end + 1;
+                    result = Integer.parseInt( min ) == 0 ? Quantifier.OPTIONAL : Quantifier.REPEATED;
+                    break;
+                default:
+                    return Quantifier.NONE;
+            }
+            // reluctant / possessive
+            if ( pos < regex.length() && ( regex.charAt( pos ) == '?' || regex.charAt( pos ) == '+' ) ) {
+                pos++;
+            }
+            return result;
+        }
+
+        private void literal(char c, StringBuilder run, Set<String> required)
+        {
+            if ( Character.isSurrogate( c ) )
+            {
+                // quantifiers apply to the whole code point
+                flush( run, required );
+                parseQuantifier();
+                return;
+            }
+            final Quantifier quantifier = parseQuantifier();
+            switch( quantifier )
+            {
+                case NONE:
+                    run.append( c );
+                    break;
+                case OPTIONAL:
+                    flush( run, required );
+                    break;
+                case REPEATED:
+                    run.append( c );
+                    flush( run, required );
+                    break;
+                default:
+                    throw new RuntimeException( "Unhandled switch/case: " + quantifier );
+            }
+        }
+
+        private static void flush(StringBuilder run, Set<String> required)
+        {
+            if ( run.length() > 0 )
+            {
+                required.add( run.toString() );
+                run.setLength( 0 );
+            }
+        }
+    }
+}
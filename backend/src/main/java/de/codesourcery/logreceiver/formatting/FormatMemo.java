@@ -0,0 +1,79 @@
+package de.codesourcery.logreceiver.formatting;
+
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+
+import java.util.List;
+
+/**
+ * Remembers the text a message has been formatted to, by pattern.
+ *
+ * Attached to messages (see {@link SyslogMessage#formatMemo}) while they are handed to filter callbacks
+ * so that all {@link PatternLogFormatter}s using the same pattern share one formatted string.
+ *
+ * Not thread-safe, a message must only be visited by one thread while a memo is attached.
+ */
+public final class FormatMemo
+{
+    // few distinct patterns are in use at any time, a linear scan is cheaper than hashing
+    private String[] patterns = new String[2];
+    private String[] texts = new String[2];
+    private int size;
+
+    /**
+     * Returns the text a message has been formatted to.
+     *
+     * @param pattern
+     * @return text or <code>null</code> if the message has not been formatted using this pattern yet
+     */
+    public String get(String pattern)
+    {
+        for (int i = 0; i < size; i++)
+        {
+            if ( patterns[ i ] == pattern ) {
+                return texts[ i ];
+            }
+        }
+        for (int i = 0; i < size; i++)
+        {
+            if ( patterns[ i ].equals( pattern ) ) {
+                return texts[ i ];
+            }
+        }
+        return null;
+    }
+
+    public void put(String pattern, String text)
+    {
+        if ( size == patterns.length )
+        {
+            final String[] newPatterns = new String[ size * 2 ];
+            final String[] newTexts = new String[ size * 2 ];
+            System.arraycopy( patterns, 0, newPatterns, 0, size );
+            System.arraycopy( texts, 0, newTexts, 0, size );
+            patterns = newPatterns;
+            texts = newTexts;
+        }
+        patterns[ size ] = pattern;
+        texts[ size++ ] = text;
+    }
+
+    /**
+     * Attaches a new memo to each message.
+     *
+     * @param messages
+     * @see #detach(List)
+     */
+    public static void attach(List<SyslogMessage> messages)
+    {
+        for (int i = 0, len = messages.size(); i < len; i++) {
+            messages.get( i ).formatMemo = new FormatMemo();
+        }
+    }
+
+    public static void detach(List<SyslogMessage> messages)
+    {
+        for (int i = 0, len = messages.size(); i < len; i++) {
+            messages.get( i ).formatMemo = null;
+        }
+    }
+}
@@ -1,64 +1,96 @@
 package de.codesourcery.logreceiver.formatting;
 
 import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.util.DateUtils;
 
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.ToIntFunction;
 
 public class PatternLogFormatter implements ILogFormatter
 {
     public static final String DEFAULT_PATTERN = "%Y-%m-%d %H:%M:%s.%S%Z %D(%i) - %e - %t";
 
-    private static final Transformer YEAR_FIELD = msg -> leftPad( Integer.toString( msg.timestamp.getYear() ), '0', 4 );
-    private static final Transformer MONTH_FIELD = msg -> leftPad( Integer.toString( msg.timestamp.getMonthValue() ), '0', 2 );
-    private static final Transformer DAY_FIELD = msg -> leftPad( Integer.toString( msg.timestamp.getDayOfMonth() ), '0', 2 );
-    private static final Transformer HOUR_FIELD = msg -> leftPad( Integer.toString( msg.timestamp.getHour() ), '0', 2 );
-    private static final Transformer MINUTE_FIELD = msg -> leftPad( Integer.toString( msg.timestamp.getMinute() ), '0', 2 );
-    private static final Transformer SECOND_FIELD = msg -> leftPad( Integer.toString( msg.timestamp.getSecond() ), '0', 2 );
-    private static final Transformer NANO_FIELD = msg -> Integer.toString( msg.timestamp.getNano() );
-    private static final Transformer MSG_FIELD = msg -> msg.message;
-    private static final Transformer PRIORITY_FIELD = msg -> leftPad( Short.toString( msg.priority ), '0', 3 );
-    private static final Transformer PROTO_HOSTNAME_FIELD = msg -> msg.hostName;
-    private static final Transformer SD_PARAM_FIELD = msg ->
+    // fields of messages without a timestamp are left empty
+    private static final Transformer YEAR_FIELD = timestampField( msg -> DateUtils.year( civilDate( msg ) ), 4 );
+    private static final Transformer MONTH_FIELD = timestampField( msg -> DateUtils.month( civilDate( msg ) ), 2 );
+    private static final Transformer DAY_FIELD = timestampField( msg -> DateUtils.dayOfMonth( civilDate( msg ) ), 2 );
+    private static final Transformer HOUR_FIELD = timestampField( msg -> secondOfDay( msg ) / 3600, 2 );
+    private static final Transformer MINUTE_FIELD = timestampField( msg -> secondOfDay( msg ) / 60 % 60, 2 );
+    private static final Transformer SECOND_FIELD = timestampField( msg -> secondOfDay( msg ) % 60, 2 );
+    private static final Transformer NANO_FIELD = timestampField( msg -> msg.nanos, 1 );
+    private static final Transformer MSG_FIELD = (msg, out) -> append( out, msg.message );
+    private static final Transformer PRIORITY_FIELD = (msg, out) -> appendPadded( out, msg.priority, 3 );
+    private static final Transformer PROTO_HOSTNAME_FIELD = (msg, out) -> append( out, msg.hostName );
+    private static final Transformer SD_PARAM_FIELD = (msg, out) ->
     {
-        if ( msg.getParamCount() == 0 )
-        {
-            return null;
-        }
-        final StringBuilder tmp = new StringBuilder();
         for (int i = 0, len2 = msg.getParamCount(); i < len2; i++)
         {
-            tmp.append( msg.params[i].toString() );
+            msg.params[i].appendTo( out );
             if ( (i + 1) < len2 )
             {
-                tmp.append( ',' );
+                out.append( ',' );
             }
         }
-        return tmp.toString();
     };
-    private static final Transformer APPNAME_FIELD = msg -> msg.appName;
-    private static final Transformer IP_FIELD = msg -> msg.host.ip.getHostAddress();
-    private static final Transformer PROCID_FIELD = msg -> msg.procId;
-    private static final Transformer MSGID_FIELD = msg -> msg.msgId;
-    private static final Transformer DNS_NAME_FIELD = msg ->
+    private static final Transformer APPNAME_FIELD = (msg, out) -> append( out, msg.appName );
+    private static final Transformer PROCID_FIELD = (msg, out) -> append( out, msg.procId );
+    private static final Transformer MSGID_FIELD = (msg, out) -> append( out, msg.msgId );
+    private static final Transformer DNS_NAME_FIELD = (msg, out) ->
     {
         try
         {
-            return msg.host.ip.getHostName();
+            // InetAddress caches the name after the first lookup
+            append( out, msg.host.ip.getHostName() );
         } catch (Exception e)
         {
-            return null;
+            // ignored
         }
     };
 
-    private static final Transformer TIMEZONE_FIELD = msg ->
+    private static final Transformer TIMEZONE_FIELD = (msg, out) ->
     {
-        return msg.visitTZOffset( (tzHours,tzMinutes,posTZ) -> {
-            return (posTZ ? "+" : "-")+leftPad( Integer.toString(tzHours),'0',2)+
-                       leftPad( Integer.toString(tzMinutes),'0',2);
-        });
+        if ( ! msg.hasTimestamp() ) {
+            return;
+        }
+        int seconds = msg.offsetSeconds;
+        out.append( seconds < 0 ? '-' : '+' );
+        seconds = Math.abs( seconds );
+        appendPadded( out, seconds / 3600, 2 );
+        appendPadded( out, seconds / 60 % 60, 2 );
     };
 
+    /**
+     * Formats the IP address, remembering the text for the most recent address
+     * as {@link InetAddress#getHostAddress()} creates a new string each time.
+     */
+    private static final class IPField implements Transformer
+    {
+        private static final class Cached
+        {
+            public final InetAddress ip;
+            public final String text;
+
+            private Cached(InetAddress ip) {
+                this.ip = ip;
+                this.text = ip.getHostAddress();
+            }
+        }
+
+        private volatile Cached cached;
+
+        @Override
+        public void appendTo(SyslogMessage msg, StringBuilder out)
+        {
+            Cached c = cached;
+            if ( c == null || c.ip != msg.host.ip ) {
+                c = cached = new Cached( msg.host.ip );
+            }
+            out.append( c.text );
+        }
+    }
+
     private static final String[] SEVERITY = {
               "EMERGENCY",
               "ALERT",
@@ -97,26 +129,28 @@ public class PatternLogFormatter implements ILogFormatter
              "local7"
     };
 
-    private static final Transformer FACILITY_FIELD = msg -> {
+    private static final Transformer FACILITY_FIELD = (msg, out) -> {
         final int v = msg.getFacility();
         if ( v >=0 && v < FACILITIES.length ) {
-            return FACILITIES[v];
+            out.append( FACILITIES[v] );
+        } else {
+            out.append( v );
         }
-        return Integer.toString(v);
     };
 
-    private static final Transformer SEVERITY_FIELD = msg -> {
+    private static final Transformer SEVERITY_FIELD = (msg, out) -> {
         final int v = msg.getSeverity();
         if ( v >=0 && v < SEVERITY.length ) {
-            return SEVERITY[v];
+            out.append( SEVERITY[v] );
+        } else {
+            out.append( v );
         }
-        return Integer.toString(v);
     };
 
     public final String pattern;
 
     private interface Transformer {
-        String transform(SyslogMessage msg);
+        void appendTo(SyslogMessage msg, StringBuilder out);
     }
 
     private final Transformer[] transformers;
@@ -163,7 +197,7 @@ public class PatternLogFormatter implements ILogFormatter
                 }
                 if ( start < end ) {
                     final String s = pattern.substring( start,end );
-                    result.add( msg -> s );
+                    result.add( (msg, out) -> out.append( s ) );
                 }
                 start = end+2;
                 end++; // skip character after % that we just processed
@@ -173,7 +207,7 @@ public class PatternLogFormatter implements ILogFormatter
         if ( start < end )
         {
             final String s = pattern.substring( start,end );
-            result.add( msg -> s );
+            result.add( (msg, out) -> out.append( s ) );
         }
         return result.toArray( new Transformer[0] );
     }
@@ -190,7 +224,7 @@ public class PatternLogFormatter implements ILogFormatter
             case 'f': return FACILITY_FIELD;
             case 'h': return PROTO_HOSTNAME_FIELD;
             case 'H': return HOUR_FIELD;
-            case 'i': return IP_FIELD;
+            case 'i': return new IPField();
             case 'I': return MSGID_FIELD;
             case 'm': return MONTH_FIELD;
             case 'M': return MINUTE_FIELD;
@@ -205,18 +239,49 @@ public class PatternLogFormatter implements ILogFormatter
         return null;
     }
 
-    private static String leftPad(String input, char padChar, int len)
+    private static Transformer timestampField(ToIntFunction<SyslogMessage> func, int width)
+    {
+        return (msg, out) ->
+        {
+            if ( msg.hasTimestamp() ) {
+                appendPadded( out, func.applyAsInt( msg ), width );
+            }
+        };
+    }
+
+    private static void append(StringBuilder out, String value)
     {
-        int delta = len - input.length();
-        if ( delta <= 0 ) {
-            return input;
+        if ( value != null ) {
+            out.append( value );
         }
-        final StringBuilder result = new StringBuilder();
-        for ( ; delta > 0 ; delta-- ) {
-            result.append(padChar);
+    }
+
+    private static void appendPadded(StringBuilder out, int value, int width)
+    {
+        if ( value >= 0 )
+        {
+            for (int limit = 10, i = 1; i < width; i++, limit *= 10)
+            {
+                if ( value < limit ) {
+                    out.append( '0' );
+                }
+            }
         }
-        result.append(input);
-        return result.toString();
+        out.append( value );
+    }
+
+    private static int secondOfDay(SyslogMessage msg) {
+        return (int) Math.floorMod( msg.epochSeconds + msg.offsetSeconds, (long) DateUtils.SECONDS_PER_DAY );
+    }
+
+    /**
+     * Returns the date of a message in the zone offset it was received with.
+     *
+     * @param msg
+     * @return date as returned by {@link DateUtils#toDate(long)}
+     */
+    private static int civilDate(SyslogMessage msg) {
+        return DateUtils.toDate( Math.floorDiv( msg.epochSeconds + msg.offsetSeconds, (long) DateUtils.SECONDS_PER_DAY ) );
     }
 
     public static PatternLogFormatter ofPattern(String pattern) {
@@ -226,16 +291,60 @@ public class PatternLogFormatter implements ILogFormatter
     @Override
     public String format(SyslogMessage message)
     {
-        final StringBuilder buffer = new StringBuilder();
-        final Transformer[] functions = this.transformers;
-        for (int i = 0, functionsSize = functions.length ; i < functionsSize; i++)
+        final FormatMemo memo = message.formatMemo;
+        if ( memo != null )
         {
-            final String value = functions[i].transform( message );
-            if ( value != null )
+            String text = memo.get( pattern );
+            if ( text == null )
             {
-                buffer.append( value );
+                text = doFormat( message );
+                memo.put( pattern, text );
             }
+            return text;
         }
+        return doFormat( message );
+    }
+
+    /**
+     * Appends a formatted message to a buffer.
+     *
+     * Does not allocate unless the message carries a {@link FormatMemo} that does not
+     * contain this pattern yet (the text then gets stored in the memo).
+     *
+     * @param message
+     * @param out
+     */
+    public void formatTo(SyslogMessage message, StringBuilder out)
+    {
+        final FormatMemo memo = message.formatMemo;
+        if ( memo != null )
+        {
+            final String text = memo.get( pattern );
+            if ( text != null ) {
+                out.append( text );
+                return;
+            }
+            final int start = out.length();
+            doFormat( message, out );
+            memo.put( pattern, out.substring( start ) );
+            return;
+        }
+        doFormat( message, out );
+    }
+
+    private String doFormat(SyslogMessage message)
+    {
+        final StringBuilder buffer = new StringBuilder();
+        doFormat( message, buffer );
         return buffer.toString();
     }
-}
\ No newline at end of file
+
+    private void doFormat(SyslogMessage message, StringBuilder out)
+    {
+        final Transformer[] functions = this.transformers;
+        for (int i = 0, functionsSize = functions.length ; i < functionsSize; i++)
+        {
+            functions[i].appendTo( message, out );
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.SDParam;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+
+/**
+ * Encodes messages as tuples in PostgreSQL's binary COPY format (see {@link CopyFormat#BINARY}).
+ *
+ * Column order must match {@link PostgreSQLStorage#COPY_COLUMNS}. Instances are NOT thread-safe,
+ * each parser needs its own writer.
+ */
+public class BinaryCopyLogWriter implements ILogStorage
+{
+    private static final int FIELD_COUNT = 9;
+
+    // seconds between 1970-01-01 and 2000-01-01 (PostgreSQL's timestamp epoch)
+    private static final long PG_EPOCH_OFFSET_SECONDS = 946_684_800L;
+
+    private static final byte JSONB_VERSION = 1;
+
+    private static final byte[] HEX = { '0','1','2','3','4','5','6','7','8','9','a','b','c','d','e','f' };
+
+    private final CopyBuffer row = new CopyBuffer();
+
+    private final IBinaryLogStorage storage;
+
+    public BinaryCopyLogWriter(IBinaryLogStorage storage) {
+        this.storage = storage;
+    }
+
+    @Override
+    public void store(SyslogMessage message)
+    {
+        if ( ! message.hasTimestamp() ) {
+            throw new IllegalArgumentException( "Message has no timestamp" );
+        }
+        row.clear();
+        row.putShort( FIELD_COUNT );
+
+        // priority smallint
+        row.putInt( 2 ).putShort( message.priority );
+        // log_ts timestamptz, microseconds since 2000-01-01 (whole seconds only, fraction goes into log_ts_fraction)
+        row.putInt( 8 ).putLong( (message.epochSeconds - PG_EPOCH_OFFSET_SECONDS) * 1_000_000L );
+        // log_ts_fraction integer
+        row.putInt( 4 ).putInt( message.nanos );
+        // host_id bigint
+        row.putInt( 8 ).putLong( message.host.id );
+
+        putNullableText( message.appName );
+        putNullableText( message.procId );
+        putNullableText( message.msgId );
+        putParams( message );
+
+        if ( message.message == null ) {
+            row.putInt( -1 );
+        } else {
+            putText( message.message );
+        }
+        storage.store( message, row );
+    }
+
+    private void putNullableText(String value)
+    {
+        if ( value == null || value.length() == 0 ) {
+            row.putInt( -1 );
+        } else {
+            putText( value );
+        }
+    }
+
+    private void putText(String value)
+    {
+        final int lengthOffset = row.length();
+        row.putInt( 0 );
+        row.appendUTF8( value );
+        row.setInt( lengthOffset, row.length() - lengthOffset - 4 );
+    }
+
+    private void putParams(SyslogMessage message)
+    {
+        final int count = message.getParamCount();
+        if ( count == 0 ) {
+            row.putInt( -1 );
+            return;
+        }
+        final int lengthOffset = row.length();
+        row.putInt( 0 );
+        row.put( JSONB_VERSION );
+
+        // same structure as SQLLogWriter#setParams()
+        row.appendUTF8( "{\"data\":[" );
+        for ( int i = count-1 ; i >= 0 ; i--)
+        {
+            final SDParam value = message.params[i];
+            row.appendUTF8( "{\"id\":" );
+            putJSONString( value.id );
+            row.appendUTF8( ",\"params\":" );
+            if ( value.paramCount() > 0 )
+            {
+                row.put( (byte) '{' );
+                for ( int j = value.paramCount()-1 ; j >= 0 ; j--)
+                {
+                    putJSONString( value.paramNames[j] );
+                    row.put( (byte) ':' );
+                    putJSONString( value.paramValues[j] );
+                    if ( j != 0 ) {
+                        row.put( (byte) ',' );
+                    }
+                }
+                row.put( (byte) '}' );
+            } else {
+                row.appendUTF8( "null" );
+            }
+            row.put( (byte) '}' );
+            if ( i != 0 ) {
+                row.put( (byte) ',' );
+            }
+        }
+        row.appendUTF8( "]}" );
+        row.setInt( lengthOffset, row.length() - lengthOffset - 4 );
+    }
+
+    private void putJSONString(String value)
+    {
+        if ( value == null ) {
+            row.appendUTF8( "null" );
+            return;
+        }
+        row.put( (byte) '"' );
+        int start = 0;
+        for ( int i = 0, len = value.length() ; i < len ; i++ )
+        {
+            final char c = value.charAt( i );
+            if ( c == '"' || c == '\\' || c < 32 )
+            {
+                row.appendUTF8( value, start, i );
+                start = i+1;
+                switch( c )
+                {
+                    case '"':  row.appendUTF8( "\\\"" ); break;
+                    case '\\': row.appendUTF8( "\\\\" ); break;
+                    case '\n': row.appendUTF8( "\\n" ); break;
+                    case '\r': row.appendUTF8( "\\r" ); break;
+                    case '\t': row.appendUTF8( "\\t" ); break;
+                    default:
+                        row.appendUTF8( "\\u00" ).put( HEX[ c >> 4 ] ).put( HEX[ c & 0x0f ] );
+                }
+            }
+        }
+        row.appendUTF8( value, start, value.length() );
+        row.put( (byte) '"' );
+    }
+}
@@ -0,0 +1,677 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers COPY rows for a single table and writes them in batches using a {@link FlushScheduler}.
+ *
+ * Rows are appended to an active buffer, full buffers get queued for COPY and returned to the
+ * spare list afterwards so appending never waits for the database unless all
+ * {@link Configuration#copyBuffersPerPartition} buffers are in use.
+ *
+ * With a {@link Journal}, every row is journaled as well and acknowledged once its COPY committed.
+ * Rows that do not fit into the buffers and batches that repeatedly failed to COPY are handed over
+ * to the {@link JournalReplayer} instead of blocking or being discarded.
+ *
+ * Rows may be appended along with their message. If an ID sequence is given, <code>entry_id</code>s for
+ * batches containing such rows are reserved from the sequence before the COPY so the messages can be
+ * handed to the {@link FlushListener} with their IDs set.
+ */
+public class CopyBatcher
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( CopyBatcher.class.getName() );
+
+    // failed batches are retried this often before they get discarded
+    private static final int MAX_FLUSH_ATTEMPTS = 3;
+
+    /**
+     * Snapshot of the buffer/flush counters of a single table.
+     */
+    public static final class Statistics
+    {
+        public final String tableName;
+        public final int queuedBatches;
+        public final long bufferedBytes;
+        public final long flushCount;
+        public final long failedFlushes;
+        public final long droppedBatches;
+        public final long flushedBytes;
+        public final long totalFlushNanos;
+        public final long lastFlushNanos;
+        public final long maxFlushNanos;
+        public final long blockedStores;
+        public final long spilledRows;
+
+        private Statistics(String tableName, int queuedBatches, long bufferedBytes, long flushCount, long failedFlushes,
+                           long droppedBatches, long flushedBytes, long totalFlushNanos, long lastFlushNanos,
+                           long maxFlushNanos, long blockedStores, long spilledRows)
+        {
+            this.tableName = tableName;
+            this.queuedBatches = queuedBatches;
+            this.bufferedBytes = bufferedBytes;
+            this.flushCount = flushCount;
+            this.failedFlushes = failedFlushes;
+            this.droppedBatches = droppedBatches;
+            this.flushedBytes = flushedBytes;
+            this.totalFlushNanos = totalFlushNanos;
+            this.lastFlushNanos = lastFlushNanos;
+            this.maxFlushNanos = maxFlushNanos;
+            this.blockedStores = blockedStores;
+            this.spilledRows = spilledRows;
+        }
+
+        public double avgFlushMillis() {
+            return flushCount == 0 ? 0 : totalFlushNanos / (flushCount * 1_000_000d);
+        }
+
+        @Override
+        public String toString()
+        {
+            return tableName+": queued="+queuedBatches+", buffered="+bufferedBytes+" bytes, flushes="+flushCount+
+                   ", failed="+failedFlushes+", dropped="+droppedBatches+", flushed="+flushedBytes+" bytes"+
+                   ", latency avg/last/max="+String.format( "%.1f", avgFlushMillis() )+"/"+(lastFlushNanos/1_000_000)+
+                   "/"+(maxFlushNanos/1_000_000)+" ms, blocked stores="+blockedStores+", spilled rows="+spilledRows;
+        }
+    }
+
+    /**
+     * Invoked after a batch has been written (or given up on).
+     */
+    public interface FlushListener
+    {
+        /**
+         * @param messages committed messages that have been appended along with their row, <code>entry_id</code> assigned, in row order
+         * @param rowCount number of rows in the batch
+         */
+        void afterFlush(List<SyslogMessage> messages, int rowCount);
+    }
+
+    /**
+     * Rows for a single COPY along with their journal positions.
+     */
+    private static final class Batch
+    {
+        public final CopyBuffer data = new CopyBuffer();
+        public long[] positions = new long[64];
+        public int positionCount;
+        public int[] rowOffsets = new int[64];
+        public SyslogMessage[] messages = new SyslogMessage[64]; // message of each row, NULL if not retained
+        public int rowCount;
+        public int messageCount;
+
+        public void addPosition(long position)
+        {
+            if ( positionCount == positions.length ) {
+                positions = Arrays.copyOf( positions, positions.length*2 );
+            }
+            positions[positionCount++] = position;
+        }
+
+        public void addRow(int offset, SyslogMessage message)
+        {
+            if ( rowCount == rowOffsets.length )
+            {
+                rowOffsets = Arrays.copyOf( rowOffsets, rowOffsets.length*2 );
+                messages = Arrays.copyOf( messages, messages.length*2 );
+            }
+            rowOffsets[rowCount] = offset;
+            messages[rowCount++] = message;
+            if ( message != null ) {
+                messageCount++;
+            }
+        }
+
+        public int rowLength(int row) {
+            return ( row+1 < rowCount ? rowOffsets[row+1] : data.length() ) - rowOffsets[row];
+        }
+
+        public List<SyslogMessage> messages()
+        {
+            if ( messageCount == 0 ) {
+                return Collections.emptyList();
+            }
+            final List<SyslogMessage> result = new ArrayList<>( messageCount );
+            for ( int i = 0 ; i < rowCount ; i++ )
+            {
+                if ( messages[i] != null ) {
+                    result.add( messages[i] );
+                }
+            }
+            return result;
+        }
+
+        public void clear()
+        {
+            data.clear();
+            positionCount = 0;
+            Arrays.fill( messages, 0, rowCount, null );
+            rowCount = 0;
+            messageCount = 0;
+        }
+    }
+
+    private final Object bufferLock = new Object();
+    // @GuardedBy( bufferLock )
+    private Batch activeBuffer;
+    // @GuardedBy( bufferLock )
+    private final ArrayDeque<Batch> spareBuffers = new ArrayDeque<>();
+    // @GuardedBy( bufferLock )
+    private final ArrayDeque<Batch> filledBuffers = new ArrayDeque<>();
+    // @GuardedBy( bufferLock )
+    private final CopyBuffer spillBuffer = new CopyBuffer();
+    // @GuardedBy( bufferLock )
+    private boolean closed;
+    private final int bufferCount;
+
+    // only accessed while flushing, the scheduler never runs two flushes of the same table concurrently
+    private int flushAttempts;
+
+    private volatile long lastFlushNanos;
+    private volatile long maxFlushNanos;
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong failedFlushes = new AtomicLong();
+    private final AtomicLong droppedBatches = new AtomicLong();
+    private final AtomicLong flushedBytes = new AtomicLong();
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+    private final AtomicLong blockedStores = new AtomicLong();
+    private final AtomicLong spilledRows = new AtomicLong();
+
+    private final String tableName;
+    private final DataSource ds;
+    private final Configuration config;
+    private final CopyFormat copyFormat;
+    private final FlushListener afterFlush;
+    private final String idSequence;
+    private final CopyBuffer rowPrefix = new CopyBuffer( 32 ); // only used while flushing
+    private final Journal journal;
+    private final FlushScheduler.Slot flushSlot;
+
+    /**
+     *
+     * @param tableName table to COPY into, must already exist
+     * @param ds
+     * @param config
+     * @param flushScheduler
+     * @param journal journal or <code>null</code>
+     * @param afterFlush invoked after each batch that has been written
+     */
+    public CopyBatcher(String tableName, DataSource ds, Configuration config, FlushScheduler flushScheduler, Journal journal, Runnable afterFlush)
+    {
+        this( tableName, ds, config, flushScheduler, journal, null, (messages, rowCount) -> afterFlush.run() );
+    }
+
+    /**
+     *
+     * @param tableName table to COPY into, must already exist
+     * @param ds
+     * @param config
+     * @param flushScheduler
+     * @param journal journal or <code>null</code>
+     * @param idSequence sequence to reserve <code>entry_id</code>s from for batches containing messages, <code>null</code> to
+     *                   always let the database assign IDs (messages handed to the listener will not have their ID set)
+     * @param afterFlush invoked after each batch that has been written
+     */
+    public CopyBatcher(String tableName, DataSource ds, Configuration config, FlushScheduler flushScheduler, Journal journal,
+                       String idSequence, FlushListener afterFlush)
+    {
+        this.tableName = tableName;
+        this.ds = ds;
+        this.config = config;
+        this.copyFormat = config.copyFormat;
+        this.afterFlush = afterFlush;
+        this.idSequence = idSequence;
+        this.journal = journal;
+        this.bufferCount = Math.max( 2, config.copyBuffersPerPartition );
+        this.activeBuffer = new Batch();
+        for ( int i = 1 ; i < bufferCount ; i++ ) {
+            spareBuffers.add( new Batch() );
+        }
+        this.flushSlot = flushScheduler.register( tableName, this::flush );
+    }
+
+    /**
+     * Appends a row in {@link CopyFormat#TEXT} format.
+     *
+     * @param hostId
+     * @param sql
+     * @return <code>false</code> if this batcher has been shut down and the row got discarded
+     */
+    public boolean append(long hostId, String sql) {
+        return append( hostId, sql, null );
+    }
+
+    /**
+     * Appends a row in {@link CopyFormat#TEXT} format.
+     *
+     * @param hostId
+     * @param sql
+     * @param message message to hand to the {@link FlushListener} once the row has been committed, may be <code>null</code>.
+     *                Messages of rows that get spilled to the journal are not handed over.
+     * @return <code>false</code> if this batcher has been shut down and the row got discarded
+     */
+    public boolean append(long hostId, String sql, SyslogMessage message)
+    {
+        if ( copyFormat != CopyFormat.TEXT ) {
+            throw new IllegalStateException( "Table "+tableName+" expects "+copyFormat+" rows" );
+        }
+        synchronized( bufferLock )
+        {
+            if ( closed ) {
+                return false;
+            }
+            if ( ! hasRoom() )
+            {
+                spillBuffer.clear();
+                spillBuffer.appendUTF8( sql ).put( (byte) SQLLogWriter.ROW_DELIMITER );
+                if ( spill( hostId, spillBuffer ) ) {
+                    return true;
+                }
+                if ( ! waitForSpareBuffer() ) {
+                    return false;
+                }
+            }
+            final int start = activeBuffer.data.length();
+            activeBuffer.data.appendUTF8( sql ).put( (byte) SQLLogWriter.ROW_DELIMITER );
+            afterAppend( hostId, start, message );
+        }
+        return true;
+    }
+
+    /**
+     * Appends a tuple in {@link CopyFormat#BINARY} format.
+     *
+     * @param hostId
+     * @param row
+     * @return <code>false</code> if this batcher has been shut down and the row got discarded
+     */
+    public boolean append(long hostId, CopyBuffer row) {
+        return append( hostId, row, null );
+    }
+
+    /**
+     * Appends a tuple in {@link CopyFormat#BINARY} format.
+     *
+     * @param hostId
+     * @param row
+     * @param message message to hand to the {@link FlushListener} once the row has been committed, may be <code>null</code>
+     * @return <code>false</code> if this batcher has been shut down and the row got discarded
+     */
+    public boolean append(long hostId, CopyBuffer row, SyslogMessage message)
+    {
+        if ( copyFormat != CopyFormat.BINARY ) {
+            throw new IllegalStateException( "Table "+tableName+" expects "+copyFormat+" rows" );
+        }
+        synchronized( bufferLock )
+        {
+            if ( closed ) {
+                return false;
+            }
+            if ( ! hasRoom() )
+            {
+                if ( spill( hostId, row ) ) {
+                    return true;
+                }
+                if ( ! waitForSpareBuffer() ) {
+                    return false;
+                }
+            }
+            final int start = activeBuffer.data.length();
+            activeBuffer.data.put( row );
+            afterAppend( hostId, start, message );
+        }
+        return true;
+    }
+
+    /**
+     * Makes sure the active buffer is not full.
+     *
+     * @return <code>false</code> if the active buffer is full and there is no spare buffer
+     */
+    // @GuardedBy( bufferLock )
+    private boolean hasRoom()
+    {
+        if ( activeBuffer.data.length() <= config.maxCharsInBuffer ) {
+            return true;
+        }
+        if ( spareBuffers.isEmpty() ) {
+            return false;
+        }
+        rotateAndRequestFlush();
+        return true;
+    }
+
+    // @GuardedBy( bufferLock )
+    private boolean spill(long hostId, CopyBuffer row)
+    {
+        if ( journal == null ) {
+            return false;
+        }
+        if ( journal.append( tableName, copyFormat, hostId, row, 0, row.length(), true ) == Journal.NO_POSITION ) {
+            return false;
+        }
+        spilledRows.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Blocks until a flush returns a buffer.
+     *
+     * @return <code>false</code> if this batcher got shut down while waiting
+     */
+    // @GuardedBy( bufferLock )
+    private boolean waitForSpareBuffer()
+    {
+        blockedStores.incrementAndGet();
+        LOG.warn("waitForSpareBuffer(): All "+bufferCount+" buffers in use, waiting for database ("+tableName+")");
+        try
+        {
+            while ( spareBuffers.isEmpty() && ! closed ) {
+                bufferLock.wait();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // row goes into the (full) active buffer
+            Thread.currentThread().interrupt();
+            return ! closed;
+        }
+        if ( closed ) {
+            return false;
+        }
+        rotateAndRequestFlush();
+        return true;
+    }
+
+    // @GuardedBy( bufferLock )
+    private void afterAppend(long hostId, int start, SyslogMessage message)
+    {
+        activeBuffer.addRow( start, message );
+        if ( journal != null )
+        {
+            final long position = journal.append( tableName, copyFormat, hostId, activeBuffer.data, start, activeBuffer.data.length() - start, false );
+            if ( position != Journal.NO_POSITION ) {
+                activeBuffer.addPosition( position );
+            }
+        }
+        if ( activeBuffer.data.length() > config.maxCharsInBuffer && ! spareBuffers.isEmpty() ) {
+            rotateAndRequestFlush();
+        }
+    }
+
+    // @GuardedBy( bufferLock )
+    private void rotateAndRequestFlush()
+    {
+        if ( LOG.isDebugEnabled() ) {
+            LOG.debug("rotateAndRequestFlush(): Flushing (batch size "+config.maxCharsInBuffer+" exceeded)");
+        }
+        rotateActiveBuffer();
+        flushSlot.requestFlush( filledBuffers.size() * (long) config.maxCharsInBuffer );
+    }
+
+    // @GuardedBy( bufferLock )
+    private void rotateActiveBuffer()
+    {
+        filledBuffers.add( activeBuffer );
+        activeBuffer = spareBuffers.poll();
+    }
+
+    private boolean flush(boolean timedOut)
+    {
+        if ( timedOut )
+        {
+            synchronized( bufferLock )
+            {
+                // without a spare buffer there are filled ones waiting anyway
+                if ( ! closed && ! activeBuffer.data.isEmpty() && ! spareBuffers.isEmpty() ) {
+                    rotateActiveBuffer();
+                }
+            }
+        }
+        return flushQueuedBuffers();
+    }
+
+    /**
+     * COPYs all queued batches.
+     *
+     * @return <code>false</code> if a batch could not be written and should be retried later
+     */
+    private boolean flushQueuedBuffers()
+    {
+        while ( true )
+        {
+            final Batch batch;
+            final int queueDepth;
+            synchronized( bufferLock )
+            {
+                batch = filledBuffers.peek();
+                queueDepth = filledBuffers.size();
+            }
+            if ( batch == null ) {
+                return true;
+            }
+            // no lock held, parser threads keep appending to the active buffer
+            List<SyslogMessage> committed = Collections.emptyList();
+            try
+            {
+                copy( batch, queueDepth );
+                committed = batch.messages();
+                for ( int i = 0 ; i < batch.positionCount ; i++ ) {
+                    journal.ack( batch.positions[i] );
+                }
+            }
+            catch(SQLException e)
+            {
+                if ( copyFormat == CopyFormat.TEXT ) {
+                    LOG.error("flushQueuedBuffers():\n"+batch.data);
+                } else {
+                    LOG.error("flushQueuedBuffers(): Binary COPY of "+batch.data.length()+" bytes failed");
+                }
+                failedFlushes.incrementAndGet();
+                if ( ++flushAttempts < MAX_FLUSH_ATTEMPTS ) {
+                    // batch stays at the head of the queue and gets retried with the next flush
+                    LOG.error("flushQueuedBuffers(): Flushing "+tableName+" failed (attempt "+flushAttempts+")",e);
+                    return false;
+                }
+                if ( journal != null && batch.positionCount > 0 )
+                {
+                    LOG.error("flushQueuedBuffers(): Giving up after "+flushAttempts+" attempts, handing "+batch.positionCount+" rows for "+tableName+" over to journal replay",e);
+                    for ( int i = 0 ; i < batch.positionCount ; i++ ) {
+                        journal.markSpilled( batch.positions[i] );
+                    }
+                }
+                else
+                {
+                    LOG.fatal("flushQueuedBuffers(): Giving up after "+flushAttempts+" attempts, "+batch.data.length()+" bytes lost for "+tableName,e);
+                    droppedBatches.incrementAndGet();
+                }
+            }
+            flushAttempts = 0;
+            final int rowCount = batch.rowCount;
+            synchronized( bufferLock )
+            {
+                filledBuffers.poll();
+                batch.clear();
+                spareBuffers.add( batch );
+                bufferLock.notifyAll();
+            }
+            afterFlush.afterFlush( committed, rowCount );
+        }
+    }
+
+    private void copy(Batch batch,int queueDepth) throws SQLException
+    {
+        if ( LOG.isDebugEnabled() ) {
+            LOG.debug("copy(): Flushing buffer ("+ batch.data.length()+" bytes, "+queueDepth+" batches queued)");
+        }
+        final long startNanos = System.nanoTime();
+        final long rowsInserted;
+        if ( idSequence != null && batch.messageCount > 0 ) {
+            rowsInserted = copyInWithIds( batch );
+        } else {
+            rowsInserted = copyIn( ds, tableName, copyFormat, batch.data );
+        }
+        if ( LOG.isTraceEnabled() ) {
+            LOG.trace("copy(): Wrote "+rowsInserted+" rows to database.");
+        }
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        flushCount.incrementAndGet();
+        flushedBytes.addAndGet( batch.data.length() );
+        totalFlushNanos.addAndGet( elapsedNanos );
+        lastFlushNanos = elapsedNanos;
+        if ( elapsedNanos > maxFlushNanos ) {
+            maxFlushNanos = elapsedNanos;
+        }
+    }
+
+    /**
+     * COPYs rows into a table.
+     *
+     * @param ds
+     * @param tableName
+     * @param format
+     * @param data rows in the given format (without header/trailer)
+     * @return number of rows inserted
+     * @throws SQLException
+     */
+    static long copyIn(DataSource ds, String tableName, CopyFormat format, CopyBuffer data) throws SQLException
+    {
+        try ( final Connection connection = ds.getConnection() )
+        {
+            final BaseConnection con = connection.unwrap( BaseConnection.class );
+            final CopyIn copyIn = new CopyManager( con ).copyIn( "COPY " + tableName + "("+PostgreSQLStorage.COPY_COLUMNS+") FROM STDIN "+format.copyOptions );
+            try
+            {
+                format.writeHeader( copyIn );
+                data.writeTo( copyIn );
+                format.writeTrailer( copyIn );
+                return copyIn.endCopy();
+            }
+            finally
+            {
+                if ( copyIn.isActive() ) {
+                    copyIn.cancelCopy();
+                }
+            }
+        }
+    }
+
+    /**
+     * COPYs a batch with <code>entry_id</code>s reserved from {@link #idSequence} and assigns
+     * them to the batch's messages.
+     *
+     * @param batch
+     * @return number of rows inserted
+     * @throws SQLException
+     */
+    private long copyInWithIds(Batch batch) throws SQLException
+    {
+        try ( final Connection connection = ds.getConnection() )
+        {
+            final long[] ids = new long[ batch.rowCount ];
+            try ( PreparedStatement stmt = connection.prepareStatement( "SELECT nextval('"+idSequence+"') FROM generate_series(1,?)" ) )
+            {
+                stmt.setInt( 1, ids.length );
+                try ( ResultSet rs = stmt.executeQuery() )
+                {
+                    int i = 0;
+                    while ( rs.next() && i < ids.length ) {
+                        ids[i++] = rs.getLong( 1 );
+                    }
+                    if ( i != ids.length ) {
+                        throw new SQLException( "Reserved only "+i+" of "+ids.length+" IDs from "+idSequence );
+                    }
+                }
+            }
+
+            final BaseConnection con = connection.unwrap( BaseConnection.class );
+            final CopyIn copyIn = new CopyManager( con ).copyIn( "COPY " + tableName + "(entry_id,"+PostgreSQLStorage.COPY_COLUMNS+") FROM STDIN "+copyFormat.copyOptions );
+            final long rows;
+            try
+            {
+                copyFormat.writeHeader( copyIn );
+                for ( int i = 0 ; i < batch.rowCount ; i++ ) {
+                    copyFormat.writeRow( copyIn, ids[i], batch.data, batch.rowOffsets[i], batch.rowLength( i ), rowPrefix );
+                }
+                copyFormat.writeTrailer( copyIn );
+                rows = copyIn.endCopy();
+            }
+            finally
+            {
+                if ( copyIn.isActive() ) {
+                    copyIn.cancelCopy();
+                }
+            }
+            for ( int i = 0 ; i < batch.rowCount ; i++ )
+            {
+                if ( batch.messages[i] != null ) {
+                    batch.messages[i].id = ids[i];
+                }
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * Stops accepting rows and writes everything that is still buffered.
+     *
+     * @throws InterruptedException
+     */
+    public void shutdown() throws InterruptedException
+    {
+        synchronized( bufferLock )
+        {
+            closed = true;
+            bufferLock.notifyAll();
+        }
+        // waits for a running flush
+        flushSlot.unregister();
+
+        synchronized( bufferLock )
+        {
+            if ( activeBuffer != null && ! activeBuffer.data.isEmpty() ) {
+                filledBuffers.add( activeBuffer );
+                activeBuffer = null;
+            }
+        }
+        if ( ! flushQueuedBuffers() ) {
+            if ( journal != null ) {
+                LOG.error("shutdown(): Failed to flush "+tableName+", journaled rows will be replayed on next start");
+            } else {
+                LOG.fatal("shutdown(): Failed to flush "+tableName+", data lost");
+            }
+        }
+    }
+
+    public Statistics getStatistics()
+    {
+        final int queued;
+        final long bytes;
+        synchronized( bufferLock )
+        {
+            queued = filledBuffers.size();
+            long sum = activeBuffer == null ? 0 : activeBuffer.data.length();
+            for ( Batch b : filledBuffers ) {
+                sum += b.data.length();
+            }
+            bytes = sum;
+        }
+        return new Statistics( tableName, queued, bytes, flushCount.get(), failedFlushes.get(), droppedBatches.get(),
+                flushedBytes.get(), totalFlushNanos.get(), lastFlushNanos, maxFlushNanos, blockedStores.get(), spilledRows.get() );
+    }
+}
@@ -0,0 +1,248 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import org.postgresql.copy.CopyIn;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+
+/**
+ * Growable byte buffer for COPY data (big-endian, like PostgreSQL's binary COPY format).
+ *
+ * Strings are encoded to UTF-8 directly into the buffer without intermediate copies.
+ * Instances are NOT thread-safe.
+ */
+public final class CopyBuffer
+{
+    private byte[] data;
+    private int length;
+
+    public CopyBuffer() {
+        this( 1024 );
+    }
+
+    public CopyBuffer(int initialCapacity) {
+        this.data = new byte[ Math.max( 16, initialCapacity ) ];
+    }
+
+    private void ensureCapacity(int additionalBytes)
+    {
+        final int required = length + additionalBytes;
+        if ( required > data.length )
+        {
+            final byte[] tmp = new byte[ Math.max( required, data.length*2 ) ];
+            System.arraycopy( data, 0, tmp, 0, length );
+            data = tmp;
+        }
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    public void clear() {
+        length = 0;
+    }
+
+    public CopyBuffer put(byte value)
+    {
+        ensureCapacity( 1 );
+        data[length++] = value;
+        return this;
+    }
+
+    public CopyBuffer put(byte[] values)
+    {
+        ensureCapacity( values.length );
+        System.arraycopy( values, 0, data, length, values.length );
+        length += values.length;
+        return this;
+    }
+
+    public CopyBuffer put(CopyBuffer other)
+    {
+        ensureCapacity( other.length );
+        System.arraycopy( other.data, 0, data, length, other.length );
+        length += other.length;
+        return this;
+    }
+
+    /**
+     * Appends bytes from the current position of a buffer.
+     *
+     * @param src
+     * @param len number of bytes to copy
+     * @return
+     */
+    public CopyBuffer put(ByteBuffer src, int len)
+    {
+        ensureCapacity( len );
+        src.get( data, length, len );
+        length += len;
+        return this;
+    }
+
+    /**
+     * Copies part of this buffer to the current position of another buffer.
+     *
+     * @param offset
+     * @param len
+     * @param target
+     */
+    public void copyTo(int offset, int len, ByteBuffer target) {
+        target.put( data, offset, len );
+    }
+
+    public CopyBuffer putShort(int value)
+    {
+        ensureCapacity( 2 );
+        data[length++] = (byte) (value >>> 8);
+        data[length++] = (byte) value;
+        return this;
+    }
+
+    public int getShort(int offset) {
+        return (short) ( (data[offset] & 0xff) << 8 | (data[offset+1] & 0xff) );
+    }
+
+    public CopyBuffer putInt(int value)
+    {
+        ensureCapacity( 4 );
+        setInt( length, value );
+        length += 4;
+        return this;
+    }
+
+    /**
+     * Overwrites 4 bytes at a given offset (used to patch length prefixes).
+     *
+     * @param offset
+     * @param value
+     */
+    public void setInt(int offset, int value)
+    {
+        data[offset]   = (byte) (value >>> 24);
+        data[offset+1] = (byte) (value >>> 16);
+        data[offset+2] = (byte) (value >>> 8);
+        data[offset+3] = (byte) value;
+    }
+
+    public CopyBuffer putLong(long value)
+    {
+        ensureCapacity( 8 );
+        for ( int shift = 56 ; shift >= 0 ; shift -= 8 ) {
+            data[length++] = (byte) (value >>> shift);
+        }
+        return this;
+    }
+
+    public CopyBuffer appendUTF8(CharSequence s) {
+        return appendUTF8( s, 0, s.length() );
+    }
+
+    /**
+     * Appends characters as UTF-8, unpaired surrogates are replaced with '?'.
+     *
+     * @param s
+     * @param start
+     * @param end
+     * @return
+     */
+    public CopyBuffer appendUTF8(CharSequence s, int start, int end)
+    {
+        ensureCapacity( end - start );
+        for ( int i = start ; i < end ; i++ )
+        {
+            final char c = s.charAt( i );
+            if ( c < 0x80 )
+            {
+                if ( length == data.length ) {
+                    ensureCapacity( 1 + end - i );
+                }
+                data[length++] = (byte) c;
+            }
+            else if ( c < 0x800 )
+            {
+                ensureCapacity( 2 );
+                data[length++] = (byte) (0xc0 | (c >> 6));
+                data[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if ( Character.isSurrogate( c ) )
+            {
+                if ( Character.isHighSurrogate( c ) && i+1 < end && Character.isLowSurrogate( s.charAt( i+1 ) ) )
+                {
+                    final int cp = Character.toCodePoint( c, s.charAt( ++i ) );
+                    ensureCapacity( 4 );
+                    data[length++] = (byte) (0xf0 | (cp >> 18));
+                    data[length++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    data[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    data[length++] = (byte) (0x80 | (cp & 0x3f));
+                } else {
+                    put( (byte) '?' );
+                }
+            }
+            else
+            {
+                ensureCapacity( 3 );
+                data[length++] = (byte) (0xe0 | (c >> 12));
+                data[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                data[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Sends the buffer contents to the server.
+     *
+     * @param copyIn
+     * @throws SQLException
+     */
+    public void writeTo(CopyIn copyIn) throws SQLException
+    {
+        if ( length > 0 ) {
+            copyIn.writeToCopy( data, 0, length );
+        }
+    }
+
+    /**
+     * Sends part of the buffer contents to the server.
+     *
+     * @param copyIn
+     * @param offset
+     * @param len
+     * @throws SQLException
+     */
+    public void writeTo(CopyIn copyIn, int offset, int len) throws SQLException
+    {
+        if ( len > 0 ) {
+            copyIn.writeToCopy( data, offset, len );
+        }
+    }
+
+    /**
+     * Returns a copy of the buffer contents.
+     *
+     * @return
+     */
+    public byte[] toByteArray()
+    {
+        final byte[] result = new byte[ length ];
+        System.arraycopy( data, 0, result, 0, length );
+        return result;
+    }
+
+    /**
+     * Decodes the buffer contents as UTF-8 (debugging only).
+     *
+     * @return
+     */
+    @Override
+    public String toString() {
+        return new String( data, 0, length, StandardCharsets.UTF_8 );
+    }
+}
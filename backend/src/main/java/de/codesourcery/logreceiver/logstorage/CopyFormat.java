@@ -0,0 +1,100 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import org.postgresql.copy.CopyIn;
+
+import java.sql.SQLException;
+
+/**
+ * Data format used to COPY log messages into the database.
+ */
+public enum CopyFormat
+{
+    /**
+     * Pipe-delimited text rows rendered by {@link SQLLogWriter}.
+     */
+    TEXT("(DELIMITER '|')", new byte[0], new byte[0]),
+    /**
+     * PostgreSQL's binary COPY format, rows encoded by {@link BinaryCopyLogWriter}.
+     */
+    BINARY("(FORMAT binary)",
+        new byte[] {
+            'P','G','C','O','P','Y','\n',(byte) 0xff,'\r','\n',0, // signature
+            0,0,0,0, // flags
+            0,0,0,0 // header extension length
+        },
+        new byte[] { (byte) 0xff, (byte) 0xff } // file trailer (field count -1)
+    );
+
+    /**
+     * Options to append to <code>COPY ... FROM STDIN</code>.
+     */
+    public final String copyOptions;
+    private final byte[] header;
+    private final byte[] trailer;
+
+    CopyFormat(String copyOptions, byte[] header, byte[] trailer)
+    {
+        this.copyOptions = copyOptions;
+        this.header = header;
+        this.trailer = trailer;
+    }
+
+    /**
+     * Sends whatever needs to precede the first row.
+     *
+     * @param copyIn
+     * @throws SQLException
+     */
+    public void writeHeader(CopyIn copyIn) throws SQLException
+    {
+        if ( header.length > 0 ) {
+            copyIn.writeToCopy( header, 0, header.length );
+        }
+    }
+
+    /**
+     * Sends whatever needs to follow the last row.
+     *
+     * @param copyIn
+     * @throws SQLException
+     */
+    public void writeTrailer(CopyIn copyIn) throws SQLException
+    {
+        if ( trailer.length > 0 ) {
+            copyIn.writeToCopy( trailer, 0, trailer.length );
+        }
+    }
+
+    /**
+     * Sends a row rendered for {@link PostgreSQLStorage#COPY_COLUMNS} with an explicit <code>entry_id</code> in front,
+     * for <code>COPY</code> statements that list <code>entry_id</code> as first column.
+     *
+     * @param copyIn
+     * @param entryId
+     * @param data
+     * @param offset start of the row
+     * @param len length of the row (including the row delimiter)
+     * @param prefix scratch buffer
+     * @throws SQLException
+     */
+    public void writeRow(CopyIn copyIn, long entryId, CopyBuffer data, int offset, int len, CopyBuffer prefix) throws SQLException
+    {
+        prefix.clear();
+        switch( this )
+        {
+            case TEXT:
+                prefix.appendUTF8( Long.toString( entryId ) ).put( (byte) SQLLogWriter.COL_DELIMITER );
+                prefix.writeTo( copyIn );
+                data.writeTo( copyIn, offset, len );
+                return;
+            case BINARY:
+                // tuple starts with its field count
+                prefix.putShort( data.getShort( offset ) + 1 ).putInt( 8 ).putLong( entryId );
+                prefix.writeTo( copyIn );
+                data.writeTo( copyIn, offset + 2, len - 2 );
+                return;
+            default:
+                throw new RuntimeException("Unhandled switch/case: "+this);
+        }
+    }
+}
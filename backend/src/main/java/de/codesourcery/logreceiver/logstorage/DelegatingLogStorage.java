@@ -2,8 +2,8 @@ package de.codesourcery.logreceiver.logstorage;
 
 import de.codesourcery.logreceiver.entity.Configuration;
 import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
 import de.codesourcery.logreceiver.filtering.FilterCallbackManager;
-import de.codesourcery.logreceiver.util.DateUtils;
 import de.codesourcery.logreceiver.util.Interval;
 import de.codesourcery.logreceiver.parsing.JDBCHelper;
 import de.codesourcery.logreceiver.storage.IHostManager;
@@ -12,27 +12,36 @@ import org.springframework.jdbc.core.JdbcTemplate;
 
 import javax.annotation.PreDestroy;
 import javax.sql.DataSource;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.time.Duration;
 import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
-public class DelegatingLogStorage implements ISQLLogStorage
+public class DelegatingLogStorage implements ISQLLogStorage, IBinaryLogStorage
 {
     private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( DelegatingLogStorage.class.getName() );
 
-    // !!! Make sure to adjust parsePartitionName() if you change this pattern
-    private static final DateTimeFormatter PARTITION_NAME_TZ_FORMAT = DateTimeFormatter.ofPattern( "YYYYMMDD" );
+    // key is host ID, value maps partition start (seconds since epoch) to storage
+    private final Map<Long, Map<Long,PostgreSQLStorage>> storageByHostAndTime = new ConcurrentHashMap<>();
 
-    private final Map<Long, Map<String,PostgreSQLStorage>> storageByHostAndTime = new ConcurrentHashMap<>();
+    // caches each host's current partition so most messages do not need any map lookups,
+    // routes are only updated while holding the storageByHostAndTime lock
+    private final HostRoutingTable routes = new HostRoutingTable();
 
     private final Thread shutdownHook;
     private volatile boolean shutdown;
@@ -41,6 +50,14 @@ public class DelegatingLogStorage implements ISQLLogStorage
     private final IHostManager hostManager;
     private final Configuration config;
     private final FilterCallbackManager callbackHelper;
+    private final FlushScheduler flushScheduler;
+    private final StagingLogStorage stagingStorage;
+    private final LateDataStorage lateDataStorage;
+    private final Journal journal;
+    private final JournalReplayer journalReplayer;
+
+    // partitions whose indexes have been switched to the sealed index types, only accessed by the watchdog thread
+    private final Set<String> sealedPartitions = new HashSet<>();
 
     private volatile long lastBackendPurge=0;
     private final AtomicBoolean purgeBackends = new AtomicBoolean();
@@ -51,6 +68,139 @@ public class DelegatingLogStorage implements ISQLLogStorage
         context.sleep( Duration.ofHours(1) );
     });
 
+    // search index type each host's partitions have been indexed for, only accessed by the search indexer thread
+    private final Map<Long, Host.SearchIndex> appliedSearchIndexes = new HashMap<>();
+
+    // building search indexes can take a long time, keep it away from the insert path and the other maintenance threads
+    private EternalThread searchIndexer = new EternalThread("search-indexer", () -> context ->
+    {
+        updateSearchIndexes(context);
+        context.sleep( Duration.ofMinutes(1) );
+    });
+
+    private EternalThread partitionCreator = new EternalThread("partition-creator", () -> context ->
+    {
+        precreatePartitions();
+        context.sleep( Duration.ofMinutes(1) );
+    });
+
+    /**
+     * Creates the next partition of all hosts that are currently storing data
+     * shortly before the partition starts, so that storing messages never needs to run DDL
+     * when crossing a partition boundary.
+     *
+     * @see Configuration#partitionPrecreateLead
+     */
+    private void precreatePartitions()
+    {
+        final long now = System.currentTimeMillis() / 1000;
+        final long currentStart = PartitionDDL.partitionStart( now, config );
+        final long nextStart = PartitionDDL.partitionStart( PartitionDDL.partitionInterval( currentStart, config ).endEpochSeconds, config );
+        if ( nextStart - now > config.partitionPrecreateLead.getSeconds() ) {
+            return;
+        }
+
+        final List<Host> hosts = new ArrayList<>();
+        synchronized( storageByHostAndTime )
+        {
+            for ( Map<Long, PostgreSQLStorage> map : storageByHostAndTime.values() )
+            {
+                final PostgreSQLStorage current = map.get( currentStart );
+                if ( current != null && ! map.containsKey( nextStart ) ) {
+                    hosts.add( current.host );
+                }
+            }
+        }
+        if ( hosts.isEmpty() ) {
+            return;
+        }
+
+        final Interval interval = PartitionDDL.partitionInterval( nextStart, config );
+        LOG.info("precreatePartitions(): Creating partitions for "+hosts.size()+" hosts and interval "+interval);
+        final int batchSize = Math.max( 1, config.partitionDDLBatchSize );
+        for ( int i = 0 ; i < hosts.size() && ! shutdown ; i += batchSize )
+        {
+            final List<Host> batch = hosts.subList( i, Math.min( i + batchSize, hosts.size() ) );
+            try
+            {
+                createPartitions( batch, interval );
+            }
+            catch (SQLException e)
+            {
+                // partitions will be created when the first message arrives
+                LOG.error("precreatePartitions(): Failed to create partitions for "+batch.size()+" hosts",e);
+                continue;
+            }
+            for ( Host host : batch )
+            {
+                synchronized( storageByHostAndTime )
+                {
+                    final Map<Long, PostgreSQLStorage> map = storageByHostAndTime.get( host.id );
+                    if ( shutdown || map == null || map.containsKey( nextStart ) ) {
+                        continue;
+                    }
+                    try
+                    {
+                        map.put( nextStart, new PostgreSQLStorage( host, dataSource, interval, config, callbackHelper, flushScheduler, journal, false ) );
+                    }
+                    catch (SQLException e)
+                    {
+                        LOG.error("precreatePartitions(): Failed to create storage for "+host,e);
+                    }
+                }
+            }
+        }
+    }
+
+    private void createPartitions(List<Host> hosts, Interval interval) throws SQLException
+    {
+        try ( Connection con = dataSource.getConnection() )
+        {
+            con.setAutoCommit( false );
+            try ( Statement stmt = con.createStatement() )
+            {
+                for ( Host host : hosts ) {
+                    PartitionDDL.createPartition( stmt, host, PartitionDDL.partitionName( host, interval, config ), interval, config );
+                }
+                con.commit();
+            }
+            catch(SQLException e)
+            {
+                con.rollback();
+                throw e;
+            }
+            finally
+            {
+                con.setAutoCommit( true );
+            }
+        }
+    }
+
+    private void updateSearchIndexes(EternalThread.Context context)
+    {
+        for ( Host host : hostManager.getAllHosts() )
+        {
+            if ( context.isCancelled() || shutdown ) {
+                return;
+            }
+            final Host.SearchIndex searchIndex = host.searchIndex;
+            if ( appliedSearchIndexes.get( host.id ) == searchIndex ) {
+                continue;
+            }
+            try ( Connection con = dataSource.getConnection() )
+            {
+                LOG.debug("updateSearchIndexes(): Updating search indexes of "+host+" to "+searchIndex);
+                if ( PartitionDDL.updateSearchIndexes( con, host, () -> context.isCancelled() || shutdown ) ) {
+                    appliedSearchIndexes.put( host.id, searchIndex );
+                }
+            }
+            catch (SQLException e)
+            {
+                LOG.error("updateSearchIndexes(): Failed for host "+host,e);
+            }
+        }
+    }
+
     private void cleanUp(EternalThread.Context context)
     {
         LOG.info("cleanUp(): Started");
@@ -74,7 +224,8 @@ public class DelegatingLogStorage implements ISQLLogStorage
 
     private void cleanUp(Host host) throws SQLException
     {
-        if ( host.dataRetentionTime == null ) {
+        final boolean sealPartitions = config.sealedLogTsIndex != null || config.sealedEntryIdIndex != null;
+        if ( host.dataRetentionTime == null && ! sealPartitions ) {
             LOG.debug("cleanUp(): Host "+host+" has cleanup disabled.");
             return;
         }
@@ -83,15 +234,28 @@ public class DelegatingLogStorage implements ISQLLogStorage
 
         final JDBCHelper helper = new JDBCHelper( new JdbcTemplate(this.dataSource) );
         final ZonedDateTime now = ZonedDateTime.now();
-        final ZonedDateTime earliestDate = now.minus( host.dataRetentionTime );
+        final ZonedDateTime earliestDate = host.dataRetentionTime == null ? null : now.minus( host.dataRetentionTime );
         for ( String partTableName : findPartitions( host, helper ) )
         {
             final PartitionNamePattern pattern = PartitionNamePattern.parse( partTableName , config );
             final Interval iv = pattern.getInterval( config );
-            if ( iv.end.isBefore( earliestDate ) )
+            if ( earliestDate != null && iv.end.isBefore( earliestDate ) )
             {
                 LOG.debug("cleanUp(): Dropping table '"+partTableName+"' for host "+host);
                 helper.executeUpdate( "DROP TABLE IF EXISTS "+partTableName );
+                sealedPartitions.remove( partTableName );
+                if ( stagingStorage != null ) {
+                    stagingStorage.partitionDropped( partTableName );
+                }
+            }
+            else if ( sealPartitions && ! iv.end.isAfter( now ) && ! sealedPartitions.contains( partTableName ) )
+            {
+                LOG.info("cleanUp(): Sealing partition '"+partTableName+"' of host "+host);
+                try ( Connection con = dataSource.getConnection() ; Statement stmt = con.createStatement() )
+                {
+                    PartitionDDL.sealPartition( stmt, partTableName, config );
+                }
+                sealedPartitions.add( partTableName );
             } else if ( LOG.isDebugEnabled() ) {
                 LOG.debug("cleanUp(): Data in partition '"+partTableName+"' is not older than "+host.dataRetentionTime);
             }
@@ -101,7 +265,7 @@ public class DelegatingLogStorage implements ISQLLogStorage
     private List<String> findPartitions(Host host, JDBCHelper helper) throws SQLException
     {
         // 1. find OID of base table
-        final String parentTable = PostgreSQLStorage.createParentTableName( host );
+        final String parentTable = PartitionDDL.parentTableName( host );
         final String sql = "SELECT oid FROM pg_catalog.pg_class WHERE relkind in ('r','p') AND relname=?";
 
         Long oid = helper.execQuery( sql, rs ->
@@ -145,6 +309,22 @@ public class DelegatingLogStorage implements ISQLLogStorage
         }, oid );
     }
 
+    private void dropLegacyParentIndexes()
+    {
+        try ( Connection con = dataSource.getConnection() ; Statement stmt = con.createStatement() )
+        {
+            final List<String> dropped = PartitionDDL.dropLegacyParentIndexes( stmt );
+            if ( ! dropped.isEmpty() ) {
+                LOG.info("dropLegacyParentIndexes(): Dropped "+dropped.size()+" indexes on parent tables: "+dropped);
+            }
+        }
+        catch (SQLException e)
+        {
+            // partitions keep maintaining the legacy indexes, nothing else is affected
+            LOG.error("dropLegacyParentIndexes(): Failed to drop legacy indexes on parent tables",e);
+        }
+    }
+
     public DelegatingLogStorage(DataSource dataSource, IHostManager hostManager, Configuration config, FilterCallbackManager callbackHelper)
     {
         this.dataSource = dataSource;
@@ -152,14 +332,127 @@ public class DelegatingLogStorage implements ISQLLogStorage
         this.config = config;
         this.shutdownHook = registerShutdownHook();
         this.callbackHelper = callbackHelper;
+        this.flushScheduler = new FlushScheduler( config );
+        dropLegacyParentIndexes();
+        if ( config.journalDirectory != null )
+        {
+            try
+            {
+                this.journal = new Journal( new File( config.journalDirectory ), config.journalSegmentSize, config.journalMaxSegments );
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException( "Failed to open journal", e );
+            }
+            this.journalReplayer = new JournalReplayer( journal, dataSource, hostManager, config, callbackHelper );
+            journalReplayer.start();
+        } else {
+            this.journal = null;
+            this.journalReplayer = null;
+        }
+        if ( config.useStagingTable )
+        {
+            try
+            {
+                this.stagingStorage = new StagingLogStorage( dataSource, hostManager, config, callbackHelper, flushScheduler, journal );
+            }
+            catch (SQLException e)
+            {
+                throw new RuntimeException( "Failed to create staging table", e );
+            }
+        } else {
+            this.stagingStorage = null;
+        }
+        // staging table mover creates partitions outside of the ingest path already
+        if ( stagingStorage == null && config.lateMessageSkew != null ) {
+            this.lateDataStorage = new LateDataStorage( dataSource, config, callbackHelper, journal );
+        } else {
+            this.lateDataStorage = null;
+        }
         watchdog.startThread();
+        searchIndexer.startThread();
+        if ( stagingStorage == null && config.partitionPrecreateLead != null ) {
+            partitionCreator.startThread();
+        }
+    }
+
+    @Override
+    public void store(SyslogMessage message, String sql)
+    {
+        if ( stagingStorage != null ) {
+            stagingStorage.store( message, sql );
+            return;
+        }
+        final PostgreSQLStorage storage = getStorage( message );
+        if ( storage != null ) {
+            storage.store( message, sql );
+        } else if ( isLate( message ) ) {
+            lateDataStorage.store( message, sql );
+        }
     }
 
     @Override
-    public void store(Host host, ZonedDateTime timestamp, String sql)
+    public void store(SyslogMessage message, CopyBuffer row)
     {
+        if ( stagingStorage != null ) {
+            stagingStorage.store( message, row );
+            return;
+        }
+        final PostgreSQLStorage storage = getStorage( message );
+        if ( storage != null ) {
+            storage.store( message, row );
+        } else if ( isLate( message ) ) {
+            lateDataStorage.store( message, row );
+        }
+    }
+
+    private boolean isLate(SyslogMessage message) {
+        return lateDataStorage != null && lateDataStorage.isLate( message.epochSeconds );
+    }
+
+    /**
+     * Returns the storage responsible for a message.
+     *
+     * @param message
+     * @return storage or <code>null</code> if the message has been lost or needs to go to the {@link LateDataStorage}
+     */
+    private PostgreSQLStorage getStorage(SyslogMessage message)
+    {
+        final HostRoutingTable.Route route = routes.getOrCreate( message.host.id );
+        final HostRoutingTable.Partition current = route.current;
+        final PostgreSQLStorage storage;
+        if ( current != null && current.contains( message.epochSeconds ) ) {
+            storage = current.storage;
+        } else {
+            if ( isLate( message ) ) {
+                return null;
+            }
+            storage = lookupStorage( message, route );
+            if ( storage == null ) {
+                return null;
+            }
+        }
+        if ( shutdown ) {
+            LOG.fatal("store(): Shutting down - message lost for host #"+message.host.id+", timestamp "+message.getTimestamp());
+            shutdown( storage );
+            return null;
+        }
+        return storage;
+    }
+
+    /**
+     * Looks up (or creates) the storage for a message whose timestamp is not within
+     * the current partition of its host.
+     *
+     * @param message
+     * @param route
+     * @return storage or <code>null</code> if the message has been lost
+     */
+    private PostgreSQLStorage lookupStorage(SyslogMessage message, HostRoutingTable.Route route)
+    {
+        final Host host = message.host;
         final Long hostId = host.id;
-        Map<String, PostgreSQLStorage> map = storageByHostAndTime.get( hostId );
+        Map<Long, PostgreSQLStorage> map = storageByHostAndTime.get( hostId );
         if ( map == null )
         {
             // never stored data for this host up to now
@@ -176,45 +469,44 @@ public class DelegatingLogStorage implements ISQLLogStorage
                 }
             }
         }
-        final String hostName = host.getSQLCompatibleHostName();
-        final String partition = hostName+"_"+toPartitionPart( timestamp );
-        PostgreSQLStorage storage = map.get( partition );
+        final long partitionStart = PartitionDDL.partitionStart( message.epochSeconds, config );
+        PostgreSQLStorage storage = map.get( partitionStart );
         if ( storage == null )
         {
             synchronized(storageByHostAndTime)
             {
-                storage = map.get( partition );
+                storage = map.get( partitionStart );
                 if ( storage == null )
                 {
+                    final Interval interval = PartitionDDL.partitionInterval( partitionStart, config );
                     if ( LOG.isDebugEnabled() )
                     {
-                        LOG.debug( "store(): No entry for partition " + partition);
-                    }
-                    final Interval interval = toPartitionInterval( timestamp );
-                    if ( LOG.isTraceEnabled() ) {
-                        LOG.trace("store(): timestamp "+timestamp+" -> interval "+interval);
+                        LOG.debug( "store(): No entry for host ID "+hostId+" and interval " + interval );
                     }
                     try
                     {
-                        storage = new PostgreSQLStorage( host, dataSource, partition, interval, config, callbackHelper );
+                        storage = new PostgreSQLStorage( host, dataSource, interval, config, callbackHelper, flushScheduler, journal );
                     }
                     catch (SQLException e)
                     {
-                        LOG.fatal("store(): Message lost for host #"+hostId+", timestamp "+timestamp,e);
-                        return;
+                        LOG.fatal("store(): Message lost for host #"+hostId+", timestamp "+message.getTimestamp(),e);
+                        return null;
                     }
-                    map.put( partition, storage );
+                    map.put( partitionStart, storage );
                 }
             }
             purgeStaleBackends();
         }
-
-        if ( shutdown ) {
-            LOG.fatal("store(): Shutting down - message lost for host #"+hostId+", timestamp "+timestamp);
-            shutdown( storage );
-        } else {
-            storage.store( host, timestamp, sql );
+        synchronized(storageByHostAndTime)
+        {
+            // late messages for older partitions do not replace the current route,
+            // route must not point to a storage that has been purged in the meantime
+            final HostRoutingTable.Partition current = route.current;
+            if ( ( current == null || partitionStart >= current.start ) && map.get( partitionStart ) == storage ) {
+                route.current = new HostRoutingTable.Partition( partitionStart, storage.interval.end.toEpochSecond(), storage );
+            }
         }
+        return storage;
     }
 
     private void purgeStaleBackends()
@@ -239,17 +531,22 @@ public class DelegatingLogStorage implements ISQLLogStorage
         try
         {
             LOG.debug( "purgeStaleBackends(): Looking for stale backends" );
-            final ZonedDateTime now = ZonedDateTime.now();
+            final long now = System.currentTimeMillis() / 1000;
             final List<PostgreSQLStorage> toPurge = new ArrayList<>();
             doWithBackendsIt( it -> {
 
                 while ( it.hasNext() )
                 {
                     final PostgreSQLStorage backend = it.next();
-                    if ( !backend.interval.contains( now ) )
+                    // keep partitions that have been created ahead of time
+                    if ( now >= backend.interval.endEpochSeconds )
                     {
                         toPurge.add( backend );
                         it.remove();
+                        final HostRoutingTable.Route route = routes.get( backend.host.id );
+                        if ( route != null && route.current != null && route.current.storage == backend ) {
+                            route.current = null;
+                        }
                     }
                 }
             });
@@ -281,34 +578,45 @@ public class DelegatingLogStorage implements ISQLLogStorage
         }
     }
 
-    private Interval toPartitionInterval(ZonedDateTime ts)
-    {
-        final int hoursPerPartition = config.hoursPerPartition;
-        final ZonedDateTime utc = ts.withZoneSameInstant( DateUtils.UTC );
-        final int startHour = (utc.getHour() / hoursPerPartition )* hoursPerPartition;
-        final ZonedDateTime start = utc.withHour( startHour ).withMinute( 0 ).withSecond( 0 ).withNano( 0 );
-        final ZonedDateTime end = start.plusHours( hoursPerPartition );
-        return new Interval(start,end);
-    }
-
-    private String toPartitionPart(ZonedDateTime ts)
-    {
-        final int hoursPerPartition = config.hoursPerPartition;
-        final String pattern = PARTITION_NAME_TZ_FORMAT.format( ts );
-        final ZonedDateTime utc = ts.withZoneSameLocal( DateUtils.UTC );
-        final int partitionNumber = utc.getHour() / hoursPerPartition;
-        return pattern+"_"+partitionNumber;
-    }
-
     @PreDestroy
     public void shutdown() throws InterruptedException
     {
         shutdown = true;
+        partitionCreator.stopThread();
+        searchIndexer.stopThread();
         doWithBackends( this::shutdown );
+        if ( lateDataStorage != null ) {
+            lateDataStorage.shutdown();
+        }
+        if ( stagingStorage != null ) {
+            stagingStorage.shutdown();
+        }
+        if ( journalReplayer != null ) {
+            journalReplayer.shutdown();
+        }
+        flushScheduler.shutdown();
+        if ( journal != null ) {
+            journal.sync();
+        }
         watchdog.stopThread();
         Runtime.getRuntime().removeShutdownHook( this.shutdownHook );
     }
 
+    /**
+     * Returns buffer/flush statistics for all active partitions (and the staging table).
+     *
+     * @return
+     */
+    public List<CopyBatcher.Statistics> getStatistics()
+    {
+        final List<CopyBatcher.Statistics> result = new ArrayList<>();
+        if ( stagingStorage != null ) {
+            result.add( stagingStorage.getStatistics() );
+        }
+        doWithBackends( backend -> result.add( backend.getStatistics() ) );
+        return result;
+    }
+
     private void doWithBackends(Consumer<PostgreSQLStorage> consumer)
     {
         doWithBackendsIt( it -> {
@@ -324,7 +632,7 @@ public class DelegatingLogStorage implements ISQLLogStorage
     {
         synchronized( storageByHostAndTime )
         {
-            for ( Map<String, PostgreSQLStorage> entry : storageByHostAndTime.values() )
+            for ( Map<Long, PostgreSQLStorage> entry : storageByHostAndTime.values() )
             {
                 final Iterator<PostgreSQLStorage> it = entry.values().iterator();
                 consumer.accept( it );
@@ -0,0 +1,296 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.util.ConnectionBudget;
+import de.codesourcery.logreceiver.util.EternalThread;
+
+import java.time.Duration;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the flushes of all partitions on a small, fixed pool of worker threads.
+ *
+ * Partitions get scheduled by deadline: every registered partition is flushed at least once per
+ * {@link Configuration#flushInterval}, partitions that {@link Slot#requestFlush(long) request} a flush because
+ * their buffers are full get scheduled immediately (larger batches first).
+ * A partition is never flushed by more than one worker at the same time.
+ */
+public class FlushScheduler
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( FlushScheduler.class.getName() );
+
+    public interface Flushable
+    {
+        /**
+         * Writes buffered data to the database.
+         *
+         * @param timedOut <code>true</code> if the flush interval elapsed, <code>false</code> if the flush
+         *                 was {@link Slot#requestFlush(long) requested}
+         * @return <code>false</code> if flushing failed and should not be retried before the next flush interval
+         */
+        boolean flush(boolean timedOut);
+    }
+
+    private static final class Entry
+    {
+        public final Slot slot;
+        public final long deadline;
+        public final long bytes;
+        public final boolean timedOut;
+        public final int generation;
+
+        private Entry(Slot slot, long deadline, long bytes, boolean timedOut)
+        {
+            this.slot = slot;
+            this.deadline = deadline;
+            this.bytes = bytes;
+            this.timedOut = timedOut;
+            this.generation = slot.generation;
+        }
+
+        public boolean isStale() {
+            return generation != slot.generation;
+        }
+    }
+
+    /**
+     * Scheduling state of a registered partition.
+     */
+    public final class Slot
+    {
+        private final String name;
+        private final Flushable flushable;
+
+        // @GuardedBy(lock)
+        private int generation;
+        // @GuardedBy(lock)
+        private boolean registered = true;
+        // @GuardedBy(lock)
+        private boolean running;
+        // @GuardedBy(lock)
+        private boolean flushRequested;
+
+        private Slot(String name, Flushable flushable)
+        {
+            this.name = name;
+            this.flushable = flushable;
+        }
+
+        /**
+         * Schedules this partition for immediate flushing.
+         *
+         * @param bytes number of bytes waiting to be written, partitions with more data get flushed first
+         */
+        public void requestFlush(long bytes)
+        {
+            synchronized( lock )
+            {
+                if ( ! registered ) {
+                    return;
+                }
+                if ( running ) {
+                    flushRequested = true;
+                    return;
+                }
+                schedule( this, System.currentTimeMillis(), bytes, false );
+            }
+        }
+
+        /**
+         * Removes this partition from the scheduler, waiting for a running flush to finish.
+         *
+         * @throws InterruptedException
+         */
+        public void unregister() throws InterruptedException
+        {
+            synchronized( lock )
+            {
+                registered = false;
+                generation++;
+                while ( running ) {
+                    lock.wait();
+                }
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Slot[ "+name+" ]";
+        }
+    }
+
+    private final Object lock = new Object();
+
+    // @GuardedBy(lock)
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>( (a,b) ->
+    {
+        final int result = Long.compare( a.deadline, b.deadline );
+        return result != 0 ? result : Long.compare( b.bytes, a.bytes );
+    });
+
+    // @GuardedBy(lock)
+    private int runningFlushes;
+
+    private final Duration flushInterval;
+    private final int workerCount;
+    private final ExecutorService workers;
+    private final EternalThread dispatcher;
+
+    public FlushScheduler(Configuration config)
+    {
+        this( config.flushInterval, ConnectionBudget.flushWorkerThreads( config ) );
+    }
+
+    public FlushScheduler(Duration flushInterval, int workerCount)
+    {
+        this.flushInterval = flushInterval;
+        this.workerCount = workerCount;
+        final AtomicInteger threadId = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool( workerCount, r ->
+        {
+            final Thread t = new Thread( r, "flush-worker-"+threadId.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+        });
+        this.dispatcher = new EternalThread( "flush-scheduler", () -> new EternalThread.Interruptable()
+        {
+            @Override
+            public void cancel()
+            {
+                synchronized( lock ) {
+                    lock.notifyAll();
+                }
+            }
+
+            @Override
+            public void run(EternalThread.Context context) throws Exception
+            {
+                dispatch( context );
+            }
+        });
+        LOG.info("FlushScheduler(): Using "+workerCount+" worker threads, flush interval "+flushInterval);
+        dispatcher.startThread();
+    }
+
+    /**
+     * Registers a partition, its first flush happens after {@link Configuration#flushInterval}.
+     *
+     * @param name
+     * @param flushable
+     * @return
+     */
+    public Slot register(String name, Flushable flushable)
+    {
+        final Slot slot = new Slot( name, flushable );
+        synchronized( lock )
+        {
+            schedule( slot, System.currentTimeMillis() + flushInterval.toMillis(), 0, true );
+        }
+        return slot;
+    }
+
+    // @GuardedBy(lock)
+    private void schedule(Slot slot, long deadline, long bytes, boolean timedOut)
+    {
+        // invalidates any entry still in the queue
+        slot.generation++;
+        queue.add( new Entry( slot, deadline, bytes, timedOut ) );
+        lock.notifyAll();
+    }
+
+    private void dispatch(EternalThread.Context context) throws InterruptedException
+    {
+        while ( ! context.isCancelled() )
+        {
+            final Entry next;
+            synchronized( lock )
+            {
+                Entry head = queue.peek();
+                while ( head != null && head.isStale() ) {
+                    queue.poll();
+                    head = queue.peek();
+                }
+                final long now = System.currentTimeMillis();
+                if ( head == null || runningFlushes >= workerCount ) {
+                    lock.wait( flushInterval.toMillis() );
+                    continue;
+                }
+                if ( head.deadline > now ) {
+                    lock.wait( head.deadline - now );
+                    continue;
+                }
+                next = queue.poll();
+                next.slot.running = true;
+                runningFlushes++;
+            }
+            workers.execute( () -> runFlush( next ) );
+        }
+    }
+
+    private void runFlush(Entry entry)
+    {
+        final Slot slot = entry.slot;
+        boolean success = false;
+        try
+        {
+            success = slot.flushable.flush( entry.timedOut );
+        }
+        catch(Exception e)
+        {
+            LOG.error("runFlush(): Flushing "+slot.name+" failed",e);
+        }
+        finally
+        {
+            synchronized( lock )
+            {
+                slot.running = false;
+                runningFlushes--;
+                if ( slot.registered )
+                {
+                    if ( slot.flushRequested && success ) {
+                        schedule( slot, System.currentTimeMillis(), 0, false );
+                    } else {
+                        schedule( slot, System.currentTimeMillis() + flushInterval.toMillis(), 0, true );
+                    }
+                }
+                slot.flushRequested = false;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of partitions waiting for their next flush.
+     *
+     * @return
+     */
+    public int getScheduledCount()
+    {
+        synchronized( lock )
+        {
+            int count = 0;
+            for ( Entry e : queue )
+            {
+                if ( ! e.isStale() ) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    public void shutdown() throws InterruptedException
+    {
+        LOG.info("shutdown(): Shutting down");
+        dispatcher.stopThread();
+        workers.shutdown();
+        if ( ! workers.awaitTermination( 30, TimeUnit.SECONDS ) ) {
+            LOG.warn("shutdown(): Flush workers did not terminate in time");
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import java.util.function.Consumer;
+
+/**
+ * Maps host IDs to their current partition without boxing.
+ *
+ * Open addressing with linear probing. Lookups are lock-free, inserts copy the table
+ * (new hosts are rare compared to messages).
+ */
+final class HostRoutingTable
+{
+    /**
+     * The partition a host's messages currently go to.
+     */
+    static final class Partition
+    {
+        public final long start; // inclusive, seconds since epoch
+        public final long end; // exclusive, seconds since epoch
+        public final PostgreSQLStorage storage;
+
+        Partition(long start, long end, PostgreSQLStorage storage)
+        {
+            this.start = start;
+            this.end = end;
+            this.storage = storage;
+        }
+
+        public boolean contains(long epochSeconds) {
+            return epochSeconds >= start && epochSeconds < end;
+        }
+    }
+
+    static final class Route
+    {
+        public final long hostId;
+        public volatile Partition current;
+
+        private Route(long hostId) {
+            this.hostId = hostId;
+        }
+    }
+
+    private volatile Route[] table;
+    // @GuardedBy(this)
+    private int size;
+
+    HostRoutingTable() {
+        this( 64 );
+    }
+
+    HostRoutingTable(int initialCapacity)
+    {
+        int capacity = 16;
+        while ( capacity < initialCapacity ) {
+            capacity <<= 1;
+        }
+        table = new Route[ capacity ];
+    }
+
+    private static int hash(long hostId)
+    {
+        final int h = (int) (hostId ^ (hostId >>> 32)) * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the route of a host.
+     *
+     * @param hostId
+     * @return route or <code>null</code>
+     */
+    Route get(long hostId)
+    {
+        final Route[] t = table;
+        final int mask = t.length - 1;
+        int idx = hash( hostId ) & mask;
+        while ( true )
+        {
+            final Route r = t[idx];
+            if ( r == null || r.hostId == hostId ) {
+                return r;
+            }
+            idx = (idx+1) & mask;
+        }
+    }
+
+    Route getOrCreate(long hostId)
+    {
+        final Route existing = get( hostId );
+        if ( existing != null ) {
+            return existing;
+        }
+        synchronized(this)
+        {
+            final Route r = get( hostId );
+            if ( r != null ) {
+                return r;
+            }
+            final Route[] old = table;
+            final int newLength = (size+1)*2 > old.length ? old.length*2 : old.length;
+            final Route[] copy = new Route[ newLength ];
+            for ( Route route : old ) {
+                if ( route != null ) {
+                    insert( copy, route );
+                }
+            }
+            final Route result = new Route( hostId );
+            insert( copy, result );
+            size++;
+            table = copy;
+            return result;
+        }
+    }
+
+    private static void insert(Route[] t, Route route)
+    {
+        final int mask = t.length - 1;
+        int idx = hash( route.hostId ) & mask;
+        while ( t[idx] != null ) {
+            idx = (idx+1) & mask;
+        }
+        t[idx] = route;
+    }
+
+    void forEach(Consumer<Route> consumer)
+    {
+        for ( Route r : table ) {
+            if ( r != null ) {
+                consumer.accept( r );
+            }
+        }
+    }
+
+    synchronized int size() {
+        return size;
+    }
+}
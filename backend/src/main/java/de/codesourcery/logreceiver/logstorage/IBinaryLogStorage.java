@@ -0,0 +1,13 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+
+public interface IBinaryLogStorage
+{
+    /**
+     *
+     * @param message message the row was generated for (only host and timestamp fields get used)
+     * @param row one tuple in PostgreSQL's binary COPY format, must not be retained after this method returns
+     */
+    void store(SyslogMessage message, CopyBuffer row);
+}
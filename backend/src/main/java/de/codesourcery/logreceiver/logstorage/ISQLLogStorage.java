@@ -1,10 +1,13 @@
 package de.codesourcery.logreceiver.logstorage;
 
-import de.codesourcery.logreceiver.entity.Host;
-
-import java.time.ZonedDateTime;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
 
 public interface ISQLLogStorage
 {
-    void store(Host host, ZonedDateTime timestamp, String sql);
+    /**
+     *
+     * @param message message the SQL was generated for (only host and timestamp fields get used)
+     * @param sql
+     */
+    void store(SyslogMessage message, String sql);
 }
@@ -0,0 +1,428 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Append-only write-ahead journal for COPY rows, stored in memory-mapped segment files.
+ *
+ * Every row gets journaled before it is COPYed and acknowledged (flagged in-place) once its
+ * COPY committed. Rows that could not be buffered in memory or whose COPY failed are flagged
+ * as <i>spilled</i> and get written by the {@link JournalReplayer}. Segments are deleted as soon as
+ * all of their rows have been acknowledged. Segments found at startup belong to a previous run,
+ * all of their unacknowledged rows are considered spilled.
+ *
+ * Record layout:
+ * <pre>
+ * int   payload length (written last, 0 = end of segment)
+ * byte  flags
+ * byte  copy format (ordinal)
+ * short table name length
+ * long  host ID
+ * byte[] table name (US-ASCII)
+ * byte[] payload
+ * </pre>
+ *
+ * Positions are encoded as <code>(segment ID &lt;&lt; 32) | offset</code>.
+ */
+public class Journal
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( Journal.class.getName() );
+
+    public static final long NO_POSITION = -1;
+
+    private static final int MAGIC = 0x4c524a31; // 'LRJ1'
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    private static final byte FLAG_ACKED = 1;
+    private static final byte FLAG_SPILLED = 2;
+
+    private static final Pattern FILE_NAME = Pattern.compile( "journal-([0-9]+)\\.seg" );
+
+    private static final CopyFormat[] FORMATS = CopyFormat.values();
+
+    /**
+     * A record read from the journal.
+     */
+    public interface RecordVisitor
+    {
+        /**
+         * @param position
+         * @param tableName
+         * @param format
+         * @param hostId
+         * @param payload positioned at the start of the payload
+         * @param payloadLength
+         */
+        void visit(long position, String tableName, CopyFormat format, long hostId, ByteBuffer payload, int payloadLength);
+    }
+
+    final class Segment
+    {
+        public final int id;
+        public final File file;
+        public final boolean recovered;
+        private final MappedByteBuffer buffer;
+
+        // @GuardedBy(Journal.this)
+        private int records;
+        // @GuardedBy(Journal.this)
+        private boolean sealed;
+        private volatile int writePosition = SEGMENT_HEADER_SIZE;
+        private final AtomicInteger acked = new AtomicInteger();
+
+        // only accessed by replayer
+        int replayOffset = SEGMENT_HEADER_SIZE;
+
+        private Segment(int id, File file, boolean recovered, int size) throws IOException
+        {
+            this.id = id;
+            this.file = file;
+            this.recovered = recovered;
+            try ( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) )
+            {
+                if ( ! recovered ) {
+                    raf.setLength( size );
+                }
+                // mapping stays valid after the file has been closed
+                this.buffer = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, raf.length() );
+            }
+        }
+
+        private int capacity() {
+            return buffer.capacity();
+        }
+
+        public int writePosition() {
+            return writePosition;
+        }
+
+        public ByteBuffer view() {
+            return buffer.duplicate();
+        }
+
+        private void recover()
+        {
+            if ( buffer.capacity() < SEGMENT_HEADER_SIZE || buffer.getInt( 0 ) != MAGIC ) {
+                LOG.error("recover(): Ignoring invalid journal segment "+file);
+                return;
+            }
+            int offset = SEGMENT_HEADER_SIZE;
+            int unacked = 0;
+            while ( offset + RECORD_HEADER_SIZE <= buffer.capacity() )
+            {
+                final int payloadLength = buffer.getInt( offset );
+                final int tableLength = buffer.getShort( offset+6 );
+                final int next = offset + RECORD_HEADER_SIZE + tableLength + payloadLength;
+                if ( payloadLength <= 0 || tableLength <= 0 || next > buffer.capacity() || next < 0 ) {
+                    break;
+                }
+                records++;
+                if ( ( buffer.get( offset+4 ) & FLAG_ACKED ) != 0 ) {
+                    acked.incrementAndGet();
+                } else {
+                    unacked++;
+                }
+                offset = next;
+            }
+            writePosition = offset;
+            pendingReplay.addAndGet( unacked );
+        }
+
+        // @GuardedBy(Journal.this)
+        private boolean isObsolete()
+        {
+            return sealed && acked.get() == records;
+        }
+
+        @Override
+        public String toString() {
+            return file.getName();
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    private final Map<Integer,Segment> segments = new ConcurrentSkipListMap<>();
+
+    // @GuardedBy(this)
+    private Segment current;
+    // @GuardedBy(this)
+    private int nextSegmentId;
+    // @GuardedBy(this)
+    private boolean full;
+
+    private final AtomicLong pendingReplay = new AtomicLong();
+
+    /**
+     * Opens the journal, segments found in the directory are recovered.
+     *
+     * @param directory
+     * @param segmentSize
+     * @param maxSegments
+     * @throws IOException
+     */
+    public Journal(File directory, int segmentSize, int maxSegments) throws IOException
+    {
+        if ( ! directory.isDirectory() && ! directory.mkdirs() ) {
+            throw new IOException( "Failed to create journal directory "+directory.getAbsolutePath() );
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max( 2, maxSegments );
+
+        final File[] files = directory.listFiles();
+        Arrays.sort( files );
+        for ( File file : files )
+        {
+            final Matcher m = FILE_NAME.matcher( file.getName() );
+            if ( ! m.matches() ) {
+                continue;
+            }
+            final int id = Integer.parseInt( m.group(1) );
+            final Segment segment = new Segment( id, file, true, segmentSize );
+            segment.recover();
+            synchronized(this)
+            {
+                segment.sealed = true;
+                nextSegmentId = Math.max( nextSegmentId, id+1 );
+                if ( segment.isObsolete() ) {
+                    delete( segment );
+                    continue;
+                }
+            }
+            segments.put( id, segment );
+        }
+        LOG.info("Journal(): Opened "+directory.getAbsolutePath()+", "+pendingReplay.get()+" rows to replay");
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param tableName
+     * @param format
+     * @param hostId
+     * @param data
+     * @param offset
+     * @param len
+     * @param spilled whether the row has not been buffered for COPY
+     * @return position or {@link #NO_POSITION} if the journal is full
+     */
+    public synchronized long append(String tableName, CopyFormat format, long hostId, CopyBuffer data, int offset, int len, boolean spilled)
+    {
+        final byte[] name = tableName.getBytes( StandardCharsets.US_ASCII );
+        final int recordSize = RECORD_HEADER_SIZE + name.length + len;
+        if ( current == null || current.writePosition + recordSize > current.capacity() )
+        {
+            if ( SEGMENT_HEADER_SIZE + recordSize > segmentSize || ! startSegment() ) {
+                return NO_POSITION;
+            }
+        }
+        final int recordOffset = current.writePosition;
+        final ByteBuffer view = current.buffer.duplicate();
+        view.position( recordOffset + 4 );
+        view.put( spilled ? FLAG_SPILLED : 0 );
+        view.put( (byte) format.ordinal() );
+        view.putShort( (short) name.length );
+        view.putLong( hostId );
+        view.put( name );
+        data.copyTo( offset, len, view );
+        // length goes last so a partially written record is never read
+        current.buffer.putInt( recordOffset, len );
+        current.records++;
+        current.writePosition = recordOffset + recordSize;
+        if ( spilled ) {
+            pendingReplay.incrementAndGet();
+        }
+        return ((long) current.id << 32) | recordOffset;
+    }
+
+    // @GuardedBy(this)
+    private boolean startSegment()
+    {
+        if ( current != null )
+        {
+            current.sealed = true;
+            current.buffer.force();
+            if ( current.isObsolete() ) {
+                delete( current );
+            }
+            current = null;
+        }
+        if ( segments.size() >= maxSegments )
+        {
+            if ( ! full ) {
+                LOG.error("startSegment(): Journal is full ("+maxSegments+" segments)");
+                full = true;
+            }
+            return false;
+        }
+        full = false;
+        final int id = nextSegmentId++;
+        final File file = new File( directory, String.format( "journal-%010d.seg", id ) );
+        try
+        {
+            final Segment segment = new Segment( id, file, false, segmentSize );
+            segment.buffer.putInt( 0, MAGIC );
+            segments.put( id, segment );
+            current = segment;
+            return true;
+        }
+        catch (IOException e)
+        {
+            LOG.error("startSegment(): Failed to create "+file,e);
+            return false;
+        }
+    }
+
+    // @GuardedBy(this)
+    private void delete(Segment segment)
+    {
+        segments.remove( segment.id );
+        if ( ! segment.file.delete() ) {
+            LOG.warn("delete(): Failed to delete "+segment.file);
+        } else if ( LOG.isDebugEnabled() ) {
+            LOG.debug("delete(): Deleted "+segment);
+        }
+    }
+
+    /**
+     * Marks a record as written to the database.
+     *
+     * @param position
+     */
+    public void ack(long position)
+    {
+        final Segment segment = segments.get( (int) (position >>> 32) );
+        if ( segment == null ) {
+            LOG.error("ack(): Unknown segment for position "+position);
+            return;
+        }
+        final int offset = (int) position;
+        final byte flags = segment.buffer.get( offset+4 );
+        if ( ( flags & FLAG_ACKED ) != 0 ) {
+            return;
+        }
+        segment.buffer.put( offset+4, (byte) (flags | FLAG_ACKED) );
+        if ( ( flags & FLAG_SPILLED ) != 0 || segment.recovered ) {
+            pendingReplay.decrementAndGet();
+        }
+        segment.acked.incrementAndGet();
+        synchronized(this)
+        {
+            if ( segment.isObsolete() && segments.containsKey( segment.id ) ) {
+                delete( segment );
+            }
+        }
+    }
+
+    /**
+     * Hands a buffered record over to the {@link JournalReplayer}.
+     *
+     * @param position
+     */
+    public void markSpilled(long position)
+    {
+        final Segment segment = segments.get( (int) (position >>> 32) );
+        if ( segment == null ) {
+            return;
+        }
+        final int offset = (int) position;
+        final byte flags = segment.buffer.get( offset+4 );
+        if ( ( flags & (FLAG_ACKED|FLAG_SPILLED) ) == 0 )
+        {
+            segment.buffer.put( offset+4, (byte) (flags | FLAG_SPILLED) );
+            if ( ! segment.recovered ) {
+                pendingReplay.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Number of spilled/recovered records that have not been written to the database yet.
+     *
+     * @return
+     */
+    public long getPendingReplay() {
+        return pendingReplay.get();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    List<Segment> getSegments() {
+        return new ArrayList<>( segments.values() );
+    }
+
+    /**
+     * Visits all unacknowledged records of a segment that need to be replayed.
+     *
+     * @param segment
+     * @param visitor
+     */
+    void visitReplayableRecords(Segment segment, RecordVisitor visitor)
+    {
+        final ByteBuffer view = segment.view();
+        final int end = segment.writePosition();
+        int offset = segment.replayOffset;
+        boolean advanceCursor = true;
+        while ( offset < end )
+        {
+            final int payloadLength = view.getInt( offset );
+            final byte flags = view.get( offset+4 );
+            final int tableLength = view.getShort( offset+6 );
+            final int next = offset + RECORD_HEADER_SIZE + tableLength + payloadLength;
+            if ( ( flags & FLAG_ACKED ) == 0 )
+            {
+                // cursor only moves across acknowledged records so failed replays get retried
+                advanceCursor = false;
+                if ( ( flags & FLAG_SPILLED ) != 0 || segment.recovered )
+                {
+                    final CopyFormat format = FORMATS[ view.get( offset+5 ) ];
+                    final long hostId = view.getLong( offset+8 );
+                    final byte[] name = new byte[ tableLength ];
+                    view.position( offset + RECORD_HEADER_SIZE );
+                    view.get( name );
+                    visitor.visit( ((long) segment.id << 32) | offset, new String( name, StandardCharsets.US_ASCII ), format, hostId, view, payloadLength );
+                }
+            }
+            offset = next;
+            if ( advanceCursor ) {
+                segment.replayOffset = offset;
+            }
+        }
+    }
+
+    /**
+     * Flushes all segments to disk.
+     */
+    public synchronized void sync()
+    {
+        for ( Segment segment : segments.values() ) {
+            segment.buffer.force();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Journal[ "+directory.getAbsolutePath()+", "+segments.size()+" segments, "+pendingReplay.get()+" rows to replay ]";
+    }
+}
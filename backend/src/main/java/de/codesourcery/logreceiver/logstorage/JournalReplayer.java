@@ -0,0 +1,260 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.filtering.FilterCallbackManager;
+import de.codesourcery.logreceiver.storage.IHostManager;
+import de.codesourcery.logreceiver.util.EternalThread;
+import de.codesourcery.logreceiver.util.Interval;
+
+import javax.sql.DataSource;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes spilled and recovered {@link Journal} records to the database.
+ *
+ * Records are grouped by target table so replaying a large journal after a restart
+ * or an outage only needs a few large COPYs.
+ */
+public class JournalReplayer
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( JournalReplayer.class.getName() );
+
+    private static final int MIN_BATCH_SIZE = 1024*1024;
+
+    // upper bound for the delay between replays while the database keeps failing
+    private static final Duration MAX_RETRY_DELAY = Duration.ofMinutes( 1 );
+
+    private static final class Group
+    {
+        public final String tableName;
+        public final CopyFormat format;
+        public final long hostId;
+        public final CopyBuffer data = new CopyBuffer( 64*1024 );
+        public long[] positions = new long[256];
+        public int positionCount;
+
+        private Group(String tableName, CopyFormat format, long hostId)
+        {
+            this.tableName = tableName;
+            this.format = format;
+            this.hostId = hostId;
+        }
+
+        public void add(long position, ByteBuffer payload, int payloadLength)
+        {
+            data.put( payload, payloadLength );
+            if ( positionCount == positions.length ) {
+                positions = Arrays.copyOf( positions, positions.length*2 );
+            }
+            positions[positionCount++] = position;
+        }
+
+        public void clear()
+        {
+            data.clear();
+            positionCount = 0;
+        }
+    }
+
+    private final Journal journal;
+    private final DataSource ds;
+    private final IHostManager hostManager;
+    private final Configuration config;
+    private final FilterCallbackManager callbackHelper;
+    private final int batchSize;
+    private final EternalThread thread;
+
+    // only accessed by replayer thread
+    private final Map<String,Group> groups = new HashMap<>();
+    private final Set<String> knownTables = new HashSet<>();
+    private boolean failed;
+    private int failedReplays;
+
+    private final AtomicLong replayedRows = new AtomicLong();
+    private final AtomicLong discardedRows = new AtomicLong();
+
+    public JournalReplayer(Journal journal, DataSource ds, IHostManager hostManager, Configuration config, FilterCallbackManager callbackHelper)
+    {
+        this.journal = journal;
+        this.ds = ds;
+        this.hostManager = hostManager;
+        this.config = config;
+        this.callbackHelper = callbackHelper;
+        this.batchSize = Math.max( MIN_BATCH_SIZE, config.maxCharsInBuffer );
+        this.thread = new EternalThread( "journal-replayer", () -> this::replay );
+    }
+
+    public void start() {
+        thread.startThread();
+    }
+
+    private void replay(EternalThread.Context ctx)
+    {
+        while ( ! ctx.isCancelled() )
+        {
+            if ( journal.getPendingReplay() == 0 ) {
+                ctx.sleep( config.flushInterval );
+                continue;
+            }
+            final long pending = journal.getPendingReplay();
+            LOG.info("replay(): "+pending+" rows to replay");
+            replayOnce();
+            if ( failed )
+            {
+                // database unavailable, records stay in the journal until a replay succeeds
+                failedReplays++;
+                ctx.sleep( retryDelay() );
+            }
+            else
+            {
+                failedReplays = 0;
+                if ( journal.getPendingReplay() >= pending ) {
+                    // rows still waiting to be spilled
+                    ctx.sleep( config.flushInterval );
+                }
+            }
+        }
+    }
+
+    private Duration retryDelay()
+    {
+        final long maxMillis = Math.max( config.flushInterval.toMillis(), MAX_RETRY_DELAY.toMillis() );
+        final long millis = config.flushInterval.toMillis() << Math.min( failedReplays - 1, 20 );
+        return Duration.ofMillis( Math.min( millis, maxMillis ) );
+    }
+
+    private void replayOnce()
+    {
+        failed = false;
+        for ( Journal.Segment segment : journal.getSegments() )
+        {
+            journal.visitReplayableRecords( segment, this::add );
+        }
+        for ( Group group : groups.values() )
+        {
+            if ( group.positionCount > 0 ) {
+                copy( group );
+            }
+        }
+        groups.clear();
+    }
+
+    private void add(long position, String tableName, CopyFormat format, long hostId, ByteBuffer payload, int payloadLength)
+    {
+        final String key = tableName+"/"+format;
+        final Group group = groups.computeIfAbsent( key, k -> new Group( tableName, format, hostId ) );
+        group.add( position, payload, payloadLength );
+        if ( group.data.length() >= batchSize ) {
+            copy( group );
+        }
+    }
+
+    private void copy(Group group)
+    {
+        boolean discarded = false;
+        try
+        {
+            ensureTableExists( group );
+            CopyBatcher.copyIn( ds, group.tableName, group.format, group.data );
+        }
+        catch(Exception e)
+        {
+            if ( ! isDataError( e ) )
+            {
+                failed = true;
+                LOG.error("copy(): Replaying "+group.positionCount+" rows into "+group.tableName+" failed, will retry",e);
+                group.clear();
+                return;
+            }
+            // retrying would fail the same way
+            LOG.fatal("copy(): Rejected by the database, "+group.positionCount+" rows lost for "+group.tableName,e);
+            discardedRows.addAndGet( group.positionCount );
+            discarded = true;
+        }
+        for ( int i = 0 ; i < group.positionCount ; i++ ) {
+            journal.ack( group.positions[i] );
+        }
+        if ( ! discarded ) {
+            replayedRows.addAndGet( group.positionCount );
+        }
+        if ( ! PartitionDDL.STAGING_TABLE.equals( group.tableName ) )
+        {
+            final Host host = hostManager.getHost( group.hostId );
+            if ( host != null ) {
+                callbackHelper.markDirty( host.ip );
+            }
+        }
+        group.clear();
+    }
+
+    /**
+     * Returns whether an exception was caused by the data itself (SQLState class 22 or 23)
+     * rather than by the database being unavailable.
+     *
+     * @param e
+     * @return
+     */
+    static boolean isDataError(Throwable e)
+    {
+        for ( Throwable current = e ; current != null ; current = current.getCause() )
+        {
+            if ( current instanceof SQLException )
+            {
+                final String state = ((SQLException) current).getSQLState();
+                if ( state != null && ( state.startsWith( "22" ) || state.startsWith( "23" ) ) ) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void ensureTableExists(Group group) throws SQLException
+    {
+        if ( knownTables.contains( group.tableName ) ) {
+            return;
+        }
+        if ( PartitionDDL.STAGING_TABLE.equals( group.tableName ) )
+        {
+            try ( Connection con = ds.getConnection() ; Statement stmt = con.createStatement() )
+            {
+                PartitionDDL.createStagingTable( stmt );
+            }
+        }
+        else
+        {
+            final Host host = hostManager.getHost( group.hostId );
+            if ( host == null ) {
+                throw new IllegalStateException( "Unknown host #"+group.hostId+" for table "+group.tableName );
+            }
+            final Interval interval = PartitionNamePattern.parse( group.tableName, config ).getInterval( config );
+            PartitionDDL.createTables( ds, host, group.tableName, interval, config );
+        }
+        knownTables.add( group.tableName );
+    }
+
+    public long getReplayedRows() {
+        return replayedRows.get();
+    }
+
+    public long getDiscardedRows() {
+        return discardedRows.get();
+    }
+
+    public void shutdown() throws InterruptedException
+    {
+        LOG.info("shutdown(): Shutting down");
+        thread.stopThread();
+    }
+}
@@ -0,0 +1,279 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.filtering.FilterCallbackManager;
+import de.codesourcery.logreceiver.util.EternalThread;
+import de.codesourcery.logreceiver.util.Interval;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores messages whose timestamp is neither within the current nor the next partition.
+ *
+ * Rows of all hosts are buffered together, grouped by target partition and written
+ * by a single thread, so late or replayed messages do not create a {@link PostgreSQLStorage}
+ * (with its own buffers) for every historic partition they touch.
+ *
+ * @see Configuration#lateMessageSkew
+ */
+public class LateDataStorage implements ISQLLogStorage, IBinaryLogStorage
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( LateDataStorage.class.getName() );
+
+    private static final class Group
+    {
+        public final Host host;
+        public final long partitionStart;
+        public final CopyBuffer data = new CopyBuffer();
+        public int rowCount;
+
+        private Group(Host host, long partitionStart)
+        {
+            this.host = host;
+            this.partitionStart = partitionStart;
+        }
+    }
+
+    private final DataSource ds;
+    private final Configuration config;
+    private final FilterCallbackManager callbackHelper;
+    private final Journal journal;
+    private final CopyFormat copyFormat;
+    private final long skewSeconds;
+    private final long maxBufferedBytes;
+
+    private final Object lock = new Object();
+
+    // key is host ID, value maps partition start to rows
+    // @GuardedBy( lock )
+    private Map<Long, Map<Long,Group>> groups = new HashMap<>();
+    // @GuardedBy( lock )
+    private long bufferedBytes;
+    // @GuardedBy( lock )
+    private boolean closed;
+
+    // partitions that have been created already, only accessed by writer thread
+    private final Set<String> knownPartitions = new HashSet<>();
+
+    private final AtomicLong storedRows = new AtomicLong();
+    private final AtomicLong droppedRows = new AtomicLong();
+
+    private final EternalThread writer;
+
+    public LateDataStorage(DataSource ds, Configuration config, FilterCallbackManager callbackHelper, Journal journal)
+    {
+        this.ds = ds;
+        this.config = config;
+        this.callbackHelper = callbackHelper;
+        this.journal = journal;
+        this.copyFormat = config.copyFormat;
+        this.skewSeconds = config.lateMessageSkew.getSeconds();
+        this.maxBufferedBytes = (long) config.maxCharsInBuffer * Math.max( 2, config.copyBuffersPerPartition );
+        this.writer = new EternalThread( "late-data-writer", () -> this::writeRows );
+        writer.startThread();
+    }
+
+    /**
+     * Check whether a message needs to be stored by this storage.
+     *
+     * @param epochSeconds message timestamp
+     * @return <code>true</code> if the timestamp is neither within the current
+     * partition (or the previous one, if the partition changed less than {@link Configuration#lateMessageSkew} ago)
+     * nor the next one.
+     */
+    public boolean isLate(long epochSeconds)
+    {
+        final long now = System.currentTimeMillis() / 1000;
+        final long start = PartitionDDL.partitionStart( epochSeconds, config );
+        if ( start < PartitionDDL.partitionStart( now - skewSeconds, config ) ) {
+            return true;
+        }
+        final long nextStart = PartitionDDL.partitionStart( PartitionDDL.partitionStart( now, config ) + config.hoursPerPartition * 3600L, config );
+        return start > nextStart;
+    }
+
+    @Override
+    public void store(SyslogMessage message, String sql)
+    {
+        if ( copyFormat != CopyFormat.TEXT ) {
+            throw new IllegalStateException( "Expected "+copyFormat+" rows" );
+        }
+        synchronized( lock )
+        {
+            final Group group = getGroup( message );
+            if ( group != null )
+            {
+                final int len = group.data.length();
+                group.data.appendUTF8( sql ).put( (byte) SQLLogWriter.ROW_DELIMITER );
+                afterAppend( group, group.data.length() - len );
+            }
+        }
+    }
+
+    @Override
+    public void store(SyslogMessage message, CopyBuffer row)
+    {
+        if ( copyFormat != CopyFormat.BINARY ) {
+            throw new IllegalStateException( "Expected "+copyFormat+" rows" );
+        }
+        synchronized( lock )
+        {
+            final Group group = getGroup( message );
+            if ( group != null )
+            {
+                group.data.put( row );
+                afterAppend( group, row.length() );
+            }
+        }
+    }
+
+    // @GuardedBy( lock )
+    private Group getGroup(SyslogMessage message)
+    {
+        while ( ! closed && bufferedBytes >= maxBufferedBytes )
+        {
+            writer.wakeUp();
+            try
+            {
+                lock.wait();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if ( closed || bufferedBytes >= maxBufferedBytes )
+        {
+            droppedRows.incrementAndGet();
+            LOG.fatal("store(): Shutting down, lost late message for "+message.host+" @ "+message.getTimestamp());
+            return null;
+        }
+        final long partitionStart = PartitionDDL.partitionStart( message.epochSeconds, config );
+        return groups.computeIfAbsent( message.host.id, k -> new HashMap<>() )
+                     .computeIfAbsent( partitionStart, k -> new Group( message.host, partitionStart ) );
+    }
+
+    // @GuardedBy( lock )
+    private void afterAppend(Group group, int bytes)
+    {
+        group.rowCount++;
+        bufferedBytes += bytes;
+        if ( bufferedBytes >= config.maxCharsInBuffer ) {
+            writer.wakeUp();
+        }
+    }
+
+    private long getBufferedBytes()
+    {
+        synchronized( lock ) {
+            return bufferedBytes;
+        }
+    }
+
+    private void writeRows(EternalThread.Context ctx)
+    {
+        while ( ! ctx.isCancelled() )
+        {
+            if ( getBufferedBytes() < config.maxCharsInBuffer && ! ctx.sleep( config.flushInterval ) ) {
+                break;
+            }
+            writeRows();
+        }
+        writeRows();
+    }
+
+    private void writeRows()
+    {
+        final Map<Long, Map<Long,Group>> toWrite;
+        synchronized( lock )
+        {
+            if ( groups.isEmpty() ) {
+                return;
+            }
+            toWrite = groups;
+            groups = new HashMap<>();
+        }
+
+        final List<Group> list = new ArrayList<>();
+        toWrite.values().forEach( map -> list.addAll( map.values() ) );
+        try
+        {
+            for ( Group group : list ) {
+                write( group );
+            }
+        }
+        finally
+        {
+            synchronized( lock )
+            {
+                for ( Group group : list ) {
+                    bufferedBytes -= group.data.length();
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void write(Group group)
+    {
+        final Interval interval = PartitionDDL.partitionInterval( group.partitionStart, config );
+        final String partitionName = PartitionDDL.partitionName( group.host, interval, config );
+        try
+        {
+            if ( ! knownPartitions.contains( partitionName ) )
+            {
+                LOG.info("write(): Creating partition '"+partitionName+"' for late messages of "+group.host);
+                PartitionDDL.createTables( ds, group.host, partitionName, interval, config );
+                knownPartitions.add( partitionName );
+            }
+            CopyBatcher.copyIn( ds, partitionName, copyFormat, group.data );
+            storedRows.addAndGet( group.rowCount );
+            if ( LOG.isDebugEnabled() ) {
+                LOG.debug("write(): Stored "+group.rowCount+" late rows in "+partitionName);
+            }
+            callbackHelper.markDirty( group.host.ip );
+        }
+        catch(SQLException e)
+        {
+            // the journal replayer will retry
+            if ( journal != null && journal.append( partitionName, copyFormat, group.host.id, group.data, 0, group.data.length(), true ) != Journal.NO_POSITION )
+            {
+                LOG.error("write(): Failed to store "+group.rowCount+" late rows in "+partitionName+", rows have been journaled",e);
+                return;
+            }
+            LOG.fatal("write(): Failed to store "+group.rowCount+" late rows in "+partitionName+", rows lost",e);
+            droppedRows.addAndGet( group.rowCount );
+        }
+    }
+
+    public long getStoredRows() {
+        return storedRows.get();
+    }
+
+    public long getDroppedRows() {
+        return droppedRows.get();
+    }
+
+    public void shutdown() throws InterruptedException
+    {
+        LOG.info("shutdown(): Shutting down");
+        synchronized( lock )
+        {
+            closed = true;
+            lock.notifyAll();
+        }
+        // writes everything that is still buffered
+        writer.stopThread();
+    }
+}
@@ -0,0 +1,61 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.storage.IHostManager;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the writers that turn parsed messages into COPY rows.
+ *
+ * Writers are not thread-safe so every parser needs to obtain its own instance.
+ */
+public class LogWriterFactory
+{
+    private final ISQLLogStorage textStorage;
+    private final IBinaryLogStorage binaryStorage;
+    private final IHostManager hostManager;
+    private final Configuration config;
+    private final CopyFormat copyFormat;
+
+    private final AtomicLong expiredMessages = new AtomicLong();
+
+    public LogWriterFactory(ISQLLogStorage textStorage, IBinaryLogStorage binaryStorage, IHostManager hostManager, Configuration config)
+    {
+        this.textStorage = textStorage;
+        this.binaryStorage = binaryStorage;
+        this.hostManager = hostManager;
+        this.config = config;
+        this.copyFormat = config.copyFormat;
+    }
+
+    public ILogStorage get()
+    {
+        final ILogStorage writer;
+        switch( copyFormat )
+        {
+            case TEXT:
+                writer = new SQLLogWriter( textStorage, hostManager );
+                break;
+            case BINARY:
+                writer = new BinaryCopyLogWriter( binaryStorage );
+                break;
+            default:
+                throw new RuntimeException("Unhandled switch/case: "+copyFormat);
+        }
+        if ( config.expiredMessagePolicy == RetentionFilter.Policy.KEEP ) {
+            return writer;
+        }
+        return new RetentionFilter( writer, config, expiredMessages );
+    }
+
+    /**
+     * Returns the number of messages that were older than the retention time of their host.
+     *
+     * @return
+     * @see Configuration#expiredMessagePolicy
+     */
+    public long getExpiredMessages() {
+        return expiredMessages.get();
+    }
+}
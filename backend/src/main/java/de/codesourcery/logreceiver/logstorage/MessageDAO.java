@@ -1,11 +1,14 @@
 package de.codesourcery.logreceiver.logstorage;
 
 import de.codesourcery.logreceiver.IAPI;
+import de.codesourcery.logreceiver.entity.Configuration;
 import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.MessagePage;
 import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.filtering.CompiledFilter;
 import de.codesourcery.logreceiver.filtering.IFilterCallback;
+import de.codesourcery.logreceiver.formatting.FormatMemo;
 import de.codesourcery.logreceiver.parsing.JDBCHelper;
-import de.codesourcery.logreceiver.util.DateUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.ResultSetExtractor;
@@ -14,7 +17,9 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
@@ -24,7 +29,54 @@ public class MessageDAO
 {
     private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( MessageDAO.class );
 
+    // rows fetched per query when filtering on the client side
+    private static final int MIN_CHUNK_SIZE = 100;
+    private static final int MAX_CHUNK_SIZE = 10_000;
+
+    public static final String WATERMARKS_TABLE = "filter_watermarks";
+
+    private static final String COLUMNS = "entry_id,priority,log_ts,log_ts_fraction,host_id,app_name,proc_id,msg_id,params,msg";
+
     private final JDBCHelper helper;
+    private final Configuration config;
+    private final int maxScannedRows;
+
+    /**
+     * Collects matching messages until a page is full.
+     */
+    private static final class PageCollector implements ResultSetExtractor<Void>
+    {
+        private final Host host;
+        private final Predicate<SyslogMessage> predicate;
+        private final List<SyslogMessage> result;
+        private final int maxCount;
+
+        public Long lastId;
+        public int rows;
+
+        private PageCollector(Host host, Predicate<SyslogMessage> predicate, List<SyslogMessage> result, int maxCount)
+        {
+            this.host = host;
+            this.predicate = predicate;
+            this.result = result;
+            this.maxCount = maxCount;
+        }
+
+        @Override
+        public Void extractData(ResultSet rs) throws SQLException
+        {
+            while ( result.size() < maxCount && rs.next() )
+            {
+                rows++;
+                final SyslogMessage msg = parse( host, rs );
+                lastId = msg.id;
+                if ( predicate.test( msg ) ) {
+                    result.add( msg );
+                }
+            }
+            return null;
+        }
+    }
 
     public Long getLatestMessageId(Host host)
     {
@@ -32,132 +84,117 @@ public class MessageDAO
         return helper.queryForLong( sql );
     }
 
+    public void createWatermarkTable()
+    {
+        helper.executeUpdate( "CREATE TABLE IF NOT EXISTS "+WATERMARKS_TABLE+" (" +
+                              "host_id bigint NOT NULL," +
+                              "filter_key text NOT NULL," +
+                              "entry_id bigint NOT NULL," +
+                              "updated_at timestamptz NOT NULL DEFAULT now()," +
+                              "PRIMARY KEY (host_id, filter_key))" );
+    }
+
+    /**
+     * Returns the persisted watermark of a filter.
+     *
+     * @param host
+     * @param filterKey
+     * @return latest entry ID the filter has seen, NULL if none has been stored yet
+     * @see IFilterCallback#getWatermarkKey()
+     */
+    public Long getFilterWatermark(Host host, String filterKey)
+    {
+        final String sql = "SELECT entry_id FROM "+WATERMARKS_TABLE+" WHERE host_id = ? AND filter_key = ?";
+        return helper.execQuery( sql, rs -> rs.next() ? rs.getLong( 1 ) : null, host.id, filterKey );
+    }
+
+    /**
+     * Persists filter watermarks in a single batch.
+     *
+     * @param watermarks latest entry IDs by filter key, by host ID
+     */
+    public void storeFilterWatermarks(Map<Long, Map<String, Long>> watermarks)
+    {
+        final String sql = "INSERT INTO "+WATERMARKS_TABLE+" (host_id,filter_key,entry_id) VALUES (?,?,?)" +
+            " ON CONFLICT (host_id,filter_key) DO UPDATE SET entry_id = EXCLUDED.entry_id, updated_at = now()";
+        final List<Object[]> rows = new ArrayList<>();
+        watermarks.forEach( (hostId, byKey) -> byKey.forEach( (key, entryId) -> rows.add( new Object[] { hostId, key, entryId } ) ) );
+        if ( ! rows.isEmpty() ) {
+            helper.executeBatch( sql, rows );
+        }
+    }
+
     public void visitMessages(Host currentHost, Consumer<SyslogMessage> consumer, List<Long> batch)
     {
         if ( batch.isEmpty() ) {
             return;
         }
-        final String sql = "SELECT * FROM "+PartitionNamePattern.parentTableName( currentHost )+
+        final String sql = "SELECT "+COLUMNS+" FROM "+PartitionNamePattern.parentTableName( currentHost )+
                 " WHERE entry_id IN ("+StringUtils.join(batch,",")+") ORDER BY entry_id ASC";
 
         final org.springframework.jdbc.core.ResultSetExtractor<Void> extractor = rs ->
         {
             while ( rs.next() )
             {
-                consumer.accept( DefaultResultSetExtractor.parse( currentHost, rs ) );
+                consumer.accept( parse( currentHost, rs ) );
             }
             return null;
         };
         helper.execStreamingQuery( sql, extractor );
     }
 
-    @FunctionalInterface
-    private interface ResultSetExtractor
+    private static SyslogMessage parse(Host host, ResultSet rs) throws SQLException
     {
-        List<SyslogMessage> extract(Host host, ResultSet rs) throws SQLException;
-    }
-
-    private static class DefaultResultSetExtractor implements MessageDAO.ResultSetExtractor
-    {
-        @Override
-        public List<SyslogMessage> extract(Host host, ResultSet rs) throws SQLException
-        {
-            final List<SyslogMessage> result = new ArrayList<>();
-            while ( rs.next() )
-            {
-                final SyslogMessage msg = parse(host, rs);
-                if ( includeInResult( msg ) )
-                {
-                    result.add(msg);
-                    if ( exitLoop(result) ) {
-                        break;
-                    }
-                }
-            }
-            return result;
-        }
-
-        public static SyslogMessage parse(Host host, ResultSet rs) throws SQLException
-        {
-            final SyslogMessage msg = new SyslogMessage();
-            msg.id = rs.getLong("entry_id");
-            msg.priority = rs.getShort("priority");
-            ZonedDateTime ts = rs.getTimestamp( "log_ts" ).toInstant().atZone( DateUtils.UTC );
-            final int fraction = rs.getInt( "log_ts_fraction" );
-            if ( ! rs.wasNull() ) {
-                ts = ts.withNano( fraction );
-            }
-            msg.timestamp = ts;
-            final long hostId = rs.getLong("host_id");
-            if ( hostId != host.id ) {
-                // should never happen
-                throw new RuntimeException("Host ID returned by database does not match host passed to this function?");
-            }
-            msg.appName = rs.getString("app_name");
-            msg.procId  = rs.getString("proc_id");
-            msg.msgId = rs.getString("msg_id");
-            String json = rs.getString("params");
-            if ( ! rs.wasNull() && ! "null".equals(json) ) {
-                // TODO: implement me
-                // msg.addParam( ...  );
-                throw new RuntimeException("Not implemented - unmarshalling JSON parameter string");
-            }
-            msg.message = rs.getString("msg");
-            msg.host = host;
-            return msg;
+        final SyslogMessage msg = new SyslogMessage();
+        msg.id = rs.getLong("entry_id");
+        msg.priority = rs.getShort("priority");
+        final long millis = rs.getTimestamp( "log_ts" ).getTime();
+        final int fraction = rs.getInt( "log_ts_fraction" );
+        final int nanos = rs.wasNull() ? Math.floorMod( millis, 1000 ) * 1_000_000 : fraction;
+        msg.setTimestamp( Math.floorDiv( millis, 1000 ), nanos, 0 );
+        final long hostId = rs.getLong("host_id");
+        if ( hostId != host.id ) {
+            // should never happen
+            throw new RuntimeException("Host ID returned by database does not match host passed to this function?");
         }
-
-        protected boolean includeInResult(SyslogMessage message) {
-            return true;
-        }
-
-        protected boolean exitLoop(List<SyslogMessage> result) {
-            return false;
+        msg.appName = rs.getString("app_name");
+        msg.procId  = rs.getString("proc_id");
+        msg.msgId = rs.getString("msg_id");
+        String json = rs.getString("params");
+        if ( ! rs.wasNull() && ! "null".equals(json) ) {
+            // TODO: implement me
+            // msg.addParam( ...  );
+            throw new RuntimeException("Not implemented - unmarshalling JSON parameter string");
         }
+        msg.message = rs.getString("msg");
+        msg.host = host;
+        return msg;
     }
 
-    private static final class FilteringResultSetExtractor extends DefaultResultSetExtractor
-    {
-        private final int limit;
-        private final Predicate<SyslogMessage> predicate;
-
-        private FilteringResultSetExtractor(Predicate<SyslogMessage> predicate, int limit)
-        {
-            this.limit = limit;
-            this.predicate = predicate;
-        }
-
-        @Override
-        protected boolean includeInResult(SyslogMessage message)
-        {
-            return predicate.test(message );
-        }
-
-        @Override
-        protected boolean exitLoop(List<SyslogMessage> result)
-        {
-            return result.size() >= limit;
-        }
-    };
-
-    public MessageDAO(JdbcTemplate template)
+    public MessageDAO(JdbcTemplate template, Configuration config)
     {
         helper = new JDBCHelper(template);
+        this.config = config;
+        this.maxScannedRows = Math.max( 1, config.maxScannedRowsPerPage );
     }
 
-    public List<SyslogMessage> getLatestMessages(Host host, IFilterCallback callback, int maxCount)
+    /**
+     * Returns the latest messages matching a filter.
+     *
+     * @param host
+     * @param callback
+     * @param maxCount
+     * @return messages, newest first
+     */
+    public MessagePage getLatestMessages(Host host, IFilterCallback callback, int maxCount)
     {
-        // TODO: limit currently cannot be enforced on server-side as we're doing the matching on the client-side...which is sloooow
-        final String sql = "SELECT * FROM "+ PartitionNamePattern.parentTableName( host )+" ORDER BY entry_id DESC";
-
-        final FilteringResultSetExtractor extractor = new FilteringResultSetExtractor(callback.getPredicate(),maxCount);
-        return helper.execStreamingQuery( sql, rs -> extractor.extract( host,rs ) );
+        return getPage( host, callback, IAPI.PagingDirection.BACKWARD_IN_TIME, null, maxCount );
     }
 
     /**
      * Visit all messages for a given host that have a DB primary key greater than X.
      *
-     * Messages are visi+ted oldest to newest.
+     * Messages are visited oldest to newest. If {@link Configuration#liveMessageMaxAge} is set, messages with older timestamps are skipped.
      *
      * @param host
      * @param filters
@@ -166,13 +203,61 @@ public class MessageDAO
      */
     public Long visitNewerMessages(Host host, List<IFilterCallback> filters, Long latestId, BooleanSupplier cancel)
     {
-        final String sql;
-        if ( latestId == null )
+        final ZonedDateTime notBefore = config.liveMessageMaxAge == null ? null : ZonedDateTime.now().minus( config.liveMessageMaxAge );
+        return visitNewerMessages( host, filters, latestId, notBefore, cancel );
+    }
+
+    /**
+     * Visit all messages for a given host that have a DB primary key greater than X
+     * and a timestamp not before a given time.
+     *
+     * Messages are visited oldest to newest, partitions ending before <code>notBefore</code> are not scanned.
+     *
+     * @param host
+     * @param filters
+     * @param latestId ID or null to visit ALL messages
+     * @param notBefore earliest message timestamp to visit, NULL to visit messages regardless of their timestamp
+     * @return DB primary key of latest log entry that has been visited (may be NULL if no message has been visited)
+     */
+    public Long visitNewerMessages(Host host, List<IFilterCallback> filters, Long latestId, ZonedDateTime notBefore, BooleanSupplier cancel)
+    {
+        return visitNewerMessages( host, filters, latestId, null, notBefore, cancel );
+    }
+
+    /**
+     * Visit all messages for a given host with a DB primary key in a given range
+     * and a timestamp not before a given time.
+     *
+     * Messages are visited oldest to newest, partitions ending before <code>notBefore</code> are not scanned.
+     *
+     * @param host
+     * @param filters
+     * @param latestId ID or null to visit ALL messages
+     * @param maxId highest ID to visit or null to visit messages up to the newest one
+     * @param notBefore earliest message timestamp to visit, NULL to visit messages regardless of their timestamp
+     * @return DB primary key of latest log entry that has been visited (may be NULL if no message has been visited)
+     */
+    public Long visitNewerMessages(Host host, List<IFilterCallback> filters, Long latestId, Long maxId, ZonedDateTime notBefore, BooleanSupplier cancel)
+    {
+        final List<String> conditions = new ArrayList<>();
+        final List<Object> params = new ArrayList<>();
+        if ( latestId != null )
+        {
+            conditions.add( "entry_id > ?" );
+            params.add( latestId );
+        }
+        if ( maxId != null )
+        {
+            conditions.add( "entry_id <= ?" );
+            params.add( maxId );
+        }
+        if ( notBefore != null )
         {
-            sql = "SELECT * FROM " + PartitionNamePattern.parentTableName( host ) + " ORDER BY entry_id ASC";
-        } else {
-            sql = "SELECT * FROM " + PartitionNamePattern.parentTableName( host ) + " WHERE entry_id > "+latestId+" ORDER BY entry_id ASC";
+            conditions.add( "log_ts >= to_timestamp(?)" );
+            params.add( notBefore.toEpochSecond() );
         }
+        final String sql = "SELECT "+COLUMNS+" FROM " + PartitionNamePattern.parentTableName( host ) +
+            (conditions.isEmpty() ? "" : " WHERE "+String.join( " AND ", conditions ) )+" ORDER BY entry_id ASC";
         final org.springframework.jdbc.core.ResultSetExtractor<Long> c = rs ->
         {
             Long lastId = null;
@@ -180,7 +265,7 @@ public class MessageDAO
             final Consumer<IFilterCallback> filterVisitor = x -> x.visit( batch );
             while ( rs.next() )
             {
-                final SyslogMessage msg = DefaultResultSetExtractor.parse( host, rs );
+                final SyslogMessage msg = parse( host, rs );
                 lastId = msg.id;
                 batch.add( msg );
                 if ( batch.size() >= JDBCHelper.BATCH_SIZE )
@@ -188,39 +273,256 @@ public class MessageDAO
                     if ( cancel.getAsBoolean() ) {
                         break;
                     }
+                    FormatMemo.attach( batch );
                     filters.forEach( filterVisitor );
+                    FormatMemo.detach( batch );
                     batch.clear();
                 }
             }
             if ( ! batch.isEmpty() && ! cancel.getAsBoolean() ) {
+                FormatMemo.attach( batch );
                 filters.forEach( filterVisitor );
+                FormatMemo.detach( batch );
             }
             return lastId;
         };
-        return helper.execStreamingQuery( sql, c );
+        return helper.execStreamingQuery( sql, c, params.toArray() );
+    }
+
+    public MessagePage getMessages(Host host, IFilterCallback callback, IAPI.PagingDirection direction,
+                                   long refLogEntryId, int maxCount)
+    {
+        return getPage( host, callback, direction, refLogEntryId, maxCount );
     }
 
-    public List<SyslogMessage> getMessages(Host host, IFilterCallback callback, IAPI.PagingDirection direction,
-                                           long refLogEntryId, int maxCount)
+    /**
+     * Returns messages older (backward) or newer (forward) than a point in time.
+     *
+     * Partitions are read one after another starting with the partition containing <code>refTimestamp</code>,
+     * each query targets a single partition table so PostgreSQL never needs to look at partitions
+     * outside of the range being paged through. Within a partition, messages are returned in ID order.
+     *
+     * @param host
+     * @param callback
+     * @param direction
+     * @param refTimestamp messages to start at
+     * @param refLogEntryId only return messages with an ID less than (backward) / greater than (forward) this one
+     *                      from the partition containing <code>refTimestamp</code>, NULL to start at <code>refTimestamp</code> itself
+     * @param maxCount
+     * @return page, {@link MessagePage#resumeEpochSeconds} is set if the page is incomplete
+     */
+    public MessagePage getMessages(Host host, IFilterCallback callback, IAPI.PagingDirection direction,
+                                   ZonedDateTime refTimestamp, Long refLogEntryId, int maxCount)
     {
-        String sortDirection;
-        final String condition;
-        switch (direction)
+        final long refEpochSeconds = refTimestamp.toEpochSecond();
+        final long firstStart = PartitionDDL.partitionStart( refEpochSeconds, config );
+        final List<Long> starts = getPartitionStarts( host );
+        if ( direction == IAPI.PagingDirection.BACKWARD_IN_TIME ) {
+            Collections.reverse( starts );
+        }
+
+        final PageScan scan = new PageScan( host, callback, direction, maxCount );
+        for ( long start : starts )
         {
-            case FORWARD_IN_TIME:
-                condition = "entry_id > "+refLogEntryId;
-                sortDirection = "ASC";
-                break;
-            case BACKWARD_IN_TIME:
-                condition = "entry_id < "+refLogEntryId;
-                sortDirection = "DESC";
+            if ( direction == IAPI.PagingDirection.BACKWARD_IN_TIME ? start > firstStart : start < firstStart ) {
+                continue;
+            }
+            final String table = PartitionDDL.partitionName( host, PartitionDDL.partitionInterval( start, config ), config );
+            final boolean done;
+            if ( start != firstStart ) {
+                done = scan.scan( table, start, null, null, null );
+            } else if ( refLogEntryId != null ) {
+                done = scan.scan( table, start, refLogEntryId, null, null );
+            } else {
+                done = scan.scan( table, start, null, "log_ts "+scan.operator+"= to_timestamp(?)", refEpochSeconds );
+            }
+            if ( done ) {
                 break;
-            default:
-                throw new RuntimeException( "Unhandled switch/case: " + direction );
+            }
         }
-        final String sql = "SELECT * FROM "+ PartitionNamePattern.parentTableName( host )+" WHERE "+condition+" ORDER BY entry_id "+sortDirection;
+        return scan.toPage();
+    }
+
+    /**
+     * Returns the start of all partitions of a host.
+     *
+     * @param host
+     * @return partition starts (seconds since epoch), ascending
+     */
+    private List<Long> getPartitionStarts(Host host)
+    {
+        final String sql = "SELECT c.relname FROM pg_catalog.pg_inherits i" +
+            " JOIN pg_catalog.pg_class c ON c.oid = i.inhrelid" +
+            " JOIN pg_catalog.pg_class p ON p.oid = i.inhparent" +
+            " WHERE p.relname = ?";
+        final List<Long> result = helper.execQuery( sql, rs ->
+        {
+            final List<Long> starts = new ArrayList<>();
+            while ( rs.next() )
+            {
+                final String table = rs.getString( 1 );
+                try
+                {
+                    starts.add( PartitionNamePattern.parse( table, config ).getInterval( config ).startEpochSeconds );
+                }
+                catch(IllegalArgumentException e) {
+                    LOG.warn("getPartitionStarts(): Ignoring table '"+table+"' of "+host+": "+e.getMessage());
+                }
+            }
+            return starts;
+        }, PartitionDDL.parentTableName( host ) );
+        Collections.sort( result );
+        return result;
+    }
 
-        final FilteringResultSetExtractor extractor = new FilteringResultSetExtractor(callback.getPredicate(),maxCount);
-        return helper.execStreamingQuery( sql, rs -> extractor.extract( host,rs ) );
+    /**
+     * Fetches messages in keyset order.
+     *
+     * @param refLogEntryId only return messages with an ID less than (backward) / greater than (forward) this one, NULL to start at the newest/oldest message
+     */
+    private MessagePage getPage(Host host, IFilterCallback callback, IAPI.PagingDirection direction, Long refLogEntryId, int maxCount)
+    {
+        final PageScan scan = new PageScan( host, callback, direction, maxCount );
+        scan.scan( PartitionNamePattern.parentTableName( host ), null, refLogEntryId, null, null );
+        return scan.toPage();
+    }
+
+    /**
+     * Fills a page by scanning one or more tables in keyset order.
+     *
+     * If the filter needs to be applied on the client-side, rows are fetched in chunks of growing size
+     * until either the page is full, there are no more rows or {@link Configuration#maxScannedRowsPerPage}
+     * rows have been scanned (leaving the page incomplete).
+     */
+    private final class PageScan
+    {
+        private final Host host;
+        private final String operator;
+        private final String sortDirection;
+        private final String filterCondition;
+        private final List<Object> filterParams;
+        private final Predicate<SyslogMessage> predicate; // NULL if all rows returned by the database match
+        private final int maxCount;
+        private final List<SyslogMessage> result = new ArrayList<>();
+
+        private int scanned;
+        private boolean complete = true;
+        // position of the last row scanned
+        private Long lastId;
+        private Long lastPartitionStart;
+
+        private PageScan(Host host, IFilterCallback callback, IAPI.PagingDirection direction, int maxCount)
+        {
+            this.host = host;
+            this.maxCount = maxCount;
+            switch (direction)
+            {
+                case FORWARD_IN_TIME:
+                    operator = ">";
+                    sortDirection = "ASC";
+                    break;
+                case BACKWARD_IN_TIME:
+                    operator = "<";
+                    sortDirection = "DESC";
+                    break;
+                default:
+                    throw new RuntimeException( "Unhandled switch/case: " + direction );
+            }
+            // rows that do not match the SQL part of the filter never leave the database
+            final CompiledFilter filter = callback.getCompiledFilter();
+            filterCondition = filter == null || filter.sqlCondition == null ? null : "("+filter.sqlCondition+")";
+            filterParams = filterCondition == null ? List.of() : filter.sqlParameters;
+            if ( filter != null ) {
+                predicate = filter.residual;
+            } else {
+                predicate = callback.matchesAll() ? null : callback.getPredicate();
+            }
+        }
+
+        /**
+         * Scans a table.
+         *
+         * @param table
+         * @param partitionStart start of the partition being scanned, NULL when scanning the parent table
+         * @param refLogEntryId only return messages with an ID less than (backward) / greater than (forward) this one, NULL to start at the newest/oldest message
+         * @param condition additional SQL condition or NULL
+         * @param conditionParam value for the placeholder in <code>condition</code>
+         * @return <code>true</code> if the page is done (full or too many rows scanned), <code>false</code> if the table has no more rows
+         */
+        private boolean scan(String table, Long partitionStart, Long refLogEntryId, String condition, Object conditionParam)
+        {
+            if ( predicate != null && scanned >= maxScannedRows )
+            {
+                // continue after the last row of the previous table
+                complete = false;
+                return true;
+            }
+            Long cursor = refLogEntryId;
+            int chunkSize = Math.max( maxCount, MIN_CHUNK_SIZE );
+            while ( true )
+            {
+                final int limit = predicate == null ? maxCount - result.size() : Math.min( chunkSize, maxScannedRows - scanned );
+                final PageCollector collector = query( table, cursor, condition, conditionParam, limit );
+                scanned += collector.rows;
+                if ( collector.lastId != null )
+                {
+                    lastId = collector.lastId;
+                    lastPartitionStart = partitionStart;
+                }
+                if ( result.size() >= maxCount ) {
+                    return true;
+                }
+                if ( collector.rows < limit ) {
+                    // no more rows
+                    return false;
+                }
+                cursor = collector.lastId;
+                if ( scanned >= maxScannedRows )
+                {
+                    if ( LOG.isDebugEnabled() ) {
+                        LOG.debug("scan(): Scanned "+scanned+" rows of "+host+" for "+result.size()+" matches, returning incomplete page at ID "+cursor);
+                    }
+                    complete = false;
+                    return true;
+                }
+                chunkSize = Math.min( chunkSize*2, MAX_CHUNK_SIZE );
+            }
+        }
+
+        private PageCollector query(String table, Long refLogEntryId, String condition, Object conditionParam, int limit)
+        {
+            final List<String> conditions = new ArrayList<>();
+            final List<Object> params = new ArrayList<>();
+            if ( refLogEntryId != null )
+            {
+                conditions.add( "entry_id "+operator+" ?" );
+                params.add( refLogEntryId );
+            }
+            if ( condition != null )
+            {
+                conditions.add( condition );
+                params.add( conditionParam );
+            }
+            if ( filterCondition != null )
+            {
+                conditions.add( filterCondition );
+                params.addAll( filterParams );
+            }
+            params.add( limit );
+            final String sql = "SELECT "+COLUMNS+" FROM "+table+
+                (conditions.isEmpty() ? "" : " WHERE "+String.join( " AND ", conditions ) )+
+                " ORDER BY entry_id "+sortDirection+" LIMIT ?";
+            final PageCollector collector = new PageCollector( host, predicate == null ? msg -> true : predicate, result, maxCount );
+            helper.execStreamingQuery( sql, collector, params.toArray() );
+            return collector;
+        }
+
+        private MessagePage toPage()
+        {
+            if ( complete ) {
+                return new MessagePage( result );
+            }
+            return new MessagePage( result, false, lastId, lastPartitionStart );
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,396 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.util.DateUtils;
+import de.codesourcery.logreceiver.util.Interval;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * DDL and naming for the per-host log tables.
+ *
+ * Each host has a parent table <code>logs_&lt;host&gt;</code> partitioned by <code>log_ts</code>,
+ * partitions cover {@link Configuration#hoursPerPartition} hours.
+ */
+public final class PartitionDDL
+{
+    private static final DateTimeFormatter PG_DATE_FORMAT = DateTimeFormatter.ofPattern( "yyyy-MM-dd HH:mm:ssZ" );
+
+    // does not start with PartitionNamePattern#TABLE_NAME_PREFIX so it cannot clash with a host's table
+    public static final String STAGING_TABLE = "staging_logs";
+
+    /**
+     * Text search vector of a message, full-text queries need to use this exact
+     * expression to be able to use the index created for {@link Host.SearchIndex#FULLTEXT}.
+     */
+    public static final String MSG_TSVECTOR = "to_tsvector('simple', coalesce(msg,''))";
+
+    /**
+     * Index types used for the <code>log_ts</code> and <code>entry_id</code> columns of each partition.
+     *
+     * Rows are appended in (roughly) timestamp and entry ID order, so BRIN indexes work well
+     * for range conditions while being much smaller and cheaper to maintain than B-tree indexes.
+     * B-tree indexes are required to efficiently ORDER BY a column and to look up single rows.
+     */
+    public enum IndexType
+    {
+        NONE,
+        BTREE,
+        BRIN;
+
+        private String sql() {
+            return name().toLowerCase();
+        }
+    }
+
+    private PartitionDDL() {
+    }
+
+    public static String parentTableName(Host host)
+    {
+        return PartitionNamePattern.TABLE_NAME_PREFIX+host.getSQLCompatibleHostName();
+    }
+
+    /**
+     * Returns the sequence <code>entry_id</code>s of a host are taken from.
+     *
+     * @param host
+     * @return
+     */
+    public static String sequenceName(Host host) {
+        return "seq_"+parentTableName(host);
+    }
+
+    public static String partitionName(Host host, Interval interval, Configuration config)
+    {
+        return new PartitionNamePattern( host.getSQLCompatibleHostName(), interval.start ).getTableName( config );
+    }
+
+    /**
+     * Returns the start of the partition a timestamp belongs to.
+     *
+     * Partitions start at multiples of {@link Configuration#hoursPerPartition} hours after midnight (UTC).
+     *
+     * @param epochSeconds
+     * @param config
+     * @return seconds since the epoch
+     */
+    public static long partitionStart(long epochSeconds, Configuration config)
+    {
+        final int hoursPerPartition = config.hoursPerPartition;
+        final long day = Math.floorDiv( epochSeconds, DateUtils.SECONDS_PER_DAY );
+        final int hour = Math.floorMod( epochSeconds, DateUtils.SECONDS_PER_DAY ) / 3600;
+        return day * DateUtils.SECONDS_PER_DAY + (hour / hoursPerPartition) * hoursPerPartition * 3600L;
+    }
+
+    public static Interval partitionInterval(long partitionStart, Configuration config)
+    {
+        final ZonedDateTime start = ZonedDateTime.ofInstant( Instant.ofEpochSecond( partitionStart ), DateUtils.UTC );
+        final ZonedDateTime end = start.plusHours( config.hoursPerPartition );
+        return new Interval(start,end);
+    }
+
+    /**
+     * Creates the parent table of a host and one of its partitions (if they do not exist yet).
+     *
+     * @param ds
+     * @param host
+     * @param partitionName
+     * @param interval
+     * @param config
+     * @throws SQLException
+     */
+    public static void createTables(DataSource ds, Host host, String partitionName, Interval interval, Configuration config) throws SQLException
+    {
+        try ( Connection con = ds.getConnection() )
+        {
+            con.setAutoCommit( false );
+            try ( final Statement stmt = con.createStatement() )
+            {
+                createParentTable( stmt, host );
+                createPartition( stmt, host, partitionName, interval, config );
+            } finally {
+                con.setAutoCommit( true );
+            }
+        }
+    }
+
+    public static void createParentTable(Statement stmt, Host host) throws SQLException
+    {
+        final String parentTable = parentTableName(host);
+
+        final String seqName = sequenceName(host);
+        stmt.execute( "CREATE SEQUENCE IF NOT EXISTS " + seqName );
+
+        stmt.execute( "CREATE TABLE IF NOT EXISTS " + parentTable + " (" +
+                // TODO: PostgreSQL 11 does not support UNIQUE constraints on columns
+                // that are not part of the partition key (see https://www.postgresql.org/message-id/979372cf-ac21-6b5e-7987-5033fe53c2c2%40lab.ntt.co.jp)
+                // ...maybe this gets fixed and then we can actually declare
+                // this column as unique
+                "entry_id bigint NOT NULL DEFAULT nextval('"+seqName+"')," +
+                columnDefinitions() +
+                ") PARTITION BY RANGE(log_ts)" );
+
+        // log_ts/entry_id indexes are created per partition, see createPartition(),
+        // search indexes in the background, see updateSearchIndexes()
+    }
+
+    /**
+     * Drops the B-tree indexes on <code>log_ts</code> and <code>entry_id</code> that older versions created
+     * on the parent tables.
+     *
+     * Indexes of a parent table get inherited by all of its partitions, so these would be maintained
+     * in addition to the per-partition indexes created by {@link #createPartition(Statement, Host, String, Interval, Configuration)}.
+     *
+     * @param stmt
+     * @return names of the dropped indexes
+     * @throws SQLException
+     */
+    public static List<String> dropLegacyParentIndexes(Statement stmt) throws SQLException
+    {
+        final String sql = "SELECT i.indexrelid::regclass::text FROM pg_catalog.pg_index i" +
+                " JOIN pg_catalog.pg_class t ON t.oid = i.indrelid" +
+                " JOIN pg_catalog.pg_attribute a ON a.attrelid = t.oid AND a.attnum = i.indkey[0]" +
+                " WHERE t.relkind = 'p'" +
+                " AND t.relname LIKE '"+PartitionNamePattern.TABLE_NAME_PREFIX.replace( "_", "\\_" )+"%'" +
+                " AND EXISTS (SELECT 1 FROM pg_catalog.pg_inherits h WHERE h.inhparent = t.oid)" +
+                " AND i.indnatts = 1 AND i.indexprs IS NULL" +
+                " AND a.attname IN ('log_ts','entry_id')" +
+                " AND t.relnamespace = (SELECT oid FROM pg_catalog.pg_namespace WHERE nspname = current_schema())";
+        final List<String> indexes = new ArrayList<>();
+        try ( ResultSet rs = stmt.executeQuery( sql ) )
+        {
+            while ( rs.next() ) {
+                indexes.add( rs.getString( 1 ) );
+            }
+        }
+        for ( String index : indexes ) {
+            // also drops the index of every partition that is attached to it
+            stmt.execute( "DROP INDEX IF EXISTS "+index );
+        }
+        return indexes;
+    }
+
+    /**
+     * Creates (or drops) the message search indexes of a host according to {@link Host#searchIndex}.
+     *
+     * Must not be called on the insert path. The index on the parent table gets created <code>ON ONLY</code> the parent,
+     * partitions that are not covered by it yet get indexed one at a time (newest first) using
+     * <code>CREATE INDEX CONCURRENTLY</code>, which does not block COPYs, and are attached afterwards.
+     * Partitions created later on get the index right away.
+     *
+     * @param con connection in auto-commit mode
+     * @param host
+     * @param cancel
+     * @return <code>false</code> if the host has no tables yet or indexing got cancelled
+     * @throws SQLException
+     */
+    public static boolean updateSearchIndexes(Connection con, Host host, BooleanSupplier cancel) throws SQLException
+    {
+        final String parentTable = parentTableName(host);
+        try ( Statement stmt = con.createStatement() )
+        {
+            if ( ! exists( con, parentTable ) ) {
+                return false;
+            }
+            if ( host.searchIndex.trigram ) {
+                stmt.execute( "CREATE EXTENSION IF NOT EXISTS pg_trgm" );
+            }
+            return updateSearchIndex( con, stmt, parentTable, "_msg_trgm", host.searchIndex.trigram, "gin (msg gin_trgm_ops)", cancel ) &&
+                   updateSearchIndex( con, stmt, parentTable, "_msg_fts", host.searchIndex.fullText, "gin ("+MSG_TSVECTOR+")", cancel );
+        }
+    }
+
+    private static boolean updateSearchIndex(Connection con, Statement stmt, String parentTable, String suffix,
+                                             boolean enabled, String definition, BooleanSupplier cancel) throws SQLException
+    {
+        final String parentIndex = parentTable+suffix;
+        if ( ! enabled )
+        {
+            stmt.execute( "DROP INDEX IF EXISTS "+parentIndex );
+            return true;
+        }
+        stmt.execute( "CREATE INDEX IF NOT EXISTS "+parentIndex+" ON ONLY "+parentTable+" USING "+definition );
+        for ( String partition : findPartitionsNotCoveredBy( con, parentTable, parentIndex ) )
+        {
+            if ( cancel.getAsBoolean() ) {
+                return false;
+            }
+            final String index = partition+suffix;
+            if ( isInvalidIndex( con, index ) ) {
+                // left behind by an interrupted CREATE INDEX CONCURRENTLY
+                stmt.execute( "DROP INDEX CONCURRENTLY IF EXISTS "+index );
+            }
+            stmt.execute( "CREATE INDEX CONCURRENTLY IF NOT EXISTS "+index+" ON "+partition+" USING "+definition );
+            stmt.execute( "ALTER INDEX "+parentIndex+" ATTACH PARTITION "+index );
+        }
+        return true;
+    }
+
+    private static boolean exists(Connection con, String relation) throws SQLException
+    {
+        try ( PreparedStatement stmt = con.prepareStatement( "SELECT to_regclass(?) IS NOT NULL" ) )
+        {
+            stmt.setString( 1, relation );
+            try ( ResultSet rs = stmt.executeQuery() )
+            {
+                return rs.next() && rs.getBoolean( 1 );
+            }
+        }
+    }
+
+    private static boolean isInvalidIndex(Connection con, String index) throws SQLException
+    {
+        try ( PreparedStatement stmt = con.prepareStatement( "SELECT NOT indisvalid FROM pg_catalog.pg_index WHERE indexrelid = to_regclass(?)" ) )
+        {
+            stmt.setString( 1, index );
+            try ( ResultSet rs = stmt.executeQuery() )
+            {
+                return rs.next() && rs.getBoolean( 1 );
+            }
+        }
+    }
+
+    // partitions that have no index attached to the parent's index yet, newest first
+    private static List<String> findPartitionsNotCoveredBy(Connection con, String parentTable, String parentIndex) throws SQLException
+    {
+        final String sql = "SELECT c.relname FROM pg_catalog.pg_inherits h JOIN pg_catalog.pg_class c ON c.oid = h.inhrelid" +
+                " WHERE h.inhparent = to_regclass(?) AND c.relkind = 'r'" +
+                " AND NOT EXISTS (SELECT 1 FROM pg_catalog.pg_inherits ih JOIN pg_catalog.pg_index x ON x.indexrelid = ih.inhrelid" +
+                " WHERE ih.inhparent = to_regclass(?) AND x.indrelid = c.oid)" +
+                " ORDER BY c.relname DESC";
+        final List<String> result = new ArrayList<>();
+        try ( PreparedStatement stmt = con.prepareStatement( sql ) )
+        {
+            stmt.setString( 1, parentTable );
+            stmt.setString( 2, parentIndex );
+            try ( ResultSet rs = stmt.executeQuery() )
+            {
+                while ( rs.next() ) {
+                    result.add( rs.getString( 1 ) );
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates a partition (if it does not exist yet) along with its <code>log_ts</code> and <code>entry_id</code> indexes.
+     *
+     * Partitions whose interval has already ended get the indexes for sealed partitions right away.
+     *
+     * @param stmt
+     * @param host
+     * @param partitionName
+     * @param interval
+     * @param config
+     * @throws SQLException
+     * @see Configuration#logTsIndex
+     * @see Configuration#entryIdIndex
+     */
+    public static void createPartition(Statement stmt, Host host, String partitionName, Interval interval, Configuration config) throws SQLException
+    {
+        stmt.execute("CREATE TABLE IF NOT EXISTS "+ partitionName +" PARTITION OF "+parentTableName(host)+" FOR VALUES FROM " +
+                     "('"+PG_DATE_FORMAT.format( interval.start )+"') TO "+
+                     "('"+PG_DATE_FORMAT.format( interval.end)+"')");
+
+        if ( System.currentTimeMillis()/1000 >= interval.endEpochSeconds ) {
+            sealPartition( stmt, partitionName, config );
+        } else {
+            createIndex( stmt, partitionName, "log_ts", config.logTsIndex );
+            // TODO: this is actually a UNIQUE index but PG11 does not support unique indices for partitioned tables
+            // when the column is not part of the partitioning criteria
+            createIndex( stmt, partitionName, "entry_id", config.entryIdIndex );
+        }
+    }
+
+    /**
+     * Switches the indexes of a partition whose interval has ended
+     * to the types configured for sealed partitions.
+     *
+     * The new index gets built before the index used while the partition was receiving data is dropped.
+     *
+     * @param stmt
+     * @param partitionName
+     * @param config
+     * @throws SQLException
+     * @see Configuration#sealedLogTsIndex
+     * @see Configuration#sealedEntryIdIndex
+     */
+    public static void sealPartition(Statement stmt, String partitionName, Configuration config) throws SQLException
+    {
+        sealIndex( stmt, partitionName, "log_ts", config.logTsIndex, config.sealedLogTsIndex );
+        sealIndex( stmt, partitionName, "entry_id", config.entryIdIndex, config.sealedEntryIdIndex );
+    }
+
+    private static void sealIndex(Statement stmt, String partitionName, String column, IndexType hot, IndexType sealed) throws SQLException
+    {
+        if ( sealed == null ) {
+            createIndex( stmt, partitionName, column, hot );
+            return;
+        }
+        createIndex( stmt, partitionName, column, sealed );
+        if ( hot != sealed && hot != IndexType.NONE ) {
+            stmt.execute( "DROP INDEX IF EXISTS "+indexName( partitionName, column, hot ) );
+        }
+    }
+
+    private static void createIndex(Statement stmt, String partitionName, String column, IndexType type) throws SQLException
+    {
+        switch( type )
+        {
+            case NONE:
+                return;
+            case BTREE:
+            case BRIN:
+                stmt.execute( "CREATE INDEX IF NOT EXISTS "+indexName( partitionName, column, type )+" ON "+partitionName+" USING "+type.sql()+" ("+column+")" );
+                return;
+            default:
+                throw new RuntimeException("Unhandled switch/case: "+type);
+        }
+    }
+
+    // index names include the type so switching index types never clashes with an existing index
+    private static String indexName(String partitionName, String column, IndexType type) {
+        return partitionName+"_"+column+"_"+type.sql();
+    }
+
+    /**
+     * Creates the staging table that receives rows of all hosts.
+     *
+     * The table is UNLOGGED (not crash-safe, rows not moved yet are lost when PostgreSQL crashes).
+     *
+     * @param stmt
+     * @throws SQLException
+     */
+    public static void createStagingTable(Statement stmt) throws SQLException
+    {
+        stmt.execute( "CREATE UNLOGGED TABLE IF NOT EXISTS "+STAGING_TABLE+" ("+columnDefinitions()+")" );
+    }
+
+    // columns written by COPY, see PostgreSQLStorage#COPY_COLUMNS
+    private static String columnDefinitions()
+    {
+        return "priority smallint NOT NULL," +
+               "log_ts timestamptz NOT NULL," +
+               "log_ts_fraction integer NOT NULL," +
+               "host_id bigint NOT NULL," +
+               "app_name text DEFAULT NULL," +
+               "proc_id text DEFAULT NULL," +
+               "msg_id text DEFAULT NULL," +
+               "params jsonb DEFAULT NULL," +
+               "msg text DEFAULT NULL";
+    }
+}
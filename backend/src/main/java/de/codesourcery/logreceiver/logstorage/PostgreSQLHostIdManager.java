@@ -25,36 +25,57 @@ public class PostgreSQLHostIdManager extends InMemoryHostIdManager
     private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( PostgreSQLHostIdManager.class.getName() );
 
     public static final String HOSTS_TABLE = "log_hosts";
-    private static final String PROJECTION_COLUMNS = "host_id,ip,name,data_retention_hours";
-
-    public static final RowMapper<Host> ROW_MAPPER = (rs,idx) -> {
-        final Host h = new Host();
-        h.id = rs.getLong("host_id");
-        h.hostName = rs.getString("name");
-        h.dataRetentionTime = Duration.ofHours(  rs.getInt( "data_retention_hours") );
-        final String ip = rs.getString("ip");
-        try
-        {
-            // TODO: Potential for speeding things up as we know the string is definitely not a hostname
-            h.ip = InetAddress.getByName(ip);
-        }
-        catch (UnknownHostException e)
-        {
-            // should never happen as we're parsing a literal IP
-            throw new RuntimeException(e);
-        }
-        return h;
-    };
+    private static final String PROJECTION_COLUMNS = "host_id,ip,name,data_retention_hours,search_index";
+
+    /**
+     * Maps a row of the hosts table.
+     *
+     * @param config used to resolve settings of hosts that were created before the corresponding columns existed
+     * @return
+     */
+    public static RowMapper<Host> rowMapper(Configuration config)
+    {
+        return (rs,idx) -> {
+            final Host h = new Host();
+            h.id = rs.getLong("host_id");
+            h.hostName = rs.getString("name");
+            h.dataRetentionTime = Duration.ofHours(  rs.getInt( "data_retention_hours") );
+            h.searchIndex = searchIndex( rs, config );
+            final String ip = rs.getString("ip");
+            try
+            {
+                // TODO: Potential for speeding things up as we know the string is definitely not a hostname
+                h.ip = InetAddress.getByName(ip);
+            }
+            catch (UnknownHostException e)
+            {
+                // should never happen as we're parsing a literal IP
+                throw new RuntimeException(e);
+            }
+            return h;
+        };
+    }
 
-    public static final ResultSetExtractor<List<Host>> MAPPER = rs ->
+    public static ResultSetExtractor<List<Host>> mapper(Configuration config)
     {
-        final List<Host> result = new ArrayList<>();
-        while ( rs.next() )
+        final RowMapper<Host> rowMapper = rowMapper( config );
+        return rs ->
         {
-            result.add(ROW_MAPPER.mapRow( rs,0 ) );
-        }
-        return result;
-    };
+            final List<Host> result = new ArrayList<>();
+            while ( rs.next() )
+            {
+                result.add( rowMapper.mapRow( rs,0 ) );
+            }
+            return result;
+        };
+    }
+
+    // hosts created before the search_index column existed use the configured default
+    private static Host.SearchIndex searchIndex(ResultSet rs, Configuration config) throws SQLException
+    {
+        final String searchIndex = rs.getString( "search_index" );
+        return searchIndex == null ? config.defaultSearchIndex : Host.SearchIndex.valueOf( searchIndex );
+    }
 
     private final DataSource ds;
 
@@ -73,16 +94,18 @@ public class PostgreSQLHostIdManager extends InMemoryHostIdManager
         host.ip = ip;
         host.hostName = HostName;
         host.dataRetentionTime = config.defaultDataRetentionTime;
+        host.searchIndex = config.defaultSearchIndex;
 
         try ( Connection con = ds.getConnection() )
         {
-            final String sql = "INSERT INTO "+HOSTS_TABLE+" (ip,name,data_retention_hours) VALUES (?::inet,?,?)";
+            final String sql = "INSERT INTO "+HOSTS_TABLE+" (ip,name,data_retention_hours,search_index) VALUES (?::inet,?,?,?)";
             try (PreparedStatement stmt = con.prepareStatement( sql, Statement.RETURN_GENERATED_KEYS ) )
             {
                 final String ipAsString = ip.getHostAddress();
                 stmt.setObject( 1, ipAsString);
                 stmt.setString( 2, HostName );
                 stmt.setInt( 3, (int) config.defaultDataRetentionTime.toHours() );
+                stmt.setString( 4, config.defaultSearchIndex.name() );
                 stmt.executeUpdate();
                 try ( ResultSet rs = stmt.getGeneratedKeys() ) {
                     if ( ! rs.next() ) {
@@ -103,6 +126,22 @@ public class PostgreSQLHostIdManager extends InMemoryHostIdManager
         }
     }
 
+    @Override
+    protected void storeSearchIndex(Host host, Host.SearchIndex searchIndex)
+    {
+        try ( Connection con = ds.getConnection() ;
+              PreparedStatement stmt = con.prepareStatement( "UPDATE "+HOSTS_TABLE+" SET search_index=? WHERE host_id=?" ) )
+        {
+            stmt.setString( 1, searchIndex.name() );
+            stmt.setLong( 2, host.id );
+            stmt.executeUpdate();
+        }
+        catch(SQLException e) {
+            LOG.error("storeSearchIndex(): Caught ",e);
+            throw new RuntimeException( e );
+        }
+    }
+
     private void loadTable() throws SQLException {
 
         try ( Connection con = ds.getConnection() )
@@ -139,6 +178,7 @@ public class PostgreSQLHostIdManager extends InMemoryHostIdManager
                                 throw new RuntimeException(e);
                             }
                             host.hostName = rs.getString( "name" );
+                            host.searchIndex = searchIndex( rs, config );
 
                             super.hostsById.put( hostId, host );
                             super.hostsByIP.put( host.ip, host );
@@ -165,7 +205,10 @@ public class PostgreSQLHostIdManager extends InMemoryHostIdManager
                               "host_id bigint PRIMARY KEY DEFAULT nextval('seq_log_hosts')," +
                               "ip inet UNIQUE NOT NULL," +
                               "name text DEFAULT NULL," +
-                              "data_retention_hours integer NOT NULL)");
+                              "data_retention_hours integer NOT NULL," +
+                              "search_index text DEFAULT NULL)");
+                // tables created by older versions
+                stmt.execute( "ALTER TABLE "+HOSTS_TABLE+" ADD COLUMN IF NOT EXISTS search_index text DEFAULT NULL");
 
             } finally {
                 con.setAutoCommit( true );
@@ -0,0 +1,74 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Handles messages whose timestamp is older than the data retention time of their host,
+ * before they get turned into COPY rows.
+ *
+ * Instances are NOT thread-safe (the same as the writers they delegate to).
+ */
+public class RetentionFilter implements ILogStorage
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( RetentionFilter.class.getName() );
+
+    /**
+     * What to do with a message that would get deleted by the next partition cleanup anyway.
+     */
+    public enum Policy
+    {
+        /**
+         * Store the message with its original timestamp.
+         */
+        KEEP,
+        /**
+         * Discard the message.
+         */
+        DROP,
+        /**
+         * Store the message with the time it was received at.
+         */
+        CLAMP
+    }
+
+    private final ILogStorage delegate;
+    private final Policy policy;
+    private final AtomicLong expiredMessages;
+
+    public RetentionFilter(ILogStorage delegate, Configuration config, AtomicLong expiredMessages)
+    {
+        this.delegate = delegate;
+        this.policy = config.expiredMessagePolicy;
+        this.expiredMessages = expiredMessages;
+    }
+
+    @Override
+    public void store(SyslogMessage message)
+    {
+        if ( policy != Policy.KEEP && message.host != null && message.host.dataRetentionTime != null && message.hasTimestamp() )
+        {
+            final long now = System.currentTimeMillis() / 1000;
+            if ( message.epochSeconds < now - message.host.dataRetentionTime.getSeconds() )
+            {
+                expiredMessages.incrementAndGet();
+                switch( policy )
+                {
+                    case DROP:
+                        if ( LOG.isDebugEnabled() ) {
+                            LOG.debug("store(): Dropping expired message of "+message.host+" @ "+message.getTimestamp());
+                        }
+                        return;
+                    case CLAMP:
+                        message.setTimestamp( now, 0, message.offsetSeconds );
+                        break;
+                    default:
+                        throw new RuntimeException("Unhandled switch/case: "+policy);
+                }
+            }
+        }
+        delegate.store( message );
+    }
+}
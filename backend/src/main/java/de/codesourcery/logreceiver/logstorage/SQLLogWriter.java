@@ -1,18 +1,17 @@
 package de.codesourcery.logreceiver.logstorage;
 
-import de.codesourcery.logreceiver.entity.Host;
 import de.codesourcery.logreceiver.entity.SDParam;
 import de.codesourcery.logreceiver.entity.SyslogMessage;
 import de.codesourcery.logreceiver.storage.IHostManager;
+import de.codesourcery.logreceiver.util.DateUtils;
 
-import java.time.ZonedDateTime;
 import java.util.Comparator;
 import java.util.stream.Stream;
 
 public class SQLLogWriter implements ILogStorage, SyslogMessage.TZVisitor<Void>
 {
     private static final String SQL_NULL = "null";
-    private static final char COL_DELIMITER = '|';
+    static final char COL_DELIMITER = '|';
     public static final char ROW_DELIMITER = '\n';
 
     private final StringBuilder buffer = new StringBuilder();
@@ -20,8 +19,6 @@ public class SQLLogWriter implements ILogStorage, SyslogMessage.TZVisitor<Void>
     private final ISQLLogStorage storage;
     private final IHostManager hostIdResolver;
 
-    private ZonedDateTime timestamp;
-
     private int currentField;
 
     @Override
@@ -54,6 +51,9 @@ public class SQLLogWriter implements ILogStorage, SyslogMessage.TZVisitor<Void>
     @Override
     public void store(SyslogMessage message)
     {
+        if ( ! message.hasTimestamp() ) {
+            throw new IllegalArgumentException( "Message has no timestamp" );
+        }
         beginMessage();
         setPriority(message.priority);
         setTimestamp(message);
@@ -63,7 +63,7 @@ public class SQLLogWriter implements ILogStorage, SyslogMessage.TZVisitor<Void>
         setMsgId(message.msgId);
         setParams(message);
         setMessage(message.message);
-        endMessage(message.host);
+        endMessage(message);
     }
 
     private static final Field[] fields = Stream.of( Field.values() ).sorted( Comparator.comparingInt(a -> a.index ) ).toArray( Field[]::new );
@@ -78,17 +78,16 @@ public class SQLLogWriter implements ILogStorage, SyslogMessage.TZVisitor<Void>
         if ( currentField != 0 || buffer.length() != 0 ) {
             throw new IllegalStateException( "endMessage() not called?" );
         }
-        timestamp = null;
     }
 
-    public void endMessage(Host host)
+    public void endMessage(SyslogMessage message)
     {
         if ( currentField != fields.length )
         {
             writeNullValues( fields.length - currentField );
         }
 
-        storage.store( host, timestamp, buffer.toString() );
+        storage.store( message, buffer.toString() );
         currentField = 0;
         buffer.setLength( 0 );
     }
@@ -158,22 +157,25 @@ public class SQLLogWriter implements ILogStorage, SyslogMessage.TZVisitor<Void>
             buffer.append(COL_DELIMITER);
         }
 
-        timestamp = message.timestamp;
+        // local date-time in the message's zone offset
+        final long localSeconds = message.epochSeconds + message.offsetSeconds;
+        final int date = DateUtils.toDate( Math.floorDiv( localSeconds, DateUtils.SECONDS_PER_DAY ) );
+        final int secondOfDay = Math.floorMod( localSeconds, DateUtils.SECONDS_PER_DAY );
 
-        buffer.append( timestamp.getYear() ).append('-');
-        buffer.append( timestamp.getMonthValue() ).append('-');
-        buffer.append( timestamp.getDayOfMonth() ).append(' ');
+        buffer.append( DateUtils.year( date ) ).append('-');
+        buffer.append( DateUtils.month( date ) ).append('-');
+        buffer.append( DateUtils.dayOfMonth( date ) ).append(' ');
 
-        buffer.append( timestamp.getHour() ).append(':');
-        buffer.append( timestamp.getMinute() ).append(':');
-        buffer.append( timestamp.getSecond() );
+        buffer.append( secondOfDay / 3600 ).append(':');
+        buffer.append( (secondOfDay / 60) % 60 ).append(':');
+        buffer.append( secondOfDay % 60 );
 
         message.visitTZOffset(this);
         currentField++;
 
         advanceTo( Field.TIMESTAMP_FRACTION );
         buffer.append(COL_DELIMITER);
-        buffer.append( timestamp.getNano() );
+        buffer.append( message.nanos );
         currentField++;
     }
 
@@ -0,0 +1,249 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.filtering.FilterCallbackManager;
+import de.codesourcery.logreceiver.storage.IHostManager;
+import de.codesourcery.logreceiver.util.EternalThread;
+import de.codesourcery.logreceiver.util.Interval;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the rows of all hosts in a single UNLOGGED staging table and periodically moves
+ * them to the per-host partitioned tables using <code>INSERT ... SELECT</code>.
+ *
+ * Compared to {@link PostgreSQLStorage} this trades a second write of each row for
+ * far fewer (and much larger) COPY batches when there are many low-volume hosts.
+ *
+ * @see Configuration#useStagingTable
+ */
+public class StagingLogStorage implements ISQLLogStorage, IBinaryLogStorage
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( StagingLogStorage.class.getName() );
+
+    private final DataSource ds;
+    private final IHostManager hostManager;
+    private final Configuration config;
+    private final FilterCallbackManager callbackHelper;
+
+    private final CopyBatcher batcher;
+    private final EternalThread mover;
+
+    // partitions that have been created already, entries get removed when partitions are dropped
+    private final Set<String> knownPartitions = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong movedRows = new AtomicLong();
+
+    private static final class HostRange
+    {
+        public final long hostId;
+        public final long minEpochSeconds;
+        public final long maxEpochSeconds;
+
+        private HostRange(long hostId, long minEpochSeconds, long maxEpochSeconds)
+        {
+            this.hostId = hostId;
+            this.minEpochSeconds = minEpochSeconds;
+            this.maxEpochSeconds = maxEpochSeconds;
+        }
+    }
+
+    public StagingLogStorage(DataSource ds, IHostManager hostManager, Configuration config,
+                             FilterCallbackManager callbackHelper, FlushScheduler flushScheduler, Journal journal) throws SQLException
+    {
+        this.ds = ds;
+        this.hostManager = hostManager;
+        this.config = config;
+        this.callbackHelper = callbackHelper;
+        try ( Connection con = ds.getConnection() ; Statement stmt = con.createStatement() )
+        {
+            PartitionDDL.createStagingTable( stmt );
+        }
+        this.batcher = new CopyBatcher( PartitionDDL.STAGING_TABLE, ds, config, flushScheduler, journal, () -> {} );
+        this.mover = new EternalThread( "staging-mover", () -> this::moveRows );
+        mover.startThread();
+    }
+
+    @Override
+    public void store(SyslogMessage message, String sql)
+    {
+        if ( ! batcher.append( message.host.id, sql ) ) {
+            LOG.fatal("store(): Shutting down, lost message for "+ message.host +" @ "+message.getTimestamp());
+        }
+    }
+
+    @Override
+    public void store(SyslogMessage message, CopyBuffer row)
+    {
+        if ( ! batcher.append( message.host.id, row ) ) {
+            LOG.fatal("store(): Shutting down, lost message for "+ message.host +" @ "+message.getTimestamp());
+        }
+    }
+
+    private void moveRows(EternalThread.Context ctx) throws SQLException
+    {
+        while ( ! ctx.isCancelled() )
+        {
+            if ( ! ctx.sleep( config.stagingMoveInterval ) ) {
+                break;
+            }
+            moveRows();
+        }
+        // staging buffer has been flushed before the thread got stopped
+        moveRows();
+    }
+
+    private void moveRows() throws SQLException
+    {
+        try ( Connection con = ds.getConnection() )
+        {
+            for ( HostRange range : findHostRanges( con ) )
+            {
+                final Host host = hostManager.getHost( range.hostId );
+                if ( host == null )
+                {
+                    LOG.error("moveRows(): Discarding rows of unknown host #"+range.hostId);
+                    try ( PreparedStatement stmt = con.prepareStatement( "DELETE FROM "+PartitionDDL.STAGING_TABLE+" WHERE host_id=?" ) )
+                    {
+                        stmt.setLong( 1, range.hostId );
+                        stmt.executeUpdate();
+                    }
+                    continue;
+                }
+                try
+                {
+                    createPartitions( con, host, range );
+                    moveRows( con, host, range );
+                    callbackHelper.markDirty( host.ip );
+                }
+                catch(SQLException e)
+                {
+                    // don't let a single host stall the others
+                    LOG.error("moveRows(): Failed to move rows of "+host,e);
+                    if ( e.getMessage() != null && e.getMessage().contains( "no partition of relation" ) ) {
+                        forgetPartitions( host, range );
+                    }
+                }
+            }
+        }
+    }
+
+    // makes createPartitions() (re-)create the partitions of a range the next time
+    private void forgetPartitions(Host host, HostRange range)
+    {
+        long start = PartitionDDL.partitionStart( range.minEpochSeconds, config );
+        while ( start <= range.maxEpochSeconds )
+        {
+            final Interval interval = PartitionDDL.partitionInterval( start, config );
+            knownPartitions.remove( PartitionDDL.partitionName( host, interval, config ) );
+            start = interval.end.toEpochSecond();
+        }
+    }
+
+    /**
+     * Invoked after a partition has been dropped, so it gets created again if rows for it show up.
+     *
+     * @param partitionName
+     */
+    public void partitionDropped(String partitionName) {
+        knownPartitions.remove( partitionName );
+    }
+
+    private List<HostRange> findHostRanges(Connection con) throws SQLException
+    {
+        final String sql = "SELECT host_id, floor(extract(epoch FROM min(log_ts))), floor(extract(epoch FROM max(log_ts)))" +
+                           " FROM "+PartitionDDL.STAGING_TABLE+" GROUP BY host_id";
+        final List<HostRange> result = new ArrayList<>();
+        try ( Statement stmt = con.createStatement() ; ResultSet rs = stmt.executeQuery( sql ) )
+        {
+            while ( rs.next() ) {
+                result.add( new HostRange( rs.getLong( 1 ), rs.getLong( 2 ), rs.getLong( 3 ) ) );
+            }
+        }
+        return result;
+    }
+
+    private void createPartitions(Connection con, Host host, HostRange range) throws SQLException
+    {
+        long start = PartitionDDL.partitionStart( range.minEpochSeconds, config );
+        while ( start <= range.maxEpochSeconds )
+        {
+            final Interval interval = PartitionDDL.partitionInterval( start, config );
+            final String partitionName = PartitionDDL.partitionName( host, interval, config );
+            if ( knownPartitions.add( partitionName ) )
+            {
+                LOG.info("createPartitions(): Creating partition '"+partitionName+"' for "+host);
+                try ( Statement stmt = con.createStatement() )
+                {
+                    PartitionDDL.createParentTable( stmt, host );
+                    PartitionDDL.createPartition( stmt, host, partitionName, interval, config );
+                }
+                catch(SQLException e)
+                {
+                    knownPartitions.remove( partitionName );
+                    throw e;
+                }
+            }
+            start = interval.end.toEpochSecond();
+        }
+    }
+
+    private void moveRows(Connection con, Host host, HostRange range) throws SQLException
+    {
+        // rows outside of the range might need partitions that do not exist yet, they get moved next time
+        final String columns = PostgreSQLStorage.COPY_COLUMNS;
+        final String sql = "WITH moved AS (DELETE FROM "+PartitionDDL.STAGING_TABLE+
+                           " WHERE host_id=? AND log_ts >= to_timestamp(?) AND log_ts < to_timestamp(?) RETURNING "+columns+")"+
+                           " INSERT INTO "+PartitionDDL.parentTableName( host )+"("+columns+") SELECT "+columns+" FROM moved";
+
+        con.setAutoCommit( false );
+        try ( PreparedStatement stmt = con.prepareStatement( sql ) )
+        {
+            stmt.setLong( 1, host.id );
+            stmt.setLong( 2, range.minEpochSeconds );
+            stmt.setLong( 3, range.maxEpochSeconds + 1 );
+            final int count = stmt.executeUpdate();
+            con.commit();
+            movedRows.addAndGet( count );
+            if ( LOG.isDebugEnabled() ) {
+                LOG.debug("moveRows(): Moved "+count+" rows of "+host);
+            }
+        }
+        catch(SQLException e)
+        {
+            con.rollback();
+            throw e;
+        }
+        finally
+        {
+            con.setAutoCommit( true );
+        }
+    }
+
+    public long getMovedRows() {
+        return movedRows.get();
+    }
+
+    public CopyBatcher.Statistics getStatistics() {
+        return batcher.getStatistics();
+    }
+
+    public void shutdown() throws InterruptedException
+    {
+        LOG.info("shutdown(): Shutting down");
+        batcher.shutdown();
+        mover.stopThread();
+    }
+}
@@ -0,0 +1,48 @@
+package de.codesourcery.logreceiver.parsing;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Re-usable input stream that reads the bytes between a buffer's position and limit.
+ */
+final class ByteBufferInputStream extends InputStream
+{
+    private ByteBuffer buffer;
+
+    public ByteBufferInputStream reset(ByteBuffer buffer)
+    {
+        this.buffer = buffer;
+        return this;
+    }
+
+    @Override
+    public int read()
+    {
+        if ( ! buffer.hasRemaining() ) {
+            return -1;
+        }
+        return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+    {
+        if ( len == 0 ) {
+            return 0;
+        }
+        final int remaining = buffer.remaining();
+        if ( remaining == 0 ) {
+            return -1;
+        }
+        final int count = Math.min( remaining, len );
+        buffer.get( b, off, count );
+        return count;
+    }
+
+    @Override
+    public int available()
+    {
+        return buffer.remaining();
+    }
+}
@@ -2,8 +2,27 @@ package de.codesourcery.logreceiver.parsing;
 
 import java.io.InputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public interface ILogParser
 {
     void parse(InetAddress sender,InputStream in);
+
+    /**
+     * Parse a log message.
+     *
+     * @param sender
+     * @param data message bytes between the buffer's position and limit, the buffer's position
+     *             is undefined after this method returns
+     */
+    void parse(InetAddress sender, ByteBuffer data);
+
+    /**
+     * Returns the counters of this parser's header token cache.
+     *
+     * @return statistics, {@link StringInternTable.Statistics#NONE} if this parser does not cache tokens
+     */
+    default StringInternTable.Statistics getInternStatistics() {
+        return StringInternTable.Statistics.NONE;
+    }
 }
@@ -52,6 +52,11 @@ public class JDBCHelper
         return template.update( sql, arguments );
     }
 
+    public int[] executeBatch(String sql, List<Object[]> arguments)
+    {
+        return template.batchUpdate( sql, arguments );
+    }
+
     private PreparedStatement applyParameter(PreparedStatement stmt,Object... arguments) throws SQLException
     {
         if ( arguments != null )
@@ -1,21 +1,51 @@
 package de.codesourcery.logreceiver.parsing;
 
-import de.codesourcery.logreceiver.logstorage.ILogStorage;
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.logstorage.LogWriterFactory;
 import de.codesourcery.logreceiver.storage.IHostManager;
 
 public class LogParserFactory
 {
-    private final ILogStorage writer;
+    public enum ParserType
+    {
+        /**
+         * {@link RFC5424Parser}, decodes the whole packet to characters before parsing.
+         */
+        RFC5424_STREAM,
+        /**
+         * {@link RFC5424ByteParser}, parses the raw packet bytes.
+         */
+        RFC5424_BYTES
+    }
+
+    private final LogWriterFactory writerFactory;
     private final IHostManager hostManager;
+    private final ParserType parserType;
+    private final int internTableSize;
 
-    public LogParserFactory(ILogStorage writer, IHostManager hostManager)
+    public LogParserFactory(LogWriterFactory writerFactory, IHostManager hostManager, Configuration config)
     {
-        this.writer = writer;
+        this.writerFactory = writerFactory;
         this.hostManager = hostManager;
+        this.parserType = config.parserType;
+        this.internTableSize = config.headerInternTableSize;
     }
 
+    /**
+     * Creates a new parser (with its own log writer).
+     *
+     * @return
+     */
     public ILogParser get()
     {
-        return new RFC5424Parser(hostManager,writer);
+        switch( parserType )
+        {
+            case RFC5424_STREAM:
+                return new RFC5424Parser(hostManager,writerFactory.get(),internTableSize);
+            case RFC5424_BYTES:
+                return new RFC5424ByteParser(hostManager,writerFactory.get(),internTableSize);
+            default:
+                throw new RuntimeException("Unhandled switch/case: "+parserType);
+        }
     }
 }
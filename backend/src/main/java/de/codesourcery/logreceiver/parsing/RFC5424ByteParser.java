@@ -0,0 +1,453 @@
+package de.codesourcery.logreceiver.parsing;
+
+import de.codesourcery.logreceiver.entity.SDParam;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.logstorage.ILogStorage;
+import de.codesourcery.logreceiver.storage.IHostManager;
+import de.codesourcery.logreceiver.util.DateUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.IntPredicate;
+
+/**
+ * RFC5424 parser that works directly on the received bytes.
+ *
+ * Header fields are restricted to US-ASCII so they can be scanned byte-by-byte, only
+ * the MSG part and SD-PARAM values are decoded as UTF-8. Produces exactly the same
+ * {@link SyslogMessage}s (and errors) as {@link RFC5424Parser}.
+ */
+public class RFC5424ByteParser implements ILogParser
+{
+    private static final org.apache.logging.log4j.Logger LOG = org.apache.logging.log4j.LogManager.getLogger( RFC5424ByteParser.class.getName() );
+
+    private static final byte QUOTE = 34;
+
+    private final ILogStorage logStorage;
+    private final IHostManager hostManager;
+
+    private final SyslogMessage message = new SyslogMessage();
+
+    private final StringInternTable internTable;
+
+    // scratch space for direct buffers and input streams
+    private byte[] scratch = new byte[2048];
+
+    private byte[] data;
+    private int start;
+    private int ptr;
+    private int end;
+
+    private InetAddress currentIP;
+
+    public RFC5424ByteParser(IHostManager hostManager, ILogStorage logWriter) {
+        this( hostManager, logWriter, StringInternTable.DEFAULT_CAPACITY );
+    }
+
+    public RFC5424ByteParser(IHostManager hostManager, ILogStorage logWriter, int internTableSize) {
+        this.logStorage = logWriter;
+        this.hostManager = hostManager;
+        this.internTable = new StringInternTable( internTableSize );
+    }
+
+    @Override
+    public StringInternTable.Statistics getInternStatistics() {
+        return internTable.getStatistics();
+    }
+
+    @Override
+    public void parse(InetAddress sender, InputStream in)
+    {
+        int len = 0;
+        try
+        {
+            while ( true )
+            {
+                if ( len == scratch.length ) {
+                    final byte[] tmp = new byte[ scratch.length*2 ];
+                    System.arraycopy( scratch, 0, tmp, 0, len );
+                    scratch = tmp;
+                }
+                final int read = in.read( scratch, len, scratch.length - len );
+                if ( read < 0 ) {
+                    break;
+                }
+                len += read;
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException( e );
+        }
+        parse( sender, scratch, 0, len );
+    }
+
+    @Override
+    public void parse(InetAddress sender, ByteBuffer buffer)
+    {
+        final int len = buffer.remaining();
+        if ( buffer.hasArray() )
+        {
+            parse( sender, buffer.array(), buffer.arrayOffset() + buffer.position(), len );
+        }
+        else
+        {
+            if ( scratch.length < len ) {
+                scratch = new byte[ len ];
+            }
+            buffer.get( scratch, 0, len );
+            parse( sender, scratch, 0, len );
+        }
+        buffer.position( buffer.limit() );
+    }
+
+    private void parse(InetAddress sender, byte[] data, int offset, int len)
+    {
+        this.data = data;
+        this.start = offset;
+        this.ptr = offset;
+        this.end = offset + len;
+        message.reset();
+        currentIP = sender;
+        try
+        {
+            parse();
+            logStorage.store(message);
+        }
+        catch(Throwable t)
+        {
+            LOG.fatal("parse(): Message might have been lost",t);
+            if ( t instanceof Error) {
+                throw t;
+            }
+            throw (RuntimeException) t;
+        }
+        finally
+        {
+            this.data = null;
+        }
+    }
+
+    private int offset() {
+        return ptr - start;
+    }
+
+    private boolean eof() {
+        return ptr >= end;
+    }
+
+    private void fail(String message) {
+        fail(message,offset());
+    }
+
+    private void fail(String message,int offset) {
+        throw new LogMessageParseException( message, offset);
+    }
+
+    private void parse()
+    {
+        parseHeader();
+        parseSP();
+        parseStructuredData();
+        if ( maybeConsume( ' ' ) )
+        {
+            // skip leading whitespace
+            while ( maybeConsume( ' ' ) );
+            if ( ! eof() )
+            {
+                parseMessage();
+            }
+        }
+    }
+
+    private void parseMessage()
+    {
+        // strip leading/trailing ASCII whitespace before decoding,
+        // UTF-8 continuation bytes are always >= 0x80 and thus never match
+        int from = ptr;
+        for ( ; from < end && isAsciiWhitespace( data[from] ) ; from++ );
+        int to = end;
+        for ( ; to > from && isAsciiWhitespace( data[to-1] ) ; to-- );
+        ptr = end;
+
+        final String decoded = new String( data, from, to - from, StandardCharsets.UTF_8 );
+        message.message = trimWhitespace( decoded );
+    }
+
+    private static boolean isAsciiWhitespace(byte b) {
+        return b >= 0 && Character.isWhitespace( (char) b );
+    }
+
+    private static String trimWhitespace(String s)
+    {
+        // non-ASCII whitespace (U+2028 etc.)
+        int from = 0;
+        for ( ; from < s.length() && Character.isWhitespace( s.charAt(from) ); from++ );
+        int to = s.length();
+        for ( ; to > from && Character.isWhitespace( s.charAt(to-1) ) ; to-- );
+        return from == 0 && to == s.length() ? s : s.substring( from, to );
+    }
+
+    private void parseStructuredData()
+    {
+        if ( maybeParseNilValue() ) {
+            return;
+        }
+        int count = 0;
+        while ( parseSDElement() ) {
+            count++;
+        }
+
+        if ( count == 0 ) {
+            fail("Expected SD-Element");
+        }
+    }
+
+    private boolean parseSDElement() {
+
+        if ( ! maybeConsume( '[' ) ) {
+            return false;
+        }
+        final String id = parseSDName();
+
+        final SDParam param = new SDParam( id );
+
+        while (  maybeConsume( ' ' ) )
+        {
+            parseSDParam( param );
+        }
+        consume(']' );
+
+        message.addParam(param );
+        return true;
+    }
+
+    private void parseSDParam(SDParam parent) {
+        final String key = parseSDName();
+        consume( '=' );
+        consume( (char) QUOTE );
+        final int valueStart = ptr;
+        // '"' can never be part of a UTF-8 multi-byte sequence
+        while ( ptr < end && data[ptr] != QUOTE ) {
+            ptr++;
+        }
+        final int valueEnd = ptr;
+        consume( (char) QUOTE );
+        parent.addParam(key, new String( data, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8 ) );
+    }
+
+    private String parseSDName()
+    {
+        final int offset = offset();
+        final int from = ptr;
+        final String string = parseUSAscii( 32 );
+        for ( int i = from ; i < ptr ; i++ ) {
+            final byte c = data[i];
+            if ( c == '=' || c == ' ' || c == ']' || c == QUOTE ) {
+                fail("Invalid character '"+(char) c+"'", offset+(i-from) );
+            }
+        }
+        return string;
+    }
+
+    private void parseHeader()
+    {
+        parsePRI();
+
+        parseVersion();
+
+        parseSP();
+        parseTimestamp();
+
+        parseSP();
+        parseHostname();
+
+        parseSP();
+        parseAppName();
+
+        parseSP();
+        parsePROCID();
+
+        parseSP();
+        parseMSGID();
+    }
+
+    private void parseMSGID()
+    {
+        if ( maybeParseNilValue() ) {
+            return;
+        }
+        message.msgId = parseUSAscii( 32 );
+    }
+
+    private void parsePROCID() {
+        if ( maybeParseNilValue() ) {
+            return;
+        }
+        message.procId = parseUSAscii( 128 );
+    }
+
+    private void parseHostname() {
+        if ( maybeParseNilValue() ) {
+            message.host = hostManager.getOrCreateHost( currentIP , null );
+            return;
+        }
+        message.hostName = parseUSAscii( 255 );
+        message.host = hostManager.getOrCreateHost( currentIP, message.hostName );
+    }
+
+    private void parseAppName() {
+        if ( maybeParseNilValue() ) {
+            return;
+        }
+        message.appName = parseUSAscii( 48 );
+    }
+
+    private String parseUSAscii(int maxLength) {
+
+        final int from = ptr;
+        final int limit = Math.min( end, ptr + maxLength );
+        while ( ptr < limit )
+        {
+            final byte c = data[ptr];
+            if ( c < 33 || c > 126 ) {
+                break;
+            }
+            ptr++;
+        }
+        if ( ptr == from ) {
+            fail( "Expected at least one US ASCII character", offset() );
+        }
+        return internTable.intern( data, from, ptr - from );
+    }
+
+    private void parseTimestamp()
+    {
+        if ( maybeParseNilValue() ) {
+            return;
+        }
+
+        // YYYY
+        int year = (short) parseFixedLengthNumber( "year (YYYY)", 4, num -> num > 0 );
+        consume('-' );
+        int month = (byte) parseFixedLengthNumber( "month (MM)", 2, num -> num > 0 && num < 13 );
+        consume('-' );
+        int dayOfMonth = (byte) parseFixedLengthNumber( "monthday (DD)", 2, num -> num > 0 && num < 32 );
+
+        consume('T' );
+
+        int hour = (byte) parseFixedLengthNumber( "hour (HH)", 2, num -> num >= 0 && num < 24 );
+        consume(':');
+        int minute = (byte) parseFixedLengthNumber( "minute (MM)", 2, num -> num >= 0 && num < 60 );
+        consume(':');
+        int second = (byte) parseFixedLengthNumber( "seconds (SS)", 2, num -> num >= 0 && num < 60 );
+
+        int secondFrag = 0;
+        if ( maybeConsume( '.' ) ) {
+            // fraction
+            secondFrag = parseNumber( 1, 6, "time sec-frag" );
+        }
+
+        int factor = 1;
+        int tzHours = 0;
+        int tzMinutes = 0;
+        if ( !maybeConsume( 'Z' ) )
+        {
+            if ( ! maybeConsume( '+' ) )
+            {
+                factor = maybeConsume( '-' ) ? -1 : 1;
+            }
+
+            tzHours = factor*parseFixedLengthNumber( "TZ offset hours", 2, x -> x >= 0 && x < 24 );
+            consume(':');
+            tzMinutes = factor*parseFixedLengthNumber( "TZ offset minutes", 2, x -> x >= 0 && x < 60 );
+        }
+
+        // validates the offset, offsets are cached so this does not allocate
+        final int offsetSeconds = DateUtils.zoneOffset( tzHours*3600 + tzMinutes*60 ).getTotalSeconds();
+        // validates the day-of-month
+        final long epochSeconds = DateUtils.toEpochSecond( year, month, dayOfMonth, hour, minute, second, offsetSeconds );
+        message.setTimestamp( epochSeconds, secondFrag, offsetSeconds );
+    }
+
+    private int parseNumber(int minLength,int maxLength,String what)
+    {
+        final int startOffset = offset();
+        final int limit = Math.min( end, ptr + maxLength );
+        int result = 0;
+        while ( ptr < limit )
+        {
+            final int digit = data[ptr] - '0';
+            if ( digit < 0 || digit > 9 ) {
+                break;
+            }
+            result = result*10 + digit;
+            ptr++;
+        }
+        if ( offset() - startOffset < minLength ) {
+            fail("Expected at least "+minLength+" digits of "+what,startOffset);
+        }
+        return result;
+    }
+
+    private boolean maybeParseNilValue()
+    {
+        return maybeConsume( '-' );
+    }
+
+    private void parseVersion()
+    {
+        parseNumber( 1, 3, "version" );
+        // TODO: protocol version is currently being ignored ?
+    }
+
+    private int parseFixedLengthNumber(String what, int len, IntPredicate validator)
+    {
+        final int offset = offset();
+        final int number = parseNumber(len,len, what);
+        if ( ! validator.test( number ) ) {
+            fail("Number "+number+" is out-of-range for "+what,offset);
+        }
+        return number;
+    }
+
+    private void parsePRI() {
+        consume('<' );
+        parsePRIVal();
+        consume('>' );
+    }
+
+    private void parsePRIVal()
+    {
+        final int offset = offset();
+        final int prio = parseNumber( 1, 3, "priority value" );
+        if ( prio > 191 ) {
+            fail("Priority must be [0...191] but was "+prio,offset);
+        }
+        message.priority = (short) prio;
+    }
+
+    private void parseSP() {
+        consume(' ');
+    }
+
+    private boolean maybeConsume(char c)
+    {
+        if ( ptr < end && data[ptr] == c ) {
+            ptr++;
+            return true;
+        }
+        return false;
+    }
+
+    private void consume(char c)
+    {
+        if ( ! maybeConsume( c ) ) {
+            fail("Expected '"+c+"'");
+        }
+    }
+}
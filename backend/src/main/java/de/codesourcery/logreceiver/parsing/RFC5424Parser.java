@@ -9,9 +9,8 @@ import de.codesourcery.logreceiver.util.DateUtils;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.InetAddress;
-import java.time.ZoneId;
-import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.function.IntPredicate;
 
 public class RFC5424Parser implements ILogParser
@@ -23,21 +22,41 @@ public class RFC5424Parser implements ILogParser
 
     private final SyslogMessage message = new SyslogMessage();
 
+    private final StringInternTable internTable;
+
     private final StringBuilder buffer = new StringBuilder();
 
+    private final ByteBufferInputStream byteStream = new ByteBufferInputStream();
+
     private final IHostManager hostManager;
 
     private InetAddress currentIP;
 
     public RFC5424Parser(IHostManager hostManager, ILogStorage logWriter) {
+        this( hostManager, logWriter, StringInternTable.DEFAULT_CAPACITY );
+    }
+
+    public RFC5424Parser(IHostManager hostManager, ILogStorage logWriter, int internTableSize) {
         this.logStorage = logWriter;
         this.hostManager = hostManager;
+        this.internTable = new StringInternTable( internTableSize );
+    }
+
+    @Override
+    public StringInternTable.Statistics getInternStatistics() {
+        return internTable.getStatistics();
+    }
+
+    @Override
+    public void parse(InetAddress sender, ByteBuffer data)
+    {
+        parse( sender, byteStream.reset( data ) );
     }
 
     @Override
     public void parse(InetAddress sender,InputStream in)
     {
-        scanner.setData( new InputStreamReader( in ) );
+        scanner.setData( new InputStreamReader( in, StandardCharsets.UTF_8 ) );
         message.reset();
         currentIP = sender;
         buffer.setLength( 0 );
@@ -235,7 +254,7 @@ public class RFC5424Parser implements ILogParser
         if ( count < 1 ) {
             fail( "Expected at least one US ASCII character", scanner.offset() );
         }
-        return buffer.toString();
+        return internTable.intern( buffer );
     }
 
     private void parseTimestamp()
@@ -280,20 +299,11 @@ public class RFC5424Parser implements ILogParser
             tzMinutes = factor*parseFixedLengthNumber( "TZ offset minutes", 2, x -> x >= 0 && x < 60 );
         }
 
-        // assumption is that timestamp must ALWAYS be
-        // set so we don't bother checking values
-        // for validity (ZonedDateTime will do it anyway)
-        final ZoneId zoneId;
-        if (tzHours == 0 && tzMinutes == 0)
-        {
-            zoneId = DateUtils.UTC;
-        }
-        else
-        {
-            final ZoneOffset offset = ZoneOffset.ofHoursMinutes( tzHours, tzMinutes);
-            zoneId = ZoneId.from(offset);
-        }
-        message.timestamp  = ZonedDateTime.of( year, month, dayOfMonth, hour, minute, second, secondFrag, zoneId);
+        // validates the offset, offsets are cached so this does not allocate
+        final int offsetSeconds = DateUtils.zoneOffset( tzHours*3600 + tzMinutes*60 ).getTotalSeconds();
+        // validates the day-of-month
+        final long epochSeconds = DateUtils.toEpochSecond( year, month, dayOfMonth, hour, minute, second, offsetSeconds );
+        message.setTimestamp( epochSeconds, secondFrag, offsetSeconds );
     }
 
     private static boolean isNoDigit(char c) {
@@ -0,0 +1,238 @@
+package de.codesourcery.logreceiver.parsing;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bounded intern table for low-cardinality header tokens (host name, app name, proc id, msg id).
+ *
+ * Lookups are keyed by raw US-ASCII bytes or chars so a hit returns the cached
+ * <code>String</code> without allocating anything. Uses open addressing with a bounded probe
+ * window; when the window is full, an entry is evicted using the CLOCK (second chance) algorithm
+ * restricted to that window.
+ *
+ * Instances are NOT thread-safe, each parser owns its own table. Statistics may be read from
+ * other threads but are only approximate in that case.
+ */
+public final class StringInternTable
+{
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Tokens longer than this are never interned.
+     */
+    public static final int MAX_TOKEN_LENGTH = 64;
+
+    private static final int MAX_PROBES = 8;
+
+    /**
+     * Snapshot of the table counters.
+     */
+    public static final class Statistics
+    {
+        public static final Statistics NONE = new Statistics( 0, 0, 0, 0, 0 );
+
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final int size;
+        public final int capacity;
+
+        private Statistics(long hits, long misses, long evictions, int size, int capacity)
+        {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.size = size;
+            this.capacity = capacity;
+        }
+
+        public Statistics add(Statistics other)
+        {
+            return new Statistics( hits + other.hits, misses + other.misses, evictions + other.evictions,
+                                   size + other.size, capacity + other.capacity );
+        }
+
+        public double hitRatio()
+        {
+            final long total = hits + misses;
+            return total == 0 ? 0 : hits / (double) total;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "hits="+hits+", misses="+misses+", evictions="+evictions+", size="+size+"/"+capacity;
+        }
+    }
+
+    private final String[] values;
+    private final int[] hashes;
+    private final boolean[] referenced;
+    private final int mask;
+
+    private int size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public StringInternTable() {
+        this( DEFAULT_CAPACITY );
+    }
+
+    /**
+     *
+     * @param capacity max. number of cached strings, will be rounded up to the next power of two
+     */
+    public StringInternTable(int capacity)
+    {
+        if ( capacity < 1 ) {
+            throw new IllegalArgumentException( "Capacity must be >= 1" );
+        }
+        final int actual = Math.max( MAX_PROBES, capacity == 1 ? 1 : Integer.highestOneBit( capacity - 1 ) << 1 );
+        this.values = new String[ actual ];
+        this.hashes = new int[ actual ];
+        this.referenced = new boolean[ actual ];
+        this.mask = actual - 1;
+    }
+
+    /**
+     * Returns a string for US-ASCII bytes.
+     *
+     * @param data
+     * @param offset
+     * @param len
+     * @return
+     */
+    public String intern(byte[] data, int offset, int len)
+    {
+        if ( len > MAX_TOKEN_LENGTH ) {
+            misses++;
+            return new String( data, offset, len, StandardCharsets.ISO_8859_1 );
+        }
+        int hash = 0;
+        for ( int i = offset, end = offset + len ; i < end ; i++ ) {
+            hash = 31*hash + data[i];
+        }
+        hash = spread( hash );
+
+        int idx = hash & mask;
+        for ( int probe = 0 ; probe < MAX_PROBES ; probe++, idx = (idx+1) & mask )
+        {
+            final String value = values[idx];
+            if ( value == null ) {
+                break;
+            }
+            if ( hashes[idx] == hash && equals( value, data, offset, len ) ) {
+                referenced[idx] = true;
+                hits++;
+                return value;
+            }
+        }
+        misses++;
+        return insert( hash, new String( data, offset, len, StandardCharsets.ISO_8859_1 ) );
+    }
+
+    /**
+     * Returns a string for the characters in a buffer.
+     *
+     * @param chars
+     * @return
+     */
+    public String intern(CharSequence chars)
+    {
+        final int len = chars.length();
+        if ( len > MAX_TOKEN_LENGTH ) {
+            misses++;
+            return chars.toString();
+        }
+        int hash = 0;
+        for ( int i = 0 ; i < len ; i++ ) {
+            hash = 31*hash + chars.charAt( i );
+        }
+        hash = spread( hash );
+
+        int idx = hash & mask;
+        for ( int probe = 0 ; probe < MAX_PROBES ; probe++, idx = (idx+1) & mask )
+        {
+            final String value = values[idx];
+            if ( value == null ) {
+                break;
+            }
+            if ( hashes[idx] == hash && equals( value, chars ) ) {
+                referenced[idx] = true;
+                hits++;
+                return value;
+            }
+        }
+        misses++;
+        return insert( hash, chars.toString() );
+    }
+
+    private String insert(int hash, String value)
+    {
+        final int start = hash & mask;
+        int idx = start;
+        int victim = -1;
+        for ( int probe = 0 ; probe < MAX_PROBES ; probe++, idx = (idx+1) & mask )
+        {
+            if ( values[idx] == null ) {
+                size++;
+                victim = idx;
+                break;
+            }
+            if ( victim == -1 )
+            {
+                if ( ! referenced[idx] ) {
+                    victim = idx;
+                } else {
+                    referenced[idx] = false; // second chance
+                }
+            }
+        }
+        if ( victim == -1 ) {
+            victim = start;
+        }
+        if ( values[victim] != null ) {
+            evictions++;
+        }
+        values[victim] = value;
+        hashes[victim] = hash;
+        referenced[victim] = false;
+        return value;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equals(String value, byte[] data, int offset, int len)
+    {
+        if ( value.length() != len ) {
+            return false;
+        }
+        for ( int i = 0 ; i < len ; i++ ) {
+            if ( value.charAt( i ) != data[offset+i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equals(String value, CharSequence chars)
+    {
+        final int len = chars.length();
+        if ( value.length() != len ) {
+            return false;
+        }
+        for ( int i = 0 ; i < len ; i++ ) {
+            if ( value.charAt( i ) != chars.charAt( i ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Statistics getStatistics() {
+        return new Statistics( hits, misses, evictions, size, values.length );
+    }
+}
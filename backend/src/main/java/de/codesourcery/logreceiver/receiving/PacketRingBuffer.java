@@ -0,0 +1,295 @@
+package de.codesourcery.logreceiver.receiving;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free multi-producer/multi-consumer ring of preallocated packet slots.
+ *
+ * Each slot carries a sequence number that tells producers and consumers whether
+ * the slot is free, published or still being processed (see Dmitry Vyukov's bounded MPMC queue).
+ * Consumers process slots in-place and only release them after processing has finished, so
+ * packet data is copied exactly once (from the receive buffer into the slot).
+ */
+public final class PacketRingBuffer
+{
+    private static final long BLOCK_PARK_NANOS = 50_000;
+
+    /**
+     * What to do when a packet is offered while all slots are in use.
+     */
+    public enum OverflowPolicy
+    {
+        /**
+         * Discard the packet that is being offered.
+         */
+        DROP_NEWEST,
+        /**
+         * Discard the oldest packet that has not been picked up by a consumer yet.
+         */
+        DROP_OLDEST,
+        /**
+         * Wait until a slot becomes available (stops draining the socket, so the kernel
+         * will start dropping packets instead).
+         */
+        BLOCK
+    }
+
+    public static final class Slot
+    {
+        public final ByteBuffer data;
+        public InetAddress sender;
+
+        private Slot(int slotSize) {
+            this.data = ByteBuffer.allocate( slotSize );
+        }
+    }
+
+    @FunctionalInterface
+    public interface SlotConsumer
+    {
+        /**
+         * Process a packet.
+         *
+         * The slot must not be accessed after this method returns as it
+         * will be re-used for subsequent packets.
+         *
+         * @param slot
+         */
+        void consume(Slot slot);
+    }
+
+    /**
+     * Snapshot of the ring buffer counters.
+     */
+    public static final class Statistics
+    {
+        public final long publishedPackets;
+        public final long droppedNewest;
+        public final long droppedOldest;
+        public final long blockedOffers;
+        public final int capacity;
+
+        private Statistics(long publishedPackets, long droppedNewest, long droppedOldest, long blockedOffers, int capacity)
+        {
+            this.publishedPackets = publishedPackets;
+            this.droppedNewest = droppedNewest;
+            this.droppedOldest = droppedOldest;
+            this.blockedOffers = blockedOffers;
+            this.capacity = capacity;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "published="+publishedPackets+", dropped_newest="+droppedNewest+
+                       ", dropped_oldest="+droppedOldest+", blocked="+blockedOffers+", capacity="+capacity;
+        }
+    }
+
+    private static final SlotConsumer DISCARD = slot -> {};
+
+    private final Slot[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final OverflowPolicy overflowPolicy;
+
+    private final AtomicLong enqueuePos = new AtomicLong();
+    private final AtomicLong dequeuePos = new AtomicLong();
+
+    private final LongAdder publishedPackets = new LongAdder();
+    private final LongAdder droppedNewest = new LongAdder();
+    private final LongAdder droppedOldest = new LongAdder();
+    private final LongAdder blockedOffers = new LongAdder();
+
+    private volatile boolean closed;
+
+    /**
+     *
+     * @param slotCount number of slots, will be rounded up to the next power of two
+     * @param slotSize max. number of bytes per slot
+     * @param overflowPolicy
+     */
+    public PacketRingBuffer(int slotCount, int slotSize, OverflowPolicy overflowPolicy)
+    {
+        if ( slotCount < 1 ) {
+            throw new IllegalArgumentException( "Slot count must be >= 1" );
+        }
+        if ( slotSize < 1 ) {
+            throw new IllegalArgumentException( "Slot size must be >= 1" );
+        }
+        if ( overflowPolicy == null ) {
+            throw new IllegalArgumentException( "Overflow policy must not be NULL" );
+        }
+        final int capacity = slotCount == 1 ? 1 : Integer.highestOneBit( slotCount - 1 ) << 1;
+        this.mask = capacity - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.slots = new Slot[ capacity ];
+        this.sequences = new AtomicLongArray( capacity );
+        for ( int i = 0 ; i < capacity ; i++ )
+        {
+            slots[i] = new Slot( slotSize );
+            sequences.set( i, i );
+        }
+    }
+
+    /**
+     * Copies a packet into the next free slot.
+     *
+     * @param sender
+     * @param packet packet data, all bytes between the buffer's position and limit get copied
+     * @return <code>true</code> if the packet was stored, <code>false</code> if it was dropped
+     */
+    public boolean offer(InetAddress sender, ByteBuffer packet)
+    {
+        if ( packet.remaining() > slots[0].data.capacity() ) {
+            throw new IllegalArgumentException( "Packet size "+packet.remaining()+" exceeds slot size "+slots[0].data.capacity() );
+        }
+        if ( tryPublish( sender, packet ) ) {
+            return true;
+        }
+        switch( overflowPolicy )
+        {
+            case DROP_NEWEST:
+                droppedNewest.increment();
+                return false;
+            case DROP_OLDEST:
+                // the slot freed by discarding the oldest packet may get taken by a concurrent
+                // producer, so keep discarding until our packet fits. Every discard makes room
+                // for exactly one published packet.
+                while ( ! closed )
+                {
+                    if ( isNextSlotBeingConsumed() ) {
+                        // the slot we need gets released as soon as the consumer is done with it
+                        Thread.onSpinWait();
+                    }
+                    else if ( poll( DISCARD ) ) {
+                        droppedOldest.increment();
+                    }
+                    if ( tryPublish( sender, packet ) ) {
+                        return true;
+                    }
+                }
+                droppedNewest.increment();
+                return false;
+            case BLOCK:
+                blockedOffers.increment();
+                while ( ! closed )
+                {
+                    LockSupport.parkNanos( BLOCK_PARK_NANOS );
+                    if ( tryPublish( sender, packet ) ) {
+                        return true;
+                    }
+                }
+                droppedNewest.increment();
+                return false;
+            default:
+                throw new RuntimeException( "Unhandled switch/case: " + overflowPolicy );
+        }
+    }
+
+    private boolean tryPublish(InetAddress sender, ByteBuffer packet)
+    {
+        long pos = enqueuePos.get();
+        while ( true )
+        {
+            final int idx = (int) pos & mask;
+            final long diff = sequences.get( idx ) - pos;
+            if ( diff == 0 )
+            {
+                if ( enqueuePos.compareAndSet( pos, pos + 1 ) )
+                {
+                    final Slot slot = slots[idx];
+                    slot.sender = sender;
+                    slot.data.clear();
+                    slot.data.put( packet );
+                    slot.data.flip();
+                    sequences.set( idx, pos + 1 );
+                    publishedPackets.increment();
+                    return true;
+                }
+                pos = enqueuePos.get();
+            }
+            else if ( diff < 0 )
+            {
+                return false; // full
+            }
+            else
+            {
+                pos = enqueuePos.get();
+            }
+        }
+    }
+
+    /**
+     * Returns whether the packet previously stored in the slot the next producer needs
+     * has already been picked up by a consumer but not released yet.
+     */
+    private boolean isNextSlotBeingConsumed()
+    {
+        final long pos = enqueuePos.get();
+        return dequeuePos.get() > pos - slots.length && sequences.get( (int) pos & mask ) != pos;
+    }
+
+    /**
+     * Hands the oldest published packet to a consumer and releases the slot afterwards.
+     *
+     * @param consumer
+     * @return <code>true</code> if a packet was consumed, <code>false</code> if the ring was empty
+     */
+    public boolean poll(SlotConsumer consumer)
+    {
+        long pos = dequeuePos.get();
+        while ( true )
+        {
+            final int idx = (int) pos & mask;
+            final long diff = sequences.get( idx ) - (pos + 1);
+            if ( diff == 0 )
+            {
+                if ( dequeuePos.compareAndSet( pos, pos + 1 ) )
+                {
+                    final Slot slot = slots[idx];
+                    try
+                    {
+                        consumer.consume( slot );
+                    }
+                    finally
+                    {
+                        slot.sender = null;
+                        sequences.set( idx, pos + mask + 1 );
+                    }
+                    return true;
+                }
+                pos = dequeuePos.get();
+            }
+            else if ( diff < 0 )
+            {
+                return false; // empty
+            }
+            else
+            {
+                pos = dequeuePos.get();
+            }
+        }
+    }
+
+    /**
+     * Makes producers that are blocked because of {@link OverflowPolicy#BLOCK} give up.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    public Statistics getStatistics()
+    {
+        return new Statistics( publishedPackets.sum(), droppedNewest.sum(), droppedOldest.sum(), blockedOffers.sum(), slots.length );
+    }
+}
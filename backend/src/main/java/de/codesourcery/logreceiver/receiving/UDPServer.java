@@ -3,21 +3,27 @@ package de.codesourcery.logreceiver.receiving;
 import de.codesourcery.logreceiver.entity.Configuration;
 import de.codesourcery.logreceiver.parsing.ILogParser;
 import de.codesourcery.logreceiver.parsing.LogParserFactory;
+import de.codesourcery.logreceiver.parsing.StringInternTable;
+import de.codesourcery.logreceiver.util.EternalThread;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 public class UDPServer
 {
@@ -34,53 +40,280 @@ public class UDPServer
             req = ByteBuffer.allocate( bufferSize );
         }
 
-        public InputStream createInputStream(DatagramChannel chan) throws IOException
+        /**
+         * Receives a packet, afterwards the payload is available
+         * between the buffer's position and limit.
+         *
+         * @param chan
+         * @throws IOException
+         */
+        public void receive(DatagramChannel chan) throws IOException
         {
-            req.rewind();
+            req.clear();
             clientIP = ((InetSocketAddress) chan.receive(req)).getAddress();
-            final int available = req.position();
-            req.rewind();
-            LOG.debug("createInputStream(): Payload size "+available);
-            return new InputStream() {
+            req.flip();
+        }
+    }
 
-                private int remaining = available;
+    /**
+     * Snapshot of the packet counters of a single receiver thread.
+     */
+    public static final class ReceiverStatistics
+    {
+        public final int receiverIndex;
+        public final long receivedPackets;
+        public final long droppedPackets;
 
-                @Override
-                public int read()
-                {
-                    if ( remaining == 0 ) {
-                        return -1;
-                    }
+        private ReceiverStatistics(int receiverIndex, long receivedPackets, long droppedPackets)
+        {
+            this.receiverIndex = receiverIndex;
+            this.receivedPackets = receivedPackets;
+            this.droppedPackets = droppedPackets;
+        }
 
-                    remaining--;
-                    return req.get();
-                }
-            };
+        @Override
+        public String toString()
+        {
+            return "receiver #"+receiverIndex+": received="+receivedPackets+", dropped="+droppedPackets;
         }
     }
 
-    private final LogParserFactory parserFactory;
+    /**
+     * Snapshot of the counters of a single parser thread.
+     */
+    public static final class ParserStatistics
+    {
+        public final int parserIndex;
+        public final long parsedPackets;
+        public final long failedPackets;
 
-    private volatile boolean shutdown;
+        private ParserStatistics(int parserIndex, long parsedPackets, long failedPackets)
+        {
+            this.parserIndex = parserIndex;
+            this.parsedPackets = parsedPackets;
+            this.failedPackets = failedPackets;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "parser #"+parserIndex+": parsed="+parsedPackets+", failed="+failedPackets;
+        }
+    }
 
-    private final ThreadLocal<ILogParser> parser = new ThreadLocal()
+    /**
+     * Takes packets from the ring buffer and parses them.
+     */
+    private final class ParserWorker implements EternalThread.Interruptable, PacketRingBuffer.SlotConsumer
     {
+        private static final int SPIN_COUNT = 100;
+        private static final long MAX_PARK_NANOS = 1_000_000;
+
+        public final int index;
+
+        private final ILogParser parser = parserFactory.get();
+
+        private final AtomicLong parsedPackets = new AtomicLong();
+        private final AtomicLong failedPackets = new AtomicLong();
+
+        private ParserWorker(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void run(EternalThread.Context context)
+        {
+            int idleCount = 0;
+            long parkNanos = 1000;
+            while ( ! context.isCancelled() )
+            {
+                if ( ringBuffer.poll( this ) )
+                {
+                    idleCount = 0;
+                    parkNanos = 1000;
+                }
+                else if ( ++idleCount > SPIN_COUNT )
+                {
+                    LockSupport.parkNanos( parkNanos );
+                    parkNanos = Math.min( parkNanos*2, MAX_PARK_NANOS );
+                }
+            }
+            // drain whatever is left
+            while ( ringBuffer.poll( this ) );
+        }
+
         @Override
-        protected Object initialValue()
+        public void consume(PacketRingBuffer.Slot slot)
+        {
+            try
+            {
+                parser.parse( slot.sender, slot.data );
+                parsedPackets.incrementAndGet();
+            }
+            catch(Exception e) {
+                failedPackets.incrementAndGet();
+                LOG.error("consume(): Parser #"+index+" failed to parse packet",e);
+            }
+        }
+
+        public ParserStatistics getStatistics() {
+            return new ParserStatistics( index, parsedPackets.get(), failedPackets.get() );
+        }
+    }
+
+    /**
+     * Receives packets on its own channel (and selector), using its own
+     * packet buffer and log parser (each parser has its own, non thread-safe, log writer).
+     */
+    private final class Receiver
+    {
+        public final int index;
+
+        private final PacketBuffer packet = new PacketBuffer( config.maxReceiveBufferSize );
+        private final ILogParser parser = ringBuffer == null ? parserFactory.get() : null;
+        private final boolean reusePort;
+
+        private final AtomicLong receivedPackets = new AtomicLong();
+        private final AtomicLong droppedPackets = new AtomicLong();
+
+        private final AtomicReference<Selector> selector = new AtomicReference<>();
+
+        private Receiver(int index, boolean reusePort)
+        {
+            this.index = index;
+            this.reusePort = reusePort;
+        }
+
+        public void process() throws IOException
+        {
+            try ( Selector selector = Selector.open(); )
+            {
+                this.selector.set(selector);
+                try ( DatagramChannel channel = DatagramChannel.open() )
+                {
+                    final InetSocketAddress isa = new InetSocketAddress( config.udpPort );
+                    if ( reusePort ) {
+                        channel.setOption( StandardSocketOptions.SO_REUSEPORT, true );
+                    }
+                    channel.bind( isa );
+                    channel.configureBlocking( false );
+
+                    final SelectionKey clientKey = channel.register( selector, SelectionKey.OP_READ );
+                    clientKey.attach( packet );
+                    LOG.info( "process(): Receiver #"+index+" now listening on port " + config.udpPort );
+                    while ( !shutdown )
+                    {
+                        try
+                        {
+                            selector.select();
+                            final Iterator selectedKeys = selector.selectedKeys().iterator();
+                            while ( selectedKeys.hasNext() )
+                            {
+                                final SelectionKey key = (SelectionKey) selectedKeys.next();
+                                selectedKeys.remove();
+
+                                if ( key.isValid() && key.isReadable() )
+                                {
+                                    read( key );
+                                }
+                            }
+                        }
+                        catch (IOException e)
+                        {
+                            LOG.error( "process(): Caught ", e );
+                        }
+                    }
+                }
+            }
+        }
+
+        private void read(SelectionKey key)
+        {
+            if ( LOG.isDebugEnabled() ) {
+                LOG.debug("process(): Receiver #"+index+" received a UDP packet on port "+config.udpPort);
+            }
+            final DatagramChannel chan = (DatagramChannel) key.channel();
+            final PacketBuffer packet = (PacketBuffer) key.attachment();
+            receivedPackets.incrementAndGet();
+            if ( ringBuffer != null )
+            {
+                try
+                {
+                    packet.receive( chan );
+                    if ( ! ringBuffer.offer( packet.clientIP, packet.req ) ) {
+                        droppedPackets.incrementAndGet();
+                    }
+                }
+                catch(Exception e) {
+                    droppedPackets.incrementAndGet();
+                    LOG.error("read(): Failed to receive packet",e);
+                }
+                return;
+            }
+            try
+            {
+                packet.receive( chan );
+                LOG.debug("read(): Payload size "+packet.req.remaining());
+                parser.parse( packet.clientIP , packet.req );
+            }
+            catch(Exception e) {
+                droppedPackets.incrementAndGet();
+                LOG.error("read(): Failed to parse packet",e);
+            }
+        }
+
+        public void shutdown()
         {
-            return parserFactory.get();
+            final Selector s = selector.get();
+            if ( s != null )
+            {
+                try
+                {
+                    s.close();
+                }
+                catch (IOException e)
+                {
+                    // nothing to be done about it
+                }
+            }
+        }
+
+        public ReceiverStatistics getStatistics() {
+            return new ReceiverStatistics( index, receivedPackets.get(), droppedPackets.get() );
         }
-    };
+    }
+
+    private final LogParserFactory parserFactory;
+
+    private volatile boolean shutdown;
 
     private final Configuration config;
 
+    // @GuardedBy( receivers )
+    private final List<Receiver> receivers = new ArrayList<>();
+
+    // NULL if packets get parsed on the receiver threads
+    private final PacketRingBuffer ringBuffer;
+    private final List<ParserWorker> parserWorkers = new ArrayList<>();
+    private final List<EternalThread> parserThreads = new ArrayList<>();
+
     public UDPServer(Configuration config, LogParserFactory parserFactory) {
         this.parserFactory = parserFactory;
         this.config = config;
+        if ( config.parserThreads > 0 )
+        {
+            this.ringBuffer = new PacketRingBuffer( config.packetRingBufferSize, config.maxReceiveBufferSize, config.packetRingBufferOverflowPolicy );
+            for ( int i = 0 ; i < config.parserThreads ; i++ )
+            {
+                final ParserWorker worker = new ParserWorker( i );
+                parserWorkers.add( worker );
+                parserThreads.add( new EternalThread( "udp-parser-"+i, () -> worker ) );
+            }
+        } else {
+            this.ringBuffer = null;
+        }
     }
 
-    private final AtomicReference<Selector> selector = new AtomicReference<>();
-
     @PostConstruct
     public void run() throws IOException, InterruptedException
     {
@@ -115,73 +348,158 @@ public class UDPServer
         }
     }
 
+    /**
+     * Starts receiving packets.
+     *
+     * The first receiver runs on the calling thread, so this method
+     * only returns after {@link #shutdown()} has been called. When more than one receiver thread
+     * is configured, each additional receiver runs on its own thread and binds its own channel
+     * to the same port using <code>SO_REUSEPORT</code> (the kernel then distributes incoming
+     * datagrams across all channels).
+     *
+     * @throws IOException
+     */
     public void process() throws IOException
     {
-        try ( Selector selector = Selector.open(); )
+        final int threadCount = getReceiverThreadCount();
+        final boolean reusePort = threadCount > 1;
+        final List<Receiver> list = new ArrayList<>();
+        synchronized (receivers)
+        {
+            for ( int i = 0 ; i < threadCount ; i++ ) {
+                list.add( new Receiver( i, reusePort ) );
+            }
+            receivers.clear();
+            receivers.addAll( list );
+        }
+        LOG.info("process(): Starting "+threadCount+" UDP receiver(s)");
+        if ( ringBuffer != null )
         {
-            this.selector.set(selector);
-            try ( DatagramChannel channel = DatagramChannel.open() )
+            LOG.info("process(): Starting "+parserThreads.size()+" parser thread(s), ring buffer capacity "+
+                         ringBuffer.capacity()+", overflow policy "+config.packetRingBufferOverflowPolicy);
+            parserThreads.forEach( EternalThread::startThread );
+        }
+
+        for ( int i = 1 ; i < threadCount ; i++ )
+        {
+            final Receiver receiver = list.get(i);
+            final Thread t = new Thread( () ->
             {
-                final InetSocketAddress isa = new InetSocketAddress( config.udpPort );
-                channel.socket().bind( isa );
-                channel.configureBlocking( false );
-
-                final SelectionKey clientKey = channel.register( selector, SelectionKey.OP_READ );
-                clientKey.attach( new PacketBuffer( config.maxReceiveBufferSize ) );
-                LOG.info( "process(): Now listening on port " + config.udpPort );
-                while ( !shutdown )
+                try
                 {
-                    try
-                    {
-                        selector.select();
-                        final Iterator selectedKeys = selector.selectedKeys().iterator();
-                        while ( selectedKeys.hasNext() )
-                        {
-                            final SelectionKey key = (SelectionKey) selectedKeys.next();
-                            selectedKeys.remove();
-
-                            if ( key.isValid() && key.isReadable() )
-                            {
-                                read( key );
-                            }
-                        }
-                    }
-                    catch (IOException e)
-                    {
-                        LOG.error( "process(): Caught ", e );
-                    }
+                    receiver.process();
                 }
-            }
+                catch (IOException e)
+                {
+                    LOG.error("process(): Receiver #"+receiver.index+" died",e);
+                }
+            });
+            t.setName( "udp-receiver-"+i );
+            t.start();
         }
+        list.get(0).process();
     }
 
-    @PreDestroy
-    public void shutdown() {
-        shutdown = true;
-        try
+    private int getReceiverThreadCount() throws IOException
+    {
+        if ( config.udpReceiverThreads <= 1 ) {
+            return 1;
+        }
+        try ( DatagramChannel probe = DatagramChannel.open() )
         {
-            selector.get().close();
+            if ( ! probe.supportedOptions().contains( StandardSocketOptions.SO_REUSEPORT ) )
+            {
+                LOG.warn("getReceiverThreadCount(): SO_REUSEPORT is not supported on this platform, using a single receiver thread");
+                return 1;
+            }
         }
-        catch (IOException e)
+        return config.udpReceiverThreads;
+    }
+
+    /**
+     * Returns the packet counters of all receiver threads.
+     *
+     * @return
+     */
+    public List<ReceiverStatistics> getStatistics()
+    {
+        final List<ReceiverStatistics> result = new ArrayList<>();
+        synchronized (receivers)
         {
-            // nothing to be done about it
+            for ( Receiver r : receivers ) {
+                result.add( r.getStatistics() );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the counters of all parser threads.
+     *
+     * @return parser statistics or an empty list if packets are parsed on the receiver threads
+     */
+    public List<ParserStatistics> getParserStatistics()
+    {
+        final List<ParserStatistics> result = new ArrayList<>();
+        for ( ParserWorker w : parserWorkers ) {
+            result.add( w.getStatistics() );
         }
+        return result;
     }
 
-    private void read(SelectionKey key)
+    /**
+     * Returns the header token cache counters summed over all parsers.
+     *
+     * @return
+     */
+    public StringInternTable.Statistics getInternStatistics()
     {
-        if ( LOG.isDebugEnabled() ) {
-            LOG.debug("process(): Received a UDP packet on port "+config.udpPort);
+        StringInternTable.Statistics result = StringInternTable.Statistics.NONE;
+        for ( ParserWorker w : parserWorkers ) {
+            result = result.add( w.parser.getInternStatistics() );
         }
-        final DatagramChannel chan = (DatagramChannel) key.channel();
-        final PacketBuffer packet = (PacketBuffer) key.attachment();
-        try
+        synchronized (receivers)
         {
-            final InputStream stream = packet.createInputStream( chan );
-            parser.get().parse( packet.clientIP , stream );
+            for ( Receiver r : receivers ) {
+                if ( r.parser != null ) {
+                    result = result.add( r.parser.getInternStatistics() );
+                }
+            }
         }
-        catch(Exception e) {
-            LOG.error("read(): Failed to parse packet",e);
+        return result;
+    }
+
+    /**
+     * Returns the ring buffer counters.
+     *
+     * @return counters or <code>null</code> if packets are parsed on the receiver threads
+     */
+    public PacketRingBuffer.Statistics getRingBufferStatistics()
+    {
+        return ringBuffer == null ? null : ringBuffer.getStatistics();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        shutdown = true;
+        synchronized (receivers)
+        {
+            receivers.forEach( Receiver::shutdown );
+        }
+        if ( ringBuffer != null )
+        {
+            ringBuffer.close();
+            for ( EternalThread t : parserThreads )
+            {
+                try
+                {
+                    t.stopThread();
+                }
+                catch (InterruptedException e)
+                {
+                    LOG.warn("shutdown(): Interrupted while stopping parser thread");
+                }
+            }
         }
     }
-}
\ No newline at end of file
+}
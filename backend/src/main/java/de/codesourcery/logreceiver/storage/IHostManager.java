@@ -14,4 +14,16 @@ public interface IHostManager
     List<Host> getAllHosts();
 
     Host getHost(InetAddress address);
+
+    /**
+     * Changes the message search indexes of a host.
+     *
+     * Indexes get created (or dropped) in the background, so searches only speed up once they are in place.
+     *
+     * @param hostId
+     * @param searchIndex
+     * @return the updated host
+     * @throws IllegalArgumentException if there is no host with this ID
+     */
+    Host setSearchIndex(long hostId, Host.SearchIndex searchIndex);
 }
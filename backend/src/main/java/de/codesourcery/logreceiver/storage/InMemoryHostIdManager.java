@@ -3,6 +3,7 @@ package de.codesourcery.logreceiver.storage;
 import de.codesourcery.logreceiver.entity.Configuration;
 import de.codesourcery.logreceiver.entity.Host;
 import de.codesourcery.logreceiver.events.HostAddedEvent;
+import de.codesourcery.logreceiver.events.HostUpdatedEvent;
 import de.codesourcery.logreceiver.util.EventBus;
 
 import java.net.InetAddress;
@@ -92,6 +93,42 @@ public class InMemoryHostIdManager implements IHostManager
         return host;
     }
 
+    @Override
+    public Host setSearchIndex(long hostId, Host.SearchIndex searchIndex)
+    {
+        if ( searchIndex == null ) {
+            throw new IllegalArgumentException( "Search index must not be NULL" );
+        }
+        final Host oldHost;
+        final Host newHost;
+        synchronized (LOCK)
+        {
+            final Host host = hostsById.get( hostId );
+            if ( host == null ) {
+                throw new IllegalArgumentException( "Unknown host #"+hostId );
+            }
+            if ( host.searchIndex == searchIndex ) {
+                return host.copy();
+            }
+            oldHost = host.copy();
+            storeSearchIndex( host, searchIndex );
+            host.searchIndex = searchIndex;
+            newHost = host.copy();
+        }
+        eventBus.send( new HostUpdatedEvent( oldHost, newHost ) );
+        return newHost;
+    }
+
+    /**
+     * Persists a host's new search index setting.
+     *
+     * @param host
+     * @param searchIndex
+     */
+    protected void storeSearchIndex(Host host, Host.SearchIndex searchIndex)
+    {
+    }
+
     protected Host generateHost(InetAddress ip,String HostName)
     {
         final Host host = new Host();
@@ -99,6 +136,7 @@ public class InMemoryHostIdManager implements IHostManager
         host.ip = ip;
         host.hostName = HostName;
         host.dataRetentionTime = config.defaultDataRetentionTime;
+        host.searchIndex = config.defaultSearchIndex;
         return host;
     }
 }
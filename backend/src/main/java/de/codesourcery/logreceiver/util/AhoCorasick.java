@@ -0,0 +1,133 @@
+package de.codesourcery.logreceiver.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.function.IntConsumer;
+
+/**
+ * Finds all occurrences of a fixed set of strings in a single pass over a text (Aho-Corasick automaton).
+ *
+ * Instances are immutable and thread-safe.
+ */
+public final class AhoCorasick
+{
+    // transitions of each state, sorted by character
+    private final char[][] keys;
+    private final int[][] targets;
+    // state to continue with when there is no transition for the current character
+    private final int[] fail;
+    // indices of all strings ending in a state (including those ending in states reachable via failure links)
+    private final int[][] outputs;
+
+    /**
+     * Create instance.
+     *
+     * @param strings strings to search for, must not be empty
+     */
+    public AhoCorasick(List<String> strings)
+    {
+        final List<TreeMap<Character, Integer>> children = new ArrayList<>();
+        final List<List<Integer>> out = new ArrayList<>();
+        children.add( new TreeMap<>() );
+        out.add( new ArrayList<>() );
+
+        for (int i = 0, len = strings.size(); i < len; i++)
+        {
+            final String s = strings.get( i );
+            if ( s.isEmpty() ) {
+                throw new IllegalArgumentException( "Strings must not be empty" );
+            }
+            int state = 0;
+            for (int j = 0; j < s.length(); j++)
+            {
+                final Integer next = children.get( state ).get( s.charAt( j ) );
+                if ( next == null )
+                {
+                    children.get( state ).put( s.charAt( j ), children.size() );
+                    state = children.size();
+                    children.add( new TreeMap<>() );
+                    out.add( new ArrayList<>() );
+                }
+                else
+                {
+                    state = next;
+                }
+            }
+            out.get( state ).add( i );
+        }
+
+        // breadth-first so failure targets (being shallower) are complete before they get used
+        fail = new int[ children.size() ];
+        final Queue<Integer> queue = new ArrayDeque<>( children.get( 0 ).values() );
+        while ( ! queue.isEmpty() )
+        {
+            final int state = queue.remove();
+            for (Map.Entry<Character, Integer> entry : children.get( state ).entrySet())
+            {
+                final int child = entry.getValue();
+                if ( state != 0 )
+                {
+                    int f = fail[ state ];
+                    while ( f != 0 && ! children.get( f ).containsKey( entry.getKey() ) ) {
+                        f = fail[ f ];
+                    }
+                    final Integer target = children.get( f ).get( entry.getKey() );
+                    fail[ child ] = target == null ? 0 : target;
+                    out.get( child ).addAll( out.get( fail[ child ] ) );
+                }
+                queue.add( child );
+            }
+        }
+
+        keys = new char[ children.size() ][];
+        targets = new int[ children.size() ][];
+        outputs = new int[ children.size() ][];
+        for (int state = 0; state < children.size(); state++)
+        {
+            final TreeMap<Character, Integer> map = children.get( state );
+            keys[ state ] = new char[ map.size() ];
+            targets[ state ] = new int[ map.size() ];
+            int i = 0;
+            for (Map.Entry<Character, Integer> entry : map.entrySet())
+            {
+                keys[ state ][ i ] = entry.getKey();
+                targets[ state ][ i++ ] = entry.getValue();
+            }
+            outputs[ state ] = out.get( state ).stream().mapToInt( Integer::intValue ).toArray();
+        }
+    }
+
+    /**
+     * Searches a text.
+     *
+     * @param text
+     * @param consumer invoked with the index of the string for each occurrence found (so possibly multiple times per string)
+     */
+    public void search(CharSequence text, IntConsumer consumer)
+    {
+        int state = 0;
+        for (int i = 0, len = text.length(); i < len; i++)
+        {
+            final char c = text.charAt( i );
+            int next;
+            while ( ( next = next( state, c ) ) < 0 && state != 0 ) {
+                state = fail[ state ];
+            }
+            state = next < 0 ? 0 : next;
+            for (int index : outputs[ state ]) {
+                consumer.accept( index );
+            }
+        }
+    }
+
+    private int next(int state, char c)
+    {
+        final int idx = Arrays.binarySearch( keys[ state ], c );
+        return idx < 0 ? -1 : targets[ state ][ idx ];
+    }
+}
@@ -0,0 +1,50 @@
+package de.codesourcery.logreceiver.util;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+
+/**
+ * Splits the database connection pool between the threads that hold a connection for a long time.
+ *
+ * {@link Configuration#dbReservedConnections} are kept free for the staging table mover, journal replay,
+ * the late data writer, partition pre-creation and UI queries. Of the remaining connections, filter threads
+ * get a quarter and flush workers the rest, unless either thread count is configured explicitly.
+ */
+public final class ConnectionBudget
+{
+    private ConnectionBudget() {
+    }
+
+    private static int available(Configuration config) {
+        return Math.max( 2, config.dbConnectionPoolSize - config.dbReservedConnections );
+    }
+
+    /**
+     * Returns the number of threads COPYing rows into the database.
+     *
+     * @param config
+     * @return
+     * @see Configuration#flushWorkerThreads
+     */
+    public static int flushWorkerThreads(Configuration config)
+    {
+        if ( config.flushWorkerThreads > 0 ) {
+            return config.flushWorkerThreads;
+        }
+        return Math.max( 1, available( config ) - filterThreads( config ) );
+    }
+
+    /**
+     * Returns the number of threads handing new messages to filter callbacks.
+     *
+     * @param config
+     * @return
+     * @see Configuration#filterThreads
+     */
+    public static int filterThreads(Configuration config)
+    {
+        if ( config.filterThreads > 0 ) {
+            return config.filterThreads;
+        }
+        return Math.max( 1, available( config ) / 4 );
+    }
+}
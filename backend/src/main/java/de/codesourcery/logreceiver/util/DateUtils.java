@@ -1,8 +1,154 @@
 package de.codesourcery.logreceiver.util;
 
+import java.time.DateTimeException;
+import java.time.Month;
 import java.time.ZoneId;
+import java.time.ZoneOffset;
 
 public class DateUtils
 {
     public static final ZoneId UTC = ZoneId.of( "UTC");
+
+    public static final int SECONDS_PER_DAY = 24*60*60;
+
+    private static final int MAX_OFFSET_SECONDS = 18*60*60;
+
+    // offsets with whole minutes, indexed by (offset in minutes + 18h)
+    private static final ZoneOffset[] OFFSETS_BY_MINUTE = new ZoneOffset[ 2*MAX_OFFSET_SECONDS/60 + 1 ];
+
+    /**
+     * Returns the (cached) zone offset for a given number of seconds.
+     *
+     * @param offsetSeconds
+     * @return
+     * @throws DateTimeException if the offset is not within +/- 18 hours
+     */
+    public static ZoneOffset zoneOffset(int offsetSeconds)
+    {
+        if ( offsetSeconds < -MAX_OFFSET_SECONDS || offsetSeconds > MAX_OFFSET_SECONDS ) {
+            throw new DateTimeException( "Zone offset not in valid range: -18:00 to +18:00" );
+        }
+        if ( offsetSeconds % 60 != 0 ) {
+            return ZoneOffset.ofTotalSeconds( offsetSeconds );
+        }
+        final int idx = offsetSeconds/60 + MAX_OFFSET_SECONDS/60;
+        ZoneOffset result = OFFSETS_BY_MINUTE[idx];
+        if ( result == null ) {
+            // benign race, ZoneOffset is immutable
+            result = ZoneOffset.ofTotalSeconds( offsetSeconds );
+            OFFSETS_BY_MINUTE[idx] = result;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the zone ID to use for a timestamp with a given offset.
+     *
+     * @param offsetSeconds
+     * @return {@link #UTC} if the offset is zero, otherwise the {@link #zoneOffset(int) zone offset}
+     */
+    public static ZoneId zoneId(int offsetSeconds) {
+        return offsetSeconds == 0 ? UTC : zoneOffset( offsetSeconds );
+    }
+
+    /**
+     * Converts a local date-time with a zone offset to seconds since the epoch.
+     *
+     * @param year
+     * @param month 1...12
+     * @param dayOfMonth
+     * @param hour
+     * @param minute
+     * @param second
+     * @param offsetSeconds
+     * @return
+     * @throws DateTimeException if the day-of-month is not valid for the given year and month
+     */
+    public static long toEpochSecond(int year, int month, int dayOfMonth, int hour, int minute, int second, int offsetSeconds)
+    {
+        if ( dayOfMonth > lengthOfMonth( year, month ) )
+        {
+            if ( dayOfMonth == 29 ) {
+                throw new DateTimeException( "Invalid date 'February 29' as '" + year + "' is not a leap year" );
+            }
+            throw new DateTimeException( "Invalid date '" + Month.of( month ).name() + " " + dayOfMonth + "'" );
+        }
+        final long localSeconds = toEpochDay( year, month, dayOfMonth ) * SECONDS_PER_DAY + hour*3600 + minute*60 + second;
+        return localSeconds - offsetSeconds;
+    }
+
+    public static boolean isLeapYear(int year) {
+        return (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    public static int lengthOfMonth(int year, int month)
+    {
+        switch( month )
+        {
+            case 2:
+                return isLeapYear( year ) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /**
+     * Days since 1970-01-01 (proleptic gregorian calendar).
+     *
+     * @param year
+     * @param month 1...12
+     * @param dayOfMonth
+     * @return
+     */
+    public static long toEpochDay(int year, int month, int dayOfMonth)
+    {
+        // see http://howardhinnant.github.io/date_algorithms.html#days_from_civil
+        final long y = month <= 2 ? year - 1 : year;
+        final long era = Math.floorDiv( y, 400 );
+        final long yearOfEra = y - era * 400;
+        final long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + dayOfMonth - 1;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Converts days since 1970-01-01 to a date.
+     *
+     * @param epochDay
+     * @return date encoded as <code>year*10000 + month*100 + dayOfMonth</code>
+     * @see #year(int)
+     * @see #month(int)
+     * @see #dayOfMonth(int)
+     */
+    public static int toDate(long epochDay)
+    {
+        // see http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+        final long z = epochDay + 719468;
+        final long era = Math.floorDiv( z, 146097 );
+        final long dayOfEra = z - era * 146097;
+        final long yearOfEra = (dayOfEra - dayOfEra/1460 + dayOfEra/36524 - dayOfEra/146096) / 365;
+        final long dayOfYear = dayOfEra - (365*yearOfEra + yearOfEra/4 - yearOfEra/100);
+        final long mp = (5*dayOfYear + 2)/153;
+        final int day = (int) (dayOfYear - (153*mp+2)/5 + 1);
+        final int month = (int) (mp < 10 ? mp+3 : mp-9);
+        final int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+        return year*10000 + month*100 + day;
+    }
+
+    public static int year(int date) {
+        return date / 10000;
+    }
+
+    public static int month(int date) {
+        return (date / 100) % 100;
+    }
+
+    public static int dayOfMonth(int date) {
+        return date % 100;
+    }
 }
@@ -31,7 +31,11 @@ public final class Interval
 
     public boolean contains(ZonedDateTime ts)
     {
-        final long epochSeconds = ts.toEpochSecond();
+        return contains( ts.toEpochSecond() );
+    }
+
+    public boolean contains(long epochSeconds)
+    {
         return startEpochSeconds <= epochSeconds && epochSeconds < endEpochSeconds;
     }
 }
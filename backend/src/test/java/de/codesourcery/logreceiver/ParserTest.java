@@ -1,7 +1,9 @@
 package de.codesourcery.logreceiver;
 
 import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
 import de.codesourcery.logreceiver.parsing.ILogParser;
+import de.codesourcery.logreceiver.parsing.RFC5424ByteParser;
 import de.codesourcery.logreceiver.parsing.RFC5424Parser;
 import de.codesourcery.logreceiver.logstorage.SQLLogWriter;
 import de.codesourcery.logreceiver.storage.InMemoryHostIdManager;
@@ -10,13 +12,19 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
+
 public class ParserTest
 {
     private SQLLogWriterTest.MockStorage storage;
@@ -26,16 +34,22 @@ public class ParserTest
         storage = new SQLLogWriterTest.MockStorage();
     }
 
-    @Test
-    public void testParseMessageWithoutPayload() throws IOException
+    public static List<String> readExampleLines() throws IOException
     {
-        final InputStream in = getClass().getResourceAsStream( "/example.txt" );
+        final InputStream in = ParserTest.class.getResourceAsStream( "/example.txt" );
         final BufferedReader reader = new BufferedReader( new InputStreamReader( in ) );
         List<String> lines = new ArrayList<>();
         String line;
         while ( ( line = reader.readLine() ) != null ) {
             lines.add( line );
         }
+        return lines;
+    }
+
+    @Test
+    public void testParseMessageWithoutPayload() throws IOException
+    {
+        final List<String> lines = readExampleLines();
 
         final InMemoryHostIdManager hostIdManager =
                 new InMemoryHostIdManager( new Configuration(), new EventBus() );
@@ -62,4 +76,64 @@ public class ParserTest
         }
         System.out.println("BUFFER: "+storage.buffer);
     }
+
+    @Test
+    public void testByteParserProducesSameMessages() throws IOException
+    {
+        final List<String> lines = readExampleLines();
+        lines.addAll( Arrays.asList(
+            "<165>1 2003-10-11T22:14:15.003Z mymachine.example.com evntslog - ID47 [exampleSDID@32473 iut=\"3\" eventSource=\"Application\" eventID=\"1011\"][examplePriority@32473 class=\"high\"] An application event log entry",
+            "<13>1 - - - - - -",
+            "<13>1 2019-08-14T07:02:47.1-05:30 host app 42 msg [a@1 k=\"wert \u00e4\u00f6\u00fc\" e=\"\"]   h\u00e9llo w\u00f6rld \u2028\t",
+            "<0>1 2019-08-14T07:02:47+00:00 host app - - - \u00a0nbsp\u00a0",
+            "<13>1 2019-08-14T07:02:47Z host - - - -",
+            "<13>1 2019-08-14T07:02:47Z host - - - -]trailing garbage",
+            // errors
+            "",
+            "<192>1 - - - - - -",
+            "<13>1 2019-13-14T07:02:47Z host - - - -",
+            "<13>1 2019-08-14T07:02:47Z h\u00f6st - - - -",
+            "<13>1 - - - - - [a=b]",
+            "<13>1 - - - - - [a b=c",
+            "<13>1 - - - - - x",
+            "<13>1 - -" ) );
+
+        final InMemoryHostIdManager hostIdManager = new InMemoryHostIdManager( new Configuration(), new EventBus() );
+        final List<String> expected = new ArrayList<>();
+        final List<String> actual = new ArrayList<>();
+        final ILogParser streamParser = new RFC5424Parser( hostIdManager, msg -> expected.add( toString( msg ) ) );
+        final ILogParser byteParser = new RFC5424ByteParser( hostIdManager, msg -> actual.add( toString( msg ) ) );
+
+        final InetAddress localhost = InetAddress.getLocalHost();
+        for ( String line : lines )
+        {
+            final byte[] data = line.getBytes( StandardCharsets.UTF_8 );
+            try {
+                streamParser.parse( localhost, new ByteArrayInputStream( data ) );
+            } catch(RuntimeException e) {
+                expected.add( e.toString() );
+            }
+            try {
+                byteParser.parse( localhost, ByteBuffer.wrap( data ) );
+            } catch(RuntimeException e) {
+                actual.add( e.toString() );
+            }
+            final ByteBuffer direct = ByteBuffer.allocateDirect( data.length + 2 );
+            direct.put( (byte) 'x' ).put( data ).put( (byte) 'x' ).flip();
+            direct.position( 1 ).limit( data.length + 1 );
+            try {
+                byteParser.parse( localhost, direct );
+            } catch(RuntimeException e) {
+                actual.add( e.toString() );
+            }
+            expected.add( expected.get( expected.size() - 1 ) );
+        }
+        assertEquals( expected, actual );
+    }
+
+    private static String toString(SyslogMessage msg)
+    {
+        return msg.priority+"|"+msg.getTimestamp()+"|"+msg.host.id+"|"+msg.hostName+"|"+msg.appName+"|"+msg.procId+"|"+
+                   msg.msgId+"|"+msg.getParameters()+"|"+msg.message;
+    }
 }
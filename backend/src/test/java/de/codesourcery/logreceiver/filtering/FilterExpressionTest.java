@@ -0,0 +1,103 @@
+package de.codesourcery.logreceiver.filtering;
+
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FilterExpressionTest
+{
+    private static SyslogMessage message(int priority, String appName, String text)
+    {
+        final SyslogMessage msg = new SyslogMessage();
+        msg.priority = (short) priority;
+        msg.appName = appName;
+        msg.message = text;
+        return msg;
+    }
+
+    private static CompiledFilter compile(String expression) {
+        return FilterExpression.parse( expression ).compile( msg -> msg.appName + ": " + msg.message );
+    }
+
+    @Test
+    public void testFullyPushedDown()
+    {
+        final CompiledFilter filter = compile( "( pri = 1 | pri = 2) && msg ~ 'dummy'" );
+        assertEquals( "((priority = ?) OR (priority = ?)) AND (msg ILIKE ?)", filter.sqlCondition );
+        assertEquals( List.of( 1, 2, "%dummy%" ), filter.sqlParameters );
+        assertNull( filter.residual );
+
+        assertTrue( filter.predicate.test( message( 2, "app", "a DUMMY message" ) ) );
+        assertFalse( filter.predicate.test( message( 3, "app", "a dummy message" ) ) );
+        assertFalse( filter.predicate.test( message( 1, "app", "something else" ) ) );
+    }
+
+    @Test
+    public void testOperators()
+    {
+        CompiledFilter filter = compile( "sev <= 3 & app in (sshd, 'cron') & !msg ~ 'fo+'" );
+        assertEquals( "((priority & 7) <= ?) AND (app_name IN (?,?)) AND (NOT coalesce(msg ~* ?, false))", filter.sqlCondition );
+        assertEquals( List.of( 3, "sshd", "cron", "fo+" ), filter.sqlParameters );
+        assertTrue( filter.predicate.test( message( 8+3, "cron", "bar" ) ) );
+        assertFalse( filter.predicate.test( message( 8+4, "cron", "bar" ) ) );
+        assertFalse( filter.predicate.test( message( 8+3, "other", "bar" ) ) );
+        assertFalse( filter.predicate.test( message( 8+3, "cron", "fooo" ) ) );
+
+        filter = compile( "app != 'cron'" );
+        assertEquals( "NOT coalesce(app_name = ?, false)", filter.sqlCondition );
+        assertTrue( filter.predicate.test( message( 1, null, "x" ) ) );
+    }
+
+    @Test
+    public void testFullText()
+    {
+        final CompiledFilter filter = compile( "msg @ 'Login  FAILED'" );
+        assertEquals( "to_tsvector('simple', coalesce(msg,'')) @@ plainto_tsquery('simple', ?)", filter.sqlCondition );
+        assertEquals( List.of( "Login  FAILED" ), filter.sqlParameters );
+        assertNull( filter.residual );
+        assertTrue( filter.predicate.test( message( 1, "sshd", "failed login for root" ) ) );
+        assertFalse( filter.predicate.test( message( 1, "sshd", "failedlogin for root" ) ) );
+    }
+
+    @Test
+    public void testResidual()
+    {
+        // formatted text can only be matched in Java
+        CompiledFilter filter = compile( "pri = 1 && 'sshd: .*failed'" );
+        assertEquals( "(priority = ?)", filter.sqlCondition );
+        assertNotNull( filter.residual );
+        assertTrue( filter.residual.test( message( 1, "sshd", "login failed" ) ) );
+        assertFalse( filter.residual.test( message( 1, "cron", "login failed" ) ) );
+
+        // OR with a part that needs Java cannot be restricted by the database
+        filter = compile( "pri = 1 | 'failed'" );
+        assertNull( filter.sqlCondition );
+        assertTrue( filter.residual.test( message( 2, "sshd", "login failed" ) ) );
+        assertTrue( filter.residual.test( message( 1, "sshd", "ok" ) ) );
+        assertFalse( filter.residual.test( message( 2, "sshd", "ok" ) ) );
+    }
+
+    @Test
+    public void testInvalidExpressions()
+    {
+        for ( String expr : new String[] { "error", "pri ~ 'x'", "msg < 'x'", "(pri = 1", "pri = 'x'", "msg ~ '('", "'unterminated", "app @ 'x'" } )
+        {
+            try
+            {
+                FilterExpression.parse( expr );
+                fail( "Should have failed: "+expr );
+            }
+            catch(IllegalArgumentException e) {
+                // ok
+            }
+        }
+    }
+}
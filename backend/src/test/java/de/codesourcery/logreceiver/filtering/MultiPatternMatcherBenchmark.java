@@ -0,0 +1,103 @@
+package de.codesourcery.logreceiver.filtering;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Compares evaluating every subscription regex against a formatted line with {@link MultiPatternMatcher}.
+ *
+ * Run with <code>main()</code> from the IDE (test classpath).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultiPatternMatcherBenchmark
+{
+    private static final String[] WORDS = { "connection", "from", "closed", "session", "opened", "user", "root",
+        "failed", "password", "accepted", "port", "ssh2", "disconnected", "invalid", "timeout", "error" };
+
+    @Param({ "1", "100", "1000" })
+    public int subscriptions;
+
+    private final Random random = new Random( 0xdeadbeef );
+
+    private String[] lines;
+    private List<Pattern> patterns;
+    private MultiPatternMatcher<Pattern> matcher;
+
+    private long sink;
+
+    @Setup
+    public void setup()
+    {
+        patterns = new ArrayList<>();
+        for (int i = 0; i < subscriptions; i++)
+        {
+            // like users would write them: some words with a unique token, e.g. a host or user name
+            final String word = WORDS[ random.nextInt( WORDS.length ) ];
+            patterns.add( Pattern.compile( ".*" + word + ".*id" + i + "\\b.*" ) );
+        }
+        matcher = new MultiPatternMatcher<>( patterns, p -> p );
+
+        lines = new String[ 1000 ];
+        for (int i = 0; i < lines.length; i++)
+        {
+            final StringBuilder line = new StringBuilder( "2019-05-17T11:59:59Z myhost sshd[1234]: " );
+            for (int j = 0; j < 12; j++) {
+                line.append( WORDS[ random.nextInt( WORDS.length ) ] ).append( ' ' );
+            }
+            line.append( "id" ).append( random.nextInt( subscriptions * 10 ) );
+            lines[ i ] = line.toString();
+        }
+    }
+
+    @Benchmark
+    public long regexPerSubscription()
+    {
+        for (String line : lines)
+        {
+            for (Pattern pattern : patterns)
+            {
+                if ( pattern.matcher( line ).matches() ) {
+                    sink++;
+                }
+            }
+        }
+        return sink;
+    }
+
+    @Benchmark
+    public long multiPatternMatcher()
+    {
+        for (String line : lines) {
+            matcher.match( line, p -> sink++ );
+        }
+        return sink;
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner( new OptionsBuilder().include( MultiPatternMatcherBenchmark.class.getSimpleName() ).build() ).run();
+    }
+}
@@ -0,0 +1,72 @@
+package de.codesourcery.logreceiver.filtering;
+
+import de.codesourcery.logreceiver.util.AhoCorasick;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+public class MultiPatternMatcherTest
+{
+    @Test
+    public void testAhoCorasick()
+    {
+        final AhoCorasick automaton = new AhoCorasick( List.of( "he", "she", "his", "hers" ) );
+        final List<Integer> found = new ArrayList<>();
+        automaton.search( "ushers", found::add );
+        assertEquals( List.of( 1, 0, 3 ), found );
+    }
+
+    @Test
+    public void testRequiredLiterals()
+    {
+        assertEquals( List.of( "sshd: ", "failed" ), MultiPatternMatcher.requiredLiterals( "sshd: .*failed.*" ) );
+        assertEquals( List.of(), MultiPatternMatcher.requiredLiterals( ".*(?:error|ERROR).*|.*error.*" ) );
+        assertEquals( List.of(), MultiPatternMatcher.requiredLiterals( "a|b" ) );
+        assertEquals( List.of( "x", "code=" ), MultiPatternMatcher.requiredLiterals( "x(?:a|b)code=\\d+" ) );
+        assertEquals( List.of( "ab", "cd" ), MultiPatternMatcher.requiredLiterals( "ab+c?cd" ) );
+        assertEquals( List.of( "1.2", "port" ), MultiPatternMatcher.requiredLiterals( "\\Q1.2\\E.*(port)+(opt)?(?=look)" ) );
+        assertEquals( List.of( "a", "b" ), MultiPatternMatcher.requiredLiterals( "a[bc]*b{1,3}x{0,2}" ) );
+        assertEquals( List.of(), MultiPatternMatcher.requiredLiterals( "(?i)error" ) );
+        assertEquals( List.of(), MultiPatternMatcher.requiredLiterals( ".*" ) );
+    }
+
+    @Test
+    public void testMatchesLikeRegex()
+    {
+        final String[] regexes = { ".*failed.*", "sshd: .*", ".*(root|admin).*", ".*port \\d+.*", ".*", "cron\\[\\d+\\]: .*",
+            ".*fail(ed)? password.*", "(?i).*FAILED.*", ".*user [a-z]+ .*session.*", ".*\\bopened\\b.*" };
+        final String[] words = { "sshd:", "cron[12]:", "failed", "fail", "password", "root", "admin", "port", "22", "user",
+            "bob", "session", "opened", "FAILED" };
+
+        final List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < regexes.length; i++) {
+            items.add( i );
+        }
+        final MultiPatternMatcher<Integer> matcher = new MultiPatternMatcher<>( items, i -> Pattern.compile( regexes[ i ] ) );
+
+        final Random random = new Random( 0xdeadbeef );
+        for (int i = 0; i < 10_000; i++)
+        {
+            final StringBuilder text = new StringBuilder();
+            for (int j = random.nextInt( 8 ); j > 0; j--) {
+                text.append( words[ random.nextInt( words.length ) ] ).append( random.nextBoolean() ? " " : "" );
+            }
+            final TreeSet<Integer> expected = new TreeSet<>();
+            for (int j = 0; j < regexes.length; j++)
+            {
+                if ( Pattern.compile( regexes[ j ] ).matcher( text ).matches() ) {
+                    expected.add( j );
+                }
+            }
+            final List<Integer> actual = new ArrayList<>();
+            matcher.match( text, actual::add );
+            assertEquals( text.toString(), new ArrayList<>( expected ), actual );
+        }
+    }
+}
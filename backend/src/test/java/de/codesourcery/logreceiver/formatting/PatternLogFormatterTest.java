@@ -9,8 +9,12 @@ import java.net.Inet4Address;
 import java.net.UnknownHostException;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 public class PatternLogFormatterTest
@@ -57,6 +61,48 @@ public class PatternLogFormatterTest
         assertThrows( () -> eval( "test%1" ) );
     }
 
+    @Test
+    public void testFormatMemo() throws UnknownHostException
+    {
+        final SyslogMessage msg = testMessage();
+        final List<SyslogMessage> messages = List.of( msg );
+        FormatMemo.attach( messages );
+
+        final String text = PatternLogFormatter.ofPattern( "%a: %t" ).format( msg );
+        assertEquals( "app: message", text );
+        assertSame( text, PatternLogFormatter.ofPattern( "%a: %t" ).format( msg ) );
+        assertEquals( "message", PatternLogFormatter.ofPattern( "%t" ).format( msg ) );
+
+        FormatMemo.detach( messages );
+        msg.appName = "other";
+        assertEquals( "other: message", PatternLogFormatter.ofPattern( "%a: %t" ).format( msg ) );
+    }
+
+    @Test
+    public void testFormatToMatchesJavaTime() throws UnknownHostException
+    {
+        final PatternLogFormatter formatter = PatternLogFormatter.ofPattern( "%Y-%m-%d %H:%M:%s.%S%Z %p" );
+        final DateTimeFormatter expected = DateTimeFormatter.ofPattern( "yyyy-MM-dd HH:mm:ss." );
+        final SyslogMessage msg = testMessage();
+        final StringBuilder buffer = new StringBuilder();
+        final Random random = new Random( 0xdeadbeef );
+        for (int i = 0; i < 10_000; i++)
+        {
+            final long epochSeconds = -2_000_000_000L + (long) (random.nextDouble() * 6_000_000_000L);
+            final int offsetSeconds = ( random.nextInt( 28 * 4 ) - 14 * 4 ) * 15 * 60;
+            final int nanos = random.nextInt( 1_000_000_000 );
+            msg.setTimestamp( epochSeconds, nanos, offsetSeconds );
+            msg.priority = (short) random.nextInt( 192 );
+
+            final ZonedDateTime ts = msg.getTimestamp();
+            final String tz = ( offsetSeconds < 0 ? "-" : "+" ) + String.format( "%02d%02d", Math.abs( offsetSeconds ) / 3600, Math.abs( offsetSeconds ) / 60 % 60 );
+            buffer.setLength( 0 );
+            buffer.append( "prefix " );
+            formatter.formatTo( msg, buffer );
+            assertEquals( "prefix " + expected.format( ts ) + nanos + tz + " " + String.format( "%03d", msg.priority ), buffer.toString() );
+        }
+    }
+
     private void assertThrows(Throwing r)
     {
         try {
@@ -89,8 +135,8 @@ public class PatternLogFormatterTest
         final SyslogMessage msg = new SyslogMessage();
 
         final ZoneId zoneId = ZoneId.of( "UTC-0330");
-        msg.timestamp = ZonedDateTime.of( 1974, 12, 11,
-                                          10, 9, 8, 7, zoneId );
+        msg.setTimestamp( ZonedDateTime.of( 1974, 12, 11,
+                                          10, 9, 8, 7, zoneId ) );
 
         msg.priority = 123;
         msg.procId = "procid";
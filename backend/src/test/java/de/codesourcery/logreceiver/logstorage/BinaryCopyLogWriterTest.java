@@ -0,0 +1,129 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SDParam;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import org.junit.Before;
+import org.junit.Test;
+import org.postgresql.copy.CopyIn;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BinaryCopyLogWriterTest
+{
+    private byte[] row;
+    private BinaryCopyLogWriter writer;
+    private SyslogMessage msg;
+
+    @Before
+    public void setup()
+    {
+        writer = new BinaryCopyLogWriter( (message, data) -> row = data.toByteArray() );
+        msg = new SyslogMessage();
+        msg.host = new Host();
+        msg.host.id = 42;
+        msg.setTimestamp( ZonedDateTime.of( 2019, 8, 18, 23, 40, 18, 123, ZoneOffset.ofHours( 2 ) ) );
+    }
+
+    private static String readText(DataInputStream in) throws IOException
+    {
+        final int len = in.readInt();
+        if ( len == -1 ) {
+            return null;
+        }
+        final byte[] data = new byte[len];
+        in.readFully( data );
+        return new String( data, StandardCharsets.UTF_8 );
+    }
+
+    @Test
+    public void testEncodeRow() throws IOException
+    {
+        msg.priority = 123;
+        msg.appName = "app";
+        msg.procId = "";
+        msg.message = "h\u00e9llo";
+        writer.store( msg );
+
+        final DataInputStream in = new DataInputStream( new ByteArrayInputStream( row ) );
+        assertEquals( 9, in.readShort() );
+        assertEquals( 2, in.readInt() );
+        assertEquals( 123, in.readShort() );
+        assertEquals( 8, in.readInt() );
+        final long micros = in.readLong();
+        assertEquals( ZonedDateTime.of( 2019, 8, 18, 21, 40, 18, 0, ZoneOffset.UTC ),
+            ZonedDateTime.of( 2000, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC ).plusNanos( micros * 1000 ) );
+        assertEquals( 4, in.readInt() );
+        assertEquals( 123, in.readInt() );
+        assertEquals( 8, in.readInt() );
+        assertEquals( 42, in.readLong() );
+        assertEquals( "app", readText( in ) );
+        assertNull( readText( in ) ); // proc_id
+        assertNull( readText( in ) ); // msg_id
+        assertNull( readText( in ) ); // params
+        assertEquals( "h\u00e9llo", readText( in ) );
+        assertEquals( 0, in.available() );
+    }
+
+    @Test
+    public void testWriteRowWithEntryId() throws Exception
+    {
+        msg.message = "x";
+        writer.store( msg );
+        final CopyBuffer data = new CopyBuffer();
+        data.put( new byte[] { 1, 2, 3 } ).put( row );
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final CopyIn copyIn = (CopyIn) Proxy.newProxyInstance( getClass().getClassLoader(), new Class<?>[] { CopyIn.class }, (proxy, method, args) ->
+        {
+            if ( method.getName().equals( "writeToCopy" ) ) {
+                out.write( (byte[]) args[0], (int) args[1], (int) args[2] );
+                return null;
+            }
+            throw new UnsupportedOperationException( method.toString() );
+        });
+        CopyFormat.BINARY.writeRow( copyIn, 4711, data, 3, row.length, new CopyBuffer() );
+
+        final DataInputStream in = new DataInputStream( new ByteArrayInputStream( out.toByteArray() ) );
+        assertEquals( 10, in.readShort() );
+        assertEquals( 8, in.readInt() );
+        assertEquals( 4711, in.readLong() );
+        assertEquals( 2, in.readInt() ); // priority
+        assertEquals( row.length - 2 - 4, in.available() ); // rest of the original tuple
+    }
+
+    @Test
+    public void testParamsAreValidJson() throws IOException
+    {
+        final SDParam param1 = new SDParam( "id1" );
+        param1.addParam( "key\"1", "value\n1" );
+        msg.addParam( param1 );
+        msg.addParam( new SDParam( "id2" ) );
+        writer.store( msg );
+
+        final DataInputStream in = new DataInputStream( new ByteArrayInputStream( row ) );
+        in.skipBytes( 2 + 6 + 12 + 8 + 12 + 4 + 4 + 4 );
+        final int len = in.readInt();
+        assertEquals( 1, in.readByte() ); // jsonb version
+        final byte[] json = new byte[ len - 1 ];
+        in.readFully( json );
+
+        final JsonNode data = new ObjectMapper().readTree( json ).get( "data" );
+        assertEquals( 2, data.size() );
+        assertEquals( "id2", data.get( 0 ).get( "id" ).asText() );
+        assertEquals( "id1", data.get( 1 ).get( "id" ).asText() );
+        assertEquals( "value\n1", data.get( 1 ).get( "params" ).get( "key\"1" ).asText() );
+    }
+}
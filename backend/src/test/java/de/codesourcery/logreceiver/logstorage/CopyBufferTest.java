@@ -0,0 +1,37 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CopyBufferTest
+{
+    @Test
+    public void testUTF8Encoding()
+    {
+        final String s = "ascii \u00e4\u00f6\u00fc \u20ac \ud83d\ude00 end";
+        final CopyBuffer buffer = new CopyBuffer( 1 );
+        buffer.appendUTF8( s );
+        assertArrayEquals( s.getBytes( StandardCharsets.UTF_8 ), buffer.toByteArray() );
+    }
+
+    @Test
+    public void testUnpairedSurrogateIsReplaced()
+    {
+        final CopyBuffer buffer = new CopyBuffer();
+        buffer.appendUTF8( "a\ud83db" );
+        assertEquals( "a?b", buffer.toString() );
+    }
+
+    @Test
+    public void testBigEndianNumbers()
+    {
+        final CopyBuffer buffer = new CopyBuffer();
+        buffer.putShort( 0x0102 ).putInt( 0x03040506 ).putLong( 0x0708090a0b0c0d0eL );
+        buffer.setInt( 2, -1 );
+        assertArrayEquals( new byte[] { 1,2,-1,-1,-1,-1,7,8,9,10,11,12,13,14 }, buffer.toByteArray() );
+    }
+}
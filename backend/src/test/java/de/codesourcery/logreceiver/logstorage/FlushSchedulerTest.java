@@ -0,0 +1,85 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FlushSchedulerTest
+{
+    private FlushScheduler scheduler;
+
+    @After
+    public void tearDown() throws InterruptedException
+    {
+        if ( scheduler != null ) {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testFlushesAfterInterval() throws InterruptedException
+    {
+        scheduler = new FlushScheduler( Duration.ofMillis( 50 ), 2 );
+        final CountDownLatch latch = new CountDownLatch( 3 );
+        scheduler.register( "test", timedOut -> {
+            assertTrue( timedOut );
+            latch.countDown();
+            return true;
+        });
+        assertTrue( latch.await( 5, TimeUnit.SECONDS ) );
+    }
+
+    @Test
+    public void testRequestedFlushRunsImmediately() throws InterruptedException
+    {
+        scheduler = new FlushScheduler( Duration.ofHours( 1 ), 1 );
+        final CountDownLatch latch = new CountDownLatch( 1 );
+        final FlushScheduler.Slot slot = scheduler.register( "test", timedOut -> {
+            assertFalse( timedOut );
+            latch.countDown();
+            return true;
+        });
+        slot.requestFlush( 1024 );
+        assertTrue( latch.await( 5, TimeUnit.SECONDS ) );
+    }
+
+    @Test
+    public void testUnregisterWaitsForRunningFlush() throws InterruptedException
+    {
+        scheduler = new FlushScheduler( Duration.ofHours( 1 ), 1 );
+        final CountDownLatch started = new CountDownLatch( 1 );
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger flushes = new AtomicInteger();
+        final FlushScheduler.Slot slot = scheduler.register( "test", timedOut -> {
+            running.incrementAndGet();
+            started.countDown();
+            try {
+                Thread.sleep( 200 );
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flushes.incrementAndGet();
+            running.decrementAndGet();
+            return true;
+        });
+        slot.requestFlush( 1024 );
+        assertTrue( started.await( 5, TimeUnit.SECONDS ) );
+        slot.unregister();
+        assertEquals( 0, running.get() );
+        assertEquals( 1, flushes.get() );
+
+        // no more flushes after unregistering
+        slot.requestFlush( 1024 );
+        Thread.sleep( 100 );
+        assertEquals( 1, flushes.get() );
+        assertEquals( 0, scheduler.getScheduledCount() );
+    }
+}
@@ -0,0 +1,38 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HostRoutingTableTest
+{
+    @Test
+    public void testGetOrCreate()
+    {
+        final HostRoutingTable table = new HostRoutingTable( 16 );
+        assertNull( table.get( 1 ) );
+        for ( long id = 1 ; id <= 1000 ; id++ ) {
+            assertEquals( id, table.getOrCreate( id ).hostId );
+        }
+        assertEquals( 1000, table.size() );
+        for ( long id = 1 ; id <= 1000 ; id++ ) {
+            assertSame( table.get( id ), table.getOrCreate( id ) );
+        }
+        assertNull( table.get( 1001 ) );
+        assertNull( table.get( -1 ) );
+    }
+
+    @Test
+    public void testPartitionRange()
+    {
+        final HostRoutingTable.Partition p = new HostRoutingTable.Partition( 100, 200, null );
+        assertFalse( p.contains( 99 ) );
+        assertTrue( p.contains( 100 ) );
+        assertTrue( p.contains( 199 ) );
+        assertFalse( p.contains( 200 ) );
+    }
+}
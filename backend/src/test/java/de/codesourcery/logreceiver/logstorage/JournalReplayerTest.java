@@ -0,0 +1,24 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JournalReplayerTest
+{
+    @Test
+    public void testIsDataError()
+    {
+        assertTrue( JournalReplayer.isDataError( new SQLException( "invalid byte sequence", "22021" ) ) );
+        assertTrue( JournalReplayer.isDataError( new SQLException( "duplicate key", "23505" ) ) );
+        assertTrue( JournalReplayer.isDataError( new RuntimeException( new SQLException( "not null", "23502" ) ) ) );
+
+        assertFalse( JournalReplayer.isDataError( new SQLTransientConnectionException( "connection refused", "08001" ) ) );
+        assertFalse( JournalReplayer.isDataError( new SQLException( "no state" ) ) );
+        assertFalse( JournalReplayer.isDataError( new IllegalStateException( "Unknown host" ) ) );
+    }
+}
@@ -0,0 +1,107 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class JournalTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static CopyBuffer row(String text) {
+        return new CopyBuffer().appendUTF8( text );
+    }
+
+    private static long append(Journal journal, String text, boolean spilled)
+    {
+        final CopyBuffer data = row( text );
+        final long position = journal.append( "logs_test", CopyFormat.TEXT, 42, data, 0, data.length(), spilled );
+        assertNotEquals( Journal.NO_POSITION, position );
+        return position;
+    }
+
+    private static List<String> replayable(Journal journal)
+    {
+        final List<String> result = new ArrayList<>();
+        for ( Journal.Segment segment : journal.getSegments() )
+        {
+            journal.visitReplayableRecords( segment, (position, tableName, format, hostId, payload, payloadLength) -> {
+                assertEquals( "logs_test", tableName );
+                assertEquals( CopyFormat.TEXT, format );
+                assertEquals( 42, hostId );
+                result.add( new CopyBuffer().put( payload, payloadLength ).toString() );
+            });
+        }
+        return result;
+    }
+
+    @Test
+    public void testOnlySpilledRecordsAreReplayed() throws IOException
+    {
+        final Journal journal = new Journal( folder.newFolder(), 4096, 4 );
+        final long buffered = append( journal, "buffered", false );
+        final long spilled = append( journal, "spilled", true );
+        assertEquals( 1, journal.getPendingReplay() );
+        assertEquals( List.of( "spilled" ), replayable( journal ) );
+
+        journal.markSpilled( buffered );
+        assertEquals( 2, journal.getPendingReplay() );
+        assertEquals( List.of( "buffered", "spilled" ), replayable( journal ) );
+
+        journal.ack( buffered );
+        journal.ack( spilled );
+        assertEquals( 0, journal.getPendingReplay() );
+        assertEquals( List.of(), replayable( journal ) );
+    }
+
+    @Test
+    public void testUnacknowledgedRecordsAreRecovered() throws IOException
+    {
+        final File dir = folder.newFolder();
+        Journal journal = new Journal( dir, 4096, 4 );
+        final long first = append( journal, "first", false );
+        append( journal, "second", false );
+        journal.ack( first );
+        journal.sync();
+
+        journal = new Journal( dir, 4096, 4 );
+        assertEquals( 1, journal.getPendingReplay() );
+        assertEquals( List.of( "second" ), replayable( journal ) );
+
+        // new records go to a fresh segment
+        append( journal, "third", false );
+        assertEquals( 2, journal.getSegmentCount() );
+        assertEquals( List.of( "second" ), replayable( journal ) );
+    }
+
+    @Test
+    public void testAcknowledgedSegmentsAreDeleted() throws IOException
+    {
+        final File dir = folder.newFolder();
+        final Journal journal = new Journal( dir, 128, 2 );
+        final List<Long> positions = new ArrayList<>();
+        // each record takes 16+9+32 bytes, two fit into a segment
+        for ( int i = 0 ; i < 4 ; i++ ) {
+            positions.add( append( journal, String.format( "%032d", i ), false ) );
+        }
+        assertEquals( 2, journal.getSegmentCount() );
+
+        // journal full
+        final CopyBuffer data = row( "x" );
+        assertEquals( Journal.NO_POSITION, journal.append( "logs_test", CopyFormat.TEXT, 42, data, 0, data.length(), false ) );
+
+        journal.ack( positions.get( 0 ) );
+        journal.ack( positions.get( 1 ) );
+        assertEquals( 1, journal.getSegmentCount() );
+        assertEquals( 1, dir.listFiles().length );
+    }
+}
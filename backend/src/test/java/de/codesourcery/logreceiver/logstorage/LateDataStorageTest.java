@@ -0,0 +1,42 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LateDataStorageTest
+{
+    @Test
+    public void testIsLate() throws InterruptedException
+    {
+        final Configuration config = new Configuration();
+        config.hoursPerPartition = 4;
+        config.lateMessageSkew = Duration.ofMinutes( 5 );
+        final LateDataStorage storage = new LateDataStorage( null, config, null, null );
+        try
+        {
+            final long now = System.currentTimeMillis() / 1000;
+            final long currentStart = PartitionDDL.partitionStart( now, config );
+            final long nextStart = currentStart + 4*3600;
+
+            assertFalse( storage.isLate( now ) );
+            assertFalse( storage.isLate( currentStart ) );
+            assertFalse( storage.isLate( nextStart ) );
+            assertFalse( storage.isLate( nextStart + 4*3600 - 1 ) );
+            assertTrue( storage.isLate( nextStart + 4*3600 ) );
+            assertTrue( storage.isLate( currentStart - 4*3600 - 1 ) );
+            assertTrue( storage.isLate( now - 86400 ) );
+            // within skew after the partition boundary
+            assertEquals( now - currentStart >= 300, storage.isLate( currentStart - 1 ) );
+        }
+        finally
+        {
+            storage.shutdown();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.util.DateUtils;
+import de.codesourcery.logreceiver.util.Interval;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Statement;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class PartitionDDLTest
+{
+    private static long epochSeconds(String isoDateTime) {
+        return ZonedDateTime.parse( isoDateTime ).toEpochSecond();
+    }
+
+    @Test
+    public void testPartitionStart()
+    {
+        final Configuration config = new Configuration();
+        config.hoursPerPartition = 4;
+
+        assertEquals( epochSeconds( "2019-05-17T08:00:00Z" ), PartitionDDL.partitionStart( epochSeconds( "2019-05-17T11:59:59Z" ), config ) );
+        assertEquals( epochSeconds( "2019-05-17T12:00:00Z" ), PartitionDDL.partitionStart( epochSeconds( "2019-05-17T12:00:00Z" ), config ) );
+        assertEquals( epochSeconds( "1969-12-31T20:00:00Z" ), PartitionDDL.partitionStart( -1, config ) );
+    }
+
+    @Test
+    public void testPartitionInterval()
+    {
+        final Configuration config = new Configuration();
+        config.hoursPerPartition = 4;
+
+        final Interval interval = PartitionDDL.partitionInterval( epochSeconds( "2019-05-17T20:00:00Z" ), config );
+        assertEquals( ZonedDateTime.of( 2019, 5, 17, 20, 0, 0, 0, DateUtils.UTC ), interval.start );
+        assertEquals( ZonedDateTime.of( 2019, 5, 18, 0, 0, 0, 0, DateUtils.UTC ), interval.end );
+    }
+
+    @Test
+    public void testSealPartition() throws Exception
+    {
+        final Configuration config = new Configuration();
+        config.logTsIndex = PartitionDDL.IndexType.BRIN;
+        config.entryIdIndex = PartitionDDL.IndexType.NONE;
+        config.sealedLogTsIndex = null;
+        config.sealedEntryIdIndex = PartitionDDL.IndexType.BTREE;
+
+        final List<String> sql = new ArrayList<>();
+        final Statement stmt = (Statement) Proxy.newProxyInstance( getClass().getClassLoader(), new Class<?>[] { Statement.class }, (proxy, method, args) ->
+        {
+            if ( method.getName().equals( "execute" ) ) {
+                sql.add( (String) args[0] );
+                return false;
+            }
+            throw new UnsupportedOperationException( method.toString() );
+        });
+
+        PartitionDDL.sealPartition( stmt, "logs_host_part", config );
+        assertEquals( List.of(
+            "CREATE INDEX IF NOT EXISTS logs_host_part_log_ts_brin ON logs_host_part USING brin (log_ts)",
+            "CREATE INDEX IF NOT EXISTS logs_host_part_entry_id_btree ON logs_host_part USING btree (entry_id)" ), sql );
+
+        sql.clear();
+        config.entryIdIndex = PartitionDDL.IndexType.BRIN;
+        PartitionDDL.sealPartition( stmt, "logs_host_part", config );
+        assertEquals( "DROP INDEX IF EXISTS logs_host_part_entry_id_brin", sql.get( 2 ) );
+    }
+}
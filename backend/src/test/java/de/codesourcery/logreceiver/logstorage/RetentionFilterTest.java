@@ -0,0 +1,61 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RetentionFilterTest
+{
+    private final List<SyslogMessage> stored = new ArrayList<>();
+    private final AtomicLong expired = new AtomicLong();
+
+    private RetentionFilter filter(RetentionFilter.Policy policy)
+    {
+        final Configuration config = new Configuration();
+        config.expiredMessagePolicy = policy;
+        return new RetentionFilter( msg -> stored.add( msg.copy() ), config, expired );
+    }
+
+    private static SyslogMessage message(long ageSeconds)
+    {
+        final Host host = new Host();
+        host.id = 1;
+        host.dataRetentionTime = Duration.ofDays( 1 );
+        final SyslogMessage msg = new SyslogMessage();
+        msg.host = host;
+        msg.setTimestamp( System.currentTimeMillis() / 1000 - ageSeconds, 123, 3600 );
+        return msg;
+    }
+
+    @Test
+    public void testDrop()
+    {
+        final RetentionFilter filter = filter( RetentionFilter.Policy.DROP );
+        filter.store( message( 3600 ) );
+        filter.store( message( 2*86400 ) );
+        assertEquals( 1, stored.size() );
+        assertEquals( 1, expired.get() );
+    }
+
+    @Test
+    public void testClamp()
+    {
+        final RetentionFilter filter = filter( RetentionFilter.Policy.CLAMP );
+        final long before = System.currentTimeMillis() / 1000;
+        filter.store( message( 2*86400 ) );
+        assertEquals( 1, stored.size() );
+        assertEquals( 1, expired.get() );
+        assertTrue( stored.get( 0 ).epochSeconds >= before );
+        assertEquals( 0, stored.get( 0 ).nanos );
+        assertEquals( 3600, stored.get( 0 ).offsetSeconds );
+    }
+}
@@ -0,0 +1,168 @@
+package de.codesourcery.logreceiver.logstorage;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.util.DataSourceFactory;
+import de.codesourcery.logreceiver.util.Interval;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.sql.DataSource;
+import java.net.InetAddress;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how {@link Host.SearchIndex} slows down COPYing rows and speeds up searching them.
+ *
+ * Needs a PostgreSQL database as configured by the {@link Configuration} defaults (and the pg_trgm extension),
+ * run with <code>main()</code> from the IDE (test classpath).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchIndexBenchmark
+{
+    private static final int INITIAL_ROWS = 200_000;
+    private static final int BATCH_ROWS = 10_000;
+
+    // one in 1000 messages contains this word
+    private static final String NEEDLE = "zyzzyva";
+
+    private static final String[] WORDS = { "connection", "from", "closed", "session", "opened", "user", "root",
+        "failed", "password", "accepted", "port", "ssh2", "disconnected", "invalid", "timeout", "error" };
+
+    @Param({ "NONE", "TRIGRAM", "FULLTEXT", "BOTH" })
+    public Host.SearchIndex searchIndex;
+
+    private final Random random = new Random( 0xdeadbeef );
+
+    private DataSource ds;
+    private Host host;
+    private String partitionName;
+    private long epochSeconds;
+    private CopyBuffer batch;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        final Configuration config = new Configuration();
+        ds = new DataSourceFactory( config ).getObject();
+
+        host = new Host();
+        host.id = 1;
+        host.ip = InetAddress.getLoopbackAddress();
+        host.hostName = "searchbench_"+searchIndex.name().toLowerCase();
+        host.searchIndex = searchIndex;
+
+        epochSeconds = System.currentTimeMillis() / 1000;
+        final long start = PartitionDDL.partitionStart( epochSeconds, config );
+        final Interval interval = PartitionDDL.partitionInterval( start, config );
+        partitionName = PartitionDDL.partitionName( host, interval, config );
+
+        execute( "DROP TABLE IF EXISTS "+PartitionDDL.parentTableName( host ) );
+        PartitionDDL.createTables( ds, host, partitionName, interval, config );
+        try ( Connection con = ds.getConnection() ) {
+            PartitionDDL.updateSearchIndexes( con, host, () -> false );
+        }
+
+        CopyBatcher.copyIn( ds, partitionName, CopyFormat.TEXT, rows( INITIAL_ROWS ) );
+        execute( "ANALYZE "+PartitionDDL.parentTableName( host ) );
+        batch = rows( BATCH_ROWS );
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException
+    {
+        execute( "DROP TABLE IF EXISTS "+PartitionDDL.parentTableName( host ) );
+    }
+
+    private CopyBuffer rows(int count)
+    {
+        final CopyBuffer buffer = new CopyBuffer();
+        final SQLLogWriter writer = new SQLLogWriter( (msg, sql) -> buffer.appendUTF8( sql ).put( (byte) SQLLogWriter.ROW_DELIMITER ), null );
+        final SyslogMessage msg = new SyslogMessage();
+        final StringBuilder text = new StringBuilder();
+        for ( int i = 0 ; i < count ; i++ )
+        {
+            text.setLength( 0 );
+            for ( int j = 0 ; j < 12 ; j++ ) {
+                text.append( WORDS[ random.nextInt( WORDS.length ) ] ).append( ' ' ).append( random.nextInt( 100_000 ) ).append( ' ' );
+            }
+            if ( random.nextInt( 1000 ) == 0 ) {
+                text.append( NEEDLE );
+            }
+            msg.reset();
+            msg.host = host;
+            msg.priority = 13;
+            msg.setTimestamp( epochSeconds, 0, 0 );
+            msg.appName = "sshd";
+            msg.message = text.toString();
+            writer.store( msg );
+        }
+        return buffer;
+    }
+
+    private void execute(String sql) throws SQLException
+    {
+        try ( Connection con = ds.getConnection() ; Statement stmt = con.createStatement() ) {
+            stmt.execute( sql );
+        }
+    }
+
+    private long count(String condition) throws SQLException
+    {
+        try ( Connection con = ds.getConnection() ; Statement stmt = con.createStatement() ;
+              ResultSet rs = stmt.executeQuery( "SELECT count(*) FROM "+PartitionDDL.parentTableName( host )+" WHERE "+condition ) )
+        {
+            rs.next();
+            return rs.getLong( 1 );
+        }
+    }
+
+    @Benchmark
+    public long ingest() throws SQLException {
+        return CopyBatcher.copyIn( ds, partitionName, CopyFormat.TEXT, batch );
+    }
+
+    @Benchmark
+    public long substringSearch() throws SQLException {
+        return count( "msg ILIKE '%"+NEEDLE+"%'" );
+    }
+
+    @Benchmark
+    public long regexSearch() throws SQLException {
+        return count( "msg ~* 'zyz+yva'" );
+    }
+
+    @Benchmark
+    public long wordSearch() throws SQLException {
+        return count( PartitionDDL.MSG_TSVECTOR+" @@ plainto_tsquery('simple', '"+NEEDLE+"')" );
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner( new OptionsBuilder().include( SearchIndexBenchmark.class.getSimpleName() ).build() ).run();
+    }
+}
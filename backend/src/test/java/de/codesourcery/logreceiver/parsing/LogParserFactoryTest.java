@@ -0,0 +1,46 @@
+package de.codesourcery.logreceiver.parsing;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.logstorage.ILogStorage;
+import de.codesourcery.logreceiver.logstorage.LogWriterFactory;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class LogParserFactoryTest
+{
+    @Test
+    public void testEachParserGetsItsOwnWriter()
+    {
+        for ( LogParserFactory.ParserType type : LogParserFactory.ParserType.values() )
+        {
+            final Configuration config = new Configuration();
+            config.parserType = type;
+
+            // writers are not thread-safe, receiver and parser threads must never share one
+            final List<ILogStorage> writers = new ArrayList<>();
+            final LogWriterFactory writerFactory = new LogWriterFactory( null, null, null, config )
+            {
+                @Override
+                public ILogStorage get()
+                {
+                    final ILogStorage writer = super.get();
+                    writers.add( writer );
+                    return writer;
+                }
+            };
+            final LogParserFactory factory = new LogParserFactory( writerFactory, null, config );
+            for ( int i = 0 ; i < 4 ; i++ ) {
+                factory.get();
+            }
+            final Map<ILogStorage,Boolean> distinct = new IdentityHashMap<>();
+            writers.forEach( w -> distinct.put( w, Boolean.TRUE ) );
+            assertEquals( 4, distinct.size() );
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package de.codesourcery.logreceiver.parsing;
+
+import de.codesourcery.logreceiver.ParserTest;
+import de.codesourcery.logreceiver.entity.Configuration;
+import de.codesourcery.logreceiver.storage.InMemoryHostIdManager;
+import de.codesourcery.logreceiver.util.EventBus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link RFC5424Parser} and {@link RFC5424ByteParser} on the messages from <code>example.txt</code>.
+ *
+ * Run with <code>main()</code> from the IDE (test classpath).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark
+{
+    private ByteBuffer[] packets;
+    private InetAddress sender;
+
+    private ILogParser streamParser;
+    private ILogParser byteParser;
+
+    private long sink;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        final List<String> lines = ParserTest.readExampleLines();
+        packets = new ByteBuffer[ lines.size() ];
+        for ( int i = 0 ; i < packets.length ; i++ ) {
+            packets[i] = ByteBuffer.wrap( lines.get(i).getBytes( StandardCharsets.UTF_8 ) );
+        }
+        sender = InetAddress.getLoopbackAddress();
+        final InMemoryHostIdManager hostManager = new InMemoryHostIdManager( new Configuration(), new EventBus() );
+        streamParser = new RFC5424Parser( hostManager, msg -> sink += msg.message.length() );
+        byteParser = new RFC5424ByteParser( hostManager, msg -> sink += msg.message.length() );
+    }
+
+    @Benchmark
+    public long streamParser() {
+        return parseAll( streamParser );
+    }
+
+    @Benchmark
+    public long byteParser() {
+        return parseAll( byteParser );
+    }
+
+    private long parseAll(ILogParser parser)
+    {
+        for ( ByteBuffer packet : packets )
+        {
+            packet.rewind();
+            parser.parse( sender, packet );
+        }
+        return sink;
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner( new OptionsBuilder().include( ParserBenchmark.class.getSimpleName() ).build() ).run();
+    }
+}
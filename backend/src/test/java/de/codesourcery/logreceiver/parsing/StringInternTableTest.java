@@ -0,0 +1,73 @@
+package de.codesourcery.logreceiver.parsing;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StringInternTableTest
+{
+    private static byte[] bytes(String s) {
+        return s.getBytes( StandardCharsets.US_ASCII );
+    }
+
+    @Test
+    public void testRepeatedTokensReturnCachedInstance()
+    {
+        final StringInternTable table = new StringInternTable( 16 );
+        final byte[] data = bytes( "xxsystemdxx" );
+
+        final String first = table.intern( data, 2, 7 );
+        assertEquals( "systemd", first );
+        assertSame( first, table.intern( data, 2, 7 ) );
+        assertSame( first, table.intern( new StringBuilder( "systemd" ) ) );
+
+        final StringInternTable.Statistics stats = table.getStatistics();
+        assertEquals( 2, stats.hits );
+        assertEquals( 1, stats.misses );
+        assertEquals( 1, stats.size );
+    }
+
+    @Test
+    public void testDistinctTokensWithSameLength()
+    {
+        final StringInternTable table = new StringInternTable( 16 );
+        final String a = table.intern( bytes( "kernel" ), 0, 6 );
+        final String b = table.intern( bytes( "upower" ), 0, 6 );
+        assertEquals( "kernel", a );
+        assertEquals( "upower", b );
+        assertSame( a, table.intern( bytes( "kernel" ), 0, 6 ) );
+        assertSame( b, table.intern( bytes( "upower" ), 0, 6 ) );
+    }
+
+    @Test
+    public void testLongTokensAreNotCached()
+    {
+        final StringInternTable table = new StringInternTable( 16 );
+        final StringBuilder token = new StringBuilder();
+        for ( int i = 0 ; i <= StringInternTable.MAX_TOKEN_LENGTH ; i++ ) {
+            token.append( 'a' );
+        }
+        final String first = table.intern( token );
+        assertEquals( token.toString(), first );
+        assertNotSame( first, table.intern( token ) );
+        assertEquals( 0, table.getStatistics().size );
+    }
+
+    @Test
+    public void testSizeIsBounded()
+    {
+        final StringInternTable table = new StringInternTable( 16 );
+        for ( int i = 0 ; i < 1000 ; i++ ) {
+            assertEquals( "token"+i, table.intern( new StringBuilder( "token"+i ) ) );
+        }
+        final StringInternTable.Statistics stats = table.getStatistics();
+        assertEquals( 16, stats.capacity );
+        assertTrue( stats.size <= 16 );
+        assertEquals( 1000 - stats.size, stats.evictions );
+    }
+}
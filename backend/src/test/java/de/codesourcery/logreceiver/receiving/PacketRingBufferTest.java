@@ -0,0 +1,174 @@
+package de.codesourcery.logreceiver.receiving;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PacketRingBufferTest
+{
+    private static ByteBuffer packet(String s) {
+        return ByteBuffer.wrap( s.getBytes( StandardCharsets.US_ASCII ) );
+    }
+
+    private static List<String> drain(PacketRingBuffer buffer)
+    {
+        final List<String> result = new ArrayList<>();
+        while ( buffer.poll( slot -> {
+            final byte[] data = new byte[ slot.data.remaining() ];
+            slot.data.get( data );
+            result.add( new String( data, StandardCharsets.US_ASCII ) );
+        }));
+        return result;
+    }
+
+    @Test
+    public void testCapacityIsRoundedUpToPowerOfTwo()
+    {
+        assertEquals( 1, new PacketRingBuffer( 1, 10, PacketRingBuffer.OverflowPolicy.DROP_NEWEST ).capacity() );
+        assertEquals( 4, new PacketRingBuffer( 3, 10, PacketRingBuffer.OverflowPolicy.DROP_NEWEST ).capacity() );
+        assertEquals( 8, new PacketRingBuffer( 8, 10, PacketRingBuffer.OverflowPolicy.DROP_NEWEST ).capacity() );
+    }
+
+    @Test
+    public void testFIFO() throws UnknownHostException
+    {
+        final InetAddress sender = InetAddress.getLoopbackAddress();
+        final PacketRingBuffer buffer = new PacketRingBuffer( 4, 10, PacketRingBuffer.OverflowPolicy.DROP_NEWEST );
+        assertTrue( buffer.offer( sender, packet("a") ) );
+        assertTrue( buffer.offer( sender, packet("b") ) );
+        assertEquals( List.of("a","b"), drain( buffer ) );
+        assertTrue( buffer.offer( sender, packet("c") ) );
+        assertEquals( List.of("c"), drain( buffer ) );
+        assertFalse( buffer.poll( slot -> {} ) );
+    }
+
+    @Test
+    public void testDropNewest()
+    {
+        final InetAddress sender = InetAddress.getLoopbackAddress();
+        final PacketRingBuffer buffer = new PacketRingBuffer( 2, 10, PacketRingBuffer.OverflowPolicy.DROP_NEWEST );
+        assertTrue( buffer.offer( sender, packet("a") ) );
+        assertTrue( buffer.offer( sender, packet("b") ) );
+        assertFalse( buffer.offer( sender, packet("c") ) );
+        assertEquals( List.of("a","b"), drain( buffer ) );
+        assertEquals( 1, buffer.getStatistics().droppedNewest );
+        assertEquals( 2, buffer.getStatistics().publishedPackets );
+    }
+
+    @Test
+    public void testDropOldest()
+    {
+        final InetAddress sender = InetAddress.getLoopbackAddress();
+        final PacketRingBuffer buffer = new PacketRingBuffer( 2, 10, PacketRingBuffer.OverflowPolicy.DROP_OLDEST );
+        assertTrue( buffer.offer( sender, packet("a") ) );
+        assertTrue( buffer.offer( sender, packet("b") ) );
+        assertTrue( buffer.offer( sender, packet("c") ) );
+        assertEquals( List.of("b","c"), drain( buffer ) );
+        assertEquals( 1, buffer.getStatistics().droppedOldest );
+        assertEquals( 0, buffer.getStatistics().droppedNewest );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPacketTooLarge()
+    {
+        new PacketRingBuffer( 2, 2, PacketRingBuffer.OverflowPolicy.DROP_NEWEST ).offer( InetAddress.getLoopbackAddress(), packet("abc") );
+    }
+
+    @Test
+    public void testConcurrentProducersAndConsumers() throws InterruptedException
+    {
+        final int producerCount = 3;
+        final int packetsPerProducer = 20_000;
+        final InetAddress sender = InetAddress.getLoopbackAddress();
+        final PacketRingBuffer buffer = new PacketRingBuffer( 64, 8, PacketRingBuffer.OverflowPolicy.BLOCK );
+
+        final AtomicLong consumed = new AtomicLong();
+        final AtomicLong checksum = new AtomicLong();
+        final List<Thread> threads = new ArrayList<>();
+        for ( int i = 0 ; i < producerCount ; i++ )
+        {
+            threads.add( new Thread( () -> {
+                final ByteBuffer data = ByteBuffer.allocate( 8 );
+                for ( int j = 1 ; j <= packetsPerProducer ; j++ )
+                {
+                    data.clear();
+                    data.putLong( j );
+                    data.flip();
+                    buffer.offer( sender, data );
+                }
+            }));
+        }
+        final long expectedCount = producerCount * (long) packetsPerProducer;
+        for ( int i = 0 ; i < 2 ; i++ )
+        {
+            threads.add( new Thread( () -> {
+                while ( consumed.get() < expectedCount )
+                {
+                    buffer.poll( slot -> {
+                        checksum.addAndGet( slot.data.getLong() );
+                        consumed.incrementAndGet();
+                    });
+                }
+            }));
+        }
+        threads.forEach( Thread::start );
+        for ( Thread t : threads ) {
+            t.join();
+        }
+        assertEquals( expectedCount, consumed.get() );
+        assertEquals( producerCount * ( packetsPerProducer * (packetsPerProducer + 1L) / 2 ), checksum.get() );
+        assertEquals( 0, buffer.getStatistics().droppedNewest );
+    }
+
+    @Test
+    public void testDropOldestWithConcurrentProducers() throws InterruptedException
+    {
+        final int producerCount = 3;
+        final int packetsPerProducer = 20_000;
+        final InetAddress sender = InetAddress.getLoopbackAddress();
+        final PacketRingBuffer buffer = new PacketRingBuffer( 8, 8, PacketRingBuffer.OverflowPolicy.DROP_OLDEST );
+
+        final AtomicLong consumed = new AtomicLong();
+        final List<Thread> producers = new ArrayList<>();
+        for ( int i = 0 ; i < producerCount ; i++ )
+        {
+            producers.add( new Thread( () -> {
+                final ByteBuffer data = ByteBuffer.allocate( 8 );
+                for ( int j = 1 ; j <= packetsPerProducer ; j++ )
+                {
+                    data.clear();
+                    data.putLong( j );
+                    data.flip();
+                    assertTrue( buffer.offer( sender, data ) );
+                }
+            }));
+        }
+        final Thread consumer = new Thread( () -> {
+            while ( producers.stream().anyMatch( Thread::isAlive ) ) {
+                buffer.poll( slot -> consumed.incrementAndGet() );
+            }
+        });
+        producers.forEach( Thread::start );
+        consumer.start();
+        for ( Thread t : producers ) {
+            t.join();
+        }
+        consumer.join();
+        final int remaining = drain( buffer ).size();
+
+        final PacketRingBuffer.Statistics stats = buffer.getStatistics();
+        assertEquals( 0, stats.droppedNewest );
+        assertEquals( producerCount * (long) packetsPerProducer, stats.publishedPackets );
+        assertEquals( stats.publishedPackets, consumed.get() + remaining + stats.droppedOldest );
+    }
+}
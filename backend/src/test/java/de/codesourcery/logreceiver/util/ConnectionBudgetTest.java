@@ -0,0 +1,37 @@
+package de.codesourcery.logreceiver.util;
+
+import de.codesourcery.logreceiver.entity.Configuration;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConnectionBudgetTest
+{
+    @Test
+    public void testDefaultsFitIntoPool()
+    {
+        final Configuration config = new Configuration();
+        config.dbConnectionPoolSize = 10;
+        config.dbReservedConnections = 2;
+        assertEquals( 2, ConnectionBudget.filterThreads( config ) );
+        assertEquals( 6, ConnectionBudget.flushWorkerThreads( config ) );
+
+        config.dbConnectionPoolSize = 3;
+        assertEquals( 1, ConnectionBudget.filterThreads( config ) );
+        assertEquals( 1, ConnectionBudget.flushWorkerThreads( config ) );
+    }
+
+    @Test
+    public void testExplicitThreadCounts()
+    {
+        final Configuration config = new Configuration();
+        config.dbConnectionPoolSize = 10;
+        config.dbReservedConnections = 2;
+        config.filterThreads = 3;
+        assertEquals( 3, ConnectionBudget.filterThreads( config ) );
+        assertEquals( 5, ConnectionBudget.flushWorkerThreads( config ) );
+
+        config.flushWorkerThreads = 7;
+        assertEquals( 7, ConnectionBudget.flushWorkerThreads( config ) );
+    }
+}
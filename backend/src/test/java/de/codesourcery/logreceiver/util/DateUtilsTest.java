@@ -0,0 +1,73 @@
+package de.codesourcery.logreceiver.util;
+
+import org.junit.Test;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class DateUtilsTest
+{
+    @Test
+    public void testEpochDayRoundTrip()
+    {
+        final long first = LocalDate.of( 1, 1, 1 ).toEpochDay();
+        final long last = LocalDate.of( 9999, 12, 31 ).toEpochDay();
+        for ( long day = first ; day <= last ; day += 7 )
+        {
+            final LocalDate expected = LocalDate.ofEpochDay( day );
+            final int date = DateUtils.toDate( day );
+            assertEquals( expected.getYear(), DateUtils.year( date ) );
+            assertEquals( expected.getMonthValue(), DateUtils.month( date ) );
+            assertEquals( expected.getDayOfMonth(), DateUtils.dayOfMonth( date ) );
+            assertEquals( day, DateUtils.toEpochDay( expected.getYear(), expected.getMonthValue(), expected.getDayOfMonth() ) );
+        }
+    }
+
+    @Test
+    public void testToEpochSecond()
+    {
+        final int[] offsets = { 0, 2*3600, -(5*3600+30*60), 14*3600 };
+        for ( int offset : offsets )
+        {
+            final ZonedDateTime expected = ZonedDateTime.of( 2020, 2, 29, 23, 59, 58, 0, ZoneOffset.ofTotalSeconds( offset ) );
+            assertEquals( expected.toEpochSecond(), DateUtils.toEpochSecond( 2020, 2, 29, 23, 59, 58, offset ) );
+        }
+    }
+
+    @Test
+    public void testInvalidDayOfMonth()
+    {
+        try {
+            DateUtils.toEpochSecond( 2019, 2, 29, 0, 0, 0, 0 );
+            fail( "Should have failed" );
+        } catch(DateTimeException e) {
+            // ok
+        }
+        try {
+            DateUtils.toEpochSecond( 2019, 4, 31, 0, 0, 0, 0 );
+            fail( "Should have failed" );
+        } catch(DateTimeException e) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testZoneOffsetsAreCached()
+    {
+        assertSame( DateUtils.zoneOffset( -3600 ), DateUtils.zoneOffset( -3600 ) );
+        assertEquals( ZoneOffset.ofHoursMinutes( 5, 30 ), DateUtils.zoneOffset( 5*3600+30*60 ) );
+        assertSame( DateUtils.UTC, DateUtils.zoneId( 0 ) );
+        try {
+            DateUtils.zoneOffset( 19*3600 );
+            fail( "Should have failed" );
+        } catch(DateTimeException e) {
+            // ok
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package de.codesourcery.logreceiver.ui.dao;
 
+import de.codesourcery.logreceiver.entity.Configuration;
 import de.codesourcery.logreceiver.entity.Host;
 import de.codesourcery.logreceiver.entity.SyslogMessage;
 import de.codesourcery.logreceiver.logstorage.MessageDAO;
@@ -105,6 +106,8 @@ public class DatabaseBackend implements IDatabaseBackend, ApplicationContextAwar
 
     private MessageDAO messageDAO;
 
+    private Configuration config;
+
     private static final RowMapper<User> USER_MAPPER = (rs,idx) -> {
         final User user = new User();
         user.id = rs.getLong("user_id");
@@ -180,11 +183,12 @@ public class DatabaseBackend implements IDatabaseBackend, ApplicationContextAwar
         }
         final String hostIds = ids.stream().map( x-> Long.toString(x) ).collect( Collectors.joining(","));
         final String sql = "SELECT * FROM "+PostgreSQLHostIdManager.HOSTS_TABLE+" WHERE host_id IN ("+hostIds+")";
+        final RowMapper<Host> hostRowMapper = PostgreSQLHostIdManager.rowMapper( config );
         final ResultSetExtractor<Map<Long,Host>> hostMapper = resultSet ->
         {
             final Map<Long,Host> hostsById = new HashMap<>();
             while( resultSet.next() )  {
-                final Host host = PostgreSQLHostIdManager.ROW_MAPPER.mapRow( resultSet,0 );
+                final Host host = hostRowMapper.mapRow( resultSet,0 );
                 hostsById.put( host.id, host );
             }
             return hostsById;
@@ -687,4 +691,10 @@ public class DatabaseBackend implements IDatabaseBackend, ApplicationContextAwar
     {
         this.messageDAO = messageDAO;
     }
+
+    @Resource
+    public void setConfiguration(Configuration config)
+    {
+        this.config = config;
+    }
 }
\ No newline at end of file
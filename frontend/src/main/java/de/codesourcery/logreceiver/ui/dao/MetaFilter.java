@@ -2,11 +2,11 @@ package de.codesourcery.logreceiver.ui.dao;
 
 import de.codesourcery.logreceiver.entity.Host;
 import de.codesourcery.logreceiver.entity.SyslogMessage;
-import de.codesourcery.logreceiver.events.ApplicationStartedEvent;
 import de.codesourcery.logreceiver.events.HostAddedEvent;
 import de.codesourcery.logreceiver.events.HostDeletedEvent;
 import de.codesourcery.logreceiver.filtering.FilterCallbackManager;
 import de.codesourcery.logreceiver.filtering.IFilterCallback;
+import de.codesourcery.logreceiver.filtering.MultiPatternMatcher;
 import de.codesourcery.logreceiver.formatting.PatternLogFormatter;
 import de.codesourcery.logreceiver.formatting.PatternLogFormatterCache;
 import de.codesourcery.logreceiver.storage.IHostManager;
@@ -18,16 +18,24 @@ import org.springframework.stereotype.Component;
 
 import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import java.time.ZonedDateTime;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
+/**
+ * Matches new messages against all enabled {@link Subscription}s.
+ *
+ * Subscriptions are routed through an immutable snapshot that gets replaced whenever a subscription is
+ * (un-)registered, so matching never blocks registration. Each host has its own lock guarding its
+ * matchers and match buffers, batches of different hosts are matched in parallel.
+ */
 @Component
 public class MetaFilter implements IFilterCallback
 {
@@ -42,9 +50,12 @@ public class MetaFilter implements IFilterCallback
     @Resource
     private IHostManager hostManager;
 
-    // @GuardedBy( callbacksByHost );
-    // key is Host, value is Map<Log pattern,List<SubscriptionCallback>>
-    private final Map<Host, Map<String,List<SubscriptionCallback>>> callbacksByHost = new HashMap<>();
+    // @GuardedBy( callbacks )
+    // key is subscription ID
+    private final Map<Long, SubscriptionCallback> callbacks = new LinkedHashMap<>();
+
+    // replaced while holding the lock on callbacks
+    private volatile Map<Host, HostRoute> routing = Collections.emptyMap();
 
     public interface IBatchCallback
     {
@@ -63,8 +74,13 @@ public class MetaFilter implements IFilterCallback
         void messagesMatched(Subscription sub,int matchCount,long[] messageIds, long[] hostIds, boolean finalCall);
     }
 
-    @Subscribe
-    public void handleEvent(ApplicationStartedEvent event)
+    /**
+     * Registers this filter for all hosts.
+     *
+     * Invoked by {@link SubscriptionManager} on startup only after all subscriptions have been registered,
+     * so messages missed while the application was stopped get matched against them.
+     */
+    public void registerAllHosts()
     {
         hostManager.getAllHosts().stream()
                 .map( HostAddedEvent::new )
@@ -77,10 +93,6 @@ public class MetaFilter implements IFilterCallback
         public final Pattern regex;
         public final IBatchCallback batchCallback;
 
-        private int matchedMsgCount = 0;
-        private long[] matchedMessageIds = new long[10];
-        private long[] matchedHostIds = new long[10];
-
         SubscriptionCallback(Subscription sub, IBatchCallback batchCallback)
         {
             Validate.notNull( sub, "sub must not be null" );
@@ -90,65 +102,153 @@ public class MetaFilter implements IFilterCallback
             this.batchCallback = batchCallback;
         }
 
-        public void visit(SyslogMessage message,String formattedMessage, ZonedDateTime now)
+        public void onRemove() {
+            batchCallback.messagesMatched( sub, 0, new long[0], new long[0], true );
+        }
+    }
+
+    /**
+     * Messages of one host matched by one subscription.
+     */
+    private static final class MatchBuffer
+    {
+        public final SubscriptionCallback callback;
+
+        private int matchedMsgCount = 0;
+        private long[] matchedMessageIds = new long[10];
+        private long[] matchedHostIds = new long[10];
+
+        private MatchBuffer(SubscriptionCallback callback) {
+            this.callback = callback;
+        }
+
+        public void matched(SyslogMessage message)
         {
-            if ( regex.matcher( formattedMessage ).matches() )
+            if ( matchedMsgCount == matchedMessageIds.length )
             {
-                if ( matchedMsgCount == matchedMessageIds.length )
-                {
-                    final int newLen = 1 + matchedMessageIds.length*2;
-                    long[] tmp = new long[ newLen ];
-                    System.arraycopy( matchedMessageIds,0,tmp,0,matchedMessageIds.length );
-                    matchedMessageIds = tmp;
-                    tmp = new long[ newLen ];
-                    System.arraycopy( matchedHostIds,0,tmp,0,matchedHostIds.length );
-                    matchedHostIds = tmp;
+                final int newLen = 1 + matchedMessageIds.length*2;
+                long[] tmp = new long[ newLen ];
+                System.arraycopy( matchedMessageIds,0,tmp,0,matchedMessageIds.length );
+                matchedMessageIds = tmp;
+                tmp = new long[ newLen ];
+                System.arraycopy( matchedHostIds,0,tmp,0,matchedHostIds.length );
+                matchedHostIds = tmp;
 
-                }
-                matchedMessageIds[ matchedMsgCount ] = message.id;
-                matchedHostIds[ matchedMsgCount++ ] = message.host.id;
-                if ( matchedMsgCount > 1000 )
-                {
-                    flush(false);
-                    matchedMsgCount = 0;
-                }
+            }
+            matchedMessageIds[ matchedMsgCount ] = message.id;
+            matchedHostIds[ matchedMsgCount++ ] = message.host.id;
+            if ( matchedMsgCount > 1000 )
+            {
+                flush();
             }
         }
 
-        private void flush(boolean finalCall)
+        public void flush()
         {
-            batchCallback.messagesMatched( sub, matchedMsgCount, matchedMessageIds, matchedHostIds, finalCall );
-            matchedMsgCount = 0;
-        }
-
-        public void onRemove() {
-            flush(true);
+            if ( matchedMsgCount > 0 )
+            {
+                callback.batchCallback.messagesMatched( callback.sub, matchedMsgCount, matchedMessageIds, matchedHostIds, false );
+                matchedMsgCount = 0;
+            }
         }
     }
 
-    @Override
-    public void visit(List<SyslogMessage> messages)
+    /**
+     * Subscriptions of a single host, part of a routing snapshot.
+     *
+     * Matchers and match buffers are built lazily and only used while holding this instance's lock.
+     */
+    private static final class HostRoute
     {
-        // key is LogFormatter pattern, value is current message formatted by this pattern
-        synchronized (callbacksByHost)
+        // key is log pattern
+        private final Map<String, List<SubscriptionCallback>> callbacksByPattern;
+
+        // @GuardedBy( this )
+        private List<String> logPatterns;
+        // @GuardedBy( this )
+        private List<MultiPatternMatcher<MatchBuffer>> matchers;
+        // @GuardedBy( this )
+        private List<MatchBuffer> buffers;
+        // @GuardedBy( this )
+        // set once a newer snapshot has replaced the one containing this route
+        private boolean retired;
+        // @GuardedBy( this )
+        private final StringBuilder text = new StringBuilder();
+        // @GuardedBy( this )
+        private SyslogMessage current;
+        private final Consumer<MatchBuffer> onMatch = buffer -> buffer.matched( current );
+
+        private HostRoute(Map<String, List<SubscriptionCallback>> callbacksByPattern) {
+            this.callbacksByPattern = callbacksByPattern;
+        }
+
+        public boolean contains(SubscriptionCallback callback) {
+            return callbacksByPattern.values().stream().anyMatch( list -> list.contains( callback ) );
+        }
+
+        public synchronized void retire() {
+            retired = true;
+        }
+
+        /**
+         * Matches messages of this route's host.
+         *
+         * @return <code>false</code> if this route has been retired and the current snapshot needs to be used instead
+         */
+        public synchronized boolean visit(List<SyslogMessage> messages, PatternLogFormatterCache formatterCache)
         {
-            final ZonedDateTime now = ZonedDateTime.now();
+            if ( retired ) {
+                return false;
+            }
+            if ( matchers == null )
+            {
+                logPatterns = new ArrayList<>();
+                matchers = new ArrayList<>();
+                buffers = new ArrayList<>();
+                callbacksByPattern.forEach( (logPattern, list) ->
+                {
+                    final List<MatchBuffer> patternBuffers = new ArrayList<>();
+                    list.forEach( cb -> patternBuffers.add( new MatchBuffer( cb ) ) );
+                    buffers.addAll( patternBuffers );
+                    logPatterns.add( logPattern );
+                    matchers.add( new MultiPatternMatcher<>( patternBuffers, buffer -> buffer.callback.regex ) );
+                } );
+            }
             for (SyslogMessage msg : messages)
             {
-                final Map<String, List<SubscriptionCallback>> map = callbacksByHost.get( msg.host );
-                if ( map != null )
+                current = msg;
+                for (int i = 0, len = matchers.size(); i < len; i++)
                 {
-                    for (String logPattern : map.keySet())
-                    {
-                        final PatternLogFormatter formatter = formatterCache.get( logPattern );
-                        final String formatted = formatter.format( msg );
-                        for (SubscriptionCallback cb : map.get( logPattern ) )
-                        {
-                            cb.visit( msg, formatted , now );
-                        }
-                    }
+                    final PatternLogFormatter formatter = formatterCache.get( logPatterns.get( i ) );
+                    text.setLength( 0 );
+                    formatter.formatTo( msg, text );
+                    matchers.get( i ).match( text, onMatch );
                 }
             }
+            current = null;
+            buffers.forEach( MatchBuffer::flush );
+            return true;
+        }
+    }
+
+    @Override
+    public void visit(List<SyslogMessage> messages)
+    {
+        // batches usually contain messages of a single host only
+        int start = 0;
+        while ( start < messages.size() )
+        {
+            final Host host = messages.get( start ).host;
+            int end = start + 1;
+            while ( end < messages.size() && Objects.equals( host, messages.get( end ).host ) ) {
+                end++;
+            }
+            final List<SyslogMessage> hostMessages = messages.subList( start, end );
+            HostRoute route;
+            do {
+                route = routing.get( host );
+            } while ( route != null && ! route.visit( hostMessages, formatterCache ) );
+            start = end;
         }
     }
 
@@ -158,95 +258,89 @@ public class MetaFilter implements IFilterCallback
         if ( sub.id == 0 ) {
             throw new IllegalArgumentException( "Subscription must be persistent" );
         }
-        synchronized( callbacksByHost )
+        final SubscriptionCallback removed;
+        final Map<Host, HostRoute> oldRouting;
+        synchronized( callbacks )
         {
-            unregister( sub );
+            oldRouting = routing;
+            removed = callbacks.remove( sub.id );
             if ( sub.enabled )
             {
-                register( new SubscriptionCallback( sub, batchCallback ) );
+                callbacks.put( sub.id, new SubscriptionCallback( sub, batchCallback ) );
             }
+            updateRouting();
         }
-    }
-
-    private void register(SubscriptionCallback cb)
-    {
-        synchronized( callbacksByHost )
+        if ( removed != null )
         {
-            for ( Host h : cb.sub.hostGroup.hosts ) {
-                Map<String, List<SubscriptionCallback>> map = callbacksByHost.get( h );
-                if ( map == null ) {
-                    map = new HashMap<>();
-                    callbacksByHost.put(h, map );
-                }
-                List<SubscriptionCallback> list = map.get( cb.sub.logPattern );
-                if ( list == null ) {
-                    list = new ArrayList<>();
-                    map.put( cb.sub.logPattern, list );
-                }
-                list.add(cb);
-            }
+            retire( oldRouting, removed );
+            removed.onRemove();
         }
     }
 
     public Optional<SubscriptionCallback> unregister(Subscription cb)
     {
-        final Optional<SubscriptionCallback> callback;
-        synchronized( callbacksByHost )
+        final SubscriptionCallback removed;
+        final Map<Host, HostRoute> oldRouting;
+        synchronized( callbacks )
+        {
+            oldRouting = routing;
+            removed = callbacks.remove( cb.id );
+            if ( removed != null ) {
+                updateRouting();
+            }
+        }
+        if ( removed != null )
         {
-            callback = callbacksByHost.values().stream()
-                    .map( Map::values )
-                    .flatMap( Collection::stream )
-                    .flatMap( Collection::stream )
-                    .filter( x -> x.sub.id == cb.id ).findFirst();
+            retire( oldRouting, removed );
+            removed.onRemove();
         }
-        callback.ifPresent( this::unregister );
-        return callback;
+        return Optional.ofNullable( removed );
     }
 
-    private void unregister(SubscriptionCallback cb)
+    // @GuardedBy( callbacks )
+    private void updateRouting()
     {
-        boolean removed = false;
-        synchronized( callbacksByHost )
+        final Map<Host, Map<String, List<SubscriptionCallback>>> byHost = new HashMap<>();
+        for (SubscriptionCallback cb : callbacks.values())
         {
-            final Collection<Map<String, List<SubscriptionCallback>>> maps = callbacksByHost.values();
-            for (Iterator<Map<String, List<SubscriptionCallback>>> iterator = maps.iterator(); iterator.hasNext(); )
+            for (Host h : cb.sub.hostGroup.hosts)
             {
-                final Map<String, List<SubscriptionCallback>> x = iterator.next();
-                for (Iterator<List<SubscriptionCallback>> iter = x.values().iterator(); iter.hasNext(); )
-                {
-                    final List<SubscriptionCallback> list = iter.next();
-                    if ( list.remove( cb ) )
-                    {
-                        removed = true;
-                        if ( list.isEmpty() )
-                        {
-                            iter.remove();
-                        }
-                    }
-                }
-                if ( x.isEmpty() ) {
-                    iterator.remove();
-                }
+                byHost.computeIfAbsent( h, key -> new HashMap<>() )
+                    .computeIfAbsent( cb.sub.logPattern, key -> new ArrayList<>() )
+                    .add( cb );
             }
         }
-        if ( removed )
-        {
-            cb.onRemove();
-        }
+        final Map<Host, HostRoute> newRouting = new HashMap<>();
+        byHost.forEach( (host, map) -> newRouting.put( host, new HostRoute( map ) ) );
+        routing = Collections.unmodifiableMap( newRouting );
+    }
+
+    /**
+     * Retires all routes of an outdated snapshot that contain a subscription, waiting for
+     * batches still being matched against them so the subscription will not see any further matches.
+     *
+     * @param oldRouting snapshot that was current before the subscription got removed
+     * @param removed callback of the removed subscription
+     */
+    private static void retire(Map<Host, HostRoute> oldRouting, SubscriptionCallback removed)
+    {
+        oldRouting.values().stream().filter( route -> route.contains( removed ) ).forEach( HostRoute::retire );
     }
 
     @PreDestroy
     public void destroy()
     {
-        final Map<Long,SubscriptionCallback> callbacksBySubscriptionId = new HashMap<>();
-        synchronized( callbacksByHost )
+        final List<SubscriptionCallback> removed;
+        final Map<Host, HostRoute> oldRouting;
+        synchronized( callbacks )
         {
-            for ( Map<String, List<SubscriptionCallback>> x : callbacksByHost.values() ) {
-                x.values().forEach( list -> list.forEach( cb -> callbacksBySubscriptionId.put( cb.sub.id, cb ) ) );
-            }
-            callbacksByHost.clear();
+            oldRouting = routing;
+            removed = new ArrayList<>( callbacks.values() );
+            callbacks.clear();
+            updateRouting();
         }
-        for ( SubscriptionCallback cb : callbacksBySubscriptionId.values() )
+        oldRouting.values().forEach( HostRoute::retire );
+        for ( SubscriptionCallback cb : removed )
         {
             try
             {
@@ -258,6 +352,12 @@ public class MetaFilter implements IFilterCallback
         }
     }
 
+    @Override
+    public String getWatermarkKey()
+    {
+        return "meta-filter";
+    }
+
     @Override
     public void visit(SyslogMessage message)
     {
@@ -275,4 +375,4 @@ public class MetaFilter implements IFilterCallback
         LOG.info("handleEvent(): Un-registering meta-filter for "+event.deletedHost);
         filterManager.unregister( event.deletedHost.ip, this );
     }
-}
\ No newline at end of file
+}
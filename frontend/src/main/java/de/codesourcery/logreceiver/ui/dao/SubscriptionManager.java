@@ -64,6 +64,7 @@ public class SubscriptionManager
     public void handleEvent(ApplicationStartedEvent event)
     {
         backend.getAllSubscriptions( false ).forEach( sub -> metaFilter.register( sub, batchCallback ) );
+        metaFilter.registerAllHosts();
     }
 
     @Transactional
@@ -8,11 +8,15 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import de.codesourcery.logreceiver.IAPI;
 import de.codesourcery.logreceiver.entity.Configuration;
 import de.codesourcery.logreceiver.entity.Host;
+import de.codesourcery.logreceiver.entity.MessagePage;
 import de.codesourcery.logreceiver.entity.SyslogMessage;
+import de.codesourcery.logreceiver.filtering.CompiledFilter;
+import de.codesourcery.logreceiver.filtering.FilterExpression;
 import de.codesourcery.logreceiver.filtering.IFilterCallback;
 import de.codesourcery.logreceiver.formatting.PatternLogFormatter;
 import de.codesourcery.logreceiver.ui.auth.IAuthenticator;
 import de.codesourcery.logreceiver.ui.auth.SessionListener;
+import de.codesourcery.logreceiver.util.DateUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.web.context.WebApplicationContext;
@@ -35,6 +39,8 @@ import javax.websocket.server.HandshakeRequest;
 import javax.websocket.server.ServerEndpoint;
 import javax.websocket.server.ServerEndpointConfig;
 import java.io.IOException;
+import java.time.Instant;
+import java.time.ZonedDateTime;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
@@ -59,18 +65,22 @@ public class WebSocketEndpoint {
     private IAPI api;
     private Configuration configuration;
 
-    private RegExMatchingCallback callback;
+    private MatchingCallback callback;
 
     public static final class LogMessageWrapper
     {
         @JsonProperty("id")
         public final long id;
 
+        @JsonProperty("ts")
+        public final String timestamp; // <seconds>.<nanos>
+
         @JsonProperty("text")
         public final String text;
 
-        public LogMessageWrapper(long id,String text) {
-            this.id = id;
+        public LogMessageWrapper(SyslogMessage message,String text) {
+            this.id = message.id;
+            this.timestamp = formatTimestamp( message.epochSeconds, message.nanos );
             this.text = text;
         }
     }
@@ -95,7 +105,8 @@ public class WebSocketEndpoint {
     {
         SUBSCRIBE( "subscribe", SubscribeRequest.class ),
         GET_ALL_HOSTS("get_all_hosts"),
-        LAZY_LOAD("lazy_load",LazyLoadRequest.class);
+        LAZY_LOAD("lazy_load",LazyLoadRequest.class),
+        JUMP_TO_TIME("jump_to_time",JumpToTimeRequest.class);
 
         @JsonValue
         public final String jsonIdentifier;
@@ -132,6 +143,12 @@ public class WebSocketEndpoint {
         public boolean forwards;
     }
 
+    public static final class JumpToTimeRequest extends APIRequest
+    {
+        public int maxCount;
+        public String timestamp; // ISO-8601, returns messages up to this point in time
+    }
+
     public static final class SubscribeRequest extends APIRequest
     {
         public long hostId;
@@ -145,6 +162,9 @@ public class WebSocketEndpoint {
         public String responseCode="ok";
         public String errorMessage="";
         public Object payload;
+        public boolean complete=true; // false if the server stopped scanning before finding enough matches
+        public Long resumeEntryId; // DB primary key to continue an incomplete page at
+        public String resumeEntryTimestamp; // timestamp (<seconds>.<nanos>) within the partition of resumeEntryId, NULL if not paging by time
 
         public APIResponse(Command cmd)
         {
@@ -266,9 +286,23 @@ public class WebSocketEndpoint {
                     ((LazyLoadingResponse) response).top = lazyReq.forwards;
 
                     final IAPI.PagingDirection dir = lazyReq.forwards ? IAPI.PagingDirection.FORWARD_IN_TIME : IAPI.PagingDirection.BACKWARD_IN_TIME;
-                    final List<SyslogMessage> toSend = api.getMessages( callback.host, callback, dir, lazyReq.refEntryId, lazyReq.maxCount );
+                    final MessagePage toSend;
+                    if ( lazyReq.refEntryTimestamp == null || lazyReq.refEntryTimestamp.isBlank() ) {
+                        toSend = api.getMessages( callback.host, callback, dir, lazyReq.refEntryId, lazyReq.maxCount );
+                    } else {
+                        // only reads the partitions adjacent to the reference message
+                        final ZonedDateTime refTimestamp = parseTimestamp( lazyReq.refEntryTimestamp );
+                        toSend = api.getMessages( callback.host, callback, dir, refTimestamp, lazyReq.refEntryId, lazyReq.maxCount );
+                    }
                     sendToClient( toSend, response );
                     break;
+                case JUMP_TO_TIME:
+                    response = new APIResponse(Command.JUMP_TO_TIME);
+                    final JumpToTimeRequest jumpReq = (JumpToTimeRequest) request;
+                    LOG.info("---- JUMPING to "+jumpReq.timestamp+" , limit "+jumpReq.maxCount);
+                    final ZonedDateTime jumpTarget = ZonedDateTime.ofInstant( Instant.parse( jumpReq.timestamp ), DateUtils.UTC );
+                    sendToClient( api.getMessages( callback.host, callback, IAPI.PagingDirection.BACKWARD_IN_TIME, jumpTarget, null, jumpReq.maxCount ), response );
+                    break;
                 case SUBSCRIBE:
                     response = new APIResponse(Command.SUBSCRIBE);
                     SubscribeRequest req = (SubscribeRequest) request;
@@ -280,10 +314,10 @@ public class WebSocketEndpoint {
                     }
 
                     LOG.info("subscribe: Client sent '"+req.regex+"' with max. count "+req.maxCount);
-                    final RegExMatchingCallback newCallback;
+                    final MatchingCallback newCallback;
                     if ( req.regex == null || req.regex.isBlank() )
                     {
-                        newCallback = new RegExMatchingCallback(host,".*")
+                        newCallback = new MatchingCallback(host,".*")
                         {
                             private final Predicate<SyslogMessage> predicate = msg -> true;
 
@@ -298,15 +332,26 @@ public class WebSocketEndpoint {
                             {
                                 return predicate;
                             }
+
+                            @Override
+                            public boolean matchesAll()
+                            {
+                                return true;
+                            }
                         };
-                    } else if ( ! req.regex.contains(".*" ) && ! req.regex.contains("^") && ! req.regex.contains("$")) {
-                        newCallback = new MyCallback(host, ".*"+ req.regex +".*" );
                     } else {
-                        newCallback = new MyCallback(host, req.regex);
+                        final FilterExpression expression = parseFilterExpression( req.regex );
+                        if ( expression != null ) {
+                            newCallback = new ExpressionCallback(host, expression);
+                        } else if ( ! req.regex.contains(".*" ) && ! req.regex.contains("^") && ! req.regex.contains("$")) {
+                            newCallback = new MyCallback(host, ".*"+ req.regex +".*" );
+                        } else {
+                            newCallback = new MyCallback(host, req.regex);
+                        }
                     }
                     callback = newCallback;
                     boolean success = false;
-                    final List<SyslogMessage> messages;
+                    final MessagePage messages;
                     try
                     {
                         messages = api.subscribe(host, newCallback, req.maxCount);
@@ -337,30 +382,63 @@ public class WebSocketEndpoint {
         }
     }
 
-    private synchronized void sendToClient(List<SyslogMessage> messages, APIResponse response) throws IOException, EncodeException
+    /**
+     * Parses user input as a filter expression.
+     *
+     * @param input
+     * @return expression or <code>null</code> if the input is not a filter expression (and should be treated as plain regex)
+     */
+    private static FilterExpression parseFilterExpression(String input)
     {
+        try
+        {
+            return FilterExpression.parse( input );
+        }
+        catch(IllegalArgumentException e)
+        {
+            LOG.debug("parseFilterExpression(): Not a filter expression: '"+input+"' ("+e.getMessage()+")");
+            return null;
+        }
+    }
+
+    private static String formatTimestamp(long epochSeconds, int nanos) {
+        return epochSeconds+"."+nanos;
+    }
+
+    private static ZonedDateTime parseTimestamp(String secondsAndNanos)
+    {
+        final String[] parts = secondsAndNanos.split( "\\.", 2 );
+        final long seconds = Long.parseLong( parts[0] );
+        final long nanos = parts.length > 1 ? Long.parseLong( parts[1] ) : 0;
+        return ZonedDateTime.ofInstant( Instant.ofEpochSecond( seconds, nanos ), DateUtils.UTC );
+    }
+
+    private synchronized void sendToClient(MessagePage page, APIResponse response) throws IOException, EncodeException
+    {
+        final List<SyslogMessage> messages = page.messages;
+        response.complete = page.complete;
+        response.resumeEntryId = page.resumeEntryId;
+        response.resumeEntryTimestamp = page.resumeEpochSeconds == null ? null : formatTimestamp( page.resumeEpochSeconds, 0 );
         // javascript expects the data to be ordered ascending by ID already
         messages.sort( Comparator.comparingLong( a -> a.id ) );
         messages.forEach( item -> LOG.info("sendToClient(): Returning #"+item.id) );
         final PatternLogFormatter formatter = PatternLogFormatter.ofPattern( configuration.defaultLogDisplayPattern );
         response.payload = messages.stream()
-        .map( x -> new LogMessageWrapper(x.id,formatter.format(x)) )
+        .map( x -> new LogMessageWrapper(x,formatter.format(x)) )
         .toArray( LogMessageWrapper[]::new );
         session.getBasicRemote().sendObject( response );
     }
 
-    public abstract class RegExMatchingCallback implements IFilterCallback
+    public abstract class MatchingCallback implements IFilterCallback
     {
         protected final Host host;
         protected final String pattern;
-        protected final Pattern regex;
         protected final PatternLogFormatter formatter;
 
-        public RegExMatchingCallback(Host host, String pattern)
+        public MatchingCallback(Host host, String pattern)
         {
             this.pattern = pattern;
-            this.regex = Pattern.compile(pattern,Pattern.CASE_INSENSITIVE);
-            LOG.info("RegExMatchingCallback(): Matching on '"+pattern+"'");
+            LOG.info("MatchingCallback(): Matching on '"+pattern+"'");
             this.host = host;
             this.formatter = PatternLogFormatter.ofPattern( configuration.defaultLogDisplayPattern );
         }
@@ -376,7 +454,7 @@ public class WebSocketEndpoint {
             try
             {
                 final APIResponse response = new APIResponse(Command.SUBSCRIBE);
-                final LogMessageWrapper wrapper = new LogMessageWrapper(message.id, text);
+                final LogMessageWrapper wrapper = new LogMessageWrapper(message, text);
                 response.payload = new LogMessageWrapper[]{wrapper};
                 session.getBasicRemote().sendObject(response);
             }
@@ -387,24 +465,66 @@ public class WebSocketEndpoint {
         }
     }
 
-    public final class MyCallback extends RegExMatchingCallback
+    /**
+     * Matches a filter expression (see {@link FilterExpression}), parts of it
+     * get evaluated by the database when loading older messages.
+     */
+    public final class ExpressionCallback extends MatchingCallback
+    {
+        private final CompiledFilter filter;
+
+        public ExpressionCallback(Host host, FilterExpression expression)
+        {
+            super(host,expression.toString());
+            this.filter = expression.compile( formatter::format );
+            LOG.info("ExpressionCallback(): Compiled to "+filter);
+        }
+
+        @Override
+        public Predicate<SyslogMessage> getPredicate()
+        {
+            return filter.predicate;
+        }
+
+        @Override
+        public CompiledFilter getCompiledFilter()
+        {
+            return filter;
+        }
+
+        @Override
+        public void visit(SyslogMessage message)
+        {
+            if ( filter.predicate.test( message ) )
+            {
+                sendToClient(message,formatter.format(message));
+            }
+        }
+    }
+
+    public final class MyCallback extends MatchingCallback
     {
+        private final Pattern regex;
         private final Matcher matcher;
+        private final StringBuilder text = new StringBuilder();
         private final Predicate<SyslogMessage> predicate;
 
         public MyCallback(Host host, String pattern)
         {
             super(host,pattern);
+            this.regex = Pattern.compile(pattern,Pattern.CASE_INSENSITIVE);
             this.matcher = regex.matcher("" );
             this.predicate = new Predicate<>()
             {
                 private final Matcher localMatcher = regex.matcher("");
+                private final StringBuilder localText = new StringBuilder();
 
                 @Override
                 public boolean test(SyslogMessage message)
                 {
-                    final String text = formatter.format(message);
-                    localMatcher.reset(text);
+                    localText.setLength(0);
+                    formatter.formatTo(message, localText);
+                    localMatcher.reset(localText);
                     return localMatcher.matches();
                 }
             };
@@ -419,11 +539,12 @@ public class WebSocketEndpoint {
         @Override
         public synchronized void visit(SyslogMessage message)
         {
-            final String text = formatter.format(message);
+            text.setLength(0);
+            formatter.formatTo(message, text);
             matcher.reset(text);
             if ( matcher.matches() )
             {
-                sendToClient(message,text);
+                sendToClient(message,text.toString());
             }
         }
     }
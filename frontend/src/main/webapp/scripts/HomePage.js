@@ -3,6 +3,10 @@ let wrapper =
     infiniteScrollOffset:10,
     minId : null,
     maxId : null,
+    resumeTopId : null, // set when server returned an incomplete page while paging backwards
+    resumeBottomId : null, // set when server returned an incomplete page while paging forwards
+    resumeTopTs : null, // timestamp of the partition resumeTopId belongs to
+    resumeBottomTs : null, // timestamp of the partition resumeBottomId belongs to
     appendNewMessagesAtBottom : true,
     scrollFetchSize : 30,
     initialFetchSize : 70,
@@ -33,6 +37,8 @@ let wrapper =
           let unloadTop = resp.top;
           let unloadBottom = ! resp.top;
 
+          wrapper.handleIncompletePage(resp, resp.top, messages.length);
+
           for ( let i = 0 ; i <messages.length ; i++ ) {
             wrapper.log( i+": received 'lazy_load' message: "+messages[i].id);
           }
@@ -105,10 +111,25 @@ let wrapper =
             }
           }
         }
+        else if ( resp.cmd == 'jump_to_time' )
+        {
+          // server sends the messages up to the requested time, ordered ascending by message ID
+          let messages = Array.from( resp.payload );
+          wrapper.removeAllMessages();
+          wrapper.appendNewMessagesAtBottom = false;
+          wrapper.handleIncompletePage(resp, false, messages.length);
+          wrapper.appendMessages(messages);
+          wrapper.scrollToBottom();
+        }
         else if ( resp.cmd == 'subscribe' )
         {
           // note: server will send messages ordered ascending by message ID
           let messages = Array.from( resp.payload );
+          // only the initial page can be incomplete (and is fetched backwards in time),
+          // live messages must not reset the resume position
+          if ( resp.complete === false ) {
+            wrapper.handleIncompletePage(resp, false, messages.length);
+          }
           if ( wrapper.appendNewMessagesAtBottom )
           {
             for ( let i = 0 ; i <messages.length ; i++ ) {
@@ -222,7 +243,8 @@ let wrapper =
     },
     createLogDiv : function(msg) {
       let newDiv = document.createElement("div");
-      newDiv.setAttribute("entryId" , msg.id ); // TODO: actually the entry timestamp as <seconds>.<nanos>
+      newDiv.setAttribute("entryId" , msg.id );
+      newDiv.setAttribute("entryTs" , msg.ts ); // <seconds>.<nanos>, lets the server page through the right partitions
       newDiv.innerText = msg.text;
       return newDiv;
     },
@@ -281,8 +303,42 @@ let wrapper =
       let div = document.getElementById("container");
       wrapper.minId = null;
       wrapper.maxId = null;
+      wrapper.resumeTopId = null;
+      wrapper.resumeBottomId = null;
+      wrapper.resumeTopTs = null;
+      wrapper.resumeBottomTs = null;
       wrapper.removeAllChildren(div);
     },
+    /*
+     * Remember where to continue paging when the server gave up scanning
+     * before the page was full. Keeps asking for more right away
+     * if the page contained no messages at all (nothing to scroll).
+     */
+    handleIncompletePage : function(resp, forwards, messageCount) {
+      let resumeId = resp.complete === false ? resp.resumeEntryId : null;
+      let resumeTs = resp.complete === false ? resp.resumeEntryTimestamp : null;
+      if ( forwards ) {
+        wrapper.resumeBottomId = resumeId;
+        wrapper.resumeBottomTs = resumeTs;
+      } else {
+        wrapper.resumeTopId = resumeId;
+        wrapper.resumeTopTs = resumeTs;
+      }
+      if ( resumeId != null && messageCount == 0 ) {
+        wrapper.log("incomplete page, continuing at ID "+resumeId);
+        wrapper.send("lazy_load", {refEntryId:resumeId, refEntryTimestamp:resumeTs, forwards:forwards,maxCount:wrapper.scrollFetchSize})
+      }
+    },
+    /*
+     * Show the messages up to the point in time entered by the user
+     */
+    jumpToTime : function() {
+      let value = document.getElementById("jumpTime").value;
+      if ( ! value ) {
+        return;
+      }
+      wrapper.send("jump_to_time", {timestamp:new Date(value).toISOString(), maxCount:wrapper.initialFetchSize});
+    },
     /*
      * Send command via websocket
      */
@@ -372,9 +428,10 @@ let wrapper =
 
       if ( scrollingUp && pageTopY < firstDivBottomY + wrapper.infiniteScrollOffset )
       {
-        let minId = divChildren[0].getAttribute("entryId");
+        let minId = wrapper.resumeTopId != null ? wrapper.resumeTopId : divChildren[0].getAttribute("entryId");
+        let minTs = wrapper.resumeTopId != null ? wrapper.resumeTopTs : divChildren[0].getAttribute("entryTs");
         wrapper.log("at top of page, asking for ID < "+minId);
-        wrapper.send("lazy_load", {refEntryId:minId, forwards:false,maxCount:wrapper.scrollFetchSize})
+        wrapper.send("lazy_load", {refEntryId:minId, refEntryTimestamp:minTs, forwards:false,maxCount:wrapper.scrollFetchSize})
         return;
       }
 
@@ -384,10 +441,11 @@ let wrapper =
       let pageBottomY = wrapperDiv.scrollTop + wrapperDiv.clientHeight;
 
       if ( ! scrollingUp && pageBottomY > lastDivBottomY - wrapper.infiniteScrollOffset ) {
-        let maxId = divChildren[divChildren.length-1].getAttribute("entryId");
+        let maxId = wrapper.resumeBottomId != null ? wrapper.resumeBottomId : divChildren[divChildren.length-1].getAttribute("entryId");
+        let maxTs = wrapper.resumeBottomId != null ? wrapper.resumeBottomTs : divChildren[divChildren.length-1].getAttribute("entryTs");
         wrapper.log("at bottom of page, asking for ID > "+maxId);
         wrapper.appendNewMessagesAtBottom = true;
-        wrapper.send("lazy_load", {refEntryId:maxId, forwards:true,maxCount:wrapper.scrollFetchSize})
+        wrapper.send("lazy_load", {refEntryId:maxId, refEntryTimestamp:maxTs, forwards:true,maxCount:wrapper.scrollFetchSize})
       }
     }
   };
\ No newline at end of file